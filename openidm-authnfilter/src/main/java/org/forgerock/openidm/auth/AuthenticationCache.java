@@ -0,0 +1,437 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.auth;
+
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.forgerock.guava.common.cache.Cache;
+import org.forgerock.guava.common.cache.CacheBuilder;
+import org.forgerock.guava.common.cache.RemovalListener;
+import org.forgerock.guava.common.cache.RemovalNotification;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ResourceResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A short-lived, size-bounded cache of authenticated user resources.
+ * <p>
+ * Two kinds of entries are held:
+ * <ul>
+ *     <li>credential entries, keyed on the user query and username, which remember that a credential was
+ *     successfully verified. Only a keyed digest (HMAC-SHA256 with a random per-instance key) of the credential is
+ *     stored, never the credential itself; a lookup only hits if the presented credential produces the same
+ *     digest.</li>
+ *     <li>user detail entries, keyed on the user query and principal, which hold the user resource used for
+ *     role calculation and the authorization id of an already authenticated principal.</li>
+ * </ul>
+ * Entries expire after the configured time to live and are removed early via
+ * {@link #invalidate(String, String)} when the user resource is changed or deleted, which looks the entries of the
+ * user up in an index by resource collection and id. Entries are only added with a {@link #stamp()} taken before the
+ * user was queried, and are not added if the user was invalidated since, so that an authentication racing with a
+ * change of the user cannot cache the user as it was before the change.
+ */
+public class AuthenticationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthenticationCache.class);
+
+    /** The configuration key for the authentication cache in the serverAuthContext. */
+    public static final String AUTHENTICATION_CACHE_KEY = "authenticationCache";
+
+    private static final String CONFIG_ENABLED = "enabled";
+    private static final String CONFIG_MAX_ENTRIES = "maxEntries";
+    private static final String CONFIG_TIME_TO_LIVE = "timeToLive";
+    private static final String CONFIG_ROLE_RESOURCES = "roleResources";
+
+    private static final long DEFAULT_MAX_ENTRIES = 10000L;
+    private static final long DEFAULT_TIME_TO_LIVE_SECONDS = 30L;
+
+    /** the resource collections whose changes may change the roles of any user */
+    private static final List<String> DEFAULT_ROLE_RESOURCES = Arrays.asList("managed/role");
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** the number of stripes the invalidation stamps of users are kept in */
+    private static final int INVALIDATION_STRIPES = 256;
+
+    private final Cache<String, Entry> cache;
+    private final SecretKeySpec digestKey;
+    private final Set<String> roleResources;
+
+    /** the resource collections users have been cached for */
+    private final Set<String> resourceNames = new CopyOnWriteArraySet<>();
+
+    /**
+     * Guards the index, the stamps and the additions to the cache, so that an entry is never added after an
+     * invalidation of its user has looked it up.
+     */
+    private final Object lock = new Object();
+
+    /** the cache keys of the entries of each user, by resource collection and user id */
+    private final Map<String, Map<String, Set<String>>> index = new HashMap<>();
+
+    /** the last stamp, incremented by each invalidation */
+    private long stamp;
+
+    /** the stamp of the last invalidation of the users hashed to each stripe */
+    private final long[] invalidatedUsers = new long[INVALIDATION_STRIPES];
+
+    /** the stamp of the last invalidation of all users of a resource collection */
+    private final Map<String, Long> invalidatedResources = new HashMap<>();
+
+    /**
+     * Constructs an authentication cache.
+     *
+     * @param maxEntries the maximum number of cached entries
+     * @param timeToLive how long an entry is kept after it was cached
+     * @param unit the unit of {@code timeToLive}
+     */
+    public AuthenticationCache(long maxEntries, long timeToLive, TimeUnit unit) {
+        this(maxEntries, timeToLive, unit, DEFAULT_ROLE_RESOURCES);
+    }
+
+    /**
+     * Constructs an authentication cache.
+     *
+     * @param maxEntries the maximum number of cached entries
+     * @param timeToLive how long an entry is kept after it was cached
+     * @param unit the unit of {@code timeToLive}
+     * @param roleResources the resource collections whose changes invalidate all users, e.g. {@code managed/role}
+     */
+    public AuthenticationCache(long maxEntries, long timeToLive, TimeUnit unit, Collection<String> roleResources) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(timeToLive, unit)
+                .removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Entry> notification) {
+                        unindex(notification.getKey(), notification.getValue());
+                    }
+                })
+                .build();
+        this.roleResources = new HashSet<>(roleResources);
+        final byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.digestKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+    }
+
+    /**
+     * Builds the authentication cache from its configuration.
+     * <pre>
+     *     "authenticationCache" : {
+     *         "enabled" : true,
+     *         "maxEntries" : 10000,
+     *         "timeToLive" : 30,
+     *         "roleResources" : [ "managed/role" ]
+     *     }
+     * </pre>
+     * {@code timeToLive} is in seconds. A change to a resource under one of the {@code roleResources} evicts all
+     * users, as it may change the roles of any user.
+     *
+     * @param config the authenticationCache configuration, may be null
+     * @return the authentication cache, or null if caching is not enabled
+     */
+    public static AuthenticationCache fromConfig(JsonValue config) {
+        if (config == null || config.isNull() || !config.get(CONFIG_ENABLED).defaultTo(true).asBoolean()) {
+            return null;
+        }
+        final long timeToLive = config.get(CONFIG_TIME_TO_LIVE).defaultTo(DEFAULT_TIME_TO_LIVE_SECONDS).asLong();
+        if (timeToLive <= 0) {
+            return null;
+        }
+        return new AuthenticationCache(
+                config.get(CONFIG_MAX_ENTRIES).defaultTo(DEFAULT_MAX_ENTRIES).asLong(),
+                timeToLive, TimeUnit.SECONDS,
+                config.get(CONFIG_ROLE_RESOURCES).defaultTo(DEFAULT_ROLE_RESOURCES).asList(String.class));
+    }
+
+    /**
+     * Returns the stamp to add entries with, to be taken before the user is queried.
+     *
+     * @return the current stamp
+     */
+    public long stamp() {
+        synchronized (lock) {
+            return stamp;
+        }
+    }
+
+    /**
+     * Returns the cached resource of a user whose credential was previously verified.
+     *
+     * @param resourceName the resource the user was queried on
+     * @param queryKey identifies the user query on the resource
+     * @param username the username
+     * @param password the credential presented
+     * @return a copy of the cached user resource, or null if there is no entry or the credential does not match
+     */
+    public ResourceResponse getAuthenticated(String resourceName, String queryKey, String username,
+            String password) {
+        final Entry entry = cache.getIfPresent(credentialKey(resourceName, queryKey, username));
+        if (entry == null || password == null) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(entry.digest, digest(username, password))) {
+            // never serve a cached verification for a different credential
+            return null;
+        }
+        return entry.copyOfResource();
+    }
+
+    /**
+     * Caches the resource of a user whose credential was verified successfully.
+     *
+     * @param resourceName the resource the user was queried on
+     * @param queryKey identifies the user query on the resource
+     * @param username the username
+     * @param password the credential that was verified
+     * @param resource the authenticated user resource
+     * @param stamp the {@link #stamp()} taken before the credential was verified
+     */
+    public void putAuthenticated(String resourceName, String queryKey, String username, String password,
+            ResourceResponse resource, long stamp) {
+        if (username == null || password == null || resource == null) {
+            return;
+        }
+        put(credentialKey(resourceName, queryKey, username),
+                new Entry(resourceName, resource, digest(username, password)), stamp);
+    }
+
+    /**
+     * Returns the cached user detail of an authenticated principal.
+     *
+     * @param resourceName the resource the user was queried on
+     * @param queryKey identifies the user query on the resource
+     * @param principal the authenticated principal
+     * @return a copy of the cached user resource, or null if there is no entry
+     */
+    public ResourceResponse getUserDetail(String resourceName, String queryKey, String principal) {
+        final Entry entry = cache.getIfPresent(userDetailKey(resourceName, queryKey, principal));
+        return entry != null ? entry.copyOfResource() : null;
+    }
+
+    /**
+     * Caches the user detail of an authenticated principal.
+     *
+     * @param resourceName the resource the user was queried on
+     * @param queryKey identifies the user query on the resource
+     * @param principal the authenticated principal
+     * @param resource the user resource
+     * @param stamp the {@link #stamp()} taken before the user was queried
+     */
+    public void putUserDetail(String resourceName, String queryKey, String principal, ResourceResponse resource,
+            long stamp) {
+        if (principal == null || resource == null) {
+            return;
+        }
+        put(userDetailKey(resourceName, queryKey, principal), new Entry(resourceName, resource, null), stamp);
+    }
+
+    private void put(String key, Entry entry, long stamp) {
+        resourceNames.add(entry.resourceName);
+        synchronized (lock) {
+            final Long resourceInvalidated = invalidatedResources.get(entry.resourceName);
+            if (invalidatedUsers[stripe(entry.resourceName, entry.resourceId)] > stamp
+                    || (resourceInvalidated != null && resourceInvalidated > stamp)) {
+                logger.trace("Not caching {}/{}, invalidated since it was queried",
+                        entry.resourceName, entry.resourceId);
+                return;
+            }
+            Map<String, Set<String>> users = index.get(entry.resourceName);
+            if (users == null) {
+                users = new HashMap<>();
+                index.put(entry.resourceName, users);
+            }
+            Set<String> keys = users.get(entry.resourceId);
+            if (keys == null) {
+                keys = new HashSet<>();
+                users.put(entry.resourceId, keys);
+            }
+            keys.add(key);
+            // within the lock, so that the removal of a replaced entry does not unindex the key
+            cache.put(key, entry);
+        }
+    }
+
+    private void unindex(String key, Entry removed) {
+        synchronized (lock) {
+            final Entry current = cache.asMap().get(key);
+            if (current != null && current.isSameUser(removed)) {
+                return; // replaced by an entry of the same user
+            }
+            final Map<String, Set<String>> users = index.get(removed.resourceName);
+            final Set<String> keys = users != null ? users.get(removed.resourceId) : null;
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    users.remove(removed.resourceId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all entries for a user resource.
+     *
+     * @param resourcePath the resource path of the changed resource collection, e.g. {@code managed/user}
+     * @param resourceId the id of the changed user, or null to remove all entries for the resource collection
+     */
+    public void invalidate(String resourcePath, String resourceId) {
+        final List<String> keys = new ArrayList<>();
+        synchronized (lock) {
+            stamp++;
+            if (resourceId == null) {
+                invalidatedResources.put(resourcePath, stamp);
+                final Map<String, Set<String>> users = index.remove(resourcePath);
+                if (users != null) {
+                    for (Set<String> userKeys : users.values()) {
+                        keys.addAll(userKeys);
+                    }
+                }
+            } else {
+                invalidatedUsers[stripe(resourcePath, resourceId)] = stamp;
+                final Map<String, Set<String>> users = index.get(resourcePath);
+                final Set<String> userKeys = users != null ? users.remove(resourceId) : null;
+                if (userKeys != null) {
+                    keys.addAll(userKeys);
+                }
+            }
+            cache.invalidateAll(keys);
+        }
+        logger.trace("Invalidated cached authentication entries for {}/{}", resourcePath, resourceId);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidateAll() {
+        synchronized (lock) {
+            stamp++;
+            for (String resourceName : resourceNames) {
+                invalidatedResources.put(resourceName, stamp);
+            }
+            index.clear();
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns whether changes to the given resource may change the roles of any user.
+     *
+     * @param resourcePath the resource path of a changed resource
+     * @return true if the resource is, or is under, one of the role resource collections
+     */
+    boolean isRoleResource(String resourcePath) {
+        for (String roleResource : roleResources) {
+            if (resourcePath.equals(roleResource) || resourcePath.startsWith(roleResource + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether entries were cached for users of the given resource collection.
+     * Used to avoid the cost of invalidation for writes to unrelated resources.
+     *
+     * @param resourcePath the resource path of a resource collection
+     * @return true if the resource collection is one users are queried on
+     */
+    boolean isCachedResource(String resourcePath) {
+        return resourceNames.contains(resourcePath);
+    }
+
+    /**
+     * @return the approximate number of cached entries
+     */
+    long size() {
+        return cache.size();
+    }
+
+    private static int stripe(String resourceName, String resourceId) {
+        return ((resourceName.hashCode() * 31 + String.valueOf(resourceId).hashCode()) & 0x7fffffff)
+                % INVALIDATION_STRIPES;
+    }
+
+    private static String credentialKey(String resourceName, String queryKey, String username) {
+        return "credential:" + resourceName + ":" + queryKey + ":" + username;
+    }
+
+    private static String userDetailKey(String resourceName, String queryKey, String principal) {
+        return "detail:" + resourceName + ":" + queryKey + ":" + principal;
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(digestKey);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to compute credential digest", e);
+        }
+    }
+
+    /**
+     * A cached user resource, with the credential digest for credential entries.
+     */
+    private static final class Entry {
+        private final String resourceName;
+        private final String resourceId;
+        private final String revision;
+        private final JsonValue content;
+        private final byte[] digest;
+
+        private Entry(String resourceName, ResourceResponse resource, byte[] digest) {
+            this.resourceName = resourceName;
+            this.resourceId = resource.getId() != null
+                    ? resource.getId()
+                    : resource.getContent().get(ResourceResponse.FIELD_CONTENT_ID).asString();
+            this.revision = resource.getRevision();
+            this.content = resource.getContent().copy();
+            this.digest = digest;
+        }
+
+        private ResourceResponse copyOfResource() {
+            return newResourceResponse(resourceId, revision, content.copy());
+        }
+
+        private boolean isSameUser(Entry other) {
+            return resourceName.equals(other.resourceName)
+                    && (resourceId == null ? other.resourceId == null : resourceId.equals(other.resourceId));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.auth;
+
+import javax.inject.Provider;
+
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.Filter;
+import org.forgerock.json.resource.PatchRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.Request;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Router filter that removes users from the {@link AuthenticationCache} once an update, patch or delete
+ * of the user resource, or a change to a resource under it such as a role relationship, has completed, so that a
+ * password change or role change is effective on the next request rather than after the cache time to live.
+ * <p>
+ * Actions on a cached resource collection (e.g. a patch-by-query) evict all users of the collection, since the
+ * affected users are not known. Changes to the role resources, e.g. to the members or conditions of a role, evict
+ * all users for the same reason.
+ */
+class AuthenticationCacheFilter implements Filter {
+
+    private final Provider<AuthenticationCache> cacheProvider;
+
+    /**
+     * Constructs the filter.
+     *
+     * @param cacheProvider provides the current authentication cache, which may be null if caching is disabled
+     */
+    AuthenticationCacheFilter(Provider<AuthenticationCache> cacheProvider) {
+        this.cacheProvider = cacheProvider;
+    }
+
+    @Override
+    public Promise<ActionResponse, ResourceException> filterAction(Context context, ActionRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request, true);
+        return invalidation == null
+                ? next.handleAction(context, request)
+                : next.handleAction(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterCreate(Context context, CreateRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request, false);
+        return invalidation == null
+                ? next.handleCreate(context, request)
+                : next.handleCreate(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterDelete(Context context, DeleteRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request, false);
+        return invalidation == null
+                ? next.handleDelete(context, request)
+                : next.handleDelete(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterPatch(Context context, PatchRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request, false);
+        return invalidation == null
+                ? next.handlePatch(context, request)
+                : next.handlePatch(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<QueryResponse, ResourceException> filterQuery(Context context, QueryRequest request,
+            QueryResourceHandler handler, RequestHandler next) {
+        return next.handleQuery(context, request, handler);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterRead(Context context, ReadRequest request,
+            RequestHandler next) {
+        return next.handleRead(context, request);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterUpdate(Context context, UpdateRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request, false);
+        return invalidation == null
+                ? next.handleUpdate(context, request)
+                : next.handleUpdate(context, request).thenAlways(invalidation);
+    }
+
+    /**
+     * Determines the cache entries a write request affects.
+     *
+     * @param request the write request
+     * @param collectionRequest whether the request may address a whole resource collection
+     * @return the invalidation to run on completion of the request, or null if no cached user is affected
+     */
+    private Runnable invalidationFor(Request request, boolean collectionRequest) {
+        final AuthenticationCache cache = cacheProvider.get();
+        if (cache == null) {
+            return null;
+        }
+        final ResourcePath path = request.getResourcePathObject();
+        if (cache.isRoleResource(path.toString())) {
+            return invalidateAll(cache);
+        }
+        if (collectionRequest && cache.isCachedResource(path.toString())) {
+            return invalidate(cache, path.toString(), null);
+        }
+        // the user itself, e.g. managed/user/1, or a resource under it, e.g. managed/user/1/roles/0
+        for (int i = 1; i < path.size(); i++) {
+            final String resourcePath = path.head(i).toString();
+            if (cache.isCachedResource(resourcePath)) {
+                return invalidate(cache, resourcePath, path.get(i));
+            }
+        }
+        return null;
+    }
+
+    private static Runnable invalidate(final AuthenticationCache cache, final String resourcePath,
+            final String resourceId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                cache.invalidate(resourcePath, resourceId);
+            }
+        };
+    }
+
+    private static Runnable invalidateAll(final AuthenticationCache cache) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                cache.invalidateAll();
+            }
+        };
+    }
+}
@@ -47,6 +47,7 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 
@@ -90,6 +91,7 @@ import org.forgerock.openidm.idp.impl.IdentityProviderListener;
 import org.forgerock.openidm.idp.impl.IdentityProviderService;
 import org.forgerock.openidm.idp.impl.ProviderConfigMapper;
 import org.forgerock.openidm.router.IDMConnectionFactory;
+import org.forgerock.openidm.router.RouterFilterRegistration;
 import org.forgerock.script.ScriptRegistry;
 import org.forgerock.services.context.SecurityContext;
 import org.forgerock.services.context.Context;
@@ -225,6 +227,20 @@ public class AuthenticationService implements SingletonResourceProvider, Identit
     @Reference(policy = ReferencePolicy.DYNAMIC)
     private volatile IdentityProviderService identityProviderService;
 
+    /** The router filter registration, used to register the authentication cache invalidation filter */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile RouterFilterRegistration routerFilterRegistration;
+
+    void bindRouterFilterRegistration(RouterFilterRegistration routerFilterRegistration) {
+        this.routerFilterRegistration = routerFilterRegistration;
+        routerFilterRegistration.addFilter(authenticationCacheFilter);
+    }
+
+    void unbindRouterFilterRegistration(RouterFilterRegistration routerFilterRegistration) {
+        routerFilterRegistration.removeFilter(authenticationCacheFilter);
+        this.routerFilterRegistration = null;
+    }
+
     void bindIdentityProviderService(IdentityProviderService identityProviderService) {
         this.identityProviderService = identityProviderService;
         identityProviderService.registerIdentityProviderListener(this);
@@ -253,9 +269,25 @@ public class AuthenticationService implements SingletonResourceProvider, Identit
                 }
             };
 
+    /** The authentication cache, or null if authentication caching is not configured */
+    private volatile AuthenticationCache authenticationCache;
+
+    /** An on-demand Provider for the AuthenticationCache */
+    private final Provider<AuthenticationCache> authenticationCacheProvider =
+            new Provider<AuthenticationCache>() {
+                @Override
+                public AuthenticationCache get() {
+                    return authenticationCache;
+                }
+            };
+
+    /** Router filter evicting users from the authentication cache when they are changed */
+    private final AuthenticationCacheFilter authenticationCacheFilter =
+            new AuthenticationCacheFilter(authenticationCacheProvider);
+
     /** a factory Function to build an Authenticator from an auth module config */
     private final AuthenticatorFactory toAuthenticatorFromProperties =
-            new AuthenticatorFactory(connectionFactoryProvider, cryptoServiceProvider);
+            new AuthenticatorFactory(connectionFactoryProvider, cryptoServiceProvider, authenticationCacheProvider);
 
     /** A {@link Predicate} that returns whether the auth module is enabled */
     private static final Predicate<JsonValue> enabledAuthModules =
@@ -469,6 +501,10 @@ public class AuthenticationService implements SingletonResourceProvider, Identit
         final JsonValue authModuleConfig = amendedConfig.get(SERVER_AUTH_CONTEXT_KEY).get(AUTH_MODULES_KEY);
         amendAuthConfig(authModuleConfig);
 
+        // a new cache is built on each configuration change so no entries outlive the config they were cached with
+        authenticationCache = AuthenticationCache.fromConfig(
+                amendedConfig.get(SERVER_AUTH_CONTEXT_KEY).get(AuthenticationCache.AUTHENTICATION_CACHE_KEY));
+
         try {
             authFilterWrapper.setFilter(configureAuthenticationFilter(amendedConfig));
         } catch (AuthenticationException e) {
@@ -509,6 +545,7 @@ public class AuthenticationService implements SingletonResourceProvider, Identit
         logger.debug("OpenIDM Config for Authentication {} is deactivated.", config.get(Constants.SERVICE_PID));
         config = null;
         authenticators.clear();
+        authenticationCache = null;
 
         // remove CAF filter from CHF filter wrapper
         if (authFilterWrapper != null) {
@@ -611,7 +648,8 @@ public class AuthenticationService implements SingletonResourceProvider, Identit
         }
 
         // wrap all auth modules in our wrapper to apply the IDM business logic
-        return configureModule(new IDMAuthModuleWrapper(module, connectionFactory, cryptoService, scriptRegistry))
+        return configureModule(new IDMAuthModuleWrapper(module, connectionFactory, cryptoService, scriptRegistry,
+                authenticationCacheProvider))
                 .withSettings(moduleProperties.asMap());
     }
 
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2013-2015 ForgeRock AS.
+ * Copyright 2013-2016 ForgeRock AS.
  */
 
 package org.forgerock.openidm.auth;
@@ -41,13 +41,44 @@ public class AuthenticatorFactory implements Function<JsonValue, Authenticator>
     /** property for the password if using static authentication */
     private static final String PASSWORD_PROPERTY = "password";
 
+    /** a Provider for when authentication caching is disabled */
+    private static final Provider<AuthenticationCache> NO_AUTHENTICATION_CACHE =
+            new Provider<AuthenticationCache>() {
+                @Override
+                public AuthenticationCache get() {
+                    return null;
+                }
+            };
+
     private final Provider<ConnectionFactory> connectionFactoryProvider;
     private final Provider<CryptoService> cryptoServiceProvider;
+    private final Provider<AuthenticationCache> authenticationCacheProvider;
 
     public AuthenticatorFactory(final Provider<ConnectionFactory> connectionFactoryProvider,
             final Provider<CryptoService> cryptoServiceProvider) {
+        this(connectionFactoryProvider, cryptoServiceProvider, NO_AUTHENTICATION_CACHE);
+    }
+
+    /**
+     * Constructs an AuthenticatorFactory whose query-based Authenticators use an {@link AuthenticationCache}.
+     *
+     * @param connectionFactoryProvider provides the ConnectionFactory
+     * @param cryptoServiceProvider provides the CryptoService
+     * @param authenticationCacheProvider provides the AuthenticationCache, or null if caching is disabled
+     */
+    public AuthenticatorFactory(final Provider<ConnectionFactory> connectionFactoryProvider,
+            final Provider<CryptoService> cryptoServiceProvider,
+            final Provider<AuthenticationCache> authenticationCacheProvider) {
         this.connectionFactoryProvider = connectionFactoryProvider;
         this.cryptoServiceProvider = cryptoServiceProvider;
+        this.authenticationCacheProvider = authenticationCacheProvider;
+    }
+
+    /**
+     * @return the provider of the AuthenticationCache used by Authenticators built by this factory
+     */
+    public Provider<AuthenticationCache> getAuthenticationCacheProvider() {
+        return authenticationCacheProvider;
     }
 
     /**
@@ -60,12 +91,17 @@ public class AuthenticatorFactory implements Function<JsonValue, Authenticator>
     @Override
     public Authenticator apply(JsonValue jsonValue) {
         if (!jsonValue.get(QUERY_ID).isNull()) {
-            return new ResourceQueryAuthenticator(cryptoServiceProvider, connectionFactoryProvider,
-                    jsonValue.get(QUERY_ON_RESOURCE).required().asString(),
-                    jsonValue.get(QUERY_ID).required().asString(),
-                    jsonValue.get(PROPERTY_MAPPING).get(AUTHENTICATION_ID).required().asString(),
-                    jsonValue.get(PROPERTY_MAPPING).get(USER_CREDENTIAL).required().asString(),
-                    jsonValue.get(PROPERTY_MAPPING).get(USER_ROLES).asString());
+            final String queryOnResource = jsonValue.get(QUERY_ON_RESOURCE).required().asString();
+            final String queryId = jsonValue.get(QUERY_ID).required().asString();
+            final String authenticationId = jsonValue.get(PROPERTY_MAPPING).get(AUTHENTICATION_ID).required().asString();
+            final String userCredential = jsonValue.get(PROPERTY_MAPPING).get(USER_CREDENTIAL).required().asString();
+            final String userRoles = jsonValue.get(PROPERTY_MAPPING).get(USER_ROLES).asString();
+            return new CachingAuthenticator(
+                    new ResourceQueryAuthenticator(cryptoServiceProvider, connectionFactoryProvider,
+                            queryOnResource, queryId, authenticationId, userCredential, userRoles),
+                    authenticationCacheProvider,
+                    queryOnResource,
+                    queryId + ":" + authenticationId + ":" + userCredential + ":" + userRoles);
         } else if (!jsonValue.get(USERNAME_PROPERTY).isNull()
                 && !jsonValue.get(PASSWORD_PROPERTY).isNull()) {
             return new StaticAuthenticator(
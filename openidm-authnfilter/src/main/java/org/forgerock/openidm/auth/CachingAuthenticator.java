@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.auth;
+
+import javax.inject.Provider;
+
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Reject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link Authenticator} that serves repeated authentications of the same username and credential from the
+ * {@link AuthenticationCache}, and otherwise delegates to the wrapped authenticator, caching successful results.
+ * Failed authentications are never cached.
+ */
+class CachingAuthenticator implements Authenticator {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingAuthenticator.class);
+
+    private final Authenticator delegate;
+    private final Provider<AuthenticationCache> cacheProvider;
+    private final String queryOnResource;
+    private final String queryKey;
+
+    /**
+     * Constructs an instance of the CachingAuthenticator.
+     *
+     * @param delegate the authenticator verifying credentials on a cache miss
+     * @param cacheProvider provides the current authentication cache, which may be null if caching is disabled
+     * @param queryOnResource the resource the users are queried on
+     * @param queryKey identifies the user query, so that differently configured authenticators on the same
+     *                 resource do not share entries
+     */
+    CachingAuthenticator(Authenticator delegate, Provider<AuthenticationCache> cacheProvider,
+            String queryOnResource, String queryKey) {
+        Reject.ifNull(delegate, "Authenticator is null");
+        Reject.ifNull(cacheProvider, "AuthenticationCache provider is null");
+        this.delegate = delegate;
+        this.cacheProvider = cacheProvider;
+        this.queryOnResource = queryOnResource;
+        this.queryKey = queryKey;
+    }
+
+    @Override
+    public AuthenticatorResult authenticate(String username, String password, Context context)
+            throws ResourceException {
+        final AuthenticationCache cache = cacheProvider.get();
+        if (cache == null) {
+            return delegate.authenticate(username, password, context);
+        }
+
+        final ResourceResponse cached = cache.getAuthenticated(queryOnResource, queryKey, username, password);
+        if (cached != null) {
+            logger.debug("Authentication succeeded for {} from cache", username);
+            return AuthenticatorResult.authenticationSuccess(cached);
+        }
+
+        final long stamp = cache.stamp();
+        final AuthenticatorResult result = delegate.authenticate(username, password, context);
+        if (result.isAuthenticated() && result.getResource() != null) {
+            cache.putAuthenticated(queryOnResource, queryKey, username, password, result.getResource(), stamp);
+        }
+        return result;
+    }
+}
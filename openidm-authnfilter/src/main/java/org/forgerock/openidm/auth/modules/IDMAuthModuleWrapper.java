@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openidm.auth.modules;
@@ -37,6 +37,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import javax.inject.Provider;
 
 import org.apache.commons.lang3.StringUtils;
 import org.forgerock.caf.authentication.api.AsyncServerAuthModule;
@@ -52,6 +53,7 @@ import org.forgerock.json.resource.Requests;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.Responses;
+import org.forgerock.openidm.auth.AuthenticationCache;
 import org.forgerock.openidm.crypto.CryptoService;
 import org.forgerock.openidm.util.ContextUtil;
 import org.forgerock.script.ScriptEntry;
@@ -99,6 +101,7 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
     private final CryptoService cryptoService;
     private final ScriptRegistry scriptRegistry;
     private final AugmentationScriptExecutor augmentationScriptExecutor;
+    private final Provider<AuthenticationCache> authenticationCacheProvider;
 
     /** an security context augmentation script, if configured */
     private ScriptEntry augmentScript = null;
@@ -112,6 +115,7 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
     private String queryOnResource;
     private Function<QueryRequest, ResourceResponse, ResourceException> queryExecutor;
     private UserDetailQueryBuilder queryBuilder;
+    private String userDetailQueryKey;
     private RoleCalculator roleCalculator;
 
     /**
@@ -124,12 +128,30 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
      */
     public IDMAuthModuleWrapper(AsyncServerAuthModule authModule,
             ConnectionFactory connectionFactory, CryptoService cryptoService, ScriptRegistry scriptRegistry) {
+        this(authModule, connectionFactory, cryptoService, scriptRegistry, null);
+    }
+
+    /**
+     * Constructs a new instance of the IDMAuthModuleWrapper which looks up the user detail of authenticated
+     * principals in the {@link AuthenticationCache} before querying it.
+     *
+     * @param authModule The auth module wrapped by this module.
+     * @param connectionFactory
+     * @param cryptoService
+     * @param scriptRegistry
+     * @param authenticationCacheProvider provides the AuthenticationCache; may be null or provide null
+     *                                    if caching is disabled
+     */
+    public IDMAuthModuleWrapper(AsyncServerAuthModule authModule,
+            ConnectionFactory connectionFactory, CryptoService cryptoService, ScriptRegistry scriptRegistry,
+            Provider<AuthenticationCache> authenticationCacheProvider) {
         this.authModule = authModule;
         this.connectionFactory = connectionFactory;
         this.cryptoService = cryptoService;
         this.scriptRegistry = scriptRegistry;
         this.roleCalculatorFactory = new RoleCalculatorFactory();
         this.augmentationScriptExecutor = new AugmentationScriptExecutor();
+        this.authenticationCacheProvider = authenticationCacheProvider;
     }
 
     /**
@@ -150,6 +172,7 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
         this.scriptRegistry = scriptRegistry;
         this.roleCalculatorFactory = roleCalculatorFactory;
         this.augmentationScriptExecutor = augmentationScriptExecutor;
+        this.authenticationCacheProvider = null;
     }
 
     /**
@@ -248,6 +271,7 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
                         queryBuilder = new UserDetailQueryBuilder(queryOnResource)
                                 .useQueryId(queryId)
                                 .withAuthenticationIdProperty(authenticationId);
+                        userDetailQueryKey = queryId + ":" + authenticationId + ":" + userRoles;
 
                         roleCalculator = roleCalculatorFactory.create(defaultRoles, userRoles, groupMembership,
                                 roleMapping, groupComparison);
@@ -389,8 +413,23 @@ public class IDMAuthModuleWrapper implements AsyncServerAuthModule {
             }
         }
 
+        final AuthenticationCache cache = authenticationCacheProvider != null
+                ? authenticationCacheProvider.get()
+                : null;
+        if (cache != null) {
+            final ResourceResponse cached = cache.getUserDetail(queryOnResource, userDetailQueryKey, principalName);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         // attempt to read the user object; will return null if any of the pieces are null
-        return queryExecutor.apply(queryBuilder.build(principalName));
+        final long stamp = cache != null ? cache.stamp() : 0L;
+        final ResourceResponse resource = queryExecutor.apply(queryBuilder.build(principalName));
+        if (cache != null && resource != null) {
+            cache.putUserDetail(queryOnResource, userDetailQueryKey, principalName, resource, stamp);
+        }
+        return resource;
     }
 
     private void setClientIPAddress(MessageInfoContext messageInfo) {
@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import javax.inject.Provider;
+
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AuthenticationCacheTest {
+
+    private static final String RESOURCE = "managed/user";
+    private static final String QUERY_KEY = "credential-query:userName:password:null";
+
+    private AuthenticationCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new AuthenticationCache(100, 1, TimeUnit.MINUTES);
+    }
+
+    private static ResourceResponse user(String id) {
+        return newResourceResponse(id, "1", json(object(field("_id", id), field("userName", "bjensen"))));
+    }
+
+    @Test
+    public void testCredentialMustMatch() {
+        cache.putAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd", user("1"), cache.stamp());
+
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd").getId()).isEqualTo("1");
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "wrong")).isNull();
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", null)).isNull();
+        assertThat(cache.getAuthenticated(RESOURCE, "other-query", "bjensen", "Passw0rd")).isNull();
+    }
+
+    @Test
+    public void testCachedResourceIsCopied() {
+        cache.putAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd", user("1"), cache.stamp());
+
+        cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd").getContent().put("userName", "changed");
+
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd")
+                .getContent().get("userName").asString()).isEqualTo("bjensen");
+    }
+
+    @Test
+    public void testInvalidateById() {
+        cache.putAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd", user("1"), cache.stamp());
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "bjensen", user("1"), cache.stamp());
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "scarter", user("2"), cache.stamp());
+
+        cache.invalidate(RESOURCE, "1");
+
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd")).isNull();
+        assertThat(cache.getUserDetail(RESOURCE, QUERY_KEY, "bjensen")).isNull();
+        assertThat(cache.getUserDetail(RESOURCE, QUERY_KEY, "scarter")).isNotNull();
+    }
+
+    @Test
+    public void testInvalidateResourceCollection() {
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "bjensen", user("1"), cache.stamp());
+        cache.putUserDetail("repo/internal/user", QUERY_KEY, "openidm-admin", user("openidm-admin"), cache.stamp());
+
+        cache.invalidate(RESOURCE, null);
+
+        assertThat(cache.getUserDetail(RESOURCE, QUERY_KEY, "bjensen")).isNull();
+        assertThat(cache.getUserDetail("repo/internal/user", QUERY_KEY, "openidm-admin")).isNotNull();
+        assertThat(cache.isCachedResource(RESOURCE)).isTrue();
+        assertThat(cache.isCachedResource("managed/role")).isFalse();
+    }
+
+    @Test
+    public void testEntryQueriedBeforeInvalidationIsNotCached() {
+        final long stamp = cache.stamp();
+        cache.invalidate(RESOURCE, "1");
+
+        cache.putAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd", user("1"), stamp);
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "scarter", user("2"), stamp);
+
+        assertThat(cache.getAuthenticated(RESOURCE, QUERY_KEY, "bjensen", "Passw0rd")).isNull();
+        assertThat(cache.getUserDetail(RESOURCE, QUERY_KEY, "scarter")).isNotNull();
+    }
+
+    @Test
+    public void testReplacedEntryStaysIndexed() {
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "bjensen", user("1"), cache.stamp());
+        cache.putUserDetail(RESOURCE, QUERY_KEY, "bjensen", user("1"), cache.stamp());
+
+        cache.invalidate(RESOURCE, "1");
+
+        assertThat(cache.getUserDetail(RESOURCE, QUERY_KEY, "bjensen")).isNull();
+    }
+
+    @Test
+    public void testRoleResources() {
+        assertThat(cache.isRoleResource("managed/role")).isTrue();
+        assertThat(cache.isRoleResource("managed/role/admin/members")).isTrue();
+        assertThat(cache.isRoleResource("managed/roles")).isFalse();
+        assertThat(cache.isRoleResource(RESOURCE)).isFalse();
+    }
+
+    @Test
+    public void testFromConfig() {
+        assertThat(AuthenticationCache.fromConfig(json(null))).isNull();
+        assertThat(AuthenticationCache.fromConfig(json(object(field("enabled", false))))).isNull();
+        assertThat(AuthenticationCache.fromConfig(json(object(field("timeToLive", 0))))).isNull();
+        assertThat(AuthenticationCache.fromConfig(json(object(field("timeToLive", 5))))).isNotNull();
+    }
+
+    @Test
+    public void testCachingAuthenticatorOnlyCachesSuccess() throws Exception {
+        final Authenticator delegate = mock(Authenticator.class);
+        when(delegate.authenticate(eq("bjensen"), eq("Passw0rd"), any(Context.class)))
+                .thenReturn(Authenticator.AuthenticatorResult.authenticationSuccess(user("1")));
+        when(delegate.authenticate(eq("bjensen"), eq("wrong"), any(Context.class)))
+                .thenReturn(Authenticator.AuthenticatorResult.FAILED);
+        final Authenticator caching = new CachingAuthenticator(delegate,
+                new Provider<AuthenticationCache>() {
+                    @Override
+                    public AuthenticationCache get() {
+                        return cache;
+                    }
+                },
+                RESOURCE, QUERY_KEY);
+
+        assertThat(caching.authenticate("bjensen", "Passw0rd", new RootContext()).isAuthenticated()).isTrue();
+        assertThat(caching.authenticate("bjensen", "Passw0rd", new RootContext()).isAuthenticated()).isTrue();
+        assertThat(caching.authenticate("bjensen", "wrong", new RootContext()).isAuthenticated()).isFalse();
+        assertThat(caching.authenticate("bjensen", "wrong", new RootContext()).isAuthenticated()).isFalse();
+        verify(delegate, times(1)).authenticate(eq("bjensen"), eq("Passw0rd"), any(Context.class));
+        verify(delegate, times(2)).authenticate(eq("bjensen"), eq("wrong"), any(Context.class));
+    }
+}
@@ -45,6 +45,8 @@ public class Activator implements BundleActivator {
     final static Logger logger = LoggerFactory.getLogger(Activator.class);
 
     JSONConfigInstaller installer;
+
+    RepoPersistenceManager persistenceMgr;
     
     public void start(BundleContext context) {
         logger.debug("Config Bundle starting");
@@ -60,9 +62,10 @@ public class Activator implements BundleActivator {
         // persistence manager plug-in to store and manipulate configuration
         Hashtable<String, String> persistenceProp = new Hashtable<String, String>();
         persistenceProp.put("service.cmRanking", "0");
-        RepoPersistenceManager persistenceMgr = new RepoPersistenceManager(context);
+        persistenceMgr = new RepoPersistenceManager(context);
         context.registerService(new String[] {PersistenceManager.class.getName(), ConfigPersisterMarker.class.getName()},
                 persistenceMgr, persistenceProp);
+        persistenceMgr.getStatistics().register();
         logger.debug("Repository persistence manager service registered");
 
         // Register the optional "file view" handling of configuration
@@ -85,6 +88,9 @@ public class Activator implements BundleActivator {
         if (installer != null) {
             installer.stop(context);
         }
+        if (persistenceMgr != null) {
+            persistenceMgr.getStatistics().unregister();
+        }
         logger.debug("Config Bundle stopped");
     }
 }
\ No newline at end of file
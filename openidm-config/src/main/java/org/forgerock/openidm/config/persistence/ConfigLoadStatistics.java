@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.config.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the timing of the bulk configuration load performed by the {@link RepoPersistenceManager} at startup.
+ */
+public class ConfigLoadStatistics implements ConfigLoadStatisticsMBean {
+
+    /** The name under which the statistics are registered with the platform MBean server. */
+    public static final String MBEAN_NAME = "org.forgerock.openidm.config:type=ConfigLoad";
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigLoadStatistics.class);
+
+    private volatile boolean bulkLoaded;
+    private volatile int objectCount;
+    private volatile long queryTime;
+    private volatile long loadTime;
+    private final AtomicLong snapshotHits = new AtomicLong();
+
+    /**
+     * Records the outcome of the repository query for the configuration objects.
+     *
+     * @param bulkLoaded whether the full objects were fetched by a single query
+     * @param objectCount the number of configuration objects returned
+     * @param queryTime the query time in milliseconds
+     */
+    void queried(boolean bulkLoaded, int objectCount, long queryTime) {
+        this.bulkLoaded = bulkLoaded;
+        this.objectCount = objectCount;
+        this.queryTime = queryTime;
+    }
+
+    /**
+     * Records the time taken until all configuration objects were handed to the configuration admin.
+     *
+     * @param loadTime the total load time in milliseconds
+     */
+    void loaded(long loadTime) {
+        this.loadTime = loadTime;
+    }
+
+    /**
+     * Records a configuration object served from the snapshot.
+     */
+    void snapshotHit() {
+        snapshotHits.incrementAndGet();
+    }
+
+    @Override
+    public boolean isBulkLoaded() {
+        return bulkLoaded;
+    }
+
+    @Override
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    @Override
+    public long getQueryTime() {
+        return queryTime;
+    }
+
+    @Override
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    @Override
+    public long getSnapshotHits() {
+        return snapshotHits.get();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to register configuration load MBean", ex);
+        }
+    }
+
+    /**
+     * Unregisters these statistics from the platform MBean server.
+     */
+    void unregister() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to unregister configuration load MBean", ex);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.config.persistence;
+
+/**
+ * Provide JMX / MBean access to the timing of the bulk configuration load performed at startup.
+ */
+public interface ConfigLoadStatisticsMBean {
+
+    /**
+     * Gets whether the configuration was loaded with a single bulk query.
+     * @return true if the bulk query succeeded, false if the configuration was loaded object by object.
+     */
+    public boolean isBulkLoaded();
+
+    /**
+     * Gets the number of configuration objects returned by the repository.
+     * @return the number of configuration objects.
+     */
+    public int getObjectCount();
+
+    /**
+     * Gets the time spent querying the repository for the configuration objects.
+     * @return the query time in milliseconds.
+     */
+    public long getQueryTime();
+
+    /**
+     * Gets the time taken to hand all configuration objects to the configuration admin.
+     * @return the total load time in milliseconds.
+     */
+    public long getLoadTime();
+
+    /**
+     * Gets the number of configuration objects served from the snapshot instead of an individual repository read.
+     * @return the number of snapshot hits.
+     */
+    public long getSnapshotHits();
+}
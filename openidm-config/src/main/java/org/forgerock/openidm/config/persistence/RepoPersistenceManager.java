@@ -34,8 +34,11 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.cm.PersistenceManager;
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
@@ -52,6 +55,7 @@ import org.forgerock.openidm.config.enhanced.InvalidException;
 import org.forgerock.openidm.config.enhanced.JSONEnhancedConfig;
 import org.forgerock.openidm.config.installer.JSONPrettyPrint;
 import org.forgerock.openidm.repo.RepoBootService;
+import org.forgerock.util.query.QueryFilter;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
@@ -95,11 +99,33 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
     @SuppressWarnings("rawtypes")
     Map<String, Dictionary> tempStore = new HashMap<>();
 
+    // Counts the stores and deletes, so that the enumeration loading in bulk stops serving its snapshot after one
+    private final AtomicLong changes = new AtomicLong();
+
+    // Only the first enumeration of the dictionaries, done by the configuration admin at startup, loads in bulk
+    private final AtomicBoolean initialLoad = new AtomicBoolean(true);
+
+    private final ConfigLoadStatistics statistics = new ConfigLoadStatistics();
+
     public RepoPersistenceManager(final BundleContext ctx) {
         this.ctx = ctx;
         logger.debug("Bootstrapping Repository Persistence Manager");
     }
 
+    RepoPersistenceManager(final BundleContext ctx, final RepoBootService repo) {
+        this(ctx);
+        this.repo = repo;
+    }
+
+    /**
+     * Returns the timing of the bulk configuration load performed at startup.
+     *
+     * @return the configuration load statistics
+     */
+    ConfigLoadStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Handle the system notifying that it's ready to install configs.
      */
@@ -196,22 +222,41 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
      */
     @SuppressWarnings("rawtypes")
     public Dictionary load(String pid) throws IOException {
+        return load(pid, null);
+    }
+
+    /**
+     * Returns the <code>Dictionary</code> for the given <code>pid</code>, taking the configuration object from the
+     * snapshot of a bulk load if it is there.
+     *
+     * @param pid The identifier for the dictionary to load.
+     * @param snapshot The configuration objects fetched in bulk by repository id, or null.
+     * @return The dictionary for the identifier.
+     * @throws IOException If an error occurrs loading the dictionary.
+     */
+    @SuppressWarnings("rawtypes")
+    private Dictionary load(String pid, Map<String, Map<String, Object>> snapshot) throws IOException {
         logger.debug("Config load call for {}", pid);
         Dictionary result = null;
 
         try {
             if (isReady(0) && requireRepository) {
                 String id = pidToId(pid);
-                ReadRequest readRequest = Requests.newReadRequest(id);
-                ResourceResponse existing = repo.read(readRequest);
-                Map<String, Object> existingConfig = existing.getContent().asMap();
+                // Each snapshot entry is served once, later loads see the current repository state
+                Map<String, Object> existingConfig = snapshot != null ? snapshot.remove(id) : null;
+                if (existingConfig != null) {
+                    statistics.snapshotHit();
+                } else {
+                    ReadRequest readRequest = Requests.newReadRequest(id);
+                    existingConfig = repo.read(readRequest).getContent().asMap();
+                }
                 Object configMap = existingConfig.get(JSONEnhancedConfig.JSON_CONFIG_PROPERTY);
                 if (configMap != null) {
                     ((Map)configMap).remove(ResourceResponse.FIELD_CONTENT_ID);
                 }
                 String configString = serializeConfig(configMap);
                 existingConfig.put(JSONEnhancedConfig.JSON_CONFIG_PROPERTY, configString);
-                logger.debug("Config loaded {} {}", pid, existing);
+                logger.debug("Config loaded {} {}", pid, existingConfig);
                 result = mapToDict(existingConfig);
             } else if (!requireRepository) {
                 result = tempStore.get(pid);
@@ -257,6 +302,11 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
             java.util.Iterator memIter = tempStore.values().iterator();
             java.util.Iterator dbIter = null;
             List<String[]> returnedIds = new ArrayList<String[]>();
+            long start = System.currentTimeMillis();
+            boolean startup = false;
+            // the configuration objects fetched in bulk at startup, only held by this enumeration
+            Map<String, Map<String, Object>> snapshot = null;
+            long snapshotChanges;
 
             @Override
             public boolean hasMoreElements() {
@@ -266,18 +316,22 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
 
                     if (!hasMore) {
                         if (requireRepository && repo != null && dbIter == null) {
-                            QueryRequest r = Requests.newQueryRequest("/config");
-                            r.setQueryId("query-all-ids");
-                            logger.debug("Attempt query query-all-ids");
-                            final List<Map<String, Object>> queryResult = new ArrayList<Map<String, Object>>();
-                            List<ResourceResponse> results = repo.query(r);
-                            for (ResourceResponse resource : results) {
-                                queryResult.add(resource.getContent().asMap());
+                            startup = initialLoad.getAndSet(false);
+                            if (startup) {
+                                snapshot = new HashMap<>();
+                                snapshotChanges = changes.get();
                             }
-                            dbIter = queryResult.iterator();
+                            dbIter = queryConfigIds(snapshot).iterator();
                         }
                         if (dbIter != null) {
                             hasMore = dbIter.hasNext();
+                            if (!hasMore && startup) {
+                                startup = false;
+                                snapshot = null;
+                                statistics.loaded(System.currentTimeMillis() - start);
+                                logger.info("Loaded {} configuration objects from the repository in {} ms",
+                                        statistics.getObjectCount(), statistics.getLoadTime());
+                            }
                         }
                     }
                 } catch (RuntimeException ex) {
@@ -296,9 +350,8 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
                     if (memIter.hasNext()) {
                         return memIter.next();
                     } else {
-                        Map entry = (Map) dbIter.next();
-                        String entryId = (String) entry.get("_id");
-                        return load(entryId);
+                        // a configuration stored or deleted since the bulk load is read again
+                        return load((String) dbIter.next(), changes.get() == snapshotChanges ? snapshot : null);
                     }
                 } catch (RuntimeException ex) {
                     logger.warn("Failure getting configuration dictionaries for nextElement " + ex.getMessage(), ex);
@@ -311,6 +364,56 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
         };
     }
 
+    /**
+     * Queries the ids of all configuration objects in the repository.
+     * <p>
+     * For the bulk load the full configuration objects are fetched with a single query into the snapshot of the
+     * caller, so that the subsequent load of each of them does not need to read the repository. The snapshot is
+     * only held by the caller, so it is gone with the enumeration it belongs to, however far that is consumed. If
+     * the bulk query fails, only the ids are queried.
+     *
+     * @param snapshot the map to fetch the full configuration objects into, by repository id, or null to query
+     *      the ids only
+     * @return the ids of the configuration objects
+     * @throws ResourceException if querying the repository failed
+     */
+    List<String> queryConfigIds(Map<String, Map<String, Object>> snapshot) throws ResourceException {
+        final List<String> ids = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        final boolean bulk = snapshot != null;
+        if (bulk) {
+            try {
+                logger.debug("Attempt bulk query of all configuration objects");
+                QueryRequest r = Requests.newQueryRequest("/config")
+                        .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue());
+                for (ResourceResponse resource : repo.query(r)) {
+                    String id = resource.getId() != null
+                            ? resource.getId()
+                            : resource.getContent().get(ResourceResponse.FIELD_CONTENT_ID).asString();
+                    snapshot.put(CONFIG_CONTEXT_PREFIX + id, resource.getContent().asMap());
+                    ids.add(id);
+                }
+                statistics.queried(true, ids.size(), System.currentTimeMillis() - start);
+                return ids;
+            } catch (ResourceException ex) {
+                logger.warn("Bulk query of configuration objects failed, loading them individually: "
+                        + ex.getMessage(), ex);
+                snapshot.clear();
+                ids.clear();
+            }
+        }
+        QueryRequest r = Requests.newQueryRequest("/config");
+        r.setQueryId("query-all-ids");
+        logger.debug("Attempt query query-all-ids");
+        for (ResourceResponse resource : repo.query(r)) {
+            ids.add(resource.getContent().get(ResourceResponse.FIELD_CONTENT_ID).asString());
+        }
+        if (bulk) {
+            statistics.queried(false, ids.size(), System.currentTimeMillis() - start);
+        }
+        return ids;
+    }
+
     /**
      * Stores the <code>Dictionary</code> under the given <code>pid</code>.
      * 
@@ -324,6 +427,7 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
     @SuppressWarnings("rawtypes")
     public void store(String pid, Dictionary properties) throws IOException {
         logger.debug("Store call for {} {}", pid, properties);
+        changes.incrementAndGet();
 
         // Store config handling settings in memory
         if (pid.startsWith("org.apache.felix.fileinstall")) {
@@ -414,6 +518,7 @@ public class RepoPersistenceManager implements PersistenceManager, ConfigPersist
      */
     public void delete(String pid) throws IOException {
         logger.debug("delete call for {}", pid);
+        changes.incrementAndGet();
         Object removed = tempStore.remove(pid);
         if (removed != null) {
             logger.debug("Deleted {} from temporary store", pid);
@@ -0,0 +1,175 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.config.persistence;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.repo.RepoBootService;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RepoPersistenceManagerTest {
+
+    private RepoBootService repo;
+    private RepoPersistenceManager persistenceManager;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        repo = mock(RepoBootService.class);
+        persistenceManager = new RepoPersistenceManager(mock(BundleContext.class), repo);
+        when(repo.read(any(ReadRequest.class))).thenThrow(new NotFoundException());
+    }
+
+    private static ResourceResponse config(String id) {
+        return newResourceResponse(id, "1", json(object(
+                field("_id", id),
+                field("_rev", "1"),
+                field("service__pid", id),
+                field("jsonconfig", object(field("enabled", true))))));
+    }
+
+    private void givenConfig(final boolean bulkQuerySupported, final String... ids) throws Exception {
+        when(repo.query(any(QueryRequest.class))).thenAnswer(new Answer<List<ResourceResponse>>() {
+            @Override
+            public List<ResourceResponse> answer(InvocationOnMock invocation) throws Throwable {
+                QueryRequest request = (QueryRequest) invocation.getArguments()[0];
+                List<ResourceResponse> results = new ArrayList<>();
+                if (request.getQueryFilter() != null) {
+                    if (!bulkQuerySupported) {
+                        throw new BadRequestException("Query filters are not supported");
+                    }
+                    for (String id : ids) {
+                        results.add(config(id));
+                    }
+                } else {
+                    for (String id : ids) {
+                        results.add(newResourceResponse(id, "1", json(object(field("_id", id)))));
+                    }
+                }
+                return results;
+            }
+        });
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<Dictionary> enumerate() throws Exception {
+        List<Dictionary> dictionaries = new ArrayList<>();
+        Enumeration enumeration = persistenceManager.getDictionaries();
+        while (enumeration.hasMoreElements()) {
+            dictionaries.add((Dictionary) enumeration.nextElement());
+        }
+        return dictionaries;
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testStartupLoadsInBulk() throws Exception {
+        givenConfig(true, "org.forgerock.openidm.router", "org.forgerock.openidm.audit");
+
+        List<Dictionary> dictionaries = enumerate();
+
+        assertThat(dictionaries).hasSize(2);
+        assertThat(dictionaries.get(0).get("service.pid")).isEqualTo("org.forgerock.openidm.router");
+        assertThat((String) dictionaries.get(0).get("jsonconfig")).contains("\"enabled\"");
+        verify(repo, times(1)).query(any(QueryRequest.class));
+        verify(repo, never()).read(any(ReadRequest.class));
+
+        ConfigLoadStatistics statistics = persistenceManager.getStatistics();
+        assertThat(statistics.isBulkLoaded()).isTrue();
+        assertThat(statistics.getObjectCount()).isEqualTo(2);
+        assertThat(statistics.getSnapshotHits()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFallsBackToIndividualReads() throws Exception {
+        givenConfig(false, "org.forgerock.openidm.router");
+        Map<String, Map<String, Object>> snapshot = new HashMap<>();
+
+        assertThat(persistenceManager.queryConfigIds(snapshot))
+                .isEqualTo(Arrays.asList("org.forgerock.openidm.router"));
+
+        assertThat(snapshot).isEmpty();
+        assertThat(persistenceManager.getStatistics().isBulkLoaded()).isFalse();
+        assertThat(persistenceManager.exists("org.forgerock.openidm.router")).isFalse();
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testAbandonedEnumerationKeepsNoSnapshot() throws Exception {
+        givenConfig(true, "org.forgerock.openidm.router", "org.forgerock.openidm.audit");
+        Enumeration enumeration = persistenceManager.getDictionaries();
+        assertThat(enumeration.hasMoreElements()).isTrue();
+        enumeration.nextElement();
+
+        // the enumeration is not consumed any further, the snapshot of the audit configuration is not served
+        try {
+            persistenceManager.load("org.forgerock.openidm.audit");
+            fail("Expected the configuration to be read from the repository");
+        } catch (IOException e) {
+            // expected, not in the repository
+        }
+        verify(repo, times(1)).read(any(ReadRequest.class));
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testDeleteInvalidatesSnapshot() throws Exception {
+        givenConfig(true, "org.forgerock.openidm.router", "org.forgerock.openidm.audit");
+        Enumeration enumeration = persistenceManager.getDictionaries();
+        assertThat(enumeration.hasMoreElements()).isTrue();
+        enumeration.nextElement();
+
+        persistenceManager.delete("org.forgerock.openidm.audit");
+
+        assertThat(enumeration.hasMoreElements()).isTrue();
+        try {
+            enumeration.nextElement();
+            fail("Expected the deleted configuration to be read from the repository");
+        } catch (RuntimeException e) {
+            // expected, no longer in the repository
+        }
+        // by the delete and by the enumeration
+        verify(repo, times(2)).read(any(ReadRequest.class));
+    }
+}
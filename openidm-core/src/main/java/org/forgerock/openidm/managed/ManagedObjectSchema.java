@@ -62,6 +62,36 @@ public class ManagedObjectSchema {
      * The schema to use to validate the structure and content of the managed object. 
      */
     private final Map<JsonPointer, SchemaField> hiddenByDefaultFields;
+
+    /**
+     * The fields which are encrypted when stored.
+     */
+    private final List<JsonPointer> encryptedFields;
+
+    /**
+     * The fields with an onValidate script, in schema order.
+     */
+    private final List<SchemaField> onValidateFields;
+
+    /**
+     * The fields with an onStore script, encryption or hashing, in schema order.
+     */
+    private final List<SchemaField> onStoreFields;
+
+    /**
+     * The fields with an onRetrieve script, in schema order.
+     */
+    private final List<SchemaField> onRetrieveFields;
+
+    /**
+     * The virtual fields with an onRetrieve script, which calculates their value, in schema order.
+     */
+    private final Map<JsonPointer, SchemaField> virtualFields;
+
+    /**
+     * The private fields, which are removed from responses to external requests.
+     */
+    private final List<SchemaField> privateFields;
     
     public ManagedObjectSchema(JsonValue schema, ScriptRegistry scriptRegistry, CryptoService cryptoService) 
             throws JsonValueException, ScriptException {
@@ -69,6 +99,12 @@ public class ManagedObjectSchema {
         fields = new LinkedHashMap<>();
         relationshipFields = new ArrayList<>();
         hiddenByDefaultFields = new LinkedHashMap<>();
+        encryptedFields = new ArrayList<>();
+        onValidateFields = new ArrayList<>();
+        onStoreFields = new ArrayList<>();
+        onRetrieveFields = new ArrayList<>();
+        virtualFields = new LinkedHashMap<>();
+        privateFields = new ArrayList<>();
         if (!schemaProperties.isNull()) {
             for (String propertyKey : schemaProperties.keys()) {
                 SchemaField schemaField = new SchemaField(propertyKey, schemaProperties.get(propertyKey), 
@@ -81,6 +117,24 @@ public class ManagedObjectSchema {
                 if (schemaField.isRelationship()) {
                     relationshipFields.add(new JsonPointer(propertyKey));
                 }
+                if (schemaField.isEncrypted()) {
+                    encryptedFields.add(new JsonPointer(propertyKey));
+                }
+                if (schemaField.hasOnValidate()) {
+                    onValidateFields.add(schemaField);
+                }
+                if (schemaField.hasOnStore()) {
+                    onStoreFields.add(schemaField);
+                }
+                if (schemaField.isPrivate()) {
+                    privateFields.add(schemaField);
+                }
+                if (schemaField.hasOnRetrieve()) {
+                    onRetrieveFields.add(schemaField);
+                    if (schemaField.isVirtual()) {
+                        virtualFields.put(new JsonPointer(propertyKey), schemaField);
+                    }
+                }
             }
         }
     }
@@ -122,6 +176,63 @@ public class ManagedObjectSchema {
         return relationshipFields;
     }
 
+    /**
+     * Returns a {@link List} of the fields which are encrypted when stored.
+     * 
+     * @return a list of encrypted fields
+     */
+    public List<JsonPointer> getEncryptedFields() {
+        return encryptedFields;
+    }
+
+    /**
+     * Returns the fields which need to be processed when a managed object is validated, i.e. those with an
+     * onValidate script.
+     *
+     * @return a list of the fields to validate
+     */
+    List<SchemaField> getOnValidateFields() {
+        return onValidateFields;
+    }
+
+    /**
+     * Returns the fields which need to be processed when a managed object is stored, i.e. those with an onStore
+     * script, encryption or hashing.
+     *
+     * @return a list of the fields to process on store
+     */
+    List<SchemaField> getOnStoreFields() {
+        return onStoreFields;
+    }
+
+    /**
+     * Returns the fields which need to be processed when a managed object is retrieved, i.e. those with an
+     * onRetrieve script.
+     *
+     * @return a list of the fields to process on retrieve
+     */
+    List<SchemaField> getOnRetrieveFields() {
+        return onRetrieveFields;
+    }
+
+    /**
+     * Returns the virtual fields whose value is calculated by an onRetrieve script.
+     *
+     * @return a map of the calculated virtual fields
+     */
+    Map<JsonPointer, SchemaField> getVirtualFields() {
+        return virtualFields;
+    }
+
+    /**
+     * Returns the private fields, which are removed from responses to external requests.
+     *
+     * @return a list of the private fields
+     */
+    List<SchemaField> getPrivateFields() {
+        return privateFields;
+    }
+
     /**
      * Returns a {@link JsonValue} object representing a map of the fields that are hidden by default.
      * All relationship and virtual fields will be hidden by default unless the returnByDefault flag is set to true.
@@ -139,6 +139,9 @@ public class ManagedObjectService implements RequestHandler, Describable<ApiDesc
 
     private final Router managedRouter = new Router();
 
+    /** Queues the implicit synchronization of managed object types configured with "asyncSync" */
+    private SyncOutbox syncOutbox;
+
     /**
      * RequestHandler to handle requests for both a {@link ManagedObjectSet} and its nested
      * {@link RelationshipProvider}s.
@@ -240,11 +243,13 @@ public class ManagedObjectService implements RequestHandler, Describable<ApiDesc
     @Activate
     protected void activate(ComponentContext context) throws Exception {
         JsonValue configuration = enhancedConfig.getConfigurationAsJson(context);
+        syncOutbox = new SyncOutbox(connectionFactory, syncRoute, configuration.get(SyncOutbox.CONFIG_SYNC_OUTBOX));
         for (JsonValue managedObjectConfig : configuration.get("objects").expect(List.class)) {
             final ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, managedObjectConfig);
             if (managedRoutes.containsKey(objectSet.getName())) {
                 throw new ComponentException("Duplicate definition of managed object type: " + objectSet.getName());
             }
+            syncOutbox.register(objectSet);
 
             managedRoutes.put(objectSet.getName(),
                     managedRouter.addRoute(RoutingMode.STARTS_WITH, uriTemplate(objectSet.getTemplate()),
@@ -261,12 +266,19 @@ public class ManagedObjectService implements RequestHandler, Describable<ApiDesc
     protected void modified(ComponentContext context) throws Exception {
         JsonValue configuration = enhancedConfig.getConfigurationAsJson(context);
 
+        // the outbox is durable, pending entries are picked up by the new one
+        if (syncOutbox != null) {
+            syncOutbox.stop();
+        }
+        syncOutbox = new SyncOutbox(connectionFactory, syncRoute, configuration.get(SyncOutbox.CONFIG_SYNC_OUTBOX));
+
         Set<String> routesToKeep = new HashSet<String>();
         for (JsonValue value : configuration.get("objects").expect(List.class)) {
             ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, value);
             if (routesToKeep.contains(objectSet.getName())) {
                 throw new ComponentException("Duplicate definition of managed object type: " + objectSet.getName());
             }
+            syncOutbox.register(objectSet);
             RouteMatcher<Request> oldRoute = managedRoutes.get(objectSet.getName());
             if (null != oldRoute) {
                 managedRouter.removeRoute(oldRoute);
@@ -295,6 +307,10 @@ public class ManagedObjectService implements RequestHandler, Describable<ApiDesc
     protected void deactivate(ComponentContext context) {
         managedRouter.removeAllRoutes();
         managedRoutes.clear();
+        if (syncOutbox != null) {
+            syncOutbox.stop();
+            syncOutbox = null;
+        }
     }
 
     @Override
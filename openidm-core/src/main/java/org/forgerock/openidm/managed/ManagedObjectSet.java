@@ -27,6 +27,7 @@ import static org.forgerock.util.promise.Promises.*;
 
 import javax.script.ScriptException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -193,6 +194,12 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     /** Flag for indicating if policy enforcement is enabled */
     private final boolean enforcePolicies;
 
+    /** Whether implicit synchronization goes through the sync outbox rather than happening in the request */
+    private final boolean asyncSync;
+
+    /** The outbox queueing the implicit synchronization of this object set, if {@link #asyncSync} */
+    private volatile SyncOutbox syncOutbox;
+
     private final JsonValue config;
 
     /**
@@ -273,6 +280,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
 
         enforcePolicies = Boolean.parseBoolean(IdentityServer.getInstance()
                 .getProperty("openidm.policy.enforcement.enabled", "true"));
+        asyncSync = config.get(SyncOutbox.CONFIG_ASYNC_SYNC).defaultTo(false).asBoolean();
         logger.debug("Instantiated managed object set: {}", name);
     }
 
@@ -405,17 +413,17 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     private void onRetrieve(Context context, Request request, String resourceId, ResourceResponse value) throws ResourceException {
         execScriptHook(context, ScriptHook.onRetrieve, value.getContent(),
                 prepareScriptBindings(context, request, resourceId, new JsonValue(null), new JsonValue(null)));
-        for (JsonPointer key : Collections.unmodifiableSet(getSchema().getFields().keySet())) {
-            getSchema().getField(key).onRetrieve(context, value.getContent());
+        for (SchemaField field : getSchema().getOnRetrieveFields()) {
+            field.onRetrieve(context, value.getContent());
         }
     }
 
     private void populateVirtualProperties(final Context context, final Request request, final JsonValue content) throws ForbiddenException,
             InternalServerErrorException {
-        for (JsonPointer key : Collections.unmodifiableSet(getSchema().getFields().keySet())) {
-            SchemaField field = getSchema().getField(key);
+        for (Map.Entry<JsonPointer, SchemaField> virtualField : getSchema().getVirtualFields().entrySet()) {
+            SchemaField field = virtualField.getValue();
             // Only populate if field is returned by default or explicitly requested
-            if (field.isVirtual() && (field.isReturnedByDefault() || request.getFields().contains(key))) {
+            if (field.isReturnedByDefault() || request.getFields().contains(virtualField.getKey())) {
                 field.onRetrieve(context, content);
             }
         }
@@ -437,16 +445,16 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         scriptBindings.put("value", value.getObject());
 
         // Execute all individual onValidate scripts
-        for (JsonPointer key : Collections.unmodifiableSet(getSchema().getFields().keySet())) {
-            getSchema().getField(key).onValidate(context, value);
+        for (SchemaField field : getSchema().getOnValidateFields()) {
+            field.onValidate(context, value);
         }
 
         // Execute the root onValidate script
         execScriptHook(context, ScriptHook.onValidate, value, scriptBindings);
 
         // Execute all individual onStore scripts
-        for (JsonPointer key : Collections.unmodifiableSet(getSchema().getFields().keySet())) {
-            getSchema().getField(key).onStore(context, value); // includes per-property encryption
+        for (SchemaField field : getSchema().getOnStoreFields()) {
+            field.onStore(context, value); // includes per-property encryption
         }
 
         // Execute the root onStore script
@@ -454,11 +462,12 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     }
 
     /**
-     * Decrypt the value
+     * Decrypt the encrypted values of the value, at any level. The value is deep copied, as the result is handed
+     * to scripts which may modify it; only the encrypted values found while copying are decrypted.
      *
      * @param value
      *            a json value with potentially encrypted value(s)
-     * @return object with values decrypted
+     * @return a copy of the value with values decrypted
      * @throws InternalServerErrorException
      *             if decryption failed for any reason
      */
@@ -471,19 +480,89 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     }
 
     /**
-     * Decrypt the value
+     * Encrypt the schema's encrypted properties of the value which are not encrypted. Unlike {@link #onStore} no
+     * scripts are run and nothing is hashed.
      *
      * @param value
-     *            a json value with potentially encrypted value(s)
-     * @return object with values decrypted
+     *            a json value with potentially decrypted properties
+     * @return a copy of the value with the properties encrypted
+     * @throws InternalServerErrorException
+     *             if encryption failed for any reason
+     */
+    private JsonValue encryptFields(final JsonValue value) throws InternalServerErrorException {
+        if (value == null || !value.isMap() || getSchema().getEncryptedFields().isEmpty()) {
+            return value;
+        }
+        final JsonValue encrypted = value.copy();
+        for (JsonPointer field : getSchema().getEncryptedFields()) {
+            getSchema().getField(field).encrypt(encrypted);
+        }
+        return encrypted;
+    }
+
+    /**
+     * Decrypt the encrypted properties of the new value of an update. A top-level property whose stored form is
+     * the same as in the old value is taken from the already decrypted old value rather than decrypted again.
+     *
+     * @param newValue
+     *            the new value with potentially encrypted properties
+     * @param oldValue
+     *            the old value, in its stored form
+     * @param decryptedOld
+     *            the old value with its properties decrypted
+     * @return a copy of the new value with properties decrypted
      * @throws InternalServerErrorException
      *             if decryption failed for any reason
      */
-    private ResourceResponse decrypt(final ResourceResponse value) throws InternalServerErrorException {
+    private JsonValue decrypt(final JsonValue newValue, final JsonValue oldValue, final JsonValue decryptedOld)
+            throws InternalServerErrorException {
+        if (newValue == null || !newValue.isMap() || oldValue == null || !oldValue.isMap()) {
+            return decrypt(newValue);
+        }
+        JsonValue result = newValue;
+        for (String key : newValue.keys()) {
+            final JsonValue field = newValue.get(key);
+            if (field.isMap() && cryptoService.isEncrypted(field)
+                    && field.getObject().equals(oldValue.get(key).getObject())) {
+                if (result == newValue) {
+                    result = new JsonValue(new LinkedHashMap<>(newValue.asMap()));
+                }
+                // copied with the rest of the value below
+                result.put(key, decryptedOld.get(key).getObject());
+            }
+        }
+        return decrypt(result);
+    }
+
+    /**
+     * Copy the value for a patch to be applied to. Only the properties the patch operates on are decrypted, the
+     * other encrypted properties keep their stored form, which {@link #update} compares without decrypting.
+     *
+     * @param value
+     *            the value as read from the repository
+     * @param patchOperations
+     *            the patch operations to be applied
+     * @return a copy of the value with the patched properties decrypted
+     * @throws InternalServerErrorException
+     *             if decryption failed for any reason
+     */
+    private JsonValue decryptPatchedFields(final JsonValue value, final List<PatchOperation> patchOperations)
+            throws InternalServerErrorException {
+        final List<JsonPointer> patchedFields = new ArrayList<>();
+        for (PatchOperation operation : patchOperations) {
+            for (JsonPointer pointer : Arrays.asList(operation.getField(), operation.getFrom())) {
+                if (pointer == null) {
+                    continue;
+                }
+                if (pointer.isEmpty()) {
+                    // the whole object is patched
+                    return decrypt(value);
+                }
+                patchedFields.add(new JsonPointer(pointer.get(0)));
+            }
+        }
         try {
-            // makes a copy, which we can modify
-            return newResourceResponse(value.getId(), value.getRevision(),
-                    null != value.getContent() ? cryptoService.decrypt(value.getContent()) : null);
+            return cryptoService.decrypt(value.copy(), patchedFields);
         } catch (JsonException je) {
             throw new InternalServerErrorException(je);
         }
@@ -545,10 +624,16 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
             throws ResourceException {
         Context managedContext = new ManagedObjectContext(context);
 
-        JsonValue decryptedNew = decrypt(newValue);
+        final boolean encryptionChanged = encryptionValueChanged(oldValue);
+        // compare in the stored form first, which needs no decryption
+        if (!encryptionChanged && isEqual(oldValue, newValue)) { // object hasn't changed
+            return newResourceResponse(resourceId, rev, oldValue);
+        }
+
         JsonValue decryptedOld = decrypt(oldValue);
+        JsonValue decryptedNew = decrypt(newValue, oldValue, decryptedOld);
 
-        if (!encryptionValueChanged(oldValue) && isEqual(decryptedOld, decryptedNew)) { // object hasn't changed
+        if (!encryptionChanged && isEqual(decryptedOld, decryptedNew)) { // object hasn't changed
             return newResourceResponse(resourceId, rev, oldValue);
         }
 
@@ -582,6 +667,11 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         ResourceResponse response = connectionFactory.getConnection().update(context, updateRequest);
         JsonValue responseContent = response.getContent();
 
+        // Without postUpdate or onSync scripts the response is the object as persisted, plus the relationships;
+        // the content is also handed to sync below, so keep a copy rather than reading the object back
+        final JsonValue updatedContent = responseContent.copy();
+        updatedContent.asMap().putAll(strippedRelationshipFields.asMap());
+
         // Put relationships back in before we respond
         responseContent.asMap().putAll(strippedRelationshipFields.asMap());
 
@@ -596,11 +686,14 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         performSyncAction(context, request, resourceId, SynchronizationService.SyncServiceAction.notifyUpdate,
                 decryptedOld, responseContent);
 
-        ResourceResponse readResponse =
-                connectionFactory.getConnection().read(context, Requests.newReadRequest(repoId(resourceId)));
-        readResponse.getContent().asMap().putAll(strippedRelationshipFields.asMap());
-
-        return readResponse;
+        if (scriptHooks.get(ScriptHook.postUpdate) != null || scriptHooks.get(ScriptHook.onSync) != null) {
+            // the scripts may have modified the object since it was persisted, respond with its current state
+            ResourceResponse readResponse =
+                    connectionFactory.getConnection().read(context, Requests.newReadRequest(repoId(resourceId)));
+            readResponse.getContent().asMap().putAll(strippedRelationshipFields.asMap());
+            return readResponse;
+        }
+        return newResourceResponse(response.getId(), response.getRevision(), updatedContent);
     }
 
     /**
@@ -960,7 +1053,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         fields, as these are stored in a separate table.
          */
         try {
-            ReadRequest repoReadRequest = Requests.newReadRequest(repoId(resourceId));
+            ReadRequest repoReadRequest = Requests.newReadRequest(repoId(resourceId))
+                    .setAdditionalParameter(ServerConstants.PARAM_READ_FROM_PRIMARY, "true");
             for (JsonPointer pointer : request.getFields()) {
                 if (pointer.equals(SchemaField.FIELD_ALL)) {
                     repoReadRequest.addField("");
@@ -998,7 +1092,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         logger.debug("Delete {} ", "name=" + name + " id=" + resourceId + " rev=" + request.getRevision());
         Context managedContext = new ManagedObjectContext(context);
         try {
-            ReadRequest readRequest = Requests.newReadRequest(repoId(resourceId));
+            ReadRequest readRequest = Requests.newReadRequest(repoId(resourceId))
+                    .setAdditionalParameter(ServerConstants.PARAM_READ_FROM_PRIMARY, "true");
             ResourceResponse resource = connectionFactory.getConnection().read(managedContext, readRequest);
             
             // Populate the relationship fields in the read resource
@@ -1141,7 +1236,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
                 // Populate the oldValue with the relationship fields
                 oldValue.asMap().putAll(relationships.asMap());
 
-                JsonValue newValue = decrypt(oldValue);
+                JsonValue newValue = decryptPatchedFields(oldValue, patchOperations);
                 boolean modified = JsonValuePatch.apply(newValue, patchOperations);
                 if (!modified) {
                     ResourceResponse response = newResourceResponse(resource.getId(), revision, oldValue);
@@ -1460,7 +1555,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     }
 
     /**
-     * Read a resource from the repo by id
+     * Read a resource from the repo by id, from the primary database as the resource is about to be updated
      *
      * @param context the current ServerContext
      * @param resourceId the id of the resource to obtain
@@ -1468,7 +1563,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
      * @throws ResourceException
      */
     private ResourceResponse readResource(Context context, String resourceId) throws ResourceException {
-        ReadRequest readRequest = Requests.newReadRequest(resourceId);
+        ReadRequest readRequest = Requests.newReadRequest(resourceId)
+                .setAdditionalParameter(ServerConstants.PARAM_READ_FROM_PRIMARY, "true");
         return connectionFactory.getConnection().read(context, readRequest);
     }
 
@@ -1580,11 +1676,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         
         // only cull private properties if this is an external call
         if (ContextUtil.isExternal(context)) {
-            for (JsonPointer key : Collections.unmodifiableSet(getSchema().getFields().keySet())) {
-                SchemaField field = getSchema().getField(key);
-                if (field.isPrivate()) {
-                    resource.getContent().remove(field.getName());
-                }
+            for (SchemaField field : getSchema().getPrivateFields()) {
+                resource.getContent().remove(field.getName());
             }
         }
         
@@ -1665,6 +1758,18 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
             final SynchronizationService.SyncServiceAction action, final JsonValue oldValue, final JsonValue newValue)
         throws ResourceException {
 
+        if (context.containsContext(SyncContext.class)
+                && !context.asContext(SyncContext.class).isSyncEnabled()) {
+            // Do not try to sync if sync has been disabled
+            logger.debug("Sync has been disabled. {} ", context.asContext(SyncContext.class));
+            return;
+        }
+        final SyncOutbox outbox = syncOutbox;
+        if (asyncSync && outbox != null) {
+            // the old value has been decrypted, do not store it in the clear
+            outbox.enqueue(context, this, resourceId, action, encryptFields(oldValue), newValue);
+            return;
+        }
         // The "sync" route may be down (unconfigured) or in the process of being re-configured;
         // if this is the case, we don't want a router error on the ActionRequest below.  Just log
         // the warning and return.  When the SynchronizationService comes back up (or when the
@@ -1674,13 +1779,34 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
             logger.warn("Sync service was not available.");
             return;
         }
-        if (context.containsContext(SyncContext.class)
-                && !context.asContext(SyncContext.class).isSyncEnabled()) {
-            // Do not try to sync if sync has been disabled
-            logger.debug("Sync has been disabled. {} ", context.asContext(SyncContext.class));
-            return;
-        }
+        sync(context, request, resourceId, action, oldValue, newValue);
+    }
+
+    /**
+     * Performs the synchronization of a change queued in the sync outbox.
+     *
+     * @param context the context to synchronize in
+     * @param resourceId the id of the changed object
+     * @param action the sync action
+     * @param oldValue the old value as stored in the outbox, with encrypted fields
+     * @param newValue the new value
+     * @return the sync results, with the {@code success} of the sync action
+     * @throws ResourceException if the onSync script failed
+     */
+    JsonValue syncQueued(final Context context, final String resourceId,
+            final SynchronizationService.SyncServiceAction action, final JsonValue oldValue, final JsonValue newValue)
+            throws ResourceException {
+        return sync(context, null, resourceId, action, decrypt(oldValue), newValue);
+    }
 
+    /**
+     * Sends the sync action for a change to the SynchronizationService and executes the onSync script.
+     *
+     * @return the sync results passed to the onSync script
+     */
+    private JsonValue sync(final Context context, final Request request, final String resourceId,
+            final SynchronizationService.SyncServiceAction action, final JsonValue oldValue, final JsonValue newValue)
+            throws ResourceException {
         try {
             JsonValue content = new JsonValue(new LinkedHashMap<String, Object>(2));
             content.put("oldValue", oldValue.getObject());
@@ -1718,6 +1844,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
                 syncResults.put("syncDetails", details.getObject());
                 scriptBindings.put("syncResults", syncResults);
                 execScriptHook(context, ScriptHook.onSync, null, scriptBindings);
+                return new JsonValue(syncResults);
             } catch (ResourceException e) {
                 logger.warn("Failed executing onSync script on {} {}:{}",
                         syncRequest.getAction(), name, syncRequest.getResourcePath(), e);
@@ -1729,6 +1856,22 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         }
     }
 
+    /**
+     * Sets the outbox which queues the implicit synchronization if {@code asyncSync} is configured.
+     *
+     * @param syncOutbox the outbox, or null to synchronize in the request
+     */
+    void setSyncOutbox(SyncOutbox syncOutbox) {
+        this.syncOutbox = syncOutbox;
+    }
+
+    /**
+     * @return whether implicit synchronization goes through the sync outbox
+     */
+    boolean isAsyncSync() {
+        return asyncSync;
+    }
+
     /**
      * Get the {@link ResourcePath} associated with this set.
      * @return The {@link ResourcePath} associated with this object set.
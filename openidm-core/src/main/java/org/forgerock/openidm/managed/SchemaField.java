@@ -431,6 +431,52 @@ public class SchemaField {
         }
     }
 
+    /**
+     * Encrypts the property if encryption is configured and it is not encrypted yet, without running the
+     * {@code onStore} script or hashing.
+     *
+     * @param value the JSON value holding the property.
+     * @throws InternalServerErrorException if the property could not be encrypted.
+     */
+    void encrypt(JsonValue value) throws InternalServerErrorException {
+        try {
+            if (encryptor != null && value.isDefined(name) && !cryptoService.isEncrypted(value.get(name))) {
+                value.put(name, new JsonCrypto(encryptor.getType(), encryptor.encrypt(value.get(name))).toJsonValue());
+            }
+        } catch (JsonCryptoException jce) {
+            String msg = name + " property encryption exception";
+            logger.debug(msg, jce);
+            throw new InternalServerErrorException(msg, jce);
+        }
+    }
+
+    /**
+     * Returns true if {@link #onValidate(Context, JsonValue)} has anything to do for this field.
+     *
+     * @return true if an onValidate script is defined.
+     */
+    boolean hasOnValidate() {
+        return onValidate != null;
+    }
+
+    /**
+     * Returns true if {@link #onRetrieve(Context, JsonValue)} has anything to do for this field.
+     *
+     * @return true if an onRetrieve script is defined.
+     */
+    boolean hasOnRetrieve() {
+        return onRetrieve != null;
+    }
+
+    /**
+     * Returns true if {@link #onStore(Context, JsonValue)} has anything to do for this field.
+     *
+     * @return true if an onStore script, encryption or hashing is defined.
+     */
+    boolean hasOnStore() {
+        return onStore != null || encryptor != null || hashingValue.isNotNull();
+    }
+
     /**
      * Retrieve the encryption configuration defined for this schema field.
      *
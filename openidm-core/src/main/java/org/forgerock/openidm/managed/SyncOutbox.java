@@ -0,0 +1,566 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.SortKey;
+import org.forgerock.openidm.core.IdentityServer;
+import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.openidm.router.IDMConnectionFactory;
+import org.forgerock.openidm.router.RouteService;
+import org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction;
+import org.forgerock.openidm.util.ContextUtil;
+import org.forgerock.openidm.util.DateUtil;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable outbox for the implicit synchronization of managed object types with {@code "asyncSync" : true}.
+ * <p>
+ * Instead of calling the SynchronizationService in the request, {@link ManagedObjectSet} queues the change as an
+ * entry in the repository, so the request does not wait for the target systems. Every node polls the pending
+ * entries and claims them by updating them with its node name and a claim timeout under the entry's revision, so an
+ * entry is processed by one node at a time; the claim of a node which fails expires and the entry is processed again.
+ * Only the oldest pending entry of an object is claimed, so the changes of an object are synchronized in the order
+ * they were queued. A failed synchronization is retried with exponential backoff and, after {@code maxRetries}
+ * retries, the entry is kept with the state {@code DEAD} for inspection and no longer holds back later changes.
+ * Dead entries are deleted once they are older than {@code deadRetention}, unless it is 0.
+ * <p>
+ * The pending entries are looked at in pages of {@code batchSize}, a bounded number of pages per poll, continuing
+ * where the previous poll stopped, so entries waiting for a retry or claimed by a node do not hold back the entries of
+ * other objects, however many there are.
+ * <p>
+ * The times the entries are queried on ({@code nextAttempt}, {@code claimedUntil} and {@code deadSince}) are stored
+ * as ISO-8601 UTC timestamps of fixed width, which order as strings, as the repositories do not all compare
+ * numbers in query filters.
+ * <p>
+ * The queueing order is taken from the clock of the node queueing the change. Changes of the same object queued on
+ * different nodes within the clock skew between the nodes may therefore be synchronized out of order; the nodes'
+ * clocks should be kept synchronized.
+ * <pre>
+ *     "syncOutbox" : {
+ *         "workers" : 2,
+ *         "pollInterval" : 1000,
+ *         "batchSize" : 100,
+ *         "maxRetries" : 5,
+ *         "retryDelay" : 5000,
+ *         "claimTimeout" : 300000,
+ *         "deadRetention" : 604800000
+ *     }
+ * </pre>
+ * Intervals are in milliseconds.
+ */
+class SyncOutbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncOutbox.class);
+
+    /** Managed object configuration to queue the implicit synchronization. */
+    static final String CONFIG_ASYNC_SYNC = "asyncSync";
+
+    /** Managed object service configuration of the outbox. */
+    static final String CONFIG_SYNC_OUTBOX = "syncOutbox";
+
+    static final String CONFIG_WORKERS = "workers";
+    static final String CONFIG_POLL_INTERVAL = "pollInterval";
+    static final String CONFIG_BATCH_SIZE = "batchSize";
+    static final String CONFIG_MAX_RETRIES = "maxRetries";
+    static final String CONFIG_RETRY_DELAY = "retryDelay";
+    static final String CONFIG_CLAIM_TIMEOUT = "claimTimeout";
+    static final String CONFIG_DEAD_RETENTION = "deadRetention";
+
+    static final String OUTBOX_PATH = "repo/synchronisation/syncOutbox";
+
+    static final String FIELD_RESOURCE_CONTAINER = "resourceContainer";
+    static final String FIELD_RESOURCE_ID = "resourceId";
+    static final String FIELD_ACTION = "action";
+    static final String FIELD_OLD_VALUE = "oldValue";
+    static final String FIELD_NEW_VALUE = "newValue";
+    static final String FIELD_SEQUENCE = "sequence";
+    static final String FIELD_CREATED = "created";
+    static final String FIELD_STATE = "state";
+    static final String FIELD_ATTEMPTS = "attempts";
+    static final String FIELD_NEXT_ATTEMPT = "nextAttempt";
+    static final String FIELD_CLAIMED_BY = "claimedBy";
+    static final String FIELD_CLAIMED_UNTIL = "claimedUntil";
+    static final String FIELD_LAST_ERROR = "lastError";
+    static final String FIELD_DEAD_SINCE = "deadSince";
+
+    static final String STATE_PENDING = "PENDING";
+    static final String STATE_DEAD = "DEAD";
+
+    private static final DateUtil dateUtil = DateUtil.getDateUtil(ServerConstants.TIME_ZONE_UTC);
+
+    /** The time of an entry which is not waiting for a retry or claimed; the epoch, which is before any time */
+    private static final String NOT_SET = timestamp(0L);
+
+    /** The longest backoff is retryDelay * 2^MAX_BACKOFF_SHIFT */
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    /** The maximum number of pages of entries looked at per poll, bounds the cost of a backlog on a few objects */
+    private static final int MAX_SCANNED_PAGES = 10;
+
+    /** How often dead entries are looked for to be purged */
+    private static final long PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final IDMConnectionFactory connectionFactory;
+    private final AtomicReference<RouteService> syncRoute;
+    private final String nodeId;
+    private final int workerCount;
+    private final long pollInterval;
+    private final int batchSize;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final long claimTimeout;
+    private final long deadRetention;
+
+    private final SyncOutboxStatistics statistics = new SyncOutboxStatistics();
+    private final ConcurrentMap<String, ManagedObjectSet> objectSets = new ConcurrentHashMap<>();
+    /** The ids of the entries being processed on this node, mapped to their object */
+    private final ConcurrentMap<String, String> inFlight = new ConcurrentHashMap<>();
+    /** The last time and counter of {@link #nextSequence}, so the sequence increases should the clock go back */
+    private long sequenceTime;
+    private int sequenceCounter;
+    private volatile long lastPurge;
+    /** The sequence of the last entry looked at by {@link #claimPending}, null to start from the oldest entry */
+    private String scanAfter;
+    /** The objects whose oldest pending entry {@link #claimPending} has looked at since it started from the oldest */
+    private final Set<String> scannedObjects = new HashSet<>();
+
+    private ScheduledExecutorService poller;
+    private ExecutorService workers;
+
+    /**
+     * Constructs the outbox.
+     *
+     * @param connectionFactory the router connection factory
+     * @param syncRoute a reference to the RouteService on "sync"
+     * @param config the syncOutbox configuration, may be null
+     */
+    SyncOutbox(IDMConnectionFactory connectionFactory, AtomicReference<RouteService> syncRoute, JsonValue config) {
+        this(connectionFactory, syncRoute, config, IdentityServer.getInstance().getNodeName());
+    }
+
+    SyncOutbox(IDMConnectionFactory connectionFactory, AtomicReference<RouteService> syncRoute, JsonValue config,
+            String nodeId) {
+        final JsonValue outboxConfig = config == null ? json(object()) : config.defaultTo(object());
+        this.connectionFactory = connectionFactory;
+        this.syncRoute = syncRoute;
+        this.nodeId = nodeId;
+        this.workerCount = Math.max(1, outboxConfig.get(CONFIG_WORKERS).defaultTo(2).asInteger());
+        this.pollInterval = Math.max(1, outboxConfig.get(CONFIG_POLL_INTERVAL).defaultTo(1000L).asLong());
+        this.batchSize = Math.max(1, outboxConfig.get(CONFIG_BATCH_SIZE).defaultTo(100).asInteger());
+        this.maxRetries = Math.max(0, outboxConfig.get(CONFIG_MAX_RETRIES).defaultTo(5).asInteger());
+        this.retryDelay = Math.max(0, outboxConfig.get(CONFIG_RETRY_DELAY).defaultTo(5000L).asLong());
+        this.claimTimeout = Math.max(1, outboxConfig.get(CONFIG_CLAIM_TIMEOUT).defaultTo(300000L).asLong());
+        this.deadRetention = Math.max(0,
+                outboxConfig.get(CONFIG_DEAD_RETENTION).defaultTo(TimeUnit.DAYS.toMillis(7)).asLong());
+    }
+
+    /**
+     * Registers the object set whose queued changes this outbox processes, and starts polling if the set
+     * synchronizes asynchronously.
+     *
+     * @param objectSet the managed object set
+     */
+    void register(ManagedObjectSet objectSet) {
+        objectSets.put(objectSet.getPath().toString(), objectSet);
+        objectSet.setSyncOutbox(this);
+        if (objectSet.isAsyncSync()) {
+            start();
+        }
+    }
+
+    /**
+     * Starts polling for pending entries, if not started yet.
+     */
+    synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        statistics.register();
+        workers = Executors.newFixedThreadPool(workerCount, newThreadFactory("sync-outbox-worker-"));
+        poller = Executors.newSingleThreadScheduledExecutor(newThreadFactory("sync-outbox-poller-"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    logger.warn("Failed to poll the sync outbox", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        logger.info("Started the sync outbox with {} workers on node {}", workerCount, nodeId);
+    }
+
+    /**
+     * Stops polling and waits briefly for the entries being processed. Entries which are claimed but not processed
+     * are processed again once their claim expired.
+     */
+    synchronized void stop() {
+        if (poller == null) {
+            return;
+        }
+        poller.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        poller = null;
+        workers = null;
+        statistics.unregister();
+    }
+
+    /**
+     * Queues a change of a managed object.
+     *
+     * @param context the context of the request changing the object
+     * @param objectSet the object set of the object
+     * @param resourceId the id of the object
+     * @param action the sync action
+     * @param oldValue the old value, with encrypted fields
+     * @param newValue the new value
+     * @throws ResourceException if the entry could not be stored
+     */
+    void enqueue(Context context, ManagedObjectSet objectSet, String resourceId, SyncServiceAction action,
+            JsonValue oldValue, JsonValue newValue) throws ResourceException {
+        final long now = System.currentTimeMillis();
+        final JsonValue entry = json(object(
+                field(FIELD_RESOURCE_CONTAINER, objectSet.getPath().toString()),
+                field(FIELD_RESOURCE_ID, resourceId),
+                field(FIELD_ACTION, action.name()),
+                field(FIELD_OLD_VALUE, oldValue == null ? null : oldValue.getObject()),
+                field(FIELD_NEW_VALUE, newValue == null ? null : newValue.getObject()),
+                field(FIELD_SEQUENCE, nextSequence(now)),
+                field(FIELD_CREATED, now),
+                field(FIELD_STATE, STATE_PENDING),
+                field(FIELD_ATTEMPTS, 0),
+                field(FIELD_NEXT_ATTEMPT, NOT_SET),
+                field(FIELD_CLAIMED_UNTIL, NOT_SET)));
+        connectionFactory.getConnection().create(context, Requests.newCreateRequest(OUTBOX_PATH, entry));
+        statistics.enqueued();
+    }
+
+    /**
+     * A sequence which sorts as a string in the order the entries were queued: the queueing time followed by a
+     * counter for the entries queued within the same millisecond. The sequence increases on this node even if its
+     * clock goes back, but is only as consistent across nodes as their clocks are.
+     */
+    private synchronized String nextSequence(long now) {
+        if (now > sequenceTime) {
+            sequenceTime = now;
+            sequenceCounter = 0;
+        } else if (++sequenceCounter >= 1000000) {
+            sequenceTime++;
+            sequenceCounter = 0;
+        }
+        return String.format("%013d%06d", sequenceTime, sequenceCounter);
+    }
+
+    /**
+     * Claims the pending entries which may be processed now and hands them to the workers.
+     *
+     * @throws ResourceException if the pending entries could not be queried
+     */
+    void poll() throws ResourceException {
+        if (syncRoute.get() == null) {
+            logger.debug("Sync service is not available, leaving the sync outbox pending");
+            return;
+        }
+        final Context context = ContextUtil.createInternalContext();
+        final long now = System.currentTimeMillis();
+        if (deadRetention > 0 && now - lastPurge >= PURGE_INTERVAL) {
+            lastPurge = now;
+            purgeDead(context, now - deadRetention);
+        }
+        for (final ResourceResponse entry : claimPending(context, batchSize - inFlight.size())) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(context, entry);
+                }
+            });
+        }
+    }
+
+    /**
+     * Claims the oldest pending entry of each object, if it is not waiting for a retry or claimed by a node.
+     * <p>
+     * The pending entries are paged through in queueing order, whether they are waiting or claimed or not, with the
+     * sequence of the last entry of a page as the start of the next page, so entries claimed meanwhile do not shift
+     * the pages. The first entry of an object in that order is its oldest pending entry, which is claimed if it may
+     * be processed now; its later entries have to wait for it. As the oldest entry and the later entries of an object
+     * are told apart in the same query results, a claim by another node while the entries are paged through does not
+     * let a later entry of the object be claimed before its oldest entry.
+     * <p>
+     * A poll looks at no more than {@link #MAX_SCANNED_PAGES} pages. The next poll continues after the last entry
+     * looked at, remembering the objects seen so far, until the end of the entries is reached and the pending entries
+     * are paged through from the start again. So entries waiting for a retry or claimed by a node do not hold back
+     * the entries of other objects, however many there are.
+     *
+     * @param context the context to access the repository in
+     * @param limit the maximum number of entries to claim
+     * @return the claimed entries, which are registered as in flight
+     * @throws ResourceException if the pending entries could not be queried
+     */
+    synchronized List<ResourceResponse> claimPending(Context context, int limit) throws ResourceException {
+        final List<ResourceResponse> claimed = new ArrayList<>();
+        if (limit <= 0) {
+            return claimed;
+        }
+        final long now = System.currentTimeMillis();
+        final String nowTimestamp = timestamp(now);
+
+        for (int page = 0; page < MAX_SCANNED_PAGES && claimed.size() < limit; page++) {
+            QueryFilter<JsonPointer> filter = QueryFilter.equalTo(new JsonPointer(FIELD_STATE), STATE_PENDING);
+            if (scanAfter != null) {
+                filter = QueryFilter.and(filter, QueryFilter.greaterThan(new JsonPointer(FIELD_SEQUENCE), scanAfter));
+            }
+            final List<ResourceResponse> pending = new ArrayList<>();
+            connectionFactory.getConnection().query(context,
+                    Requests.newQueryRequest(OUTBOX_PATH)
+                            .setQueryFilter(filter)
+                            .addSortKey(SortKey.ascendingOrder(FIELD_SEQUENCE))
+                            .setPageSize(batchSize),
+                    pending);
+            if (scanAfter == null) {
+                statistics.setOldestPendingAge(pending.isEmpty()
+                        ? 0 : now - pending.get(0).getContent().get(FIELD_CREATED).defaultTo(now).asLong());
+            }
+
+            for (ResourceResponse entry : pending) {
+                if (claimed.size() >= limit) {
+                    return claimed;
+                }
+                final JsonValue content = entry.getContent();
+                scanAfter = content.get(FIELD_SEQUENCE).asString();
+                // only the first entry of an object is its oldest pending entry
+                if (!scannedObjects.add(objectOf(content))
+                        || inFlight.containsKey(entry.getId())
+                        || content.get(FIELD_NEXT_ATTEMPT).defaultTo(NOT_SET).asString().compareTo(nowTimestamp) > 0
+                        || content.get(FIELD_CLAIMED_UNTIL).defaultTo(NOT_SET).asString()
+                                .compareTo(nowTimestamp) > 0) {
+                    continue;
+                }
+                final ResourceResponse claim = claim(context, entry, now);
+                if (claim != null && inFlight.putIfAbsent(claim.getId(), objectOf(content)) == null) {
+                    claimed.add(claim);
+                }
+            }
+            if (pending.size() < batchSize) {
+                // the end of the pending entries, start again on the next poll
+                scanAfter = null;
+                scannedObjects.clear();
+                break;
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Formats a time of an entry to store and query it with.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @return the ISO-8601 UTC timestamp of the time
+     */
+    static String timestamp(long time) {
+        return dateUtil.formatDateTime(new Date(time));
+    }
+
+    private static String objectOf(JsonValue content) {
+        return content.get(FIELD_RESOURCE_CONTAINER).asString() + "/" + content.get(FIELD_RESOURCE_ID).asString();
+    }
+
+    /**
+     * Deletes the dead entries which were dead-lettered before the given time.
+     *
+     * @param context the context to access the repository in
+     * @param deadBefore the time before which the entries were dead-lettered
+     */
+    void purgeDead(Context context, long deadBefore) {
+        final List<ResourceResponse> dead = new ArrayList<>();
+        try {
+            connectionFactory.getConnection().query(context,
+                    Requests.newQueryRequest(OUTBOX_PATH)
+                            .setQueryFilter(QueryFilter.and(
+                                    QueryFilter.equalTo(new JsonPointer(FIELD_STATE), STATE_DEAD),
+                                    QueryFilter.lessThan(new JsonPointer(FIELD_DEAD_SINCE),
+                                            timestamp(deadBefore)))),
+                    dead);
+            for (ResourceResponse entry : dead) {
+                try {
+                    connectionFactory.getConnection().delete(context,
+                            Requests.newDeleteRequest(OUTBOX_PATH, entry.getId()).setRevision(entry.getRevision()));
+                    statistics.purged();
+                } catch (PreconditionFailedException | NotFoundException e) {
+                    logger.debug("Dead sync outbox entry {} was purged by another node", entry.getId());
+                }
+            }
+        } catch (ResourceException e) {
+            logger.warn("Failed to purge the dead sync outbox entries", e);
+        }
+    }
+
+    private ResourceResponse claim(Context context, ResourceResponse entry, long now) throws ResourceException {
+        final JsonValue content = entry.getContent().copy();
+        content.put(FIELD_CLAIMED_BY, nodeId);
+        content.put(FIELD_CLAIMED_UNTIL, timestamp(now + claimTimeout));
+        try {
+            final ResourceResponse response = connectionFactory.getConnection().update(context,
+                    Requests.newUpdateRequest(OUTBOX_PATH, entry.getId(), content).setRevision(entry.getRevision()));
+            return newResourceResponse(entry.getId(), response.getRevision(), content);
+        } catch (PreconditionFailedException | NotFoundException e) {
+            logger.debug("Sync outbox entry {} was claimed by another node", entry.getId());
+            return null;
+        }
+    }
+
+    /**
+     * Synchronizes the change of a claimed entry. The entry is deleted on success; on failure it is released for a
+     * retry, or dead-lettered after maxRetries retries.
+     *
+     * @param context the context to synchronize in
+     * @param entry the claimed entry
+     */
+    void process(Context context, ResourceResponse entry) {
+        try {
+            processClaimed(context, entry);
+        } finally {
+            inFlight.remove(entry.getId());
+        }
+    }
+
+    private void processClaimed(Context context, ResourceResponse entry) {
+        final JsonValue content = entry.getContent();
+        final String resourceContainer = content.get(FIELD_RESOURCE_CONTAINER).asString();
+        final String resourceId = content.get(FIELD_RESOURCE_ID).asString();
+        final ManagedObjectSet objectSet = objectSets.get(resourceContainer);
+        if (objectSet == null) {
+            // left claimed, so it is looked at again when the claim expired
+            logger.warn("Managed object {} is not configured, can not synchronize queued change of {}",
+                    resourceContainer, resourceId);
+            return;
+        }
+
+        String error = null;
+        try {
+            final JsonValue syncResults = objectSet.syncQueued(context, resourceId,
+                    SyncServiceAction.valueOf(content.get(FIELD_ACTION).asString()),
+                    content.get(FIELD_OLD_VALUE), content.get(FIELD_NEW_VALUE));
+            if (!syncResults.get("success").defaultTo(false).asBoolean()) {
+                error = String.valueOf(syncResults.get("syncDetails").getObject());
+            }
+        } catch (NotFoundException e) {
+            // the object has been deleted since, which is queued after this change
+            logger.debug("Queued change of {}/{} no longer found", resourceContainer, resourceId, e);
+        } catch (ResourceException | RuntimeException e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        }
+
+        try {
+            if (error == null) {
+                connectionFactory.getConnection().delete(context,
+                        Requests.newDeleteRequest(OUTBOX_PATH, entry.getId()).setRevision(entry.getRevision()));
+                statistics.processed(System.currentTimeMillis()
+                        - content.get(FIELD_CREATED).defaultTo(System.currentTimeMillis()).asLong());
+            } else {
+                failed(context, entry, error);
+            }
+        } catch (ResourceException e) {
+            // the entry is processed again once the claim expired
+            logger.warn("Failed to update sync outbox entry {} of {}/{}",
+                    entry.getId(), resourceContainer, resourceId, e);
+        }
+    }
+
+    private void failed(Context context, ResourceResponse entry, String error) throws ResourceException {
+        final JsonValue content = entry.getContent().copy();
+        final int attempts = content.get(FIELD_ATTEMPTS).defaultTo(0).asInteger() + 1;
+        content.put(FIELD_ATTEMPTS, attempts);
+        content.put(FIELD_LAST_ERROR, error);
+        content.remove(FIELD_CLAIMED_BY);
+        content.put(FIELD_CLAIMED_UNTIL, NOT_SET);
+        if (attempts > maxRetries) {
+            content.put(FIELD_STATE, STATE_DEAD);
+            content.put(FIELD_DEAD_SINCE, timestamp(System.currentTimeMillis()));
+            statistics.deadLettered();
+            logger.error("Giving up synchronizing {} of {}/{} after {} attempts: {}",
+                    content.get(FIELD_ACTION).asString(), content.get(FIELD_RESOURCE_CONTAINER).asString(),
+                    content.get(FIELD_RESOURCE_ID).asString(), attempts, error);
+        } else {
+            content.put(FIELD_NEXT_ATTEMPT, timestamp(
+                    System.currentTimeMillis() + (retryDelay << Math.min(attempts - 1, MAX_BACKOFF_SHIFT))));
+            statistics.retried();
+            logger.warn("Failed to synchronize {} of {}/{}, attempt {}: {}",
+                    content.get(FIELD_ACTION).asString(), content.get(FIELD_RESOURCE_CONTAINER).asString(),
+                    content.get(FIELD_RESOURCE_ID).asString(), attempts, error);
+        }
+        connectionFactory.getConnection().update(context,
+                Requests.newUpdateRequest(OUTBOX_PATH, entry.getId(), content).setRevision(entry.getRevision()));
+    }
+
+    /**
+     * @return the statistics of this outbox
+     */
+    SyncOutboxStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the statistics of the {@link SyncOutbox}.
+ */
+public class SyncOutboxStatistics implements SyncOutboxStatisticsMBean {
+
+    /** The name under which the statistics are registered with the platform MBean server. */
+    public static final String MBEAN_NAME = "org.forgerock.openidm.managed:type=SyncOutbox";
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncOutboxStatistics.class);
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong lagTotal = new AtomicLong();
+    private final AtomicLong lagMax = new AtomicLong();
+    private volatile long oldestPendingAge;
+
+    void enqueued() {
+        enqueued.incrementAndGet();
+    }
+
+    /**
+     * Records a successfully synchronized change.
+     *
+     * @param lag the time from queueing to synchronization in milliseconds
+     */
+    void processed(long lag) {
+        processed.incrementAndGet();
+        lagTotal.addAndGet(lag);
+        long current = lagMax.get();
+        while (lag > current && !lagMax.compareAndSet(current, lag)) {
+            current = lagMax.get();
+        }
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    void deadLettered() {
+        deadLettered.incrementAndGet();
+    }
+
+    void purged() {
+        purged.incrementAndGet();
+    }
+
+    void setOldestPendingAge(long oldestPendingAge) {
+        this.oldestPendingAge = oldestPendingAge;
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    @Override
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    @Override
+    public long getPurged() {
+        return purged.get();
+    }
+
+    @Override
+    public double getLagAvg() {
+        final long count = processed.get();
+        return count == 0 ? 0 : lagTotal.get() / (double) count;
+    }
+
+    @Override
+    public long getLagMax() {
+        return lagMax.get();
+    }
+
+    @Override
+    public long getOldestPendingAge() {
+        return oldestPendingAge;
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to register sync outbox statistics MBean", ex);
+        }
+    }
+
+    /**
+     * Unregisters these statistics from the platform MBean server.
+     */
+    void unregister() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to unregister sync outbox statistics MBean", ex);
+        }
+    }
+}
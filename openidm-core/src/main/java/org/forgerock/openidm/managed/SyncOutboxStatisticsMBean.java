@@ -0,0 +1,62 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+/**
+ * Statistics of the managed object sync outbox on this node.
+ */
+public interface SyncOutboxStatisticsMBean {
+
+    /**
+     * @return the number of changes queued in the outbox
+     */
+    long getEnqueued();
+
+    /**
+     * @return the number of queued changes synchronized successfully
+     */
+    long getProcessed();
+
+    /**
+     * @return the number of failed synchronization attempts which are retried
+     */
+    long getRetries();
+
+    /**
+     * @return the number of changes which failed maxRetries times and were dead-lettered
+     */
+    long getDeadLettered();
+
+    /**
+     * @return the number of dead-lettered changes deleted after the dead retention
+     */
+    long getPurged();
+
+    /**
+     * @return the average time from queueing to successful synchronization in milliseconds
+     */
+    double getLagAvg();
+
+    /**
+     * @return the maximum time from queueing to successful synchronization in milliseconds
+     */
+    long getLagMax();
+
+    /**
+     * @return the age in milliseconds of the oldest pending change as seen by the last poll, 0 if none was pending
+     */
+    long getOldestPendingAge();
+}
@@ -20,14 +20,17 @@ import static org.forgerock.json.resource.Requests.*;
 
 
 // Java Standard Edition
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.forgerock.openidm.sync.SynchronizationException;
 import org.forgerock.services.context.Context;
@@ -100,6 +103,12 @@ class Link {
      */
     public String linkQualifier;
 
+    /**
+     * Hash of the mapped target state as of the last update of the target, see {@link #targetHash(JsonValue)},
+     * or {@code null} if not recorded.
+     */
+    public String targetHash;
+
     /**
      * TODO: Description.
      *
@@ -194,6 +203,7 @@ class Link {
             targetId = value.get("secondId").required().asString();
         }
         linkQualifier = value.get("linkQualifier").asString();
+        targetHash = value.get("targetHash").asString(); // optional
         sourceId = mapping.getLinkType().normalizeSourceId(sourceId);
         targetId = mapping.getLinkType().normalizeTargetId(targetId);
         initialized = true;
@@ -219,6 +229,9 @@ class Link {
             jv.put("firstId", sourceId);
             jv.put("secondId", targetId);
         }
+        if (targetHash != null) {
+            jv.put("targetHash", targetHash);
+        }
         return jv;
     }
 
@@ -230,6 +243,63 @@ class Link {
         this._rev = null;
         this.sourceId = null;
         this.targetId = null;
+        this.targetHash = null;
+    }
+
+    /**
+     * Computes a compact hash of a mapped target object, which does not depend on the order of the properties.
+     * The hash is the first 64 bits of the SHA-256 digest of a canonical form of the object, as 16 hex digits.
+     *
+     * @param target the mapped target object
+     * @return the hash of the target object
+     */
+    static String targetHash(JsonValue target) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder canonical = new StringBuilder();
+            canonicalize(target.getObject(), canonical);
+            byte[] hash = digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void canonicalize(Object value, StringBuilder sb) {
+        if (value instanceof Map) {
+            sb.append('{');
+            for (Map.Entry<String, Object> entry : new TreeMap<>((Map<String, Object>) value).entrySet()) {
+                canonicalize(entry.getKey(), sb);
+                sb.append(':');
+                canonicalize(entry.getValue(), sb);
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            for (Object element : (List<?>) value) {
+                canonicalize(element, sb);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (value instanceof String) {
+            // length-prefixed, so that no string can be mistaken for structure
+            sb.append('"').append(((String) value).length()).append(':').append((String) value);
+        } else if (value instanceof Number) {
+            // integral values hash alike, whichever type they were mapped to
+            Number number = (Number) value;
+            sb.append('#').append(number instanceof Double || number instanceof Float
+                    ? number.toString() : Long.toString(number.longValue()));
+        } else {
+            sb.append(value);
+        }
     }
 
     /**
@@ -309,32 +379,41 @@ class Link {
     }
 
     /**
-     * Queries all the links for a given mapping, indexed by the source identifier
+     * Queries all the links for a given mapping and link qualifier into a compact {@link LinkIndex},
+     * which can be looked up by source as well as by target identifier.
      * <p>
-     * This method expects a {@code "links-for-linkType"} defined with a parameter of
-     * {@code "linkType"}.
+     * Query results are added to the index as they are streamed from the repository, without
+     * buffering the full result set or creating a {@link Link} per result.
      *
      * @param mapping the mapping to look up the links for
+     * @param linkQualifier the link qualifier to look up the links for
      * @throws SynchronizationException if the query could not be performed.
-     * @return the mapping from source identifier to the link object for it
+     * @return the index of all links for the mapping and link qualifier
      */
-    public static Map<String, Link> getLinksForMapping(ObjectMapping mapping, String linkQualifier) throws SynchronizationException {
-        Map<String, Link> sourceIdToLink = new ConcurrentHashMap<String, Link>();
-        if (mapping != null) {
-            JsonValue query = new JsonValue(new HashMap<String, Object>());
-            query.put(FIELD_QUERY_FILTER,
-                    QueryFilter.and(Arrays.asList(
-                            QueryFilter.equalTo("/linkType", mapping.getLinkType().getName()),
-                            QueryFilter.equalTo("/linkQualifier", linkQualifier)))
-                            .toString());
-            JsonValue queryResults = linkQuery(mapping.getConnectionFactory(), ObjectSetContext.get(), query);
-            for (JsonValue entry : queryResults) {
-                Link link = new Link(mapping);
-                link.fromJsonValue(entry);
-                sourceIdToLink.put(link.sourceId, link);
-            }
+    static LinkIndex getLinkIndex(ObjectMapping mapping, String linkQualifier) throws SynchronizationException {
+        final LinkIndex index = new LinkIndex(mapping, linkQualifier);
+        JsonValue query = new JsonValue(new HashMap<String, Object>());
+        query.put(FIELD_QUERY_FILTER,
+                QueryFilter.and(Arrays.asList(
+                        QueryFilter.equalTo("/linkType", mapping.getLinkType().getName()),
+                        QueryFilter.equalTo("/linkQualifier", linkQualifier)))
+                        .toString());
+        try {
+            QueryRequest request = RequestUtil.buildQueryRequestFromParameterMap(linkId(null), query.asMap());
+            mapping.getConnectionFactory().getConnection().query(ObjectSetContext.get(), request,
+                    new QueryResourceHandler() {
+                        @Override
+                        public boolean handleResource(ResourceResponse resource) {
+                            index.add(resource.getContent());
+                            return true;
+                        }
+                    });
+        } catch (JsonValueException jve) {
+            throw new SynchronizationException("Malformed link query response", jve);
+        } catch (ResourceException ose) {
+            throw new SynchronizationException("Link query failed", ose);
         }
-        return sourceIdToLink;
+        return index;
     }
 
     /** Compares the given Id to the current targetId,
@@ -0,0 +1,368 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * Compact, read-mostly index of all links of one mapping and link qualifier.
+ * <p>
+ * Instead of keeping one {@link Link} object per link, the link properties are held in parallel arrays
+ * and located through two open-addressed hash tables, one keyed by the (normalized) source id and one keyed by
+ * the (normalized) target id. {@link Link} views are only materialized on lookup, so a single bulk query serves
+ * both the source phase and point lookups by target id without further repository round trips.
+ * <p>
+ * The index is a snapshot taken at the start of a reconciliation. Links created, updated or deleted while the
+ * reconciliation runs are recorded via {@link #linkChanged(String, String)}; lookups for ids affected by such
+ * changes are no longer answered by the index and callers fall back to querying the repository. Links changed
+ * elsewhere are not recorded, so a target id the index has no link for is looked up in the repository as well.
+ * <p>
+ * The index is not kept across reconciliations. Links are also changed by implicit synchronization on any node and
+ * through {@code repo/link}, and the link table records neither when a link changed nor which links were deleted,
+ * so a kept index could only be brought up to date by reading all links again.
+ * <p>
+ * Populating the index is not thread-safe; lookups after it has been populated are.
+ */
+class LinkIndex {
+
+    /** Marker for a link without a target hash. */
+    private static final long NO_TARGET_HASH = 0L;
+
+    /** Marker for an unused hash table slot. */
+    private static final int EMPTY = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ObjectMapping mapping;
+    private final String linkQualifier;
+
+    private String[] ids;
+    private String[] revs;
+    private String[] sourceIds;
+    private String[] targetIds;
+    // target hashes as longs rather than strings, see Link#targetHash
+    private long[] targetHashes;
+    private int size;
+
+    private int[] sourceTable;
+    private int[] targetTable;
+
+    private final Set<String> changedSourceIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> changedTargetIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates an empty index.
+     *
+     * @param mapping the mapping the links belong to
+     * @param linkQualifier the link qualifier of the indexed links
+     */
+    LinkIndex(ObjectMapping mapping, String linkQualifier) {
+        this.mapping = mapping;
+        this.linkQualifier = linkQualifier;
+        this.ids = new String[INITIAL_CAPACITY];
+        this.revs = new String[INITIAL_CAPACITY];
+        this.sourceIds = new String[INITIAL_CAPACITY];
+        this.targetIds = new String[INITIAL_CAPACITY];
+        this.targetHashes = new long[INITIAL_CAPACITY];
+        this.sourceTable = newTable(INITIAL_CAPACITY * 2);
+        this.targetTable = newTable(INITIAL_CAPACITY * 2);
+    }
+
+    /**
+     * @return the link qualifier of the indexed links
+     */
+    String getLinkQualifier() {
+        return linkQualifier;
+    }
+
+    /**
+     * @return the number of indexed links
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a link as returned by the repository to the index.
+     *
+     * @param value the link as stored in the repository
+     */
+    void add(JsonValue value) {
+        final LinkType linkType = mapping.getLinkType();
+        String sourceId;
+        String targetId;
+        if (linkType.useReverse()) {
+            sourceId = value.get("secondId").required().asString();
+            targetId = value.get("firstId").required().asString();
+        } else {
+            sourceId = value.get("firstId").required().asString();
+            targetId = value.get("secondId").required().asString();
+        }
+        add(value.get("_id").required().asString(), value.get("_rev").asString(),
+                linkType.normalizeSourceId(sourceId), linkType.normalizeTargetId(targetId),
+                value.get("targetHash").asString());
+    }
+
+    /**
+     * Adds a link without a target hash to the index. A link for an already indexed source id replaces the previous
+     * entry.
+     *
+     * @param id the link identifier
+     * @param rev the link revision, may be {@code null}
+     * @param sourceId the normalized source id
+     * @param targetId the normalized target id
+     */
+    void add(String id, String rev, String sourceId, String targetId) {
+        add(id, rev, sourceId, targetId, null);
+    }
+
+    /**
+     * Adds a link to the index. A link for an already indexed source id replaces the previous entry.
+     *
+     * @param id the link identifier
+     * @param rev the link revision, may be {@code null}
+     * @param sourceId the normalized source id
+     * @param targetId the normalized target id
+     * @param targetHash the hash of the mapped target state, may be {@code null}
+     */
+    void add(String id, String rev, String sourceId, String targetId, String targetHash) {
+        if (size == ids.length) {
+            grow();
+        }
+        int previous = find(sourceTable, sourceIds, sourceId);
+        int entry = previous != EMPTY ? previous : size++;
+        if (previous != EMPTY && remove(targetTable, targetIds, previous)) {
+            // the replaced link no longer answers lookups by its target id, another link to that target does
+            reinsertOtherLink(previous);
+        }
+        ids[entry] = id;
+        revs[entry] = rev;
+        sourceIds[entry] = sourceId;
+        targetIds[entry] = targetId;
+        targetHashes[entry] = toLong(targetHash);
+        if (previous == EMPTY) {
+            insert(sourceTable, sourceIds, entry);
+        }
+        insert(targetTable, targetIds, entry);
+    }
+
+    /**
+     * Records that the link for the given source or target id was changed after the index was populated.
+     * Either id may be {@code null}.
+     *
+     * @param sourceId the affected source id
+     * @param targetId the affected target id
+     */
+    void linkChanged(String sourceId, String targetId) {
+        final LinkType linkType = mapping.getLinkType();
+        if (sourceId != null) {
+            changedSourceIds.add(linkType.normalizeSourceId(sourceId));
+        }
+        if (targetId != null) {
+            changedTargetIds.add(linkType.normalizeTargetId(targetId));
+        }
+    }
+
+    /**
+     * Returns whether lookups for the given source id can be answered by this index.
+     *
+     * @param sourceId the normalized source id
+     * @return false if the link for this source id changed since the index was populated
+     */
+    boolean isCurrentForSource(String sourceId) {
+        return !changedSourceIds.contains(sourceId);
+    }
+
+    /**
+     * Returns whether lookups for the given target id can be answered by this index.
+     *
+     * @param targetId the normalized target id
+     * @return false if a link to this target id changed since the index was populated
+     */
+    boolean isCurrentForTarget(String targetId) {
+        return !changedTargetIds.contains(targetId);
+    }
+
+    /**
+     * Looks up the link for a source id.
+     *
+     * @param sourceId the normalized source id
+     * @return the link, or {@code null} if the source id is not linked
+     */
+    Link getLinkForSource(String sourceId) {
+        return toLink(find(sourceTable, sourceIds, sourceId));
+    }
+
+    /**
+     * Looks up the link for a target id.
+     *
+     * @param targetId the normalized target id
+     * @return the link, or {@code null} if the target id is not linked
+     */
+    Link getLinkForTarget(String targetId) {
+        return toLink(find(targetTable, targetIds, targetId));
+    }
+
+    /**
+     * Populates a link with the link for a target id, or clears it if the target id is not linked.
+     *
+     * @param targetId the normalized target id
+     * @param link the link to populate
+     */
+    void getLinkForTarget(String targetId, Link link) {
+        link.clear();
+        toLink(find(targetTable, targetIds, targetId), link);
+        link.initialized = true;
+    }
+
+    private Link toLink(int entry) {
+        return entry == EMPTY ? null : toLink(entry, new Link(mapping));
+    }
+
+    private Link toLink(int entry, Link link) {
+        if (entry != EMPTY) {
+            link._id = ids[entry];
+            link._rev = revs[entry];
+            link.sourceId = sourceIds[entry];
+            link.targetId = targetIds[entry];
+            link.linkQualifier = linkQualifier;
+            link.targetHash = toHex(targetHashes[entry]);
+            link.initialized = true;
+        }
+        return link;
+    }
+
+    private static long toLong(String targetHash) {
+        if (targetHash == null || targetHash.length() != 16) {
+            return NO_TARGET_HASH;
+        }
+        try {
+            return Long.parseLong(targetHash.substring(0, 8), 16) << 32 | Long.parseLong(targetHash.substring(8), 16);
+        } catch (NumberFormatException e) {
+            return NO_TARGET_HASH;
+        }
+    }
+
+    private static String toHex(long targetHash) {
+        return targetHash == NO_TARGET_HASH ? null : String.format("%016x", targetHash);
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int slot(String key, int length) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (length - 1);
+    }
+
+    private static int find(int[] table, String[] keys, String key) {
+        if (key == null) {
+            return EMPTY;
+        }
+        int mask = table.length - 1;
+        for (int i = slot(key, table.length); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (key.equals(keys[table[i]])) {
+                return table[i];
+            }
+        }
+        return EMPTY;
+    }
+
+    private static void insert(int[] table, String[] keys, int entry) {
+        String key = keys[entry];
+        if (key == null) {
+            return;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, table.length);
+        while (table[i] != EMPTY && !key.equals(keys[table[i]])) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    /**
+     * Puts another entry with the target id of a replaced entry back into the target table, if there is one. Only
+     * called when a source is indexed twice, so the scan does not add to the cost of populating the index.
+     */
+    private void reinsertOtherLink(int replaced) {
+        String targetId = targetIds[replaced];
+        for (int entry = size - 1; entry >= 0; entry--) {
+            if (entry != replaced && targetId.equals(targetIds[entry])) {
+                insert(targetTable, targetIds, entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the slot of an entry, shifting back the entries probed past it so that they can still be found.
+     *
+     * @return whether the entry had a slot, rather than its key being mapped to another entry
+     */
+    private static boolean remove(int[] table, String[] keys, int entry) {
+        String key = keys[entry];
+        if (key == null) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, table.length);
+        while (table[i] != EMPTY && table[i] != entry) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == EMPTY) {
+            return false; // the key maps to another entry
+        }
+        for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[table[j]], table.length);
+            // an entry stays in place if its home slot lies (cyclically) after the freed slot, up to its own slot
+            boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!reachable) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+        return true;
+    }
+
+    /**
+     * Doubles the entry capacity and rehashes both tables, keeping the load factor at or below one half.
+     */
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        revs = Arrays.copyOf(revs, capacity);
+        sourceIds = Arrays.copyOf(sourceIds, capacity);
+        targetIds = Arrays.copyOf(targetIds, capacity);
+        targetHashes = Arrays.copyOf(targetHashes, capacity);
+        sourceTable = newTable(capacity * 2);
+        targetTable = newTable(capacity * 2);
+        for (int entry = 0; entry < size; entry++) {
+            insert(sourceTable, sourceIds, entry);
+            insert(targetTable, targetIds, entry);
+        }
+    }
+}
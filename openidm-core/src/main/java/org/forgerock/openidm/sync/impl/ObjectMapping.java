@@ -225,6 +225,18 @@ class ObjectMapping {
      */
     private final Boolean correlateEmptyTargetSet;
 
+    /**
+     * Whether updates of linked targets are skipped when the mapped target state did not change since the target
+     * was last updated, as recorded by a hash on the link. Skipped targets are not read, and the onUpdate and
+     * postMapping scripts are not executed for them. Changes made to the target outside of the mapping are not
+     * corrected while the source does not change.
+     * The hash is taken of the mappings applied without the existing target; a target which is updated is mapped as
+     * usual. Mappings whose result depends on the existing target (such as role assignments merging with the target)
+     * should not enable this, as a change of the target alone does not change the hash.
+     * Default to {@code FALSE}
+     */
+    private final Boolean skipUnchangedTargets;
+
     /**
      * Whether to maintain links for sync-d targets
      * Default to {@code TRUE}
@@ -237,6 +249,9 @@ class ObjectMapping {
     /** The number of initial tasks the ReconFeeder should submit to executors */
     private int feedSize;
 
+    /** The number of target objects to read per query in the target phase, 0 to read them one at a time */
+    private int targetReadBatchSize;
+
     /** a reference to the {@link ConnectionFactory} */
     private final ConnectionFactory connectionFactory;
 
@@ -306,7 +321,9 @@ class ObjectMapping {
         prefetchLinks = config.get("prefetchLinks").defaultTo(Boolean.TRUE).asBoolean();
         taskThreads = config.get("taskThreads").defaultTo(DEFAULT_TASK_THREADS).asInteger();
         feedSize = config.get("feedSize").defaultTo(ReconFeeder.DEFAULT_FEED_SIZE).asInteger();
+        targetReadBatchSize = config.get(TargetBatchIterator.CONFIG_TARGET_READ_BATCH_SIZE).defaultTo(0).asInteger();
         correlateEmptyTargetSet = config.get("correlateEmptyTargetSet").defaultTo(Boolean.FALSE).asBoolean();
+        skipUnchangedTargets = config.get("skipUnchangedTargets").defaultTo(Boolean.FALSE).asBoolean();
         syncEnabled = config.get("enableSync").defaultTo(Boolean.TRUE).asBoolean();
         linkingEnabled = config.get("enableLinking").defaultTo(Boolean.TRUE).asBoolean();
         reconSourceQueryPaging = config.get("reconSourceQueryPaging").defaultTo(false).asBoolean();
@@ -980,6 +997,30 @@ class ObjectMapping {
         measure.end();
     }
 
+    /**
+     * Reconciles a partition of the source objects of a partitioned reconciliation.
+     *
+     * @param reconContext the context of the partition
+     * @param sourceIds the ids of the source objects of the partition
+     * @param matchedTargets the callback for the target ids matched by the source objects of the partition
+     * @throws SynchronizationException if the partition could not be reconciled
+     */
+    void reconPartition(ReconciliationContext reconContext, Collection<String> sourceIds,
+            MatchedTargets matchedTargets) throws SynchronizationException {
+        Context context = new TriggerContext(ObjectSetContext.get(), "recon");
+        ObjectSetContext.push(context);
+        try {
+            ReconPhase sourcePhase = new ReconPhase(new ResultIterable(sourceIds, null).iterator(), reconContext,
+                    context, null, matchedTargets, sourceRecon);
+            sourcePhase.setFeedSize(feedSize);
+            sourcePhase.execute();
+        } catch (InterruptedException ex) {
+            throw new SynchronizationException("Interrupted execution of reconciliation partition", ex);
+        } finally {
+            ObjectSetContext.pop();
+        }
+    }
+
     /**
      * TEMPORARY. Future version will have this break-down into discrete units of work.
      * @param reconContext
@@ -992,6 +1033,10 @@ class ObjectMapping {
         EventEntry measureIdQueries = Publisher.start(EVENT_RECON_ID_QUERIES, reconId, null);
         reconContext.setStage(ReconStage.ACTIVE_QUERY_ENTRIES);
         Context context = ObjectSetContext.get();
+        final ReconCheckpoint checkpoint = ReconCheckpoint.forRecon(reconContext);
+        final ResourceResponse resumed = reconContext.getResumedCheckpoint();
+        final boolean resumeTargetPhase =
+                resumed != null && ReconCheckpoint.PHASE_TARGET.equals(checkpoint.getPhase());
         try {
             // Execute onRecon script.
             executeOnRecon(context, reconContext);
@@ -1004,7 +1049,9 @@ class ObjectMapping {
             stats.sourceQueryStart();
             final long firstSourceQueryStart = startNanoTime(reconContext);
 
-            ReconQueryResult sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, null);
+            // A resumed run continues with the source page it was processing
+            ReconQueryResult sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize,
+                    resumed != null && !resumeTargetPhase ? checkpoint.getPagingCookie() : null);
             Iterator<ResultEntry> sourceIter = sourceQueryResult.getIterator();
 
             stats.addDuration(DurationMetric.sourceQuery, firstSourceQueryStart);
@@ -1029,21 +1076,30 @@ class ObjectMapping {
 
                 targetIterable = reconContext.queryTarget();
                 remainingTargetIds.addAll(targetIterable.getAllIds());
+                if (resumed != null
+                        && resumed.getContent().get(ReconCheckpoint.FIELD_REMAINING_TARGET_IDS).isNotNull()) {
+                    // Leave out the target ids matched before the checkpoint
+                    remainingTargetIds.retainAll(resumed.getContent()
+                            .get(ReconCheckpoint.FIELD_REMAINING_TARGET_IDS).asList(String.class));
+                }
                 remainingTargetIds = Collections.synchronizedSet(remainingTargetIds);
+                if (checkpoint != null) {
+                    checkpoint.setRemainingTargetIds(remainingTargetIds);
+                }
 
                 stats.addDuration(DurationMetric.targetQuery, targetQueryStart);
                 stats.targetQueryEnd();
             }            
 
             // Optionally get all links up front as well
-            Map<String, Map<String, Link>> allLinks = null;
+            Map<String, LinkIndex> allLinks = null;
             if (prefetchLinks) {
-                allLinks = new HashMap<String, Map<String, Link>>();
-                Integer totalLinkEntries = new Integer(0);
+                allLinks = new HashMap<String, LinkIndex>();
+                int totalLinkEntries = 0;
                 stats.linkQueryStart();
                 for (String linkQualifier : getAllLinkQualifiers(context, reconContext)) {
                     final long linkQueryStart = startNanoTime(reconContext);
-                    Map<String, Link> linksByQualifier = Link.getLinksForMapping(ObjectMapping.this, linkQualifier);
+                    LinkIndex linksByQualifier = Link.getLinkIndex(ObjectMapping.this, linkQualifier);
                     stats.addDuration(DurationMetric.linkQuery, linkQueryStart);
 
                     allLinks.put(linkQualifier, linksByQualifier);
@@ -1059,15 +1115,29 @@ class ObjectMapping {
             reconContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
 
             stats.sourcePhaseStart();
+            if (resumed != null) {
+                stats.merge(resumed.getContent().get(ReconCheckpoint.FIELD_COUNTS).asMap());
+                // Take over the checkpoint, which cancels a run resumed from it concurrently
+                checkpoint.save();
+            }
             final long sourcePhaseStart = startNanoTime(reconContext);
+            final ReconPartitions partitions = reconContext.getService().getPartitions(reconContext);
+            if (!reconSourceQueryPaging) {
+                stats.getSourceStat().setTotal(sourceQueryResult.getAllIds().size());
+            }
             
             boolean queryNextPage = false;
+            // The objects of the page resumed with which were processed before the checkpoint
+            int skip = resumed != null ? checkpoint.getPosition() : 0;
 
             LOGGER.info("Performing source sync for recon {} on mapping {}", new Object[] {reconId, name});
-            do {
+            while (!resumeTargetPhase) {
                 // Query next page of results if paging
                 if (queryNextPage) {
                     LOGGER.debug("Querying next page of source ids");
+                    if (checkpoint != null) {
+                        checkpoint.sourcePageStarted(sourceQueryResult.getPagingCookie());
+                    }
                     final long pagedSourceQueryStart = startNanoTime(reconContext);
                     sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, 
                             sourceQueryResult.getPagingCookie());
@@ -1075,12 +1145,29 @@ class ObjectMapping {
                     stats.addDuration(DurationMetric.sourceQuery, pagedSourceQueryStart);
                 }
                 // Perform source recon phase on current set of source ids
-                ReconPhase sourcePhase = 
-                        new ReconPhase(sourceIter, reconContext, context, allLinks, remainingTargetIds, sourceRecon);
-                sourcePhase.setFeedSize(feedSize);
-                sourcePhase.execute();
+                if (partitions != null) {
+                    // Spread the current set across the cluster nodes
+                    List<String> sourceIds = new ArrayList<String>(sourceQueryResult.getAllIds());
+                    partitions.reconcile(reconContext, sourceIds.subList(Math.min(skip, sourceIds.size()),
+                            sourceIds.size()), remainingTargetIds);
+                    if (checkpoint != null) {
+                        checkpoint.progressed(sourceIds.size());
+                    }
+                } else {
+                    ReconPhase sourcePhase = new ReconPhase(sourceIter, reconContext, context, allLinks,
+                            removeFrom(remainingTargetIds), sourceRecon);
+                    sourcePhase.setFeedSize(feedSize);
+                    if (checkpoint != null) {
+                        sourcePhase.setCheckpoint(checkpoint, skip);
+                    }
+                    sourcePhase.execute();
+                }
                 queryNextPage = true;
-            } while (reconSourceQueryPaging && sourceQueryResult.getPagingCookie() != null); // If paging, loop through next pages
+                skip = 0;
+                if (!reconSourceQueryPaging || sourceQueryResult.getPagingCookie() == null) {
+                    break; // Unless paging, there are no more pages
+                }
+            }
 
             stats.addDuration(DurationMetric.sourcePhase, sourcePhaseStart);
             stats.sourcePhaseEnd();
@@ -1092,11 +1179,24 @@ class ObjectMapping {
                 EventEntry measureTarget = Publisher.start(EVENT_RECON_TARGET, reconId, null);
                 final long targetPhaseStart = startNanoTime(reconContext);
                 reconContext.setStage(ReconStage.ACTIVE_RECONCILING_TARGET);
-                targetIterable = targetIterable.removeNotMatchingEntries(remainingTargetIds);
                 stats.targetPhaseStart();
-                ReconPhase targetPhase = new ReconPhase(targetIterable.iterator(), reconContext, context,
+                // The target phase only starts once no source object is left to match a target; the unmatched
+                // targets are then streamed from the target query result rather than copied
+                stats.getTargetStat().setTotal(remainingTargetIds.size());
+                Iterator<ResultEntry> targetIter = targetIterable.iterator(remainingTargetIds);
+                if (targetReadBatchSize > 0) {
+                    targetIter = new TargetBatchIterator(targetIter, ObjectMapping.this, context,
+                            targetReadBatchSize);
+                }
+                ReconPhase targetPhase = new ReconPhase(targetIter, reconContext, context,
                         allLinks, null, targetRecon);
                 targetPhase.setFeedSize(feedSize);
+                if (checkpoint != null) {
+                    if (!resumeTargetPhase) {
+                        checkpoint.targetPhaseStarted();
+                    }
+                    targetPhase.setCheckpoint(checkpoint, resumeTargetPhase ? checkpoint.getPosition() : 0);
+                }
                 targetPhase.execute();
                 stats.addDuration(DurationMetric.targetPhase, targetPhaseStart);
                 stats.targetPhaseEnd();
@@ -1106,7 +1206,15 @@ class ObjectMapping {
             stats.reconEnd();
             reconContext.setStage(ReconStage.ACTIVE_PROCESSING_RESULTS);
             doResults(reconContext, context);
+            // a recon canceled meanwhile completes as canceled, and is neither reported completed nor forgets its
+            // checkpoint
             reconContext.setStage(ReconStage.COMPLETED_SUCCESS);
+            if (!reconContext.isCanceled()) {
+                reconContext.getReconHandler().reconCompleted();
+                if (checkpoint != null) {
+                    checkpoint.delete();
+                }
+            }
             logReconEndSuccess(reconContext, context);
         } catch (InterruptedException ex) {
             SynchronizationException syncException;
@@ -1141,6 +1249,10 @@ class ObjectMapping {
             if (!stats.hasEnded()) {
                 stats.reconEnd();
             }
+            if (checkpoint != null && reconContext.getStage() != ReconStage.COMPLETED_SUCCESS) {
+                // Keep the latest progress of a failed or canceled run to resume from
+                checkpoint.save();
+            }
         }
 
 // TODO: cleanup orphan link objects (no matching source or target) here
@@ -1197,6 +1309,33 @@ class ObjectMapping {
                 : cause.getMessage());
     }
 
+    /**
+     * Callback of the source phase for the target ids matched by the source objects.
+     */
+    interface MatchedTargets {
+        /**
+         * Notifies that a target was matched by a source object.
+         *
+         * @param targetId the normalized id of the matched target
+         */
+        void matched(String targetId);
+    }
+
+    /**
+     * Returns the callback removing the matched target ids from the remaining target ids.
+     *
+     * @param remainingIds the remaining target ids
+     * @return the callback
+     */
+    private static MatchedTargets removeFrom(final Collection<String> remainingIds) {
+        return new MatchedTargets() {
+            @Override
+            public void matched(String targetId) {
+                remainingIds.remove(targetId);
+            }
+        };
+    }
+
     /**
      * Reconciliation interface.
      * Implementation is passed to ReconPhase and executed by the ReconTask
@@ -1210,11 +1349,11 @@ class ObjectMapping {
          * @param reconContext reconciliation context
          * @param rootContext json resource root ctx
          * @param allLinks all links if pre-queried, or null for on-demand link querying
-         * @param remainingIds The set to update/remove any targets that were matched
+         * @param matchedTargets the callback for any targets that were matched, or null in the target phase
          * @throws SynchronizationException if there is a failure reported in reconciling this id
          */
         void recon(String id, JsonValue entry, ReconciliationContext reconContext, Context rootContext, 
-                Map<String, Map<String, Link>> allLinks, Collection<String> remainingIds)  throws SynchronizationException;
+                Map<String, LinkIndex> allLinks, MatchedTargets matchedTargets)  throws SynchronizationException;
     }
 
     /**
@@ -1226,7 +1365,7 @@ class ObjectMapping {
          */
         @Override
         public void recon(String id, JsonValue objectEntry, ReconciliationContext reconContext, Context context,
-                Map<String, Map<String, Link>> allLinks, Collection<String> remainingIds)
+                Map<String, LinkIndex> allLinks, MatchedTargets matchedTargets)
                 throws SynchronizationException {
             reconContext.checkCanceled();
             LazyObjectAccessor sourceObjectAccessor = objectEntry == null 
@@ -1250,8 +1389,11 @@ class ObjectMapping {
                 auditEvent.setLinkQualifier(op.getLinkQualifier());
                 op.sourceObjectAccessor = sourceObjectAccessor;
                 if (allLinks != null) {
+                    op.linkIndex = allLinks.get(linkQualifier);
                     String normalizedSourceId = linkType.normalizeSourceId(id);
-                    op.initializeLink(allLinks.get(linkQualifier).get(normalizedSourceId));
+                    if (op.linkIndex.isCurrentForSource(normalizedSourceId)) {
+                        op.initializeLink(op.linkIndex.getLinkForSource(normalizedSourceId));
+                    }
                 }
                 auditEvent.setSourceObjectId(LazyObjectAccessor.qualifiedId(sourceObjectSet, id));
                 op.reconId = reconContext.getReconId();
@@ -1272,8 +1414,8 @@ class ObjectMapping {
                 for (String handledId : targetIds) {
                     // If target system has case insensitive IDs, remove without regard to case
                     String normalizedHandledId = linkType.normalizeTargetId(handledId);
-                    remainingIds.remove(normalizedHandledId);
-                    LOGGER.trace("Removed target from remaining targets: {}", normalizedHandledId);
+                    matchedTargets.matched(normalizedHandledId);
+                    LOGGER.trace("Matched target: {}", normalizedHandledId);
                 }
                 if (!ReconAction.NOREPORT.equals(op.action) && (status == Status.FAILURE || op.action != null)) {
                     auditEvent.setReconciling("source");
@@ -1305,8 +1447,8 @@ class ObjectMapping {
          * {@inheritDoc}
          */
         @Override
-        public void recon(String id, JsonValue objectEntry, ReconciliationContext reconContext, Context context, Map<String,
-                Map<String, Link>> allLinks, Collection<String> remainingIds)  throws SynchronizationException {
+        public void recon(String id, JsonValue objectEntry, ReconciliationContext reconContext, Context context,
+                Map<String, LinkIndex> allLinks, MatchedTargets matchedTargets)  throws SynchronizationException {
             reconContext.checkCanceled();
             final ReconciliationStatistic stats = reconContext.getStatistics();
 
@@ -1314,6 +1456,9 @@ class ObjectMapping {
                 TargetSyncOperation op = new TargetSyncOperation(context);
                 op.reconContext = reconContext;
                 op.setLinkQualifier(linkQualifier);
+                if (allLinks != null) {
+                    op.linkIndex = allLinks.get(linkQualifier);
+                }
 
                 ReconAuditEventLogger event = new ReconAuditEventLogger(op, name, context);
                 event.setLinkQualifier(op.getLinkQualifier());
@@ -1363,12 +1508,12 @@ class ObjectMapping {
         JsonValue objectEntry;
         ReconciliationContext reconContext;
         Context parentContext;
-        Map<String, Map<String, Link>> allLinks;
-        Collection<String> remainingIds;
+        Map<String, LinkIndex> allLinks;
+        MatchedTargets matchedTargets;
         Recon reconById;
 
         public ReconTask(ResultEntry resultEntry, ReconciliationContext reconContext, Context parentContext,
-                Map<String, Map<String, Link>> allLinks, Collection<String> remainingIds, Recon reconById) {
+                Map<String, LinkIndex> allLinks, MatchedTargets matchedTargets, Recon reconById) {
             this.id = resultEntry.getId();
             // This value is null if it wasn't pre-queried
             this.objectEntry = resultEntry.getValue();
@@ -1377,7 +1522,7 @@ class ObjectMapping {
             this.reconContext = reconContext;
             this.parentContext = parentContext;
             this.allLinks = allLinks;
-            this.remainingIds = remainingIds;
+            this.matchedTargets = matchedTargets;
             this.reconById = reconById;
         }
 
@@ -1385,7 +1530,7 @@ class ObjectMapping {
             //TODO I miss the Request Context
             ObjectSetContext.push(parentContext);
             try {
-                reconById.recon(id, objectEntry, reconContext, parentContext, allLinks, remainingIds);
+                reconById.recon(id, objectEntry, reconContext, parentContext, allLinks, matchedTargets);
             } finally {
                 ObjectSetContext.pop();
             }
@@ -1398,22 +1543,22 @@ class ObjectMapping {
      */
     class ReconPhase extends ReconFeeder {
         Context parentContext;
-        Map<String, Map<String, Link>> allLinks;
-        Collection<String> remainingIds;
+        Map<String, LinkIndex> allLinks;
+        MatchedTargets matchedTargets;
         Recon reconById;
 
         public ReconPhase(Iterator<ResultEntry> resultIter, ReconciliationContext reconContext, Context parentContext,
-                Map<String, Map<String, Link>> allLinks, Collection<String> remainingIds, Recon reconById) {
+                Map<String, LinkIndex> allLinks, MatchedTargets matchedTargets, Recon reconById) {
             super(resultIter, reconContext);
             this.parentContext = parentContext;
             this.allLinks = allLinks;
-            this.remainingIds = remainingIds;
+            this.matchedTargets = matchedTargets;
             this.reconById = reconById;
         }
         @Override
         Callable<Void> createTask(ResultEntry objectEntry) throws SynchronizationException {
             return new ReconTask(objectEntry, reconContext, parentContext,
-                    allLinks, remainingIds, reconById);
+                    allLinks, matchedTargets, reconById);
         }
     }
 
@@ -1589,6 +1734,12 @@ class ObjectMapping {
          * i.e. a linkObject with id of null represents a link that does not exist (yet)
          */
         public Link linkObject = new Link(ObjectMapping.this);
+
+        /**
+         * Optional index of the links prefetched for the current reconciliation and link qualifier,
+         * or null if links are queried on demand
+         */
+        LinkIndex linkIndex;
         
         /** 
          * Indicates whether the link was created during this operation.
@@ -1789,6 +1940,74 @@ class ObjectMapping {
             }
         }
 
+        /**
+         * Records a link change in the prefetched link index, if any, so that it no longer answers
+         * lookups for the affected source and target ids.
+         *
+         * @param sourceId the source id of the changed link
+         * @param targetId the target id of the changed link
+         */
+        protected void linkChanged(String sourceId, String targetId) {
+            if (linkIndex != null) {
+                linkIndex.linkChanged(sourceId, targetId);
+            }
+        }
+
+        /**
+         * Returns whether the update of the given linked target may be skipped if its mapped state did not change.
+         * Mappings with an onUpdate script are not skipped, as the script may change the target beyond the mapped
+         * state.
+         *
+         * @param targetId the id of the target to update
+         * @return true if the mapped state of the target is to be compared with the hash on the link
+         * @throws SynchronizationException if the source object could not be read
+         */
+        private boolean isSkippingUnchangedTarget(String targetId) throws SynchronizationException {
+            return skipUnchangedTargets && onUpdateScript == null && isLinkingEnabled()
+                    && linkObject._id != null && linkObject.targetEquals(targetId) && getSourceObject() != null;
+        }
+
+        /**
+         * Records the hash of the mapped target state on the link, once the target is updated.
+         *
+         * @param targetHash the hash of the mapped target state
+         */
+        private void recordTargetHash(String targetHash) {
+            if (targetHash.equals(linkObject.targetHash)) {
+                return;
+            }
+            String previous = linkObject.targetHash;
+            linkObject.targetHash = targetHash;
+            try {
+                linkObject.update(context);
+            } catch (SynchronizationException e) {
+                // the target is updated, it is only not skipped next time
+                LOGGER.debug("Failed to record the target hash on link {}", linkObject._id, e);
+                linkObject.targetHash = previous;
+            }
+        }
+
+        /**
+         * Looks up the link for a target id, from the prefetched link index if it is current for the id,
+         * otherwise from the repository. A target the index has no link for is looked up in the repository as
+         * well, as the link may have been created after the index was populated, e.g. by implicit
+         * synchronization or on another node.
+         *
+         * @param link the link to populate
+         * @param targetId the target id to look up the link for
+         * @throws SynchronizationException if the link query failed
+         */
+        protected void getLinkForTarget(Link link, String targetId) throws SynchronizationException {
+            String normalizedTargetId = linkType.normalizeTargetId(targetId);
+            if (linkIndex != null && linkIndex.isCurrentForTarget(normalizedTargetId)) {
+                linkIndex.getLinkForTarget(normalizedTargetId, link);
+                if (link._id != null) {
+                    return;
+                }
+            }
+            link.getLinkForTarget(targetId);
+        }
+
         /**
          * Initializes the link representation.
          * 
@@ -1910,6 +2129,24 @@ class ObjectMapping {
                                     throw new SynchronizationException("no target object to link");
                                 }
 
+                                // the hash of the mapped target state, to skip the update if it did not change;
+                                // it is mapped without the target, which is only read if it is to be updated
+                                String targetHash = null;
+                                if (action == ReconAction.UPDATE && isSkippingUnchangedTarget(targetId)) {
+                                    final JsonValue mappedTarget = json(object());
+                                    applyMappings(context, getSourceObject(), oldValue, mappedTarget, json(null),
+                                            linkObject.linkQualifier, reconContext);
+                                    targetHash = Link.targetHash(mappedTarget);
+                                    if (targetHash.equals(linkObject.targetHash)) {
+                                        LOGGER.debug("Mapped state of {} unchanged, skipping update of {}",
+                                                getSourceObjectId(), targetId);
+                                        if (reconContext != null) {
+                                            reconContext.getStatistics().targetUpdateSkipped();
+                                        }
+                                        break; // terminate UPDATE
+                                    }
+                                }
+
                                 // get a copy of the target before the onLink trigger,
                                 // the onUpdate trigger or the mappings are applied
                                 JsonValue oldTarget = getTargetObject() == null ? new JsonValue(null) : getTargetObject().copy();
@@ -1935,8 +2172,10 @@ class ObjectMapping {
                                     }
                                 }
                                 if (isLinkingEnabled() && linkObject._id != null && !linkObject.targetEquals(targetId)) {
+                                    linkChanged(linkObject.sourceId, linkObject.targetId);
                                     linkObject.targetId = targetId;
                                     linkObject.update(context);
+                                    linkChanged(linkObject.sourceId, targetId);
                                 }
                                 // TODO: Detect change of source id, and update link accordingly.
                                 if (action == ReconAction.CREATE || action == ReconAction.LINK) {
@@ -1951,6 +2190,9 @@ class ObjectMapping {
                                     if (!oldTarget.isEqualTo(getTargetObject())) {
                                         updateTargetObject(context, getTargetObject(), targetId, reconContext);
                                     }
+                                    if (targetHash != null) {
+                                        recordTargetHash(targetHash);
+                                    }
                                 }
                                 // execute the defaultPostMapping script to add lastSync attribute to managed user
                                 execScript("postMapping", postMapping);
@@ -1983,6 +2225,7 @@ class ObjectMapping {
                                     execScript("onUnlink", onUnlinkScript);
 
                                     final long deleteLinkObjectStart = startNanoTime(reconContext);
+                                    linkChanged(linkObject.sourceId, linkObject.targetId);
                                     linkObject.delete(context);
                                     addDuration(reconContext, DurationMetric.deleteLinkObject, deleteLinkObjectStart);
                                 }
@@ -2038,6 +2281,7 @@ class ObjectMapping {
             execScript("onLink", onLinkScript);
             linkObject.sourceId = sourceId;
             linkObject.targetId = targetId;
+            linkChanged(sourceId, targetId);
             linkObject.create(context);
             initializeLink(linkObject);
             LOGGER.debug("Established link sourceId: {} targetId: {} in reconId: {}", sourceId, targetId, reconId);
@@ -2502,7 +2746,7 @@ class ObjectMapping {
                         checkExistingLink.setLinkQualifier(getLinkQualifier());
 
                         final long targetLinkQueryStart = startNanoTime(reconContext);
-                        checkExistingLink.getLinkForTarget(targetObjectAccessor.getLocalId());
+                        getLinkForTarget(checkExistingLink, targetObjectAccessor.getLocalId());
                         addDuration(reconContext, DurationMetric.targetLinkQuery, targetLinkQueryStart);
 
                         if (checkExistingLink._id == null || checkExistingLink.sourceId == null) {
@@ -2847,7 +3091,7 @@ class ObjectMapping {
             // if we don't need the link for the TARGET_IGNORED action
             if (targetId != null) {
                 final long targetLinkQueryStart = startNanoTime(reconContext);
-                linkObject.getLinkForTarget(targetId);
+                getLinkForTarget(linkObject, targetId);
                 addDuration(reconContext, DurationMetric.targetLinkQuery, targetLinkQueryStart);
             }
 
@@ -44,7 +44,9 @@ public class PhaseStatistic {
     Phase phase;
     private String name;
     private Map<Situation, List<String>> ids = Collections.synchronizedMap(new EnumMap<Situation, List<String>>(Situation.class));
+    private final Map<Situation, AtomicLong> situationCounts = new EnumMap<Situation, AtomicLong>(Situation.class);
     private AtomicLong processedEntries = new AtomicLong();
+    private volatile long total = -1;
     private List<String> notValid;
 
     long queryStartTime;
@@ -69,6 +71,9 @@ public class PhaseStatistic {
         ids.put(Situation.TARGET_IGNORED, Collections.synchronizedList(new ArrayList<String>()));
         ids.put(Situation.FOUND_ALREADY_LINKED, Collections.synchronizedList(new ArrayList<String>()));
         notValid = Collections.synchronizedList(new ArrayList<String>());
+        for (Situation situation : ids.keySet()) {
+            situationCounts.put(situation, new AtomicLong());
+        }
     }
 
     /**
@@ -97,6 +102,7 @@ public class PhaseStatistic {
                 List<String> situationIds = ids.get(situation);
                 if (situationIds != null) {
                     situationIds.add(id); // TODO: option to not keep all results in memory
+                    situationCounts.get(situation).incrementAndGet();
                 }
             }
         }
@@ -112,6 +118,93 @@ public class PhaseStatistic {
         return processedEntries.get();
     }
 
+    /**
+     * @return the processed count and situation counts of the phase, as merged by {@link #merge(Map)}
+     */
+    Map<String, Object> getCounts() {
+        Map<String, Object> situations = new HashMap<String, Object>();
+        for (Entry<Situation, AtomicLong> e : situationCounts.entrySet()) {
+            if (e.getValue().get() > 0) {
+                situations.put(e.getKey().name(), e.getValue().get());
+            }
+        }
+        Map<String, Object> counts = new HashMap<String, Object>();
+        counts.put("processed", getProcessed());
+        counts.put("situations", situations);
+        return counts;
+    }
+
+    /**
+     * Adds the counts of the phase as processed elsewhere, e.g. by another node in a partitioned reconciliation.
+     * The processed ids are not merged.
+     *
+     * @param counts the counts, as returned by {@link #getCounts()}
+     */
+    @SuppressWarnings("unchecked")
+    void merge(Map<String, Object> counts) {
+        processedEntries.addAndGet(((Number) counts.get("processed")).longValue());
+        for (Entry<String, Object> e : ((Map<String, Object>) counts.get("situations")).entrySet()) {
+            AtomicLong count = situationCounts.get(Situation.valueOf(e.getKey()));
+            if (count != null) {
+                count.addAndGet(((Number) e.getValue()).longValue());
+            }
+        }
+    }
+
+    /**
+     * Sets the number of entries the phase is to process, if known up front.
+     *
+     * @param total the number of entries to process
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return the number of entries the phase is to process, or -1 if not known
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Reads the live metrics of the phase from its counters, without copying the processed ids.
+     *
+     * @param now the current time, in milliseconds
+     * @return the processed count, throughput and, if the total is known, the estimated time to completion
+     */
+    public Map<String, Object> getLiveMetrics(long now) {
+        Map<String, Object> results = new HashMap<String, Object>();
+        long processed = getProcessed();
+        long elapsed = phaseStartTime > 0
+                ? (phaseEndTime > 0 ? phaseEndTime : now) - phaseStartTime
+                : 0;
+        double rate = elapsed > 0 ? processed * 1000.0 / elapsed : 0.0;
+
+        results.put("processed", processed);
+        results.put("total", total);
+        results.put("duration", elapsed);
+        results.put("objectsPerSecond", rate);
+        if (phaseEndTime > 0) {
+            results.put("estimatedRemaining", 0L);
+        } else if (total >= 0 && rate > 0) {
+            results.put("estimatedRemaining", (long) (Math.max(0, total - processed) * 1000 / rate));
+        }
+
+        Map<String, Object> situations = new HashMap<String, Object>();
+        for (Entry<Situation, AtomicLong> e : situationCounts.entrySet()) {
+            long count = e.getValue().get();
+            if (count > 0) {
+                Map<String, Object> situation = new HashMap<String, Object>();
+                situation.put("count", count);
+                situation.put("perSecond", elapsed > 0 ? count * 1000.0 / elapsed : 0.0);
+                situations.put(e.getKey().name(), situation);
+            }
+        }
+        results.put("situations", situations);
+        return results;
+    }
+
     public Map<String, Object> asMap() {
         Map<String, Object> results = new HashMap<String, Object>();
 
@@ -141,13 +234,13 @@ public class PhaseStatistic {
     }
 
     public void updateSummary(Map<String, Integer> simpleSummary) {
-        for (Entry<Situation, List<String>> e : ids.entrySet()) {
+        for (Entry<Situation, AtomicLong> e : situationCounts.entrySet()) {
             String key = e.getKey().name();
             Integer existing = simpleSummary.get(key);
             if (existing == null) {
                 existing = 0;
             }
-            Integer updated = existing + e.getValue().size();
+            Integer updated = existing + e.getValue().intValue();
             simpleSummary.put(key, updated);
         }
     }
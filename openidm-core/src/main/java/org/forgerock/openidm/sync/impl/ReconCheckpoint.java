@@ -0,0 +1,287 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.core.IdentityServer;
+import org.forgerock.openidm.util.ContextUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the progress of a reconciliation run periodically, so that a failed or canceled run can be resumed from
+ * its last checkpoint, on this or another node. Checkpoints are enabled by the mapping, or the request body, with
+ * the minimum interval between two checkpoints in seconds:
+ * <pre>
+ *     "checkpointInterval" : 300
+ * </pre>
+ * A checkpoint holds the phase, the paging cookie of the current source page and the number of objects of the page,
+ * or of the target phase, processed without a gap, the target ids not yet matched and the statistics. Resuming
+ * re-runs the query of the current page and skips the processed objects, which relies on the query returning the
+ * objects in a stable order. The objects processed after the checkpoint are processed again, and counted again in
+ * the statistics.
+ * <p>
+ * The checkpoint is deleted once the run completes successfully. A run which finds its checkpoint updated by
+ * another node, i.e. resumed elsewhere, cancels itself.
+ */
+class ReconCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconCheckpoint.class);
+
+    static final String CHECKPOINT_PATH = "repo/synchronisation/reconCheckpoint";
+
+    static final String CONFIG_CHECKPOINT_INTERVAL = "checkpointInterval";
+
+    static final String FIELD_MAPPING = "mapping";
+    static final String FIELD_RECON_ACTION = "reconAction";
+    static final String FIELD_RECON_PARAMS = "reconParams";
+    static final String FIELD_OVERRIDING_CONFIG = "overridingConfig";
+    static final String FIELD_NODE = "node";
+    static final String FIELD_PHASE = "phase";
+    static final String FIELD_PAGING_COOKIE = "pagingCookie";
+    static final String FIELD_POSITION = "position";
+    static final String FIELD_REMAINING_TARGET_IDS = "remainingTargetIds";
+    static final String FIELD_COUNTS = "counts";
+    static final String FIELD_STARTED = "started";
+    static final String FIELD_UPDATED = "updated";
+
+    static final String PHASE_SOURCE = "source";
+    static final String PHASE_TARGET = "target";
+
+    private final ReconciliationContext reconContext;
+    private final long interval;
+    private final String node;
+
+    private final long started;
+    private String revision;
+    private long lastSaved;
+    // Whether the run was resumed elsewhere, and its checkpoint is no longer this run's to save
+    private boolean superseded;
+
+    private String phase = PHASE_SOURCE;
+    private String pagingCookie;
+    private int position;
+    private Collection<String> remainingTargetIds;
+
+    /**
+     * Constructs the checkpoint of a reconciliation run.
+     *
+     * @param reconContext the context of the run
+     * @param interval the minimum interval between two checkpoints, in milliseconds
+     * @param node the name of the node running the reconciliation
+     * @param resumed the checkpoint the run is resumed from, or null if the run is not resumed
+     */
+    ReconCheckpoint(ReconciliationContext reconContext, long interval, String node, ResourceResponse resumed) {
+        this.reconContext = reconContext;
+        this.interval = interval;
+        this.node = node;
+        this.lastSaved = System.currentTimeMillis();
+        this.started = resumed != null ? resumed.getContent().get(FIELD_STARTED).asLong() : lastSaved;
+        if (resumed != null) {
+            revision = resumed.getRevision();
+            phase = resumed.getContent().get(FIELD_PHASE).asString();
+            pagingCookie = resumed.getContent().get(FIELD_PAGING_COOKIE).asString();
+            position = resumed.getContent().get(FIELD_POSITION).asInteger();
+        }
+    }
+
+    /**
+     * Gets the checkpoint of a reconciliation run.
+     *
+     * @param reconContext the context of the run
+     * @return the checkpoint, or null if checkpoints are not enabled
+     */
+    static ReconCheckpoint forRecon(ReconciliationContext reconContext) {
+        JsonValue config = reconContext.getOverridingConfig() != null
+                && reconContext.getOverridingConfig().isDefined(CONFIG_CHECKPOINT_INTERVAL)
+                ? reconContext.getOverridingConfig()
+                : reconContext.getObjectMapping().getConfig();
+        long seconds = config.get(CONFIG_CHECKPOINT_INTERVAL).defaultTo(0).asLong();
+        ResourceResponse resumed = reconContext.getResumedCheckpoint();
+        if (resumed != null && seconds <= 0) {
+            // a resumed run keeps saving checkpoints, by the interval of the run it resumes
+            seconds = resumed.getContent().get(CONFIG_CHECKPOINT_INTERVAL).defaultTo(0).asLong();
+        }
+        if (resumed == null && seconds <= 0) {
+            return null;
+        }
+        return new ReconCheckpoint(reconContext, TimeUnit.SECONDS.toMillis(Math.max(seconds, 1)),
+                IdentityServer.getInstance().getNodeName(), resumed);
+    }
+
+    /**
+     * Reads the checkpoint of a reconciliation run.
+     *
+     * @param service the reconciliation service
+     * @param reconId the id of the run
+     * @return the checkpoint
+     * @throws NotFoundException if the run has no checkpoint
+     * @throws ResourceException if the checkpoint could not be read
+     */
+    static ResourceResponse read(ReconciliationService service, String reconId) throws ResourceException {
+        return service.getConnectionFactory().getConnection().read(ContextUtil.createInternalContext(),
+                Requests.newReadRequest(CHECKPOINT_PATH, reconId));
+    }
+
+    /**
+     * @return the phase the run is to resume in
+     */
+    String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the paging cookie of the source page the run is to resume with, null for the first page
+     */
+    String getPagingCookie() {
+        return pagingCookie;
+    }
+
+    /**
+     * @return the number of objects of the current page, or of the target phase, to skip on resume
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * @param remainingTargetIds the target ids not matched yet, updated by the source phase
+     */
+    void setRemainingTargetIds(Collection<String> remainingTargetIds) {
+        this.remainingTargetIds = remainingTargetIds;
+    }
+
+    /**
+     * Records the start of the next source page.
+     *
+     * @param pagingCookie the paging cookie to query the page with
+     */
+    void sourcePageStarted(String pagingCookie) {
+        this.pagingCookie = pagingCookie;
+        this.position = 0;
+        saveIfDue();
+    }
+
+    /**
+     * Records the start of the target phase.
+     */
+    void targetPhaseStarted() {
+        phase = PHASE_TARGET;
+        pagingCookie = null;
+        position = 0;
+        save();
+    }
+
+    /**
+     * Records the number of objects of the current page, or of the target phase, processed without a gap.
+     *
+     * @param position the number of processed objects
+     */
+    void progressed(int position) {
+        this.position = position;
+        saveIfDue();
+    }
+
+    private void saveIfDue() {
+        if (System.currentTimeMillis() - lastSaved >= interval) {
+            save();
+        }
+    }
+
+    /**
+     * Saves the checkpoint.
+     */
+    void save() {
+        if (superseded) {
+            return;
+        }
+        lastSaved = System.currentTimeMillis();
+        List<String> remaining = null;
+        if (remainingTargetIds != null) {
+            // a copy under the lock of the synchronized set
+            remaining = new ArrayList<>(remainingTargetIds);
+        }
+        JsonValue content = json(object(
+                field(FIELD_MAPPING, reconContext.getMapping()),
+                field(FIELD_RECON_ACTION, reconContext.getReconAction().name()),
+                field(FIELD_RECON_PARAMS, reconContext.getReconParams() != null
+                        ? reconContext.getReconParams().getObject() : null),
+                field(FIELD_OVERRIDING_CONFIG, reconContext.getOverridingConfig() != null
+                        ? reconContext.getOverridingConfig().getObject() : null),
+                field(CONFIG_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS.toSeconds(interval)),
+                field(FIELD_NODE, node),
+                field(FIELD_PHASE, phase),
+                field(FIELD_PAGING_COOKIE, pagingCookie),
+                field(FIELD_POSITION, position),
+                field(FIELD_REMAINING_TARGET_IDS, remaining),
+                field(FIELD_COUNTS, reconContext.getStatistics().getCounts()),
+                field(FIELD_STARTED, started),
+                field(FIELD_UPDATED, lastSaved)));
+        try {
+            ResourceResponse saved;
+            if (revision == null) {
+                saved = reconContext.getService().getConnectionFactory().getConnection().create(
+                        ContextUtil.createInternalContext(),
+                        Requests.newCreateRequest(CHECKPOINT_PATH, reconContext.getReconId(), content));
+            } else {
+                saved = reconContext.getService().getConnectionFactory().getConnection().update(
+                        ContextUtil.createInternalContext(),
+                        Requests.newUpdateRequest(CHECKPOINT_PATH, reconContext.getReconId(), content)
+                                .setRevision(revision));
+            }
+            revision = saved.getRevision();
+            logger.debug("Saved checkpoint of recon {} in {} phase at {}", reconContext.getReconId(), phase, position);
+        } catch (PreconditionFailedException | NotFoundException e) {
+            logger.warn("Checkpoint of recon {} was changed by another node, canceling this run",
+                    reconContext.getReconId());
+            superseded = true;
+            reconContext.cancel();
+        } catch (ResourceException e) {
+            // the run resumes from the previous checkpoint
+            logger.warn("Failed to save the checkpoint of recon {}", reconContext.getReconId(), e);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint once the run completed successfully.
+     */
+    void delete() {
+        if (revision == null || superseded) {
+            return;
+        }
+        try {
+            reconContext.getService().getConnectionFactory().getConnection().delete(
+                    ContextUtil.createInternalContext(),
+                    Requests.newDeleteRequest(CHECKPOINT_PATH, reconContext.getReconId()).setRevision(revision));
+        } catch (ResourceException e) {
+            logger.warn("Failed to delete the checkpoint of recon {}", reconContext.getReconId(), e);
+        }
+    }
+}
@@ -1,7 +1,7 @@
 /**
 * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
 *
-* Copyright (c) 2012-2015 ForgeRock AS. All Rights Reserved
+* Copyright (c) 2012-2016 ForgeRock AS. All Rights Reserved
 *
 * The contents of this file are subject to the terms
 * of the Common Development and Distribution License
@@ -26,7 +26,10 @@ package org.forgerock.openidm.sync.impl;
 
 import org.forgerock.openidm.sync.SynchronizationException;
 
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -56,6 +59,17 @@ public abstract class ReconFeeder {
     Iterator<ResultEntry> entriesIter;
     ReconciliationContext reconContext;
 
+    // If set, the checkpoint to report the progress to
+    ReconCheckpoint checkpoint;
+    // The number of entries to skip, as processed before the checkpoint resumed from
+    int skip = 0;
+    // The index of the first entry fed, after the skipped entries
+    int base = 0;
+    // The number of entries processed without a gap, and the entries processed beyond it
+    int position = 0;
+    BitSet processedBeyond;
+    Map<Future<Void>, Integer> positions;
+
     protected ReconFeeder(Iterator<ResultEntry> entriesIter, ReconciliationContext reconContext) {
         this.entriesIter = entriesIter;
         this.reconContext = reconContext;
@@ -65,7 +79,23 @@ public abstract class ReconFeeder {
         this.feedSize = feedSize;
     }
 
+    /**
+     * Reports the progress of this feeder to a checkpoint.
+     * @param checkpoint the checkpoint
+     * @param skip the number of entries to skip, as processed before the checkpoint was saved
+     */
+    void setCheckpoint(ReconCheckpoint checkpoint, int skip) {
+        this.checkpoint = checkpoint;
+        this.skip = skip;
+    }
+
     void execute() throws SynchronizationException, InterruptedException {
+        position = 0;
+        while (position < skip && entriesIter.hasNext()) {
+            entriesIter.next();
+            ++position;
+        }
+        base = position;
         Executor executor = reconContext.getExcecutor();
         if (executor == null) {
             // Execute single threaded
@@ -76,10 +106,17 @@ public abstract class ReconFeeder {
                 } catch (Exception ex) {
                     translateTaskThrowable(ex);
                 }
+                if (checkpoint != null) {
+                    checkpoint.progressed(++position);
+                }
             }
         } else {
             submitted = 0;
             completionService = new ExecutorCompletionService<Void>(executor);
+            if (checkpoint != null) {
+                processedBeyond = new BitSet();
+                positions = new HashMap<Future<Void>, Integer>();
+            }
 
             // Pre-load configured number of items
             for (int i = 0; i < feedSize; ++i) {
@@ -90,12 +127,16 @@ public abstract class ReconFeeder {
             // each time one completes, submit another if there is any more
             for (int processed = 0; processed < submitted; ++processed) {
                 Future<Void> future = completionService.take();
+                reconContext.getStatistics().taskCompleted();
                 try {
                     // Get any exceptions
                     Void result = future.get();
                 } catch (ExecutionException ex) {
                     translateTaskThrowable(ex);
                 }
+                if (checkpoint != null) {
+                    processed(positions.remove(future));
+                }
                 submitNextIfPresent();
             }
         }
@@ -105,11 +146,33 @@ public abstract class ReconFeeder {
         reconContext.checkCanceled();
         if (entriesIter.hasNext()) {
             ResultEntry entry = entriesIter.next();
-            completionService.submit(createTask(entry));
+            Future<Void> future = completionService.submit(createTask(entry));
+            reconContext.getStatistics().taskSubmitted();
+            if (checkpoint != null) {
+                positions.put(future, base + submitted);
+            }
             ++submitted;
         }
     }
 
+    /**
+     * Records an entry as processed, advancing the checkpoint position past the entries processed without a gap.
+     * Tasks complete out of order, so the position only covers the entries before the oldest one still running.
+     * @param index the index of the processed entry
+     */
+    private void processed(int index) {
+        processedBeyond.set(index);
+        int advanced = position;
+        while (processedBeyond.get(advanced)) {
+            processedBeyond.clear(advanced);
+            ++advanced;
+        }
+        if (advanced > position) {
+            position = advanced;
+            checkpoint.progressed(position);
+        }
+    }
+
     void translateTaskThrowable(Throwable throwable) throws SynchronizationException {
         Throwable cause = throwable.getCause();
         
@@ -0,0 +1,605 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.cluster.ClusterEvent;
+import org.forgerock.openidm.cluster.ClusterEventListener;
+import org.forgerock.openidm.sync.ReconContext;
+import org.forgerock.openidm.sync.SynchronizationException;
+import org.forgerock.openidm.util.ContextUtil;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the source phase of a reconciliation across the nodes of a cluster. The node running the reconciliation
+ * splits the queried source ids into partitions, by hash or by range of the ids, and stores each partition as a work
+ * unit in the repository. Every node polls the pending units and claims them by updating them under their revision,
+ * reconciles the source objects of a claimed unit and reports the matched target ids and its counts in the unit,
+ * renewing its claim while doing so. The counts of a unit are recorded in statistics of their own, so an attempt
+ * which fails part way does not count towards the reconciliation. Once all units are done, the node running the
+ * reconciliation removes the matched target ids from the remaining target ids, merges the counts into its
+ * statistics and runs the target phase.
+ * <p>
+ * A reconciliation is partitioned when the cluster is enabled and the mapping, or the request body, sets more than
+ * one partition:
+ * <pre>
+ *     "partitions" : 8,
+ *     "partitionBy" : "hash"
+ * </pre>
+ * With {@code "partitionBy" : "range"} each partition holds a contiguous range of the sorted source ids. The recon
+ * parameters and the configuration overriding the mapping, given in the request, are stored in the units, so the
+ * units processed on other nodes run with them too.
+ * <p>
+ * The units claimed by a node which failed are released once the cluster manager initiates its recovery, or else
+ * when their claim expired; the units of a reconciliation whose node failed are deleted. A unit failing
+ * {@value #MAX_ATTEMPTS} times, including the times its claim was released that way, fails the reconciliation.
+ */
+class ReconPartitions implements ClusterEventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconPartitions.class);
+
+    /** The id the partitions register with the cluster manager under */
+    static final String LISTENER_ID = "reconPartitions";
+
+    static final String UNIT_PATH = "repo/synchronisation/reconPartition";
+
+    static final String CONFIG_PARTITIONS = "partitions";
+    static final String CONFIG_PARTITION_BY = "partitionBy";
+    static final String PARTITION_BY_RANGE = "range";
+
+    static final String FIELD_RECON_ID = "reconId";
+    static final String FIELD_MAPPING = "mapping";
+    static final String FIELD_RECON_PARAMS = "reconParams";
+    static final String FIELD_OVERRIDING_CONFIG = "overridingConfig";
+    static final String FIELD_BATCH = "batch";
+    static final String FIELD_PARTITION = "partition";
+    static final String FIELD_COORDINATOR = "coordinator";
+    static final String FIELD_STATE = "state";
+    static final String FIELD_SOURCE_IDS = "sourceIds";
+    static final String FIELD_CLAIMED_BY = "claimedBy";
+    static final String FIELD_CLAIMED_UNTIL = "claimedUntil";
+    static final String FIELD_ATTEMPTS = "attempts";
+    static final String FIELD_LAST_ERROR = "lastError";
+    static final String FIELD_MATCHED_TARGET_IDS = "matchedTargetIds";
+    static final String FIELD_COUNTS = "counts";
+
+    static final String STATE_PENDING = "PENDING";
+    static final String STATE_CLAIMED = "CLAIMED";
+    static final String STATE_DONE = "DONE";
+    static final String STATE_FAILED = "FAILED";
+
+    static final int MAX_ATTEMPTS = 3;
+
+    private final ReconciliationService service;
+    private final String nodeId;
+    private final long pollInterval;
+    private final long claimTimeout;
+
+    /** Numbers the batches of source ids partitioned on this node, as a source phase may be paged */
+    private final AtomicInteger batches = new AtomicInteger();
+
+    private ScheduledExecutorService poller;
+    /** Renews the claims of the units being processed on this node */
+    private ScheduledExecutorService renewer;
+
+    /**
+     * Constructs the partitions of the reconciliations of a node.
+     *
+     * @param service the reconciliation service
+     * @param nodeId the id of this node
+     * @param pollInterval the interval to poll for pending units, in milliseconds
+     * @param claimTimeout the time after which the claim of a unit expires, in milliseconds
+     */
+    ReconPartitions(ReconciliationService service, String nodeId, long pollInterval, long claimTimeout) {
+        this.service = service;
+        this.nodeId = nodeId;
+        this.pollInterval = pollInterval;
+        this.claimTimeout = claimTimeout;
+    }
+
+    /**
+     * Gets the number of partitions configured for a reconciliation.
+     *
+     * @param reconContext the reconciliation context
+     * @return the number of partitions; 0 or 1 if the reconciliation is not partitioned
+     */
+    static int getPartitionCount(ReconciliationContext reconContext) {
+        return getConfig(reconContext, CONFIG_PARTITIONS).defaultTo(0).asInteger();
+    }
+
+    private static JsonValue getConfig(ReconciliationContext reconContext, String name) {
+        JsonValue overridingConfig = reconContext.getOverridingConfig();
+        if (overridingConfig != null && overridingConfig.isDefined(name)) {
+            return overridingConfig.get(name);
+        }
+        return reconContext.getObjectMapping().getConfig().get(name);
+    }
+
+    /**
+     * Starts polling for pending units.
+     */
+    synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "recon-partition-poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    logger.warn("Failed to poll the reconciliation partitions", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling. A unit being processed is released once its claim expired.
+     */
+    synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+        if (renewer != null) {
+            renewer.shutdownNow();
+            renewer = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getRenewer() {
+        if (renewer == null) {
+            renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "recon-partition-claim-renewer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return renewer;
+    }
+
+    /**
+     * Reconciles the source objects of a partitioned reconciliation, taking part in processing its units, and waits
+     * for all units to be done.
+     *
+     * @param reconContext the context of the reconciliation
+     * @param sourceIds the source ids to reconcile
+     * @param remainingTargetIds the target ids to remove the matched target ids from
+     * @throws SynchronizationException if a unit failed, or the reconciliation was canceled
+     * @throws InterruptedException if interrupted waiting for the units
+     */
+    void reconcile(ReconciliationContext reconContext, Collection<String> sourceIds,
+            Collection<String> remainingTargetIds) throws SynchronizationException, InterruptedException {
+        final Context context = ContextUtil.createInternalContext();
+        final String reconId = reconContext.getReconId();
+        final int batch = batches.getAndIncrement();
+        final List<List<String>> split = split(sourceIds, getPartitionCount(reconContext),
+                PARTITION_BY_RANGE.equals(getConfig(reconContext, CONFIG_PARTITION_BY).asString()));
+        try {
+            for (int partition = 0; partition < split.size(); partition++) {
+                service.getConnectionFactory().getConnection().create(context, Requests.newCreateRequest(UNIT_PATH,
+                        reconId + "-" + batch + "-" + partition,
+                        json(object(
+                                field(FIELD_RECON_ID, reconId),
+                                field(FIELD_MAPPING, reconContext.getMapping()),
+                                field(FIELD_RECON_PARAMS, reconContext.getReconParams() != null
+                                        ? reconContext.getReconParams().getObject() : null),
+                                field(FIELD_OVERRIDING_CONFIG, reconContext.getOverridingConfig() != null
+                                        ? reconContext.getOverridingConfig().getObject() : null),
+                                field(FIELD_BATCH, batch),
+                                field(FIELD_PARTITION, partition),
+                                field(FIELD_COORDINATOR, nodeId),
+                                field(FIELD_STATE, STATE_PENDING),
+                                field(FIELD_ATTEMPTS, 0),
+                                field(FIELD_SOURCE_IDS, split.get(partition))))));
+            }
+            logger.info("Reconciling {} source objects of recon {} in {} partitions",
+                    sourceIds.size(), reconId, split.size());
+
+            while (true) {
+                reconContext.checkCanceled();
+                // take part in the work
+                ResourceResponse unit;
+                while ((unit = claimNext(context, reconId, batch)) != null) {
+                    reconContext.checkCanceled();
+                    process(context, unit, reconContext);
+                }
+                if (collect(context, reconContext, batch, remainingTargetIds)) {
+                    return;
+                }
+                Thread.sleep(pollInterval);
+            }
+        } catch (SynchronizationException e) {
+            throw e;
+        } catch (ResourceException e) {
+            throw new SynchronizationException("Failed to coordinate the partitions of recon " + reconId, e);
+        } finally {
+            deleteUnits(context, QueryFilter.and(
+                    QueryFilter.equalTo(new JsonPointer(FIELD_RECON_ID), reconId),
+                    QueryFilter.equalTo(new JsonPointer(FIELD_BATCH), batch)));
+        }
+    }
+
+    /**
+     * Splits the source ids into partitions, leaving out empty partitions.
+     *
+     * @param sourceIds the source ids
+     * @param partitions the number of partitions
+     * @param byRange whether to split the sorted ids into ranges rather than by hash
+     * @return the ids of each partition
+     */
+    static List<List<String>> split(Collection<String> sourceIds, int partitions, boolean byRange) {
+        final List<List<String>> split = new ArrayList<>(partitions);
+        if (byRange) {
+            final List<String> sorted = new ArrayList<>(sourceIds);
+            Collections.sort(sorted);
+            final int size = (sorted.size() + partitions - 1) / partitions;
+            for (int from = 0; from < sorted.size(); from += size) {
+                split.add(new ArrayList<>(sorted.subList(from, Math.min(from + size, sorted.size()))));
+            }
+        } else {
+            for (int i = 0; i < partitions; i++) {
+                split.add(new ArrayList<String>());
+            }
+            for (String id : sourceIds) {
+                split.get((id.hashCode() & Integer.MAX_VALUE) % partitions).add(id);
+            }
+            for (Iterator<List<String>> iterator = split.iterator(); iterator.hasNext();) {
+                if (iterator.next().isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Checks the units of a batch, releasing expired claims, and collects the results once all units are done.
+     *
+     * @return true if all units are done
+     */
+    private boolean collect(Context context, ReconciliationContext reconContext, int batch,
+            Collection<String> remainingTargetIds) throws ResourceException, SynchronizationException {
+        final List<ResourceResponse> units = queryUnits(context, QueryFilter.and(
+                QueryFilter.equalTo(new JsonPointer(FIELD_RECON_ID), reconContext.getReconId()),
+                QueryFilter.equalTo(new JsonPointer(FIELD_BATCH), batch)));
+        final long now = System.currentTimeMillis();
+        final Map<String, Integer> claimedByNode = new LinkedHashMap<>();
+        int done = 0;
+        int pending = 0;
+        for (ResourceResponse unit : units) {
+            final JsonValue content = unit.getContent();
+            final String state = content.get(FIELD_STATE).asString();
+            if (STATE_DONE.equals(state)) {
+                done++;
+            } else if (STATE_FAILED.equals(state)) {
+                throw new SynchronizationException("Partition " + content.get(FIELD_PARTITION).asInteger()
+                        + " of recon " + reconContext.getReconId() + " failed: "
+                        + content.get(FIELD_LAST_ERROR).asString());
+            } else if (STATE_CLAIMED.equals(state)) {
+                if (content.get(FIELD_CLAIMED_UNTIL).defaultTo(0L).asLong() < now) {
+                    release(context, unit, "The claim of " + content.get(FIELD_CLAIMED_BY).asString() + " expired");
+                    pending++;
+                } else {
+                    final String claimedBy = content.get(FIELD_CLAIMED_BY).asString();
+                    final Integer count = claimedByNode.get(claimedBy);
+                    claimedByNode.put(claimedBy, count == null ? 1 : count + 1);
+                }
+            } else {
+                pending++;
+            }
+        }
+
+        final Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("total", units.size());
+        progress.put("done", done);
+        progress.put("pending", pending);
+        progress.put("claimed", claimedByNode);
+        reconContext.setPartitionProgress(progress);
+
+        if (done < units.size()) {
+            return false;
+        }
+        for (ResourceResponse unit : units) {
+            final JsonValue content = unit.getContent();
+            remainingTargetIds.removeAll(content.get(FIELD_MATCHED_TARGET_IDS).asList(String.class));
+            reconContext.getStatistics().merge(content.get(FIELD_COUNTS).asMap());
+        }
+        return true;
+    }
+
+    /**
+     * Claims and processes the pending units of any reconciliation, one at a time.
+     *
+     * @throws ResourceException if the pending units could not be queried
+     */
+    void poll() throws ResourceException {
+        final Context context = ContextUtil.createInternalContext();
+        ResourceResponse unit;
+        while ((unit = claimNext(context, null, -1)) != null) {
+            process(context, unit, null);
+        }
+    }
+
+    /**
+     * Claims the next pending unit.
+     *
+     * @param reconId the reconciliation to claim a unit of, or null for any
+     * @param batch the batch to claim a unit of, if the reconciliation is given
+     * @return the claimed unit, or null if none is pending
+     */
+    ResourceResponse claimNext(Context context, String reconId, int batch) throws ResourceException {
+        QueryFilter<JsonPointer> filter = QueryFilter.equalTo(new JsonPointer(FIELD_STATE), STATE_PENDING);
+        if (reconId != null) {
+            filter = QueryFilter.and(filter,
+                    QueryFilter.equalTo(new JsonPointer(FIELD_RECON_ID), reconId),
+                    QueryFilter.equalTo(new JsonPointer(FIELD_BATCH), batch));
+        }
+        for (ResourceResponse unit : queryUnits(context, filter)) {
+            final JsonValue content = unit.getContent().copy();
+            content.put(FIELD_STATE, STATE_CLAIMED);
+            content.put(FIELD_CLAIMED_BY, nodeId);
+            content.put(FIELD_CLAIMED_UNTIL, System.currentTimeMillis() + claimTimeout);
+            try {
+                final ResourceResponse response = service.getConnectionFactory().getConnection().update(context,
+                        Requests.newUpdateRequest(UNIT_PATH, unit.getId(), content).setRevision(unit.getRevision()));
+                return newResourceResponse(unit.getId(), response.getRevision(), content);
+            } catch (PreconditionFailedException | NotFoundException e) {
+                logger.debug("Reconciliation partition {} was claimed by another node", unit.getId());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reconciles the source objects of a claimed unit and reports the result in the unit. The claim of the unit is
+     * renewed while it is processed.
+     *
+     * @param unit the claimed unit
+     * @param reconContext the context of the reconciliation, if run on this node, or null
+     */
+    void process(Context context, ResourceResponse unit, ReconciliationContext reconContext) {
+        final JsonValue content = unit.getContent().copy();
+        final List<String> sourceIds = content.get(FIELD_SOURCE_IDS).asList(String.class);
+        final Claim claim = new Claim(context, unit);
+        final long renewInterval = Math.max(1, claimTimeout / 3);
+        final ScheduledFuture<?> renewal =
+                getRenewer().scheduleWithFixedDelay(claim, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        try {
+            try {
+                reconcileUnit(context, content, sourceIds, reconContext);
+            } finally {
+                renewal.cancel(false);
+                unit = claim.end();
+            }
+            content.put(FIELD_STATE, STATE_DONE);
+            content.remove(FIELD_SOURCE_IDS);
+            service.getConnectionFactory().getConnection().update(context,
+                    Requests.newUpdateRequest(UNIT_PATH, unit.getId(), content).setRevision(unit.getRevision()));
+        } catch (ResourceException | RuntimeException e) {
+            logger.warn("Failed to reconcile partition {}", unit.getId(), e);
+            try {
+                release(context, unit, e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+            } catch (ResourceException re) {
+                // released once the claim expired
+                logger.warn("Failed to release reconciliation partition {}", unit.getId(), re);
+            }
+        }
+    }
+
+    /**
+     * Reconciles the source objects of a unit into statistics of their own, recording the matched target ids and
+     * the counts in the unit content.
+     *
+     * @param reconContext the context of the reconciliation, if run on this node, or null
+     */
+    private void reconcileUnit(Context context, JsonValue content, List<String> sourceIds,
+            ReconciliationContext reconContext) throws ResourceException {
+        final ObjectMapping mapping = reconContext != null
+                ? reconContext.getObjectMapping()
+                : service.getMappings().getMapping(content.get(FIELD_MAPPING).asString());
+        final ReconciliationContext partitionContext = new ReconciliationContext(
+                ReconciliationService.ReconAction.recon, mapping, content.get(FIELD_RECON_ID).asString(),
+                reconContext != null
+                        ? reconContext.getReconParams()
+                        : content.get(FIELD_RECON_PARAMS).defaultTo(new LinkedHashMap<String, Object>()),
+                reconContext != null
+                        ? reconContext.getOverridingConfig()
+                        : content.get(FIELD_OVERRIDING_CONFIG).isNull() ? null : content.get(FIELD_OVERRIDING_CONFIG),
+                service);
+        final Set<String> matchedTargetIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        if (reconContext == null) {
+            ObjectSetContext.push(new ReconContext(context, mapping.getName()));
+        }
+        try {
+            partitionContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
+            mapping.reconPartition(partitionContext, sourceIds, new ObjectMapping.MatchedTargets() {
+                @Override
+                public void matched(String targetId) {
+                    matchedTargetIds.add(targetId);
+                }
+            });
+            partitionContext.setStage(ReconStage.COMPLETED_SUCCESS);
+        } catch (ResourceException | RuntimeException e) {
+            partitionContext.setStage(ReconStage.COMPLETED_FAILED);
+            throw e;
+        } finally {
+            if (reconContext == null) {
+                ObjectSetContext.pop();
+            }
+        }
+        content.put(FIELD_MATCHED_TARGET_IDS, new ArrayList<>(matchedTargetIds));
+        content.put(FIELD_COUNTS, partitionContext.getStatistics().getCounts());
+    }
+
+    /**
+     * A claimed unit, whose claim is renewed while the unit is processed.
+     */
+    private final class Claim implements Runnable {
+        private final Context context;
+        private ResourceResponse unit;
+        private boolean ended;
+
+        Claim(Context context, ResourceResponse unit) {
+            this.context = context;
+            this.unit = unit;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (ended) {
+                return;
+            }
+            final JsonValue content = unit.getContent().copy();
+            content.put(FIELD_CLAIMED_UNTIL, System.currentTimeMillis() + claimTimeout);
+            try {
+                final ResourceResponse response = service.getConnectionFactory().getConnection().update(context,
+                        Requests.newUpdateRequest(UNIT_PATH, unit.getId(), content).setRevision(unit.getRevision()));
+                unit = newResourceResponse(unit.getId(), response.getRevision(), content);
+            } catch (ResourceException e) {
+                logger.warn("Failed to renew the claim of reconciliation partition {}", unit.getId(), e);
+            }
+        }
+
+        /**
+         * Stops renewing the claim.
+         *
+         * @return the unit, with the revision of its last renewal
+         */
+        synchronized ResourceResponse end() {
+            ended = true;
+            return unit;
+        }
+    }
+
+    /**
+     * Releases a claimed unit to be claimed again, or fails it after {@value #MAX_ATTEMPTS} failed attempts. A claim
+     * released as its node failed or its claim expired counts as a failed attempt, so that a unit which brings down
+     * the nodes processing it is not retried forever.
+     *
+     * @param error the error of the failed attempt
+     */
+    private void release(Context context, ResourceResponse unit, String error) throws ResourceException {
+        final JsonValue content = unit.getContent().copy();
+        content.remove(FIELD_CLAIMED_BY);
+        content.remove(FIELD_CLAIMED_UNTIL);
+        content.put(FIELD_STATE, STATE_PENDING);
+        final int attempts = content.get(FIELD_ATTEMPTS).defaultTo(0).asInteger() + 1;
+        content.put(FIELD_ATTEMPTS, attempts);
+        content.put(FIELD_LAST_ERROR, error);
+        if (attempts >= MAX_ATTEMPTS) {
+            content.put(FIELD_STATE, STATE_FAILED);
+        }
+        try {
+            service.getConnectionFactory().getConnection().update(context,
+                    Requests.newUpdateRequest(UNIT_PATH, unit.getId(), content).setRevision(unit.getRevision()));
+        } catch (PreconditionFailedException | NotFoundException e) {
+            logger.debug("Reconciliation partition {} changed or deleted meanwhile", unit.getId());
+        }
+    }
+
+    /**
+     * Releases the units claimed by a failed node, and deletes the units of the reconciliations it ran.
+     */
+    @Override
+    public boolean handleEvent(ClusterEvent event) {
+        switch (event.getType()) {
+        case RECOVERY_INITIATED:
+            final String instanceId = event.getInstanceId();
+            final Context context = ContextUtil.createInternalContext();
+            try {
+                for (ResourceResponse unit : queryUnits(context, QueryFilter.and(
+                        QueryFilter.equalTo(new JsonPointer(FIELD_STATE), STATE_CLAIMED),
+                        QueryFilter.equalTo(new JsonPointer(FIELD_CLAIMED_BY), instanceId)))) {
+                    release(context, unit, "Node " + instanceId + " failed");
+                }
+                deleteUnits(context, QueryFilter.equalTo(new JsonPointer(FIELD_COORDINATOR), instanceId));
+                logger.info("Released the reconciliation partitions of failed node {}", instanceId);
+                return true;
+            } catch (ResourceException e) {
+                logger.warn("Failed to release the reconciliation partitions of failed node {}", instanceId, e);
+                return false;
+            }
+        default:
+            return true;
+        }
+    }
+
+    private List<ResourceResponse> queryUnits(Context context, QueryFilter<JsonPointer> filter)
+            throws ResourceException {
+        final List<ResourceResponse> units = new ArrayList<>();
+        service.getConnectionFactory().getConnection().query(context,
+                Requests.newQueryRequest(UNIT_PATH).setQueryFilter(filter), units);
+        return units;
+    }
+
+    private void deleteUnits(Context context, QueryFilter<JsonPointer> filter) {
+        try {
+            for (ResourceResponse unit : queryUnits(context, filter)) {
+                try {
+                    service.getConnectionFactory().getConnection().delete(context,
+                            Requests.newDeleteRequest(UNIT_PATH, unit.getId()));
+                } catch (NotFoundException e) {
+                    // deleted meanwhile
+                }
+            }
+        } catch (ResourceException e) {
+            logger.warn("Failed to delete reconciliation partitions", e);
+        }
+    }
+}
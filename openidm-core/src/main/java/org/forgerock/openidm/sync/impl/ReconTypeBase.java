@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2014-2015 ForgeRock AS.
+ * Portions copyright 2014-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -89,8 +89,21 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
      * @param defaultRunTargetPhase a boolean indicating if target phase should be run.
      */
     public ReconTypeBase(ReconciliationContext reconContext, boolean defaultRunTargetPhase) {
+        this(reconContext, defaultRunTargetPhase, false);
+    }
+
+    /**
+     * A constructor.
+     * 
+     * @param reconContext a {@link RconciliationContext} object.
+     * @param defaultRunTargetPhase a boolean indicating if target phase should be run.
+     * @param defaultAllowEmptySourceSet a boolean indicating if an empty source set is allowed.
+     */
+    public ReconTypeBase(ReconciliationContext reconContext, boolean defaultRunTargetPhase,
+            boolean defaultAllowEmptySourceSet) {
         this.reconContext = reconContext;
-        this.allowEmptySourceSet = calcEffectiveConfig("allowEmptySourceSet").defaultTo(false).asBoolean();
+        this.allowEmptySourceSet =
+                calcEffectiveConfig("allowEmptySourceSet").defaultTo(defaultAllowEmptySourceSet).asBoolean();
         logger.debug("allowEmptySourceSet: {}", allowEmptySourceSet);
         this.runTargetPhase = calcEffectiveConfig("runTargetPhase").defaultTo(defaultRunTargetPhase).asBoolean();
         logger.debug("runTargetPhase: {}", runTargetPhase);
@@ -117,6 +130,22 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
         return allowEmptySourceSet;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCompleteObjectSets() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconCompleted() {
+        // nothing to record by default
+    }
+
     /**
      * Calculate the effective configuration for the given configuration property
      * Properties passed with the request body are given precedence, they override the default configuration
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2013-2015 ForgeRock AS.
+ * Portions copyright 2013-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -55,6 +55,19 @@ public interface ReconTypeHandler {
      */
     boolean allowEmptySourceSet();
 
+    /**
+     * Returns a boolean indicating if the source and target queries return all objects of the source and target
+     * object sets, so that the queried ids can stand in for reads when checking if an object exists.
+     *
+     * @return true if the queries return the complete object sets, false if they return a sub-set
+     */
+    boolean isCompleteObjectSets();
+
+    /**
+     * Called once the recon completed successfully.
+     */
+    void reconCompleted();
+
     /**
      * Returns a {@link JsonValue} object containing parameters concerning source and target selection.
      * 
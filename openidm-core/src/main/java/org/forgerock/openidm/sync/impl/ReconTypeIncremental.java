@@ -0,0 +1,288 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.QueryRequest.FIELD_QUERY_FILTER;
+import static org.forgerock.json.resource.QueryRequest.FIELD_QUERY_ID;
+import static org.forgerock.json.resource.http.HttpUtils.PARAM_QUERY_FILTER;
+import static org.forgerock.json.resource.http.HttpUtils.PARAM_QUERY_ID;
+import static org.forgerock.openidm.util.RequestUtil.hasQueryFilter;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.QueryFilters;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.audit.util.Status;
+import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.openidm.sync.SynchronizationException;
+import org.forgerock.openidm.util.DateUtil;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Represents an incremental reconciliation, of the source objects changed since the last successful incremental
+ * reconciliation of the mapping. The change is detected by a timestamp property of the source objects, configured
+ * in the mapping or in the request body:
+ * <pre>
+ *     "incremental" : {
+ *         "sourceTimestampProperty" : "lastModified",
+ *         "targetTimestampProperty" : "lastModified",
+ *         "overlap" : 60
+ *     }
+ * </pre>
+ * The high-water mark, the start time of the last successful run less the overlap in seconds, is kept in the
+ * repository per mapping. Without a high-water mark the source and target queries are run unrestricted, as in a
+ * full reconciliation. The timestamp properties must hold ISO 8601 UTC timestamps.
+ * <p>
+ * The target phase is not run by default. When enabled with {@code runTargetPhase}, it covers the target objects
+ * changed since the high-water mark if a {@code targetTimestampProperty} is set, which picks up target objects
+ * created outside of the mapping. Deleted source objects are not detected; a full reconciliation is still needed
+ * for them.
+ */
+public class ReconTypeIncremental extends ReconTypeBase {
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ReconTypeIncremental.class);
+
+    /**
+     *  Defaulting to NOT run target phase
+     */
+    static final boolean DEFAULT_RUN_TARGET_PHASE = false;
+
+    /**
+     * No source object changed is a normal outcome of an incremental reconciliation
+     */
+    static final boolean DEFAULT_ALLOW_EMPTY_SOURCE_SET = true;
+
+    /** The repository location of the high-water marks, by mapping name */
+    static final String WATERMARK_PATH = "repo/synchronisation/reconWatermark";
+
+    static final String CONFIG_INCREMENTAL = "incremental";
+    static final String CONFIG_SOURCE_TIMESTAMP_PROPERTY = "sourceTimestampProperty";
+    static final String CONFIG_TARGET_TIMESTAMP_PROPERTY = "targetTimestampProperty";
+    static final String CONFIG_OVERLAP = "overlap";
+
+    /** The query parameter holding the high-water mark, for source and target queries defined by query id */
+    static final String PARAM_CHANGED_SINCE = "changedSince";
+
+    static final String FIELD_WATERMARK = "watermark";
+
+    private static final long DEFAULT_OVERLAP = 60L;
+
+    private static final DateUtil dateUtil = DateUtil.getDateUtil(ServerConstants.TIME_ZONE_UTC);
+
+    /**
+     * A {@link JsonValue} representing the configured source query.
+     */
+    private final JsonValue sourceQuery;
+
+    /**
+     * A {@link JsonValue} representing the configured target query. Only used if target phase is enabled.
+     */
+    private final JsonValue targetQuery;
+
+    private final String sourceTimestampProperty;
+    private final String targetTimestampProperty;
+
+    /** The overlap in milliseconds, and the start of this run, which make the high-water mark for the next run */
+    private final long overlap;
+    private final long started;
+
+    /** The high-water mark of the previous run, or null if none */
+    private volatile String watermark;
+    private volatile String watermarkRevision;
+    // Read once per run, with the first source page queried, which is not the first page of a resumed run
+    private volatile boolean watermarkRead;
+
+    /**
+     * A constructor.
+     *
+     * @param reconContext a {@link ReconciliationContext} object.
+     * @throws BadRequestException if the source timestamp property is not configured
+     */
+    public ReconTypeIncremental(ReconciliationContext reconContext) throws BadRequestException {
+        super(reconContext, DEFAULT_RUN_TARGET_PHASE, DEFAULT_ALLOW_EMPTY_SOURCE_SET);
+
+        JsonValue incremental = calcEffectiveConfig(CONFIG_INCREMENTAL);
+        sourceTimestampProperty = incremental.get(CONFIG_SOURCE_TIMESTAMP_PROPERTY).asString();
+        if (sourceTimestampProperty == null) {
+            throw new BadRequestException("Action " + ReconciliationService.ReconAction.reconIncremental
+                    + " requires the mapping setting incremental/" + CONFIG_SOURCE_TIMESTAMP_PROPERTY);
+        }
+        targetTimestampProperty = incremental.get(CONFIG_TARGET_TIMESTAMP_PROPERTY).asString();
+        overlap = TimeUnit.SECONDS.toMillis(incremental.get(CONFIG_OVERLAP).defaultTo(DEFAULT_OVERLAP).asLong());
+        started = System.currentTimeMillis();
+
+        sourceQuery = calcEffectiveQuery("sourceQuery", reconContext.getObjectMapping().getSourceObjectSet());
+        targetQuery = calcEffectiveQuery("targetQuery", reconContext.getObjectMapping().getTargetObjectSet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryResult querySource(int pageSize, String pagingCookie) throws SynchronizationException {
+        if (!watermarkRead) {
+            readWatermark();
+        }
+        JsonValue query = changedSince(sourceQuery, sourceTimestampProperty);
+        return query(query.get("resourceName").asString(),
+                query,
+                reconContext,
+                Collections.synchronizedSet(new LinkedHashSet<String>()),
+                true,
+                QuerySide.SOURCE,
+                pageSize,
+                pagingCookie);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultIterable queryTarget() throws SynchronizationException {
+        JsonValue query = changedSince(targetQuery, targetTimestampProperty);
+        return query(query.get("resourceName").asString(), query, reconContext,
+                Collections.synchronizedSet(new LinkedHashSet<String>()),
+                reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), QuerySide.TARGET,
+                0, null
+        ).getResultIterable();
+    }
+
+    /**
+     * The source and target queries return the changed objects only once a high-water mark exists.
+     */
+    @Override
+    public boolean isCompleteObjectSets() {
+        return watermark == null;
+    }
+
+    /**
+     * Stores the high-water mark for the next run, provided all objects were reconciled successfully.
+     */
+    @Override
+    public void reconCompleted() {
+        Integer failures = reconContext.getStatistics().getStatusSummary().get(Status.FAILURE.toString());
+        if (failures != null && failures > 0) {
+            logger.info("Keeping the high-water mark {} of mapping {}, {} objects failed to reconcile",
+                    watermark, reconContext.getMapping(), failures);
+            return;
+        }
+        String mapping = reconContext.getMapping();
+        // a resumed run covers the changes since the start of the run it resumes
+        ResourceResponse resumed = reconContext.getResumedCheckpoint();
+        long runStarted = resumed != null
+                ? resumed.getContent().get(ReconCheckpoint.FIELD_STARTED).defaultTo(started).asLong()
+                : started;
+        String nextWatermark = dateUtil.getFormattedTime(runStarted - overlap);
+        JsonValue content = json(object(field(FIELD_WATERMARK, nextWatermark)));
+        try {
+            if (watermarkRevision == null) {
+                reconContext.getService().getConnectionFactory().getConnection().create(
+                        reconContext.getService().getContext(),
+                        Requests.newCreateRequest(WATERMARK_PATH, mapping, content));
+            } else {
+                reconContext.getService().getConnectionFactory().getConnection().update(
+                        reconContext.getService().getContext(),
+                        Requests.newUpdateRequest(WATERMARK_PATH, mapping, content).setRevision(watermarkRevision));
+            }
+            logger.debug("Stored high-water mark {} of mapping {}", nextWatermark, mapping);
+        } catch (ResourceException e) {
+            // the next run reconciles the changes of this run again
+            logger.warn("Failed to store the high-water mark of mapping {}", mapping, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonValue getReconParameters() {
+        return json(object(
+                field("sourceQuery", sourceQuery.getObject()),
+                field("targetQuery", targetQuery.getObject()),
+                field("changedSince", watermark)
+        ));
+    }
+
+    /**
+     * Reads the high-water mark of the last successful run of the mapping.
+     *
+     * @throws SynchronizationException if the high-water mark could not be read
+     */
+    void readWatermark() throws SynchronizationException {
+        try {
+            ResourceResponse stored = reconContext.getService().getConnectionFactory().getConnection().read(
+                    reconContext.getService().getContext(),
+                    Requests.newReadRequest(WATERMARK_PATH, reconContext.getMapping()));
+            watermark = stored.getContent().get(FIELD_WATERMARK).asString();
+            watermarkRevision = stored.getRevision();
+            watermarkRead = true;
+            logger.debug("Reconciling changes of mapping {} since {}", reconContext.getMapping(), watermark);
+        } catch (NotFoundException e) {
+            logger.info("No high-water mark for mapping {}, reconciling all objects", reconContext.getMapping());
+            watermark = null;
+            watermarkRevision = null;
+            watermarkRead = true;
+        } catch (ResourceException e) {
+            throw new SynchronizationException("Failed to read the high-water mark of mapping "
+                    + reconContext.getMapping(), e);
+        }
+    }
+
+    /**
+     * Restricts a query to the objects changed since the high-water mark. The default query of all ids is replaced
+     * by a condition on the timestamp property and a query filter is combined with it. Other queries are passed the
+     * high-water mark as {@value #PARAM_CHANGED_SINCE} parameter.
+     *
+     * @param query the effective query
+     * @param timestampProperty the timestamp property of the queried objects, or null if there is none
+     * @return the restricted query, or the query unchanged if no high-water mark or timestamp property exists
+     */
+    JsonValue changedSince(JsonValue query, String timestampProperty) {
+        if (watermark == null || timestampProperty == null) {
+            return query;
+        }
+        JsonValue restricted = query.copy();
+        QueryFilter<JsonPointer> changed = QueryFilter.greaterThan(new JsonPointer(timestampProperty), watermark);
+        if (hasQueryFilter(query)) {
+            String key = query.isDefined(FIELD_QUERY_FILTER) ? FIELD_QUERY_FILTER : PARAM_QUERY_FILTER;
+            restricted.put(key, QueryFilter.and(QueryFilters.parse(query.get(key).asString()), changed).toString());
+        } else if (ServerConstants.QUERY_ALL_IDS.equals(query.get(FIELD_QUERY_ID).asString())
+                || ServerConstants.QUERY_ALL_IDS.equals(query.get(PARAM_QUERY_ID).asString())) {
+            restricted.remove(FIELD_QUERY_ID);
+            restricted.remove(PARAM_QUERY_ID);
+            restricted.put(FIELD_QUERY_FILTER, changed.toString());
+        } else {
+            restricted.put(PARAM_CHANGED_SINCE, watermark);
+        }
+        return restricted;
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2011-2015 ForgeRock AS.
+ * Portions copyright 2011-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -29,6 +29,7 @@ import org.forgerock.openidm.sync.SynchronizationException;
 import org.forgerock.services.context.Context;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.ResourceResponse;
 
 
 /**
@@ -68,6 +69,12 @@ public class ReconciliationContext {
     private Integer totalTargetEntries;
     private Integer totalLinkEntries;
 
+    // If partitioned, the progress of the partitions
+    private volatile Map<String, Object> partitionProgress;
+
+    // If resumed, the checkpoint the run resumes from
+    private ResourceResponse resumedCheckpoint;
+
     // Marker value for nulls to use in maps without null value support
     private final static JsonValue NULL_MARKER = new JsonValue(null);
     
@@ -86,10 +93,29 @@ public class ReconciliationContext {
             JsonValue overridingConfig,
             ReconciliationService service)
         throws BadRequestException {
+        this(reconAction, mapping, callingContext.getId(), reconParams, overridingConfig, service);
+    }
+
+    /**
+     * Creates the instance for a part of the reconciliation run with the given id, e.g. a partition of a
+     * partitioned reconciliation processed on another node.
+     * @param reconAction the recon action
+     * @param mapping the mapping configuration
+     * @param reconId the id of the reconciliation run
+     * @param reconParams configuration options for the recon
+     */
+    ReconciliationContext(
+            ReconciliationService.ReconAction reconAction,
+            ObjectMapping mapping,
+            String reconId,
+            JsonValue reconParams,
+            JsonValue overridingConfig,
+            ReconciliationService service)
+        throws BadRequestException {
 
         this.reconAction = reconAction;
         this.mapping = mapping;
-        this.reconId = callingContext.getId();
+        this.reconId = reconId;
         this.reconStat = new ReconciliationStatistic(this);
         this.reconParams = reconParams;
         this.overridingConfig = overridingConfig;
@@ -117,6 +143,8 @@ public class ReconciliationContext {
             return new ReconTypeByQuery(this);
         case reconById :
             return new ReconTypeById(this);
+        case reconIncremental :
+            return new ReconTypeIncremental(this);
         default:
             throw new BadRequestException("Unknown action " + reconAction.toString());
         }
@@ -248,6 +276,7 @@ public class ReconciliationContext {
         targetExisting.put("total", totalTargetEntriesStr);
         targetDetail.put("existing", targetExisting);
         targetDetail.put("created", getStatistics().getTargetCreated());
+        targetDetail.put("updateSkipped", getStatistics().getTargetUpdateSkipped());
         progressDetail.put("target", targetDetail);
 
         linkExisting.put("processed", getStatistics().getLinkProcessed());
@@ -273,7 +302,12 @@ public class ReconciliationContext {
      */
     ReconQueryResult querySourceIter(int pageSize, String pagingCookie) throws SynchronizationException {
         ReconQueryResult result = getReconHandler().querySource(pageSize, pagingCookie);
-        setSourceIds(result.getAllIds());
+        if (getReconHandler().isCompleteObjectSets()) {
+            setSourceIds(result.getAllIds());
+        } else {
+            // a sub-set of the source ids does not tell if a source object exists
+            this.totalSourceEntries = Integer.valueOf(result.getAllIds().size());
+        }
         return result;
     }
     
@@ -284,7 +318,12 @@ public class ReconciliationContext {
      */
     ResultIterable queryTarget() throws SynchronizationException {
         ResultIterable result = getReconHandler().queryTarget();
-        setTargets(result);
+        if (getReconHandler().isCompleteObjectSets()) {
+            setTargets(result);
+        } else {
+            // a sub-set of the targets does not tell if a target object exists
+            this.totalTargetEntries = Integer.valueOf(result.getAllIds().size());
+        }
         return result;
     }
 
@@ -410,6 +449,9 @@ public class ReconciliationContext {
         reconSummary.put("situationSummary", getStatistics().getSituationSummary());
         reconSummary.put("statusSummary", getStatistics().getStatusSummary());
         reconSummary.put("durationSummary", getStatistics().getDurationSummary());
+        if (partitionProgress != null) {
+            reconSummary.put("partitions", partitionProgress);
+        }
         reconSummary.put("parameters", reconTypeHandler.getReconParameters().getObject());
         reconSummary.put("started", getStatistics().getStarted());
         reconSummary.put("ended", getStatistics().getEnded());
@@ -417,6 +459,27 @@ public class ReconciliationContext {
         return reconSummary;
     }
 
+    /**
+     * @param partitionProgress the progress of the partitions of a partitioned reconciliation
+     */
+    void setPartitionProgress(Map<String, Object> partitionProgress) {
+        this.partitionProgress = partitionProgress;
+    }
+
+    /**
+     * @return the checkpoint this run resumes from, or null if the run is not resumed
+     */
+    ResourceResponse getResumedCheckpoint() {
+        return resumedCheckpoint;
+    }
+
+    /**
+     * @param resumedCheckpoint the checkpoint this run resumes from
+     */
+    void setResumedCheckpoint(ResourceResponse resumedCheckpoint) {
+        this.resumedCheckpoint = resumedCheckpoint;
+    }
+
     /**
      * Accessor to service wrapping and registering the reconciliation capabilities
      * @return handle to recon service
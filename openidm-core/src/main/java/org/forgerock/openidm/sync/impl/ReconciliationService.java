@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2012-2015 ForgeRock AS.
+ * Portions copyright 2012-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -47,6 +47,7 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.forgerock.json.JsonValueException;
+import org.forgerock.openidm.cluster.ClusterManagementService;
 import org.forgerock.openidm.router.IDMConnectionFactory;
 import org.forgerock.openidm.sync.ReconContext;
 import org.forgerock.openidm.sync.SynchronizationException;
@@ -98,7 +99,7 @@ public class ReconciliationService
     private static final String SUMMARY = "summary";
 
     public enum ReconAction {
-        recon, reconByQuery, reconById;
+        recon, reconByQuery, reconById, reconIncremental;
 
         /**
          * Convenience helper that checks if a given string
@@ -136,6 +137,32 @@ public class ReconciliationService
     )
     volatile Mappings mappings;
 
+    /**
+     * The cluster manager, to partition reconciliations across the cluster nodes
+     */
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL_UNARY,
+            policy = ReferencePolicy.DYNAMIC
+    )
+    volatile ClusterManagementService clusterManager;
+
+    protected void bindClusterManager(ClusterManagementService clusterManager) {
+        this.clusterManager = clusterManager;
+        startPartitions();
+    }
+
+    protected void unbindClusterManager(ClusterManagementService clusterManager) {
+        stopPartitions();
+        this.clusterManager = null;
+    }
+
+    /**
+     * The partitions of the reconciliations run on and processed by this node; null unless clustered and active
+     */
+    private ReconPartitions partitions;
+
+    private boolean active;
+
     /**
      * The thread pool for executing full reconciliation runs.
      */
@@ -269,15 +296,8 @@ public class ReconciliationService
                     try {
                         JsonValue mapping = paramsVal.get("mapping").required();
                         logger.debug("Reconciliation action of mapping {}", mapping);
-                        Boolean waitForCompletion = Boolean.FALSE;
-                        JsonValue waitParam = paramsVal.get("waitForCompletion").defaultTo(Boolean.FALSE);
-                        if (waitParam.isBoolean()) {
-                            waitForCompletion = waitParam.asBoolean();
-                        } else {
-                            waitForCompletion = Boolean.parseBoolean(waitParam.asString());
-                        }
-                        reconId = reconcile(ReconAction.valueOf(request.getAction()), mapping, waitForCompletion, 
-                                paramsVal, request.getContent());
+                        reconId = reconcile(ReconAction.valueOf(request.getAction()), mapping,
+                                isWaitForCompletion(paramsVal), paramsVal, request.getContent());
                         result.put("_id",  reconId);
                         result.put("state", reconRuns.get(reconId).getState());
                     } catch (SynchronizationException se) {
@@ -290,6 +310,13 @@ public class ReconciliationService
             } else {
                 // operation on individual resource
                 final String id = request.getResourcePathObject().leaf();
+                if ("resume".equalsIgnoreCase(request.getAction())) {
+                    // the run to resume may have run on another node, or before a restart
+                    resume(id, isWaitForCompletion(paramsVal));
+                    result.put("_id", id);
+                    result.put("state", reconRuns.get(id).getState());
+                    return newActionResponse(new JsonValue(result)).asPromise();
+                }
                 ReconciliationContext foundRun = reconRuns.get(id);
                 if (foundRun == null) {
                     throw new NotFoundException("Reconciliation with id " + id + " not found." );
@@ -343,6 +370,66 @@ public class ReconciliationService
         
         
         addReconRun(reconciliationContext);
+        run(reconciliationContext, synchronous);
+        return reconciliationContext.getReconId();
+    }
+
+    /**
+     * Resumes a failed or canceled reconciliation run from its last checkpoint, keeping its id.
+     *
+     * @param reconId the id of the run
+     * @param synchronous whether to wait for the run to complete
+     * @throws NotFoundException if the run has no checkpoint
+     * @throws ConflictException if the run is still active on this node
+     * @throws ResourceException if the run could not be resumed
+     */
+    private void resume(String reconId, Boolean synchronous) throws ResourceException {
+        if (mappings == null) {
+            throw new BadRequestException("Unknown mapping type, no mappings configured");
+        }
+        final ResourceResponse checkpoint;
+        try {
+            checkpoint = ReconCheckpoint.read(this, reconId);
+        } catch (NotFoundException e) {
+            throw new NotFoundException("No checkpoint of reconciliation " + reconId + " to resume from");
+        }
+        final JsonValue content = checkpoint.getContent();
+        final ObjectMapping objMapping = mappings.getMapping(content.get(ReconCheckpoint.FIELD_MAPPING).asString());
+        final ReconciliationContext reconciliationContext = new ReconciliationContext(
+                ReconAction.valueOf(content.get(ReconCheckpoint.FIELD_RECON_ACTION).asString()),
+                objMapping, reconId,
+                content.get(ReconCheckpoint.FIELD_RECON_PARAMS).defaultTo(new LinkedHashMap<String, Object>()),
+                content.get(ReconCheckpoint.FIELD_OVERRIDING_CONFIG).isNull()
+                        ? null : content.get(ReconCheckpoint.FIELD_OVERRIDING_CONFIG),
+                this);
+        reconciliationContext.setResumedCheckpoint(checkpoint);
+        // Check and register under the lock, so that concurrent resumes of the same run do not both start
+        synchronized (reconRuns) {
+            ReconciliationContext previousRun = reconRuns.get(reconId);
+            if (previousRun != null && !previousRun.getStage().isComplete()) {
+                throw new ConflictException("Reconciliation " + reconId + " is still active");
+            }
+            addReconRun(reconciliationContext);
+        }
+        logger.info("Resuming reconciliation {} of mapping {} in {} phase", reconId, objMapping.getName(),
+                content.get(ReconCheckpoint.FIELD_PHASE).asString());
+
+        // Set the ReconContext on the request context chain.
+        Context currentContext = ObjectSetContext.pop();
+        ObjectSetContext.push(new ReconContext(currentContext, objMapping.getName()));
+
+        run(reconciliationContext, synchronous);
+    }
+
+    /**
+     * Runs a reconciliation, in the calling thread or on the reconciliation thread pool.
+     *
+     * @param reconciliationContext the context of the run
+     * @param synchronous whether to wait for the run to complete
+     * @throws SynchronizationException if the synchronous run failed
+     */
+    private void run(final ReconciliationContext reconciliationContext, Boolean synchronous)
+            throws SynchronizationException {
         if (Boolean.TRUE.equals(synchronous)) {
             reconcile(reconciliationContext);
         } else {
@@ -365,7 +452,15 @@ public class ReconciliationService
             };
             fullReconExecutor.execute(command);
         }
-        return reconciliationContext.getReconId();
+    }
+
+    private static Boolean isWaitForCompletion(JsonValue paramsVal) {
+        JsonValue waitParam = paramsVal.get("waitForCompletion").defaultTo(Boolean.FALSE);
+        if (waitParam.isBoolean()) {
+            return waitParam.asBoolean();
+        } else {
+            return Boolean.parseBoolean(waitParam.asString());
+        }
     }
 
     /**
@@ -454,6 +549,11 @@ public class ReconciliationService
             fullReconExecutor = Executors.newFixedThreadPool(maxConcurrentFullRecons);
 
             registerMBean();
+
+            synchronized (this) {
+                active = true;
+            }
+            startPartitions();
         } catch (RuntimeException ex) {
             logger.warn("Configuration invalid and could not be parsed, can not start reconciliation service: "
                     + ex.getMessage(), ex);
@@ -476,10 +576,62 @@ public class ReconciliationService
     @Deactivate
     void deactivate(ComponentContext compContext) {
         logger.debug("Deactivating Service {}", compContext);
+        synchronized (this) {
+            active = false;
+        }
+        stopPartitions();
         unregisterMBean();
         logger.info("Reconciliation service stopped.");
     }
 
+    /**
+     * Gets the partitions to spread the source phase of a reconciliation across the cluster nodes with.
+     *
+     * @param reconContext the reconciliation context
+     * @return the partitions, or null if the reconciliation is not to be partitioned
+     */
+    synchronized ReconPartitions getPartitions(ReconciliationContext reconContext) {
+        if (partitions == null || clusterManager == null || !clusterManager.isEnabled()
+                || ReconPartitions.getPartitionCount(reconContext) <= 1) {
+            return null;
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the configured mappings, or null if none are configured
+     */
+    Mappings getMappings() {
+        return mappings;
+    }
+
+    private synchronized void startPartitions() {
+        final ClusterManagementService cluster = clusterManager;
+        if (!active || cluster == null || partitions != null) {
+            return;
+        }
+        // Until we have a recon service config, allow overrides via (unsupported) properties
+        long pollInterval = Long.parseLong(
+                IdentityServer.getInstance().getProperty("openidm.recon.partition.pollinterval", "5000"));
+        long claimTimeout = Long.parseLong(
+                IdentityServer.getInstance().getProperty("openidm.recon.partition.claimtimeout", "3600000"));
+        partitions = new ReconPartitions(this, cluster.getInstanceId(), pollInterval, claimTimeout);
+        cluster.register(ReconPartitions.LISTENER_ID, partitions);
+        partitions.start();
+    }
+
+    private synchronized void stopPartitions() {
+        if (partitions == null) {
+            return;
+        }
+        partitions.stop();
+        final ClusterManagementService cluster = clusterManager;
+        if (cluster != null) {
+            cluster.unregister(ReconPartitions.LISTENER_ID);
+        }
+        partitions = null;
+    }
+
     /**
      * Returns the {@link Context}
      * 
@@ -593,4 +745,20 @@ public class ReconciliationService
             throw new InternalServerErrorException("Unable to get the maximum pool size in recon thread pool");
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> getActiveReconMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (reconRuns) {
+            for (ReconciliationContext reconContext : reconRuns.values()) {
+                if (!reconContext.getStage().isComplete()) {
+                    metrics.put(reconContext.getReconId(), reconContext.getStatistics().getLiveMetrics());
+                }
+            }
+        }
+        return metrics;
+    }
 }
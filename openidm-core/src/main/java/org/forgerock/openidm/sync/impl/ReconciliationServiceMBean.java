@@ -11,13 +11,14 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2015 ForgeRock AS.
+ * Copyright 2015-2016 ForgeRock AS.
  */
 
 package org.forgerock.openidm.sync.impl;
 
 import org.forgerock.json.resource.ResourceException;
 
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -66,4 +67,10 @@ public interface ReconciliationServiceMBean {
      * @throws ResourceException if there is an error getting maximum allowed number of threads.
      */
     public int getMaximumPoolSize() throws ResourceException;
+
+    /**
+     * Gets the live metrics of the reconciliations currently running on this node.
+     * @return the live metrics of each active reconciliation, keyed by reconciliation id.
+     */
+    public Map<String, Object> getActiveReconMetrics();
 }
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.forgerock.openidm.audit.util.Status;
 import org.forgerock.openidm.core.ServerConstants;
@@ -84,7 +85,10 @@ public class ReconciliationStatistic {
     private AtomicInteger linkCreated = new AtomicInteger();
     private AtomicInteger targetProcessed = new AtomicInteger();
     private AtomicInteger targetCreated = new AtomicInteger();
+    private AtomicInteger targetUpdateSkipped = new AtomicInteger();
     private Map<Status, AtomicInteger> statusProcessed = new EnumMap<>(Status.class);
+    private AtomicLong tasksSubmitted = new AtomicLong();
+    private AtomicLong tasksCompleted = new AtomicLong();
 
     private PhaseStatistic sourceStat;
     private PhaseStatistic targetStat;
@@ -222,6 +226,74 @@ public class ReconciliationStatistic {
         }
     }
 
+    /**
+     * Records an update of a target object skipped, as its mapped state did not change since it was last updated.
+     */
+    public void targetUpdateSkipped() {
+        targetUpdateSkipped.incrementAndGet();
+    }
+
+    /**
+     * @return the counts of this run, as merged into the statistics of a partitioned run by {@link #merge(Map)}
+     */
+    Map<String, Object> getCounts() {
+        final Map<String, Object> counts = new HashMap<>();
+        counts.put("sourceProcessed", sourceProcessed.get());
+        counts.put("targetProcessed", targetProcessed.get());
+        counts.put("targetCreated", targetCreated.get());
+        counts.put("targetUpdateSkipped", targetUpdateSkipped.get());
+        counts.put("linkProcessed", linkProcessed.get());
+        counts.put("linkCreated", linkCreated.get());
+        counts.put("status", new HashMap<String, Object>(getStatusSummary()));
+        counts.put("sourcePhase", sourceStat.getCounts());
+        counts.put("targetPhase", targetStat.getCounts());
+        return counts;
+    }
+
+    /**
+     * Adds the counts of a part of this run processed elsewhere, e.g. by another node in a partitioned
+     * reconciliation. Duration statistics are not merged.
+     *
+     * @param counts the counts, as returned by {@link #getCounts()}
+     */
+    @SuppressWarnings("unchecked")
+    void merge(Map<String, Object> counts) {
+        sourceProcessed.addAndGet(((Number) counts.get("sourceProcessed")).intValue());
+        targetProcessed.addAndGet(((Number) counts.get("targetProcessed")).intValue());
+        targetCreated.addAndGet(((Number) counts.get("targetCreated")).intValue());
+        if (counts.get("targetUpdateSkipped") != null) {
+            targetUpdateSkipped.addAndGet(((Number) counts.get("targetUpdateSkipped")).intValue());
+        }
+        linkProcessed.addAndGet(((Number) counts.get("linkProcessed")).intValue());
+        linkCreated.addAndGet(((Number) counts.get("linkCreated")).intValue());
+        for (Entry<String, Object> entry : ((Map<String, Object>) counts.get("status")).entrySet()) {
+            statusProcessed.get(Status.valueOf(entry.getKey())).addAndGet(((Number) entry.getValue()).intValue());
+        }
+        sourceStat.merge((Map<String, Object>) counts.get("sourcePhase"));
+        targetStat.merge((Map<String, Object>) counts.get("targetPhase"));
+    }
+
+    /**
+     * Records a task handed to the reconciliation task threads.
+     */
+    public void taskSubmitted() {
+        tasksSubmitted.incrementAndGet();
+    }
+
+    /**
+     * Records a task completed by the reconciliation task threads.
+     */
+    public void taskCompleted() {
+        tasksCompleted.incrementAndGet();
+    }
+
+    /**
+     * @return the number of tasks submitted and not yet completed
+     */
+    public long getQueueDepth() {
+        return Math.max(0, tasksSubmitted.get() - tasksCompleted.get());
+    }
+
     public void processStatus(Status status) {
         statusProcessed.get(status).incrementAndGet();
     }
@@ -247,6 +319,13 @@ public class ReconciliationStatistic {
         return targetCreated.get();
     }
     
+    /**
+     * @return The number of target object updates skipped as the mapped state did not change
+     */
+    public int getTargetUpdateSkipped() {
+        return targetUpdateSkipped.get();
+    }
+
     /**
      * @return The number of existing links processed
      */
@@ -369,4 +448,37 @@ public class ReconciliationStatistic {
         }
         return resultMap;
     }
+
+    /**
+     * Exposes the live metrics of a running reconciliation: per phase throughput, situation rates and estimated time
+     * to completion, the depth of the task queue, and the duration percentiles. All values are read from counters,
+     * so this is cheap enough to be polled while the reconciliation runs.
+     *
+     * @return Map of live metrics
+     */
+    public Map<String, Object> getLiveMetrics() {
+        final long now = System.currentTimeMillis();
+        final Map<String, Object> results = new HashMap<>();
+        results.put("reconId", reconContext.getReconId());
+        results.put("mappingName", reconContext.getMapping());
+        results.put("stage", reconContext.getStage().toString());
+        results.put("duration", getDuration());
+        results.put("queueDepth", getQueueDepth());
+        results.put("targetUpdateSkipped", getTargetUpdateSkipped());
+        results.put("sourcePhase", sourceStat.getLiveMetrics(now));
+        results.put("targetPhase", targetStat.getLiveMetrics(now));
+
+        final Map<String, Map<String, Long>> percentiles = new HashMap<>(durationStat.size() * 2);
+        for (final Entry<String, DurationStatistics> entry : durationStat.entrySet()) {
+            final Map<String, Long> valueMap = new HashMap<>();
+            final DurationStatistics stats = entry.getValue();
+            valueMap.put("count", stats.count());
+            valueMap.put("p50", nanoToMillis(stats.percentile(0.5)));
+            valueMap.put("p95", nanoToMillis(stats.percentile(0.95)));
+            valueMap.put("p99", nanoToMillis(stats.percentile(0.99)));
+            percentiles.put(entry.getKey(), valueMap);
+        }
+        results.put("durations", percentiles);
+        return results;
+    }
 }
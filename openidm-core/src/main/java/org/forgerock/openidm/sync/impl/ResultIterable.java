@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.forgerock.json.JsonValue;
@@ -78,6 +79,46 @@ public class ResultIterable implements Iterable<ResultEntry> {
         return new ResultIterable(Collections.synchronizedSet(newIds), newObjList);
     }
 
+    /**
+     * Get an iterator over the entries with the supplied ids, in the order of this result.
+     * Unlike {@link #removeNotMatchingEntries(Collection)} the entries are filtered as they are iterated
+     * rather than copied, and the supplied ids are left unchanged.
+     * @param ids of entries to iterate over
+     * @return the iterator over the matching entries
+     */
+    public Iterator<ResultEntry> iterator(final Collection<String> ids) {
+        final Iterator<ResultEntry> entryIter = iterator();
+        return new Iterator<ResultEntry>() {
+            private ResultEntry next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && entryIter.hasNext()) {
+                    ResultEntry entry = entryIter.next();
+                    if (ids.contains(entry.getId())) {
+                        next = entry;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public ResultEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ResultEntry entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Get an iterator over the ids and optional values
      * @see java.lang.Iterable#iterator()
@@ -289,7 +289,10 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
                 }
 
                 try {
-                    reconService.reconcile(ReconciliationService.ReconAction.recon, mapping, Boolean.TRUE, params, null);
+                    reconService.reconcile(ReconciliationService.ReconAction.reconIncremental.toString().equals(action)
+                                    ? ReconciliationService.ReconAction.reconIncremental
+                                    : ReconciliationService.ReconAction.recon,
+                            mapping, Boolean.TRUE, params, null);
                 } finally {
                     ObjectSetContext.pop();
                 }
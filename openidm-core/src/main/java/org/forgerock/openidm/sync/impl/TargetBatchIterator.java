@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.util.query.QueryFilter.equalTo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the target entries of a reconciliation, reading the target objects not pre-queried in batches,
+ * with one query per batch rather than one read per object. The iteration order is kept.
+ * <p>
+ * Objects a batch query does not return, and all objects of a batch whose query fails, are read on demand one at
+ * a time as before. The batches are read as the entries are fed to the reconciliation tasks, so reading a batch
+ * overlaps with processing the previous one.
+ * <p>
+ * Enabled for the target phase by the mapping, with the number of objects read per query:
+ * <pre>
+ *     "targetReadBatchSize" : 100
+ * </pre>
+ */
+class TargetBatchIterator implements Iterator<ResultEntry> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TargetBatchIterator.class);
+
+    static final String CONFIG_TARGET_READ_BATCH_SIZE = "targetReadBatchSize";
+
+    private final Iterator<ResultEntry> entryIter;
+    private final ObjectMapping mapping;
+    private final Context context;
+    private final int batchSize;
+    private final Deque<ResultEntry> batch;
+
+    /**
+     * Constructs the iterator.
+     *
+     * @param entryIter the target entries, with or without pre-queried values
+     * @param mapping the mapping reconciled
+     * @param context the context to read the target objects with
+     * @param batchSize the maximum number of target objects to read per query
+     */
+    TargetBatchIterator(Iterator<ResultEntry> entryIter, ObjectMapping mapping, Context context, int batchSize) {
+        this.entryIter = entryIter;
+        this.mapping = mapping;
+        this.context = context;
+        this.batchSize = batchSize;
+        this.batch = new ArrayDeque<>(batchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !batch.isEmpty() || entryIter.hasNext();
+    }
+
+    @Override
+    public ResultEntry next() {
+        if (batch.isEmpty()) {
+            readBatch();
+        }
+        if (batch.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return batch.poll();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void readBatch() {
+        final List<ResultEntry> entries = new ArrayList<>(batchSize);
+        final List<QueryFilter<JsonPointer>> filters = new ArrayList<>(batchSize);
+        while (entries.size() < batchSize && entryIter.hasNext()) {
+            ResultEntry entry = entryIter.next();
+            entries.add(entry);
+            if (entry.getValue() == null) {
+                filters.add(equalTo(new JsonPointer(ResourceResponse.FIELD_CONTENT_ID), entry.getId()));
+            }
+        }
+        final Map<String, JsonValue> values = new HashMap<>(filters.size() * 2);
+        if (!filters.isEmpty()) {
+            try {
+                mapping.getConnectionFactory().getConnection().query(context,
+                        Requests.newQueryRequest(mapping.getTargetObjectSet())
+                                .setQueryFilter(QueryFilter.or(filters)),
+                        new QueryResourceHandler() {
+                            @Override
+                            public boolean handleResource(ResourceResponse resource) {
+                                if (resource.getId() != null) {
+                                    values.put(mapping.getLinkType().normalizeTargetId(resource.getId()),
+                                            resource.getContent());
+                                }
+                                return true;
+                            }
+                        });
+            } catch (ResourceException e) {
+                logger.debug("Failed to read a batch of {} objects from {}, reading them one at a time",
+                        filters.size(), mapping.getTargetObjectSet(), e);
+            }
+        }
+        for (ResultEntry entry : entries) {
+            JsonValue value = entry.getValue() == null
+                    ? values.get(mapping.getLinkType().normalizeTargetId(entry.getId()))
+                    : null;
+            batch.add(value != null ? new ResultEntry(entry.getId(), value) : entry);
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package org.forgerock.openidm.managed;
 
 import static org.forgerock.json.JsonValue.*;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.*;
 
 import javax.script.ScriptException;
@@ -24,8 +26,10 @@ import java.util.List;
 import java.util.Set;
 
 import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.script.ScriptEntry;
 import org.forgerock.script.ScriptRegistry;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
@@ -137,4 +141,45 @@ public class ManagedObjectSchemaTest {
         assertFalse(schema.hasArrayIndexedField(new JsonPointer("field5/0/field2")));
     }
 
+    @Test
+    public void testFieldPlans() throws Exception {
+        ScriptRegistry scriptRegistry = mock(ScriptRegistry.class);
+        when(scriptRegistry.takeScript(any(JsonValue.class))).thenReturn(mock(ScriptEntry.class));
+        JsonValue properties = json(object(
+                field("validated", object(
+                        field("type", "string"),
+                        field("onValidate", object(field("type", "text/javascript"), field("source", "true"))))),
+                field("stored", object(
+                        field("type", "string"),
+                        field("onStore", object(field("type", "text/javascript"), field("source", "property"))))),
+                field("hashed", object(
+                        field("type", "string"),
+                        field("secureHash", object(field("algorithm", "SHA-256"))))),
+                field("calculated", object(
+                        field("type", "string"),
+                        field("isVirtual", true),
+                        field("onRetrieve", object(field("type", "text/javascript"), field("source", "1"))))),
+                field("secret", object(
+                        field("type", "string"),
+                        field("scope", "private")))));
+        // a typical user schema has many properties without any behavior
+        for (int i = 0; i < 55; i++) {
+            properties.put("plain" + i, object(field("type", "string")));
+        }
+
+        ManagedObjectSchema planned = new ManagedObjectSchema(json(object(field("properties", properties.getObject()))),
+                scriptRegistry, mock(CryptoService.class));
+
+        assertEquals(planned.getFields().size(), 60);
+        assertEquals(planned.getOnValidateFields().size(), 1);
+        assertEquals(planned.getOnValidateFields().get(0).getName(), "validated");
+        assertEquals(planned.getOnStoreFields().size(), 2);
+        assertEquals(planned.getOnStoreFields().get(0).getName(), "stored");
+        assertEquals(planned.getOnStoreFields().get(1).getName(), "hashed");
+        assertEquals(planned.getOnRetrieveFields().size(), 1);
+        assertEquals(planned.getVirtualFields().keySet().iterator().next(), new JsonPointer("calculated"));
+        assertEquals(planned.getPrivateFields().size(), 1);
+        assertEquals(planned.getPrivateFields().get(0).getName(), "secret");
+        assertTrue(planned.getEncryptedFields().isEmpty());
+    }
 }
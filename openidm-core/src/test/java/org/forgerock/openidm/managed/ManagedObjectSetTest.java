@@ -18,6 +18,7 @@ package org.forgerock.openidm.managed;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.json.resource.Requests.*;
+import static org.forgerock.json.resource.Responses.newActionResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
 import static org.forgerock.json.resource.ResourceResponse.FIELD_REVISION;
 import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
@@ -48,6 +49,7 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.forgerock.http.routing.RoutingMode;
 import org.forgerock.json.JsonTransformer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
@@ -62,6 +64,9 @@ import org.forgerock.json.resource.ActionRequest;
 import org.forgerock.json.resource.ActionResponse;
 import org.forgerock.json.resource.Connection;
 import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.PatchOperation;
+import org.forgerock.json.resource.PatchRequest;
 import org.forgerock.json.resource.ResourcePath;
 import org.forgerock.openidm.audit.util.NullActivityLogger;
 import org.forgerock.openidm.crypto.CryptoService;
@@ -71,6 +76,8 @@ import org.forgerock.openidm.repo.QueryConstants;
 import org.forgerock.openidm.router.IDMConnectionFactory;
 import org.forgerock.openidm.router.IDMConnectionFactoryWrapper;
 import org.forgerock.openidm.router.RouteService;
+import org.forgerock.script.Script;
+import org.forgerock.script.ScriptEntry;
 import org.forgerock.script.ScriptRegistry;
 import org.forgerock.script.engine.ScriptEngineFactory;
 import org.forgerock.script.javascript.RhinoScriptEngineFactory;
@@ -79,6 +86,8 @@ import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.ResultHandler;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import org.testng.annotations.BeforeClass;
@@ -397,6 +406,138 @@ public class ManagedObjectSetTest {
         assertThat(updatedUser.isEqualTo(createdUser)).isFalse();
     }
 
+    @Test
+    public void testUpdateRespondsWithPersistedObject() throws Exception {
+        // given
+        final CryptoService cryptoService = createCryptoService();
+        final ConnectionObjects connectionObjects = createConnectionObjects();
+        final ManagedObjectSet managedObjectSet =
+                createManagedObjectSet(CONF_MANAGED_USER_USING_ALIAS, cryptoService,
+                        connectionObjects.getConnectionFactory());
+        addRoutesToRouter(connectionObjects.getRouter(), managedObjectSet, new MemoryBackend());
+
+        // create user
+        JsonValue userContent = createUserObject(RESOURCE_ID, "password1", "user@forgerock.com");
+        createUser(RESOURCE_ID, userContent, managedObjectSet);
+
+        // when update user
+        userContent = createUserObject(RESOURCE_ID, "password1", "user2@forgerock.com");
+        final UpdateRequest updateRequest = newUpdateRequest(MANAGED_USER_RESOURCE_PATH, RESOURCE_ID, userContent);
+        final ResourceResponse updatedUser = managedObjectSet.updateInstance(new RootContext(), RESOURCE_ID,
+                updateRequest).getOrThrow();
+
+        // then
+        final ResourceResponse persistedUser = connectionObjects.getConnectionFactory().getConnection()
+                .read(new RootContext(), newReadRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID));
+        assertThat(updatedUser.getRevision()).isEqualTo(persistedUser.getRevision());
+        assertThat(updatedUser.getContent().get(FIELD_EMAIL).asString()).isEqualTo("user2@forgerock.com");
+        assertThat(updatedUser.getContent().isEqualTo(persistedUser.getContent())).isTrue();
+    }
+
+    @Test
+    public void testUpdateRespondsWithObjectModifiedByPostUpdate() throws Exception {
+        // given a postUpdate script modifying the persisted object
+        final CryptoService cryptoService = createCryptoService();
+        final ConnectionObjects connectionObjects = createConnectionObjects();
+        final Script postUpdate = mock(Script.class);
+        when(postUpdate.eval()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Connection connection = connectionObjects.getConnectionFactory().getConnection();
+                final JsonValue persisted = connection.read(new RootContext(),
+                        newReadRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID)).getContent();
+                persisted.put(FIELD_EMAIL, "postUpdate@forgerock.com");
+                connection.update(new RootContext(),
+                        newUpdateRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID, persisted));
+                return null;
+            }
+        });
+        final ScriptEntry scriptEntry = mock(ScriptEntry.class);
+        when(scriptEntry.isActive()).thenReturn(true);
+        when(scriptEntry.getScript(any(Context.class))).thenReturn(postUpdate);
+        final ScriptRegistry scriptRegistry = mock(ScriptRegistry.class);
+        when(scriptRegistry.takeScript(any(JsonValue.class))).thenReturn(scriptEntry);
+        final JsonValue config = getResource(CONF_MANAGED_USER_USING_ALIAS);
+        config.put("postUpdate", object(field("type", "text/javascript"), field("source", "")));
+        final AtomicReference<RouteService> routeService = new AtomicReference<>(mock(RouteService.class));
+        final ManagedObjectSet managedObjectSet = new ManagedObjectSet(scriptRegistry, cryptoService, routeService,
+                connectionObjects.getConnectionFactory(), config, new NullActivityLogger());
+        addRoutesToRouter(connectionObjects.getRouter(), managedObjectSet, new MemoryBackend());
+
+        // create user
+        JsonValue userContent = createUserObject(RESOURCE_ID, "password1", "user@forgerock.com");
+        createUser(RESOURCE_ID, userContent, managedObjectSet);
+
+        // when update user
+        userContent = createUserObject(RESOURCE_ID, "password1", "user2@forgerock.com");
+        final UpdateRequest updateRequest = newUpdateRequest(MANAGED_USER_RESOURCE_PATH, RESOURCE_ID, userContent);
+        final ResourceResponse updatedUser = managedObjectSet.updateInstance(new RootContext(), RESOURCE_ID,
+                updateRequest).getOrThrow();
+
+        // then the response includes the change made by the script
+        final ResourceResponse persistedUser = connectionObjects.getConnectionFactory().getConnection()
+                .read(new RootContext(), newReadRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID));
+        assertThat(updatedUser.getRevision()).isEqualTo(persistedUser.getRevision());
+        assertThat(updatedUser.getContent().get(FIELD_EMAIL).asString()).isEqualTo("postUpdate@forgerock.com");
+    }
+
+    @Test
+    public void testPatchLeavesUnpatchedPasswordIntact() throws Exception {
+        // given
+        final CryptoService cryptoService = createCryptoService();
+        final ConnectionObjects connectionObjects = createConnectionObjects();
+        final ManagedObjectSet managedObjectSet =
+                createManagedObjectSet(CONF_MANAGED_USER_USING_ALIAS, cryptoService,
+                        connectionObjects.getConnectionFactory());
+        addRoutesToRouter(connectionObjects.getRouter(), managedObjectSet, new MemoryBackend());
+        addPassingPolicyRoute(connectionObjects.getRouter());
+
+        // create user
+        final JsonValue userContent = createUserObject(RESOURCE_ID, "password1", "user@forgerock.com");
+        createUser(RESOURCE_ID, userContent, managedObjectSet);
+
+        // when patch the email only
+        final PatchRequest patchRequest = newPatchRequest(MANAGED_USER_RESOURCE_PATH, RESOURCE_ID,
+                PatchOperation.replace(FIELD_EMAIL, "user2@forgerock.com"));
+        final JsonValue patchedUser = managedObjectSet.patchInstance(new RootContext(), RESOURCE_ID, patchRequest)
+                .getOrThrow().getContent();
+
+        // then
+        final JsonValue persistedUser = connectionObjects.getConnectionFactory().getConnection()
+                .read(new RootContext(), newReadRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID)).getContent();
+        assertThat(persistedUser.get(FIELD_EMAIL).asString()).isEqualTo("user2@forgerock.com");
+        assertThat(cryptoService.isEncrypted(persistedUser.get(FIELD_PASSWORD))).isTrue();
+        assertThat(cryptoService.decrypt(persistedUser.get(FIELD_PASSWORD)).asString()).isEqualTo("password1");
+        assertThat(patchedUser.get(FIELD_EMAIL).asString()).isEqualTo("user2@forgerock.com");
+    }
+
+    @Test
+    public void testPatchOfPasswordIsEncrypted() throws Exception {
+        // given
+        final CryptoService cryptoService = createCryptoService();
+        final ConnectionObjects connectionObjects = createConnectionObjects();
+        final ManagedObjectSet managedObjectSet =
+                createManagedObjectSet(CONF_MANAGED_USER_USING_ALIAS, cryptoService,
+                        connectionObjects.getConnectionFactory());
+        addRoutesToRouter(connectionObjects.getRouter(), managedObjectSet, new MemoryBackend());
+        addPassingPolicyRoute(connectionObjects.getRouter());
+
+        // create user
+        final JsonValue userContent = createUserObject(RESOURCE_ID, "password1", "user@forgerock.com");
+        createUser(RESOURCE_ID, userContent, managedObjectSet);
+
+        // when patch the password
+        final PatchRequest patchRequest = newPatchRequest(MANAGED_USER_RESOURCE_PATH, RESOURCE_ID,
+                PatchOperation.replace(FIELD_PASSWORD, "password2"));
+        managedObjectSet.patchInstance(new RootContext(), RESOURCE_ID, patchRequest).getOrThrow();
+
+        // then
+        final JsonValue persistedUser = connectionObjects.getConnectionFactory().getConnection()
+                .read(new RootContext(), newReadRequest(REPO_MANAGED_USER_RESOURCE_PATH, RESOURCE_ID)).getContent();
+        assertThat(cryptoService.isEncrypted(persistedUser.get(FIELD_PASSWORD))).isTrue();
+        assertThat(cryptoService.decrypt(persistedUser.get(FIELD_PASSWORD)).asString()).isEqualTo("password2");
+    }
+
     /**
      * Create a number of users with generated random content.
      *
@@ -475,6 +616,13 @@ public class ManagedObjectSetTest {
         router.addRoute(uriTemplate(MANAGED_USER_RESOURCE_PATH), managedObjectSet);
     }
 
+    private void addPassingPolicyRoute(final Router router) {
+        final RequestHandler policyService = mock(RequestHandler.class);
+        when(policyService.handleAction(any(Context.class), any(ActionRequest.class)))
+                .thenReturn(newActionResponse(json(object(field("result", true)))).asPromise());
+        router.addRoute(RoutingMode.STARTS_WITH, uriTemplate("policy"), policyService);
+    }
+
     private ManagedObjectSet createManagedObjectSet(final String configJson, final CryptoService cryptoService,
             final IDMConnectionFactory connectionFactory) throws Exception {
         // given
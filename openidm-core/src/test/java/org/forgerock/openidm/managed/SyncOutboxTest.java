@@ -0,0 +1,310 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newQueryRequest;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.router.IDMConnectionFactory;
+import org.forgerock.openidm.router.IDMConnectionFactoryWrapper;
+import org.forgerock.openidm.router.RouteService;
+import org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.query.QueryFilter;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link SyncOutbox}
+ */
+public class SyncOutboxTest {
+
+    private static final JsonValue SUCCESS = json(object(field("success", true)));
+
+    private final Context context = new RootContext();
+    private IDMConnectionFactory connectionFactory;
+    private AtomicReference<RouteService> syncRoute;
+    private ManagedObjectSet objectSet;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(SyncOutbox.OUTBOX_PATH), new MemoryBackend());
+        connectionFactory = new IDMConnectionFactoryWrapper(newInternalConnectionFactory(router));
+        syncRoute = new AtomicReference<>(mock(RouteService.class));
+        objectSet = mock(ManagedObjectSet.class);
+        when(objectSet.getPath()).thenReturn(new ResourcePath("managed", "user"));
+        when(objectSet.syncQueued(any(Context.class), anyString(), any(SyncServiceAction.class),
+                any(JsonValue.class), any(JsonValue.class))).thenReturn(SUCCESS);
+    }
+
+    private SyncOutbox newOutbox(String nodeId, JsonValue config) {
+        final SyncOutbox outbox = new SyncOutbox(connectionFactory, syncRoute, config, nodeId);
+        outbox.register(objectSet);
+        return outbox;
+    }
+
+    /**
+     * A connection factory whose connections call the hook once, right after the first query.
+     */
+    private IDMConnectionFactory callAfterFirstQuery(final Callable<?> hook) throws Exception {
+        final Connection connection = connectionFactory.getConnection();
+        final AtomicBoolean called = new AtomicBoolean();
+        final Connection hooked = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        final Object result;
+                        try {
+                            result = method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if ("query".equals(method.getName()) && called.compareAndSet(false, true)) {
+                            hook.call();
+                        }
+                        return result;
+                    }
+                });
+        final IDMConnectionFactory hookedFactory = mock(IDMConnectionFactory.class);
+        when(hookedFactory.getConnection()).thenReturn(hooked);
+        return hookedFactory;
+    }
+
+    private void enqueue(SyncOutbox outbox, String resourceId, String userName) throws Exception {
+        outbox.enqueue(context, objectSet, resourceId, SyncServiceAction.notifyUpdate,
+                json(object(field("userName", "old"))), json(object(field("userName", userName))));
+    }
+
+    private List<ResourceResponse> queryOutbox() throws Exception {
+        final List<ResourceResponse> entries = new ArrayList<>();
+        connectionFactory.getConnection().query(context,
+                newQueryRequest(SyncOutbox.OUTBOX_PATH).setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue()),
+                entries);
+        return entries;
+    }
+
+    @Test
+    public void testClaimsOldestPendingChangePerObject() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", null);
+        enqueue(outbox, "bjensen", "first");
+        enqueue(outbox, "bjensen", "second");
+        enqueue(outbox, "scarter", "first");
+
+        final List<ResourceResponse> claimed = outbox.claimPending(context, 10);
+
+        assertThat(claimed).hasSize(2);
+        assertThat(claimed.get(0).getContent().get(SyncOutbox.FIELD_RESOURCE_ID).asString()).isEqualTo("bjensen");
+        assertThat(claimed.get(0).getContent().get("newValue").get("userName").asString()).isEqualTo("first");
+        assertThat(claimed.get(0).getContent().get(SyncOutbox.FIELD_CLAIMED_BY).asString()).isEqualTo("node1");
+        assertThat(claimed.get(1).getContent().get(SyncOutbox.FIELD_RESOURCE_ID).asString()).isEqualTo("scarter");
+        assertThat(outbox.getStatistics().getEnqueued()).isEqualTo(3);
+    }
+
+    @Test
+    public void testTimesAreStoredAsOrderedTimestamps() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", null);
+        enqueue(outbox, "bjensen", "first");
+
+        final JsonValue entry = queryOutbox().get(0).getContent();
+        assertThat(entry.get(SyncOutbox.FIELD_NEXT_ATTEMPT).asString()).isEqualTo("1970-01-01T00:00:00.000Z");
+        assertThat(entry.get(SyncOutbox.FIELD_CLAIMED_UNTIL).asString()).isEqualTo("1970-01-01T00:00:00.000Z");
+        // the timestamps order as strings as the times do
+        assertThat(SyncOutbox.timestamp(999L).compareTo(SyncOutbox.timestamp(1000L))).isNegative();
+        assertThat(SyncOutbox.timestamp(1466000000000L).compareTo(SyncOutbox.timestamp(1466000000001L)))
+                .isNegative();
+
+        final String claimedUntil = outbox.claimPending(context, 10).get(0).getContent()
+                .get(SyncOutbox.FIELD_CLAIMED_UNTIL).asString();
+        assertThat(claimedUntil.compareTo(SyncOutbox.timestamp(System.currentTimeMillis()))).isPositive();
+    }
+
+    @Test
+    public void testClaimedChangeIsNotClaimedByAnotherNode() throws Exception {
+        final SyncOutbox node1 = newOutbox("node1", null);
+        final SyncOutbox node2 = newOutbox("node2", null);
+        enqueue(node1, "bjensen", "first");
+
+        assertThat(node1.claimPending(context, 10)).hasSize(1);
+        assertThat(node2.claimPending(context, 10)).isEmpty();
+    }
+
+    @Test
+    public void testLaterChangeIsNotClaimedWhenTheOldestIsClaimedMeanwhile() throws Exception {
+        final SyncOutbox node2 = newOutbox("node2", null);
+        enqueue(node2, "bjensen", "first");
+        enqueue(node2, "bjensen", "second");
+        // node2 claims the oldest change while node1 looks for the changes to claim
+        final SyncOutbox node1 = new SyncOutbox(callAfterFirstQuery(new Callable<List<ResourceResponse>>() {
+            @Override
+            public List<ResourceResponse> call() throws Exception {
+                return node2.claimPending(context, 10);
+            }
+        }), syncRoute, null, "node1");
+        node1.register(objectSet);
+
+        assertThat(node1.claimPending(context, 10)).isEmpty();
+
+        for (ResourceResponse entry : queryOutbox()) {
+            final JsonValue content = entry.getContent();
+            assertThat(content.get(SyncOutbox.FIELD_CLAIMED_BY).asString()).isEqualTo(
+                    "first".equals(content.get("newValue").get("userName").asString()) ? "node2" : null);
+        }
+    }
+
+    @Test
+    public void testProcessedChangeIsDeletedAndReleasesTheNextChange() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", null);
+        enqueue(outbox, "bjensen", "first");
+        enqueue(outbox, "bjensen", "second");
+
+        outbox.process(context, outbox.claimPending(context, 10).get(0));
+
+        final List<ResourceResponse> remaining = queryOutbox();
+        assertThat(remaining).hasSize(1);
+        assertThat(remaining.get(0).getContent().get("newValue").get("userName").asString()).isEqualTo("second");
+        assertThat(outbox.getStatistics().getProcessed()).isEqualTo(1);
+
+        final List<ResourceResponse> claimed = outbox.claimPending(context, 10);
+        assertThat(claimed).hasSize(1);
+        assertThat(claimed.get(0).getContent().get("newValue").get("userName").asString()).isEqualTo("second");
+    }
+
+    @Test
+    public void testFailedChangeIsRetriedThenDeadLettered() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", json(object(
+                field(SyncOutbox.CONFIG_MAX_RETRIES, 1),
+                field(SyncOutbox.CONFIG_RETRY_DELAY, 0))));
+        when(objectSet.syncQueued(any(Context.class), eq("bjensen"), any(SyncServiceAction.class),
+                any(JsonValue.class), any(JsonValue.class)))
+                .thenThrow(new InternalServerErrorException("target down"));
+        enqueue(outbox, "bjensen", "first");
+        enqueue(outbox, "bjensen", "second");
+
+        outbox.process(context, outbox.claimPending(context, 10).get(0));
+
+        ResourceResponse entry = outbox.claimPending(context, 10).get(0);
+        assertThat(entry.getContent().get(SyncOutbox.FIELD_ATTEMPTS).asInteger()).isEqualTo(1);
+        assertThat(entry.getContent().get(SyncOutbox.FIELD_LAST_ERROR).asString()).isEqualTo("target down");
+        assertThat(entry.getContent().get("newValue").get("userName").asString()).isEqualTo("first");
+        assertThat(outbox.getStatistics().getRetries()).isEqualTo(1);
+
+        outbox.process(context, entry);
+
+        assertThat(outbox.getStatistics().getDeadLettered()).isEqualTo(1);
+        int dead = 0;
+        for (ResourceResponse response : queryOutbox()) {
+            if (SyncOutbox.STATE_DEAD.equals(response.getContent().get(SyncOutbox.FIELD_STATE).asString())) {
+                dead++;
+                assertThat(response.getContent().get("newValue").get("userName").asString()).isEqualTo("first");
+            }
+        }
+        assertThat(dead).isEqualTo(1);
+
+        // the dead change no longer holds back the later change of the object
+        final List<ResourceResponse> claimed = outbox.claimPending(context, 10);
+        assertThat(claimed).hasSize(1);
+        assertThat(claimed.get(0).getContent().get("newValue").get("userName").asString()).isEqualTo("second");
+    }
+
+    @Test
+    public void testUnsuccessfulSyncResultIsRetried() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", null);
+        when(objectSet.syncQueued(any(Context.class), anyString(), any(SyncServiceAction.class),
+                any(JsonValue.class), any(JsonValue.class)))
+                .thenReturn(json(object(field("success", false), field("syncDetails", "no connector"))));
+        enqueue(outbox, "bjensen", "first");
+
+        outbox.process(context, outbox.claimPending(context, 10).get(0));
+
+        final List<ResourceResponse> remaining = queryOutbox();
+        assertThat(remaining).hasSize(1);
+        assertThat(remaining.get(0).getContent().get(SyncOutbox.FIELD_STATE).asString())
+                .isEqualTo(SyncOutbox.STATE_PENDING);
+        assertThat(remaining.get(0).getContent().get(SyncOutbox.FIELD_CLAIMED_BY).isNull()).isTrue();
+        // waits for its retry
+        assertThat(outbox.claimPending(context, 10)).isEmpty();
+    }
+
+    @Test
+    public void testWaitingChangesDoNotHoldBackOtherObjects() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", json(object(field(SyncOutbox.CONFIG_BATCH_SIZE, 2))));
+        for (String resourceId : new String[] { "bjensen", "scarter" }) {
+            when(objectSet.syncQueued(any(Context.class), eq(resourceId), any(SyncServiceAction.class),
+                    any(JsonValue.class), any(JsonValue.class)))
+                    .thenThrow(new InternalServerErrorException("target down"));
+            enqueue(outbox, resourceId, "first");
+            enqueue(outbox, resourceId, "second");
+            outbox.process(context, outbox.claimPending(context, 1).get(0));
+        }
+        enqueue(outbox, "jdoe", "first");
+
+        // the oldest entries wait for their retry, more than a page of them and their later changes
+        final List<ResourceResponse> claimed = outbox.claimPending(context, 10);
+
+        assertThat(claimed).hasSize(1);
+        assertThat(claimed.get(0).getContent().get(SyncOutbox.FIELD_RESOURCE_ID).asString()).isEqualTo("jdoe");
+    }
+
+    @Test
+    public void testDeadChangesArePurgedAfterRetention() throws Exception {
+        final SyncOutbox outbox = newOutbox("node1", json(object(
+                field(SyncOutbox.CONFIG_MAX_RETRIES, 0),
+                field(SyncOutbox.CONFIG_RETRY_DELAY, 0))));
+        when(objectSet.syncQueued(any(Context.class), eq("bjensen"), any(SyncServiceAction.class),
+                any(JsonValue.class), any(JsonValue.class)))
+                .thenThrow(new InternalServerErrorException("target down"));
+        enqueue(outbox, "bjensen", "first");
+        outbox.process(context, outbox.claimPending(context, 10).get(0));
+        assertThat(outbox.getStatistics().getDeadLettered()).isEqualTo(1);
+
+        outbox.purgeDead(context, 0);
+        assertThat(queryOutbox()).hasSize(1);
+
+        outbox.purgeDead(context, System.currentTimeMillis() + 1);
+        assertThat(queryOutbox()).isEmpty();
+        assertThat(outbox.getStatistics().getPurged()).isEqualTo(1);
+    }
+}
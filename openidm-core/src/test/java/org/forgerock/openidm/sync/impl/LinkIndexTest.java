@@ -0,0 +1,222 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LinkIndexTest {
+
+    private static final Answer<String> IDENTITY = new Answer<String>() {
+        @Override
+        public String answer(InvocationOnMock invocation) throws Throwable {
+            return (String) invocation.getArguments()[0];
+        }
+    };
+
+    private ObjectMapping mapping;
+    private LinkType linkType;
+
+    @BeforeMethod
+    public void setUp() {
+        mapping = mock(ObjectMapping.class);
+        linkType = mock(LinkType.class);
+        when(mapping.getLinkType()).thenReturn(linkType);
+        when(linkType.normalizeSourceId(anyString())).thenAnswer(IDENTITY);
+        when(linkType.normalizeTargetId(anyString())).thenAnswer(IDENTITY);
+        when(linkType.useReverse()).thenReturn(false);
+    }
+
+    @Test
+    public void testLookupBySourceAndTarget() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        index.add(json(object(
+                field("_id", "link1"),
+                field("_rev", "0"),
+                field("firstId", "source1"),
+                field("secondId", "target1"))));
+
+        Link bySource = index.getLinkForSource("source1");
+        assertThat(bySource).isNotNull();
+        assertThat(bySource._id).isEqualTo("link1");
+        assertThat(bySource._rev).isEqualTo("0");
+        assertThat(bySource.targetId).isEqualTo("target1");
+        assertThat(bySource.linkQualifier).isEqualTo("default");
+        assertThat(bySource.initialized).isTrue();
+
+        Link byTarget = index.getLinkForTarget("target1");
+        assertThat(byTarget).isNotNull();
+        assertThat(byTarget.sourceId).isEqualTo("source1");
+
+        assertThat(index.getLinkForSource("target1")).isNull();
+        assertThat(index.getLinkForTarget("unknown")).isNull();
+    }
+
+    @Test
+    public void testReverseLinkType() {
+        when(linkType.useReverse()).thenReturn(true);
+        LinkIndex index = new LinkIndex(mapping, "default");
+        index.add(json(object(
+                field("_id", "link1"),
+                field("firstId", "target1"),
+                field("secondId", "source1"))));
+
+        assertThat(index.getLinkForSource("source1").targetId).isEqualTo("target1");
+        assertThat(index.getLinkForTarget("target1").sourceId).isEqualTo("source1");
+    }
+
+    @Test
+    public void testGrowKeepsAllEntries() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        for (int i = 0; i < 10000; i++) {
+            index.add("link" + i, null, "source" + i, "target" + i);
+        }
+        assertThat(index.size()).isEqualTo(10000);
+        for (int i = 0; i < 10000; i++) {
+            assertThat(index.getLinkForSource("source" + i)._id).isEqualTo("link" + i);
+            assertThat(index.getLinkForTarget("target" + i)._id).isEqualTo("link" + i);
+        }
+    }
+
+    @Test
+    public void testSameSourceReplacesEntry() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        index.add("link1", null, "source1", "target1");
+        index.add("link1", "1", "source1", "target2");
+
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.getLinkForSource("source1").targetId).isEqualTo("target2");
+        assertThat(index.getLinkForTarget("target1")).isNull();
+        assertThat(index.getLinkForTarget("target2")._rev).isEqualTo("1");
+    }
+
+    @Test
+    public void testReplacedEntriesRemoveTheirTargetSlots() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        for (int i = 0; i < 200; i++) {
+            index.add("link" + i, null, "source" + i, "target" + i);
+        }
+        // relink every other source, so that the removed slots are spread over the probe sequences
+        for (int i = 0; i < 200; i += 2) {
+            index.add("link" + i, "1", "source" + i, "other" + i);
+        }
+
+        assertThat(index.size()).isEqualTo(200);
+        for (int i = 0; i < 200; i++) {
+            if (i % 2 == 0) {
+                assertThat(index.getLinkForTarget("target" + i)).isNull();
+                assertThat(index.getLinkForTarget("other" + i).sourceId).isEqualTo("source" + i);
+            } else {
+                assertThat(index.getLinkForTarget("target" + i).sourceId).isEqualTo("source" + i);
+            }
+        }
+    }
+
+    @Test
+    public void testReplacedEntryNoLongerAnswersForSharedTarget() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        index.add("link1", null, "source1", "target1");
+        index.add("link2", null, "source2", "target1");
+        index.add("link2", "1", "source2", "target2");
+
+        assertThat(index.getLinkForTarget("target2")._id).isEqualTo("link2");
+        // link1 still links target1, and answers for it again
+        Link byOldTarget = index.getLinkForTarget("target1");
+        assertThat(byOldTarget._id).isEqualTo("link1");
+        assertThat(byOldTarget.sourceId).isEqualTo("source1");
+        assertThat(byOldTarget.targetId).isEqualTo("target1");
+    }
+
+    @Test
+    public void testChangedLinksAreNoLongerCurrent() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        index.add("link1", null, "source1", "target1");
+        assertThat(index.isCurrentForSource("source1")).isTrue();
+        assertThat(index.isCurrentForTarget("target1")).isTrue();
+
+        index.linkChanged("source1", "target2");
+
+        assertThat(index.isCurrentForSource("source1")).isFalse();
+        assertThat(index.isCurrentForTarget("target1")).isTrue();
+        assertThat(index.isCurrentForTarget("target2")).isFalse();
+    }
+
+    @Test
+    public void testTargetHashIsKept() {
+        LinkIndex index = new LinkIndex(mapping, "default");
+        String targetHash = Link.targetHash(json(object(field("mail", "jdoe@example.com"))));
+        index.add(json(object(
+                field("_id", "link1"),
+                field("firstId", "source1"),
+                field("secondId", "target1"),
+                field("targetHash", targetHash))));
+        index.add("link2", null, "source2", "target2");
+
+        assertThat(index.getLinkForSource("source1").targetHash).isEqualTo(targetHash);
+        assertThat(index.getLinkForTarget("target1").targetHash).isEqualTo(targetHash);
+        assertThat(index.getLinkForSource("source2").targetHash).isNull();
+    }
+
+    @Test
+    public void testLinkPopulatedForTargetKeepsTargetHashOnUpdate() throws Exception {
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(mapping.getConnectionFactory()).thenReturn(connectionFactory);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.update(any(Context.class), any(UpdateRequest.class)))
+                .thenReturn(newResourceResponse("link1", "1", json(object())));
+        LinkIndex index = new LinkIndex(mapping, "default");
+        String targetHash = Link.targetHash(json(object(field("mail", "jdoe@example.com"))));
+        index.add("link1", "0", "source1", "target1", targetHash);
+
+        Link link = new Link(mapping);
+        link.targetHash = "stale";
+        index.getLinkForTarget("target1", link);
+        assertThat(link._id).isEqualTo("link1");
+        assertThat(link.targetHash).isEqualTo(targetHash);
+        assertThat(link.initialized).isTrue();
+
+        link.update(new RootContext());
+
+        ArgumentCaptor<UpdateRequest> request = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(connection).update(any(Context.class), request.capture());
+        assertThat(request.getValue().getContent().get("targetHash").asString()).isEqualTo(targetHash);
+
+        index.getLinkForTarget("unknown", link);
+        assertThat(link._id).isNull();
+        assertThat(link.targetHash).isNull();
+        assertThat(link.initialized).isTrue();
+    }
+}
@@ -15,6 +15,11 @@
  */
 package org.forgerock.openidm.sync.impl;
 
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -170,4 +175,26 @@ public class LinkTest {
         // make sure that _id has been set to null
         assertEquals(link._id, null);
     }
+
+    @Test
+    public void testTargetHashIgnoresPropertyOrder() {
+        String hash = Link.targetHash(json(object(
+                field("givenName", "John"),
+                field("roles", asList("a", "b")),
+                field("uid", 1))));
+
+        assertEquals(hash.length(), 16);
+        assertEquals(Link.targetHash(json(object(
+                field("uid", 1L),
+                field("roles", asList("a", "b")),
+                field("givenName", "John")))), hash);
+        assertThat(Link.targetHash(json(object(
+                field("givenName", "John"),
+                field("roles", asList("b", "a")),
+                field("uid", 1))))).isNotEqualTo(hash);
+        assertThat(Link.targetHash(json(object(
+                field("givenName", "John"),
+                field("roles", asList("a", "b")),
+                field("uid", "1"))))).isNotEqualTo(hash);
+    }
 }
@@ -20,8 +20,14 @@ import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -31,7 +37,11 @@ import javax.script.Bindings;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
+import org.forgerock.json.resource.Connection;
 import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.sync.SynchronizationException;
 import org.forgerock.openidm.sync.impl.ObjectMapping.SyncOperation;
 import org.forgerock.openidm.sync.ReconAction;
@@ -42,6 +52,9 @@ import org.forgerock.script.Script;
 import org.forgerock.script.ScriptEntry;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -134,6 +147,119 @@ public class ObjectMappingTest {
         testSyncOperation.performAction();
     }
     
+    @Test
+    public void testUpdateNotSkippedMapsOntoExistingTarget() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.update(any(Context.class), any(UpdateRequest.class)))
+                .thenReturn(newResourceResponse("updated", "2", json(object())));
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        TestObjectMapping mapping = new TestObjectMapping(connectionFactory, json(
+                object(
+                        field("name", "testMapping"),
+                        field("source", "testSource"),
+                        field("target", "testTarget"),
+                        field("skipUnchangedTargets", true),
+                        field("properties", array(
+                                object(
+                                        field("source", "street"),
+                                        field("target", "/address/street")),
+                                object(
+                                        field("source", "title"),
+                                        field("target", "/title"),
+                                        // depends on the existing target
+                                        field("condition", "/oldTarget/locked eq false"))))
+                )
+        ));
+        mapping.linkType = mock(LinkType.class);
+        when(mapping.linkType.normalizeTargetId(anyString())).then(returnsFirstArg());
+
+        ObjectSetContext.push(new ReconContext(new RootContext("test_id"), mapping.getName()));
+        SyncOperation testSyncOperation = mapping.getSyncOperation();
+        testSyncOperation.situation = Situation.CONFIRMED;
+        testSyncOperation.action = ReconAction.UPDATE;
+        testSyncOperation.sourceObjectAccessor = new LazyObjectAccessor(null, null, "source1",
+                json(object(field("street", "Main Street"), field("title", "Dr"))));
+        testSyncOperation.targetObjectAccessor = new LazyObjectAccessor(null, null, "target1",
+                json(object(
+                        field("_id", "target1"),
+                        field("_rev", "1"),
+                        field("address", object(field("street", "Old Street"), field("city", "Springfield"))),
+                        field("locked", false),
+                        field("title", "Mr"))));
+
+        Link link = new Link(mapping);
+        link._id = "linkId";
+        link._rev = "1";
+        link.setLinkQualifier("default");
+        link.sourceId = "source1";
+        link.targetId = "target1";
+        link.targetHash = "0000000000000000";
+        testSyncOperation.initializeLink(link);
+
+        testSyncOperation.performAction();
+
+        // the target and then the link with the new target hash are updated
+        ArgumentCaptor<UpdateRequest> updates = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(connection, times(2)).update(any(Context.class), updates.capture());
+        JsonValue target = updates.getAllValues().get(0).getContent();
+        assertThat(target.get("address").asMap())
+                .containsEntry("street", "Main Street")
+                .containsEntry("city", "Springfield");
+        assertThat(target.get("title").asString()).isEqualTo("Dr");
+        assertThat(link.targetHash).isNotEqualTo("0000000000000000");
+    }
+
+    @Test
+    public void testLinkIndexMissFallsBackToRepository() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.query(any(Context.class), any(QueryRequest.class), any(QueryResourceHandler.class)))
+                .then(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        // the link was created after the index was populated
+                        ((QueryResourceHandler) invocation.getArguments()[2]).handleResource(
+                                newResourceResponse("link2", "1", json(object(
+                                        field("_id", "link2"),
+                                        field("_rev", "1"),
+                                        field("firstId", "source2"),
+                                        field("secondId", "target2"),
+                                        field("linkQualifier", "default")))));
+                        return null;
+                    }
+                });
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        TestObjectMapping mapping = new TestObjectMapping(connectionFactory, json(object(
+                field("name", "testMapping"),
+                field("source", "testSource"),
+                field("target", "testTarget"))));
+        mapping.linkType = mock(LinkType.class);
+        when(mapping.linkType.getName()).thenReturn("testMapping");
+        when(mapping.linkType.normalizeSourceId(anyString())).then(returnsFirstArg());
+        when(mapping.linkType.normalizeTargetId(anyString())).then(returnsFirstArg());
+
+        ObjectSetContext.push(new ReconContext(new RootContext("test_id"), mapping.getName()));
+        SyncOperation testSyncOperation = mapping.getSyncOperation();
+        testSyncOperation.linkIndex = new LinkIndex(mapping, "default");
+        testSyncOperation.linkIndex.add("link1", "1", "source1", "target1");
+
+        // answered by the index
+        Link link = new Link(mapping);
+        link.setLinkQualifier("default");
+        testSyncOperation.getLinkForTarget(link, "target1");
+        assertThat(link._id).isEqualTo("link1");
+        verify(connection, never()).query(any(Context.class), any(QueryRequest.class),
+                any(QueryResourceHandler.class));
+
+        // not in the index
+        link = new Link(mapping);
+        link.setLinkQualifier("default");
+        testSyncOperation.getLinkForTarget(link, "target2");
+        assertThat(link._id).isEqualTo("link2");
+        assertThat(link.sourceId).isEqualTo("source2");
+    }
+
     private TestObjectMapping createObjectMapping(String syncJson) throws Exception {
         URL config = ObjectMappingTest.class.getResource(syncJson);
         assertThat(config).as("sync configuration is not found").isNotNull();
@@ -0,0 +1,146 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.sync.ReconAction;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReconCheckpoint}.
+ */
+public class ReconCheckpointTest {
+
+    private ConnectionFactory connectionFactory;
+    private ReconciliationContext reconContext;
+
+    @BeforeMethod
+    public void setUp() {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(ReconCheckpoint.CHECKPOINT_PATH), new MemoryBackend());
+        connectionFactory = newInternalConnectionFactory(router);
+        final ReconciliationService service = mock(ReconciliationService.class);
+        when(service.getConnectionFactory()).thenReturn(connectionFactory);
+
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getConfig()).thenReturn(json(object()));
+        reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        when(reconContext.getReconId()).thenReturn("recon1");
+        when(reconContext.getMapping()).thenReturn("ldapAccounts_managedUser");
+        when(reconContext.getReconAction()).thenReturn(ReconciliationService.ReconAction.recon);
+        when(reconContext.getService()).thenReturn(service);
+        final ReconciliationStatistic stats = new ReconciliationStatistic(reconContext);
+        when(reconContext.getStatistics()).thenReturn(stats);
+    }
+
+    private JsonValue readCheckpoint() throws Exception {
+        return connectionFactory.getConnection().read(new RootContext(),
+                Requests.newReadRequest(ReconCheckpoint.CHECKPOINT_PATH, "recon1")).getContent();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertThat(ReconCheckpoint.forRecon(reconContext)).isNull();
+    }
+
+    @Test
+    public void testProgressIsSavedByInterval() throws Exception {
+        final ReconCheckpoint checkpoint = new ReconCheckpoint(reconContext, 60000L, "node1", null);
+        final Set<String> remainingTargetIds = new LinkedHashSet<>(asList("x", "y"));
+        checkpoint.setRemainingTargetIds(remainingTargetIds);
+        checkpoint.save();
+
+        remainingTargetIds.remove("x");
+        checkpoint.progressed(10);
+
+        // not due yet
+        assertThat(readCheckpoint().get(ReconCheckpoint.FIELD_POSITION).asInteger()).isEqualTo(0);
+        assertThat(readCheckpoint().get(ReconCheckpoint.FIELD_REMAINING_TARGET_IDS).asList(String.class))
+                .containsExactly("x", "y");
+
+        checkpoint.save();
+        final JsonValue saved = readCheckpoint();
+        assertThat(saved.get(ReconCheckpoint.FIELD_PHASE).asString()).isEqualTo(ReconCheckpoint.PHASE_SOURCE);
+        assertThat(saved.get(ReconCheckpoint.FIELD_POSITION).asInteger()).isEqualTo(10);
+        assertThat(saved.get(ReconCheckpoint.FIELD_REMAINING_TARGET_IDS).asList(String.class)).containsExactly("y");
+        assertThat(saved.get(ReconCheckpoint.FIELD_RECON_ACTION).asString()).isEqualTo("recon");
+    }
+
+    @Test
+    public void testResumedCheckpointContinuesFromPosition() throws Exception {
+        reconContext.getStatistics().getSourceStat()
+                .processed("a", "1", true, null, false, Situation.CONFIRMED, ReconAction.UPDATE);
+        final ReconCheckpoint first = new ReconCheckpoint(reconContext, 60000L, "node1", null);
+        first.sourcePageStarted("cookie2");
+        first.progressed(5);
+        first.save();
+
+        final ResourceResponse stored = ReconCheckpoint.read(reconContext.getService(), "recon1");
+        final ReconCheckpoint resumed = new ReconCheckpoint(reconContext, 60000L, "node2", stored);
+
+        assertThat(resumed.getPagingCookie()).isEqualTo("cookie2");
+        assertThat(resumed.getPosition()).isEqualTo(5);
+        assertThat(stored.getContent().get(ReconCheckpoint.FIELD_COUNTS).get("sourcePhase").get("processed")
+                .asLong()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testRunResumedElsewhereIsCanceled() throws Exception {
+        final ReconCheckpoint first = new ReconCheckpoint(reconContext, 60000L, "node1", null);
+        first.save();
+        final ReconCheckpoint resumed = new ReconCheckpoint(reconContext, 60000L, "node2",
+                ReconCheckpoint.read(reconContext.getService(), "recon1"));
+        resumed.save();
+
+        first.save();
+
+        verify(reconContext).cancel();
+        assertThat(readCheckpoint().get(ReconCheckpoint.FIELD_NODE).asString()).isEqualTo("node2");
+    }
+
+    @Test(expectedExceptions = NotFoundException.class)
+    public void testCheckpointIsDeletedOnSuccess() throws Exception {
+        final ReconCheckpoint checkpoint = new ReconCheckpoint(reconContext, 60000L, "node1", null);
+        checkpoint.targetPhaseStarted();
+        checkpoint.delete();
+
+        verify(reconContext, never()).cancel();
+        readCheckpoint();
+    }
+}
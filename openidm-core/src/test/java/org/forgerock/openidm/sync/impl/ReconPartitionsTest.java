@@ -0,0 +1,312 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.cluster.ClusterEvent;
+import org.forgerock.openidm.cluster.ClusterEventType;
+import org.forgerock.openidm.sync.SynchronizationException;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.query.QueryFilter;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReconPartitions}.
+ */
+public class ReconPartitionsTest {
+
+    private ConnectionFactory connectionFactory;
+    private ReconciliationService service;
+
+    @BeforeMethod
+    public void setUp() {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(ReconPartitions.UNIT_PATH), new MemoryBackend());
+        connectionFactory = newInternalConnectionFactory(router);
+        service = mock(ReconciliationService.class);
+        when(service.getConnectionFactory()).thenReturn(connectionFactory);
+    }
+
+    private ReconPartitions newPartitions(String nodeId) {
+        return new ReconPartitions(service, nodeId, 10L, 60000L);
+    }
+
+    private void createUnit(String id, String coordinator, String state, String claimedBy) throws Exception {
+        final JsonValue unit = json(object(
+                field(ReconPartitions.FIELD_RECON_ID, "recon1"),
+                field(ReconPartitions.FIELD_MAPPING, "ldapAccounts_managedUser"),
+                field(ReconPartitions.FIELD_BATCH, 0),
+                field(ReconPartitions.FIELD_COORDINATOR, coordinator),
+                field(ReconPartitions.FIELD_STATE, state),
+                field(ReconPartitions.FIELD_ATTEMPTS, 0),
+                field(ReconPartitions.FIELD_SOURCE_IDS, asList("a", "b"))));
+        if (claimedBy != null) {
+            unit.put(ReconPartitions.FIELD_CLAIMED_BY, claimedBy);
+            unit.put(ReconPartitions.FIELD_CLAIMED_UNTIL, Long.MAX_VALUE);
+        }
+        connectionFactory.getConnection().create(new RootContext(),
+                Requests.newCreateRequest(ReconPartitions.UNIT_PATH, id, unit));
+    }
+
+    private List<ResourceResponse> queryUnits() throws Exception {
+        final List<ResourceResponse> units = new ArrayList<>();
+        connectionFactory.getConnection().query(new RootContext(),
+                Requests.newQueryRequest(ReconPartitions.UNIT_PATH)
+                        .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue()), units);
+        return units;
+    }
+
+    @Test
+    public void testSplitByHashCoversAllIds() {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("id" + i);
+        }
+
+        final List<List<String>> split = ReconPartitions.split(ids, 4, false);
+
+        assertThat(split.size()).isLessThanOrEqualTo(4);
+        final Set<String> all = new LinkedHashSet<>();
+        for (List<String> partition : split) {
+            assertThat(partition).isNotEmpty();
+            all.addAll(partition);
+        }
+        assertThat(all).isEqualTo(ids);
+    }
+
+    @Test
+    public void testSplitByRangeIsContiguous() {
+        final List<List<String>> split = ReconPartitions.split(asList("e", "a", "d", "b", "c"), 2, true);
+
+        assertThat(split).hasSize(2);
+        assertThat(split.get(0)).containsExactly("a", "b", "c");
+        assertThat(split.get(1)).containsExactly("d", "e");
+    }
+
+    @Test
+    public void testUnitIsClaimedOnce() throws Exception {
+        createUnit("recon1-0-0", "node1", ReconPartitions.STATE_PENDING, null);
+
+        final ResourceResponse claimed = newPartitions("node2").claimNext(new RootContext(), null, -1);
+
+        assertThat(claimed).isNotNull();
+        assertThat(claimed.getContent().get(ReconPartitions.FIELD_CLAIMED_BY).asString()).isEqualTo("node2");
+        assertThat(newPartitions("node3").claimNext(new RootContext(), null, -1)).isNull();
+    }
+
+    @Test
+    public void testRecoveryReleasesUnitsOfFailedNode() throws Exception {
+        createUnit("recon1-0-0", "node1", ReconPartitions.STATE_CLAIMED, "node2");
+        createUnit("recon1-0-1", "node1", ReconPartitions.STATE_CLAIMED, "node3");
+        createUnit("recon2-0-0", "node2", ReconPartitions.STATE_PENDING, null);
+
+        assertThat(newPartitions("node1").handleEvent(
+                new ClusterEvent(ClusterEventType.RECOVERY_INITIATED, "node2"))).isTrue();
+
+        final List<ResourceResponse> units = queryUnits();
+        assertThat(units).hasSize(2);
+        for (ResourceResponse unit : units) {
+            if (unit.getId().equals("recon1-0-0")) {
+                assertThat(unit.getContent().get(ReconPartitions.FIELD_STATE).asString())
+                        .isEqualTo(ReconPartitions.STATE_PENDING);
+                assertThat(unit.getContent().isDefined(ReconPartitions.FIELD_CLAIMED_BY)).isFalse();
+                assertThat(unit.getContent().get(ReconPartitions.FIELD_ATTEMPTS).asInteger()).isEqualTo(1);
+            } else {
+                assertThat(unit.getContent().get(ReconPartitions.FIELD_CLAIMED_BY).asString()).isEqualTo("node3");
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCoordinatorProcessesOwnUnitsAndCleansUp() throws Exception {
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getConfig()).thenReturn(json(object(
+                field(ReconPartitions.CONFIG_PARTITIONS, 3),
+                field(ReconPartitions.CONFIG_PARTITION_BY, ReconPartitions.PARTITION_BY_RANGE))));
+        final ReconciliationContext reconContext = newReconContext(mapping);
+        final Collection<String> remainingTargetIds = new LinkedHashSet<>(asList("x", "y"));
+
+        newPartitions("node1").reconcile(reconContext, asList("a", "b", "c", "d", "e", "f"), remainingTargetIds);
+
+        verify(mapping, times(3)).reconPartition(any(ReconciliationContext.class), anyCollectionOf(String.class),
+                any(ObjectMapping.MatchedTargets.class));
+        verify(reconContext.getStatistics(), times(3)).merge(anyMapOf(String.class, Object.class));
+        assertThat(queryUnits()).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRetriedUnitIsCountedOnce() throws Exception {
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getConfig()).thenReturn(json(object(field(ReconPartitions.CONFIG_PARTITIONS, 2))));
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final ReconciliationContext partitionContext = (ReconciliationContext) invocation.getArguments()[0];
+                for (String sourceId : (Collection<String>) invocation.getArguments()[1]) {
+                    partitionContext.getStatistics().processed(sourceId, null, false, null, false, null, null);
+                    ((ObjectMapping.MatchedTargets) invocation.getArguments()[2]).matched("x");
+                    if (calls.getAndIncrement() == 0) {
+                        throw new SynchronizationException("failed part way");
+                    }
+                }
+                return null;
+            }
+        }).when(mapping).reconPartition(any(ReconciliationContext.class), anyCollectionOf(String.class),
+                any(ObjectMapping.MatchedTargets.class));
+        final ReconciliationContext reconContext = newReconContext(mapping);
+        final Collection<String> remainingTargetIds = new LinkedHashSet<>(asList("x", "y"));
+
+        newPartitions("node1").reconcile(reconContext, asList("a", "b", "c", "d"), remainingTargetIds);
+
+        final ArgumentCaptor<Map> counts = ArgumentCaptor.forClass(Map.class);
+        verify(reconContext.getStatistics(), times(2)).merge(counts.capture());
+        int sourceProcessed = 0;
+        for (Map<String, Object> unitCounts : counts.getAllValues()) {
+            sourceProcessed += ((Number) unitCounts.get("sourceProcessed")).intValue();
+        }
+        // the source object processed by the failed attempt is not counted twice
+        assertThat(sourceProcessed).isEqualTo(4);
+        assertThat(remainingTargetIds).containsExactly("y");
+    }
+
+    @Test
+    public void testClaimIsRenewedWhileProcessing() throws Exception {
+        createUnit("recon1-0-0", "node1", ReconPartitions.STATE_PENDING, null);
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getName()).thenReturn("ldapAccounts_managedUser");
+        when(mapping.getConfig()).thenReturn(json(object()));
+        final AtomicLong renewedUntil = new AtomicLong();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(500);
+                renewedUntil.set(queryUnits().get(0).getContent().get(ReconPartitions.FIELD_CLAIMED_UNTIL).asLong());
+                return null;
+            }
+        }).when(mapping).reconPartition(any(ReconciliationContext.class), anyCollectionOf(String.class),
+                any(ObjectMapping.MatchedTargets.class));
+        final Mappings mappings = mock(Mappings.class);
+        when(mappings.getMapping("ldapAccounts_managedUser")).thenReturn(mapping);
+        when(service.getMappings()).thenReturn(mappings);
+        final ReconPartitions partitions = new ReconPartitions(service, "node2", 10L, 300L);
+
+        final ResourceResponse claimed = partitions.claimNext(new RootContext(), null, -1);
+        final long claimedUntil = claimed.getContent().get(ReconPartitions.FIELD_CLAIMED_UNTIL).asLong();
+        try {
+            partitions.process(new RootContext(), claimed, null);
+        } finally {
+            partitions.stop();
+        }
+
+        assertThat(renewedUntil.get()).isGreaterThan(claimedUntil);
+        final JsonValue unit = queryUnits().get(0).getContent();
+        assertThat(unit.get(ReconPartitions.FIELD_STATE).asString()).isEqualTo(ReconPartitions.STATE_DONE);
+        assertThat(unit.get(ReconPartitions.FIELD_ATTEMPTS).asInteger()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRemoteUnitRunsWithReconParamsAndOverridingConfig() throws Exception {
+        createUnit("recon1-0-0", "node1", ReconPartitions.STATE_PENDING, null);
+        final ResourceResponse unit = queryUnits().get(0);
+        unit.getContent().put(ReconPartitions.FIELD_RECON_PARAMS, object(field("waitForCompletion", true)));
+        unit.getContent().put(ReconPartitions.FIELD_OVERRIDING_CONFIG, object(field("taskThreads", 4)));
+        connectionFactory.getConnection().update(new RootContext(),
+                Requests.newUpdateRequest(ReconPartitions.UNIT_PATH, unit.getId(), unit.getContent()));
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getName()).thenReturn("ldapAccounts_managedUser");
+        when(mapping.getConfig()).thenReturn(json(object()));
+        final Mappings mappings = mock(Mappings.class);
+        when(mappings.getMapping("ldapAccounts_managedUser")).thenReturn(mapping);
+        when(service.getMappings()).thenReturn(mappings);
+        final ReconPartitions partitions = newPartitions("node2");
+
+        try {
+            partitions.process(new RootContext(), partitions.claimNext(new RootContext(), null, -1), null);
+        } finally {
+            partitions.stop();
+        }
+
+        final ArgumentCaptor<ReconciliationContext> partitionContext =
+                ArgumentCaptor.forClass(ReconciliationContext.class);
+        verify(mapping).reconPartition(partitionContext.capture(), anyCollectionOf(String.class),
+                any(ObjectMapping.MatchedTargets.class));
+        assertThat(partitionContext.getValue().getReconParams().get("waitForCompletion").asBoolean()).isTrue();
+        assertThat(partitionContext.getValue().getOverridingConfig().get("taskThreads").asInteger()).isEqualTo(4);
+    }
+
+    @Test
+    public void testReleasedClaimCountsAsAttempt() throws Exception {
+        createUnit("recon1-0-0", "node1", ReconPartitions.STATE_CLAIMED, "node2");
+        final ResourceResponse unit = queryUnits().get(0);
+        unit.getContent().put(ReconPartitions.FIELD_ATTEMPTS, ReconPartitions.MAX_ATTEMPTS - 1);
+        connectionFactory.getConnection().update(new RootContext(),
+                Requests.newUpdateRequest(ReconPartitions.UNIT_PATH, unit.getId(), unit.getContent()));
+
+        newPartitions("node1").handleEvent(new ClusterEvent(ClusterEventType.RECOVERY_INITIATED, "node2"));
+
+        final JsonValue released = queryUnits().get(0).getContent();
+        assertThat(released.get(ReconPartitions.FIELD_STATE).asString()).isEqualTo(ReconPartitions.STATE_FAILED);
+        assertThat(released.get(ReconPartitions.FIELD_ATTEMPTS).asInteger()).isEqualTo(ReconPartitions.MAX_ATTEMPTS);
+    }
+
+    private ReconciliationContext newReconContext(ObjectMapping mapping) {
+        final ReconciliationContext reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        when(reconContext.getReconId()).thenReturn("recon1");
+        when(reconContext.getMapping()).thenReturn("ldapAccounts_managedUser");
+        final ReconciliationStatistic statistics = mock(ReconciliationStatistic.class);
+        when(reconContext.getStatistics()).thenReturn(statistics);
+        return reconContext;
+    }
+}
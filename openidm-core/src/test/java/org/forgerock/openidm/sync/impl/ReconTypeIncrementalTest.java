@@ -0,0 +1,167 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.QueryRequest.FIELD_QUERY_FILTER;
+import static org.forgerock.json.resource.QueryRequest.FIELD_QUERY_ID;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.audit.util.Status;
+import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReconTypeIncremental}.
+ */
+public class ReconTypeIncrementalTest {
+
+    private ReconciliationService service;
+
+    @BeforeMethod
+    public void setUp() {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(ReconTypeIncremental.WATERMARK_PATH), new MemoryBackend());
+        service = mock(ReconciliationService.class);
+        when(service.getConnectionFactory()).thenReturn(newInternalConnectionFactory(router));
+        when(service.getContext()).thenReturn(new RootContext());
+    }
+
+    private ReconciliationContext newReconContext(JsonValue mappingConfig) {
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getConfig()).thenReturn(mappingConfig);
+        when(mapping.getSourceObjectSet()).thenReturn("system/hr/account");
+        when(mapping.getTargetObjectSet()).thenReturn("managed/user");
+        final ReconciliationContext reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        when(reconContext.getMapping()).thenReturn("hrAccounts_managedUser");
+        when(reconContext.getService()).thenReturn(service);
+        final ReconciliationStatistic stats = new ReconciliationStatistic(reconContext);
+        when(reconContext.getStatistics()).thenReturn(stats);
+        return reconContext;
+    }
+
+    private static JsonValue incrementalConfig(Object... fields) {
+        final JsonValue config = json(object(field(ReconTypeIncremental.CONFIG_INCREMENTAL, object(
+                field(ReconTypeIncremental.CONFIG_SOURCE_TIMESTAMP_PROPERTY, "lastModified")))));
+        for (int i = 0; i < fields.length; i += 2) {
+            config.put((String) fields[i], fields[i + 1]);
+        }
+        return config;
+    }
+
+    private ReconTypeIncremental completedRun(JsonValue config) throws Exception {
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(config));
+        run.readWatermark();
+        run.reconCompleted();
+        return run;
+    }
+
+    @Test
+    public void testFirstRunIsUnrestricted() throws Exception {
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(incrementalConfig()));
+        run.readWatermark();
+
+        assertThat(run.isCompleteObjectSets()).isTrue();
+        final JsonValue sourceQuery = run.getReconParameters().get("sourceQuery");
+        assertThat(run.changedSince(sourceQuery, "lastModified").getObject()).isEqualTo(sourceQuery.getObject());
+    }
+
+    @Test
+    public void testNextRunQueriesChangesSinceCompletedRun() throws Exception {
+        completedRun(incrementalConfig());
+
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(incrementalConfig()));
+        run.readWatermark();
+
+        assertThat(run.isCompleteObjectSets()).isFalse();
+        final JsonValue query = run.changedSince(run.getReconParameters().get("sourceQuery"), "lastModified");
+        assertThat(query.isDefined(FIELD_QUERY_ID)).isFalse();
+        assertThat(query.get(FIELD_QUERY_FILTER).asString())
+                .startsWith("/lastModified gt \"" + run.getReconParameters().get("changedSince").asString());
+        assertThat(query.get("resourceName").asString()).isEqualTo("system/hr/account");
+    }
+
+    @Test
+    public void testConfiguredQueryFilterIsCombined() throws Exception {
+        final JsonValue config = incrementalConfig("sourceQuery",
+                object(field(FIELD_QUERY_FILTER, "/department eq \"sales\"")));
+        completedRun(config);
+
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(config));
+        run.readWatermark();
+
+        final String filter = run.changedSince(run.getReconParameters().get("sourceQuery"), "lastModified")
+                .get(FIELD_QUERY_FILTER).asString();
+        assertThat(filter).contains("/department eq \"sales\"").contains("/lastModified gt");
+    }
+
+    @Test
+    public void testConfiguredQueryIdIsPassedTheWatermark() throws Exception {
+        final JsonValue config = incrementalConfig("sourceQuery", object(field(FIELD_QUERY_ID, "changed-accounts")));
+        completedRun(config);
+
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(config));
+        run.readWatermark();
+
+        final JsonValue query = run.changedSince(run.getReconParameters().get("sourceQuery"), "lastModified");
+        assertThat(query.get(FIELD_QUERY_ID).asString()).isEqualTo("changed-accounts");
+        assertThat(query.get(ReconTypeIncremental.PARAM_CHANGED_SINCE).asString())
+                .isEqualTo(run.getReconParameters().get("changedSince").asString());
+    }
+
+    @Test
+    public void testTargetQueryWithoutTimestampPropertyIsUnrestricted() throws Exception {
+        completedRun(incrementalConfig());
+
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(incrementalConfig()));
+        run.readWatermark();
+
+        final JsonValue query = run.changedSince(run.getReconParameters().get("targetQuery"), null);
+        assertThat(query.get(FIELD_QUERY_ID).asString()).isEqualTo(ServerConstants.QUERY_ALL_IDS);
+    }
+
+    @Test
+    public void testRunWithFailuresKeepsWatermark() throws Exception {
+        final ReconciliationContext failedContext = newReconContext(incrementalConfig());
+        final ReconTypeIncremental failed = new ReconTypeIncremental(failedContext);
+        failed.readWatermark();
+        failedContext.getStatistics().processStatus(Status.FAILURE);
+        failed.reconCompleted();
+
+        final ReconTypeIncremental run = new ReconTypeIncremental(newReconContext(incrementalConfig()));
+        run.readWatermark();
+
+        assertThat(run.isCompleteObjectSets()).isTrue();
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testTimestampPropertyIsRequired() throws Exception {
+        new ReconTypeIncremental(newReconContext(json(object())));
+    }
+}
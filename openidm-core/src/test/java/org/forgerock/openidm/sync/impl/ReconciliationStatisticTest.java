@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.forgerock.openidm.sync.ReconAction;
+import org.forgerock.openidm.sync.impl.ReconciliationStatistic.DurationMetric;
+import org.forgerock.openidm.util.DurationStatistics;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the live metrics of {@link ReconciliationStatistic}.
+ */
+public class ReconciliationStatisticTest {
+
+    private ReconciliationStatistic stats;
+
+    @BeforeMethod
+    public void setUp() {
+        final ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getSourceObjectSet()).thenReturn("system/ldap/account");
+        when(mapping.getTargetObjectSet()).thenReturn("managed/user");
+        final ReconciliationContext reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        when(reconContext.getReconId()).thenReturn("recon1");
+        when(reconContext.getStage()).thenReturn(ReconStage.ACTIVE_RECONCILING_SOURCE);
+        stats = new ReconciliationStatistic(reconContext);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLiveMetricsCountSituationsPerPhase() {
+        stats.reconStart();
+        stats.sourcePhaseStart();
+        stats.getSourceStat().setTotal(10);
+        stats.getSourceStat().processed("a", "1", true, null, false, Situation.CONFIRMED, ReconAction.UPDATE);
+        stats.getSourceStat().processed("b", null, false, null, true, Situation.ABSENT, ReconAction.CREATE);
+        stats.getSourceStat().processed("c", "3", true, null, false, Situation.CONFIRMED, ReconAction.UPDATE);
+
+        final Map<String, Object> metrics = stats.getLiveMetrics();
+
+        assertThat(metrics.get("reconId")).isEqualTo("recon1");
+        final Map<String, Object> sourcePhase = (Map<String, Object>) metrics.get("sourcePhase");
+        assertThat(sourcePhase.get("processed")).isEqualTo(3L);
+        assertThat(sourcePhase.get("total")).isEqualTo(10L);
+        final Map<String, Object> situations = (Map<String, Object>) sourcePhase.get("situations");
+        assertThat(((Map<String, Object>) situations.get(Situation.CONFIRMED.name())).get("count")).isEqualTo(2L);
+        assertThat(((Map<String, Object>) situations.get(Situation.ABSENT.name())).get("count")).isEqualTo(1L);
+        assertThat(situations).doesNotContainKey(Situation.MISSING.name());
+        assertThat(((Map<String, Object>) metrics.get("targetPhase")).get("processed")).isEqualTo(0L);
+
+        assertThat(stats.getSituationSummary().get(Situation.CONFIRMED.name())).isEqualTo(2);
+    }
+
+    @Test
+    public void testMergeAddsCountsOfPartition() {
+        final ReconciliationStatistic partition = new ReconciliationStatistic(mock(ReconciliationContext.class));
+        partition.getSourceStat().processed("a", "1", true, null, false, Situation.CONFIRMED, ReconAction.UPDATE);
+        partition.getSourceStat().processed("b", null, false, null, true, Situation.ABSENT, ReconAction.CREATE);
+        stats.getSourceStat().processed("c", "3", true, null, false, Situation.CONFIRMED, ReconAction.UPDATE);
+
+        stats.merge(partition.getCounts());
+
+        assertThat(stats.getSourceStat().getProcessed()).isEqualTo(3L);
+        assertThat(stats.getSituationSummary().get(Situation.CONFIRMED.name())).isEqualTo(2);
+        assertThat(stats.getSituationSummary().get(Situation.ABSENT.name())).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueueDepth() {
+        stats.taskSubmitted();
+        stats.taskSubmitted();
+        stats.taskSubmitted();
+        stats.taskCompleted();
+
+        assertThat(stats.getQueueDepth()).isEqualTo(2L);
+        assertThat(stats.getLiveMetrics().get("queueDepth")).isEqualTo(2L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLiveMetricsReportDurationPercentiles() {
+        stats.addDuration(DurationMetric.linkQuery, DurationStatistics.startNanoTime());
+
+        final Map<String, Map<String, Long>> durations =
+                (Map<String, Map<String, Long>>) stats.getLiveMetrics().get("durations");
+
+        assertThat(durations.get(DurationMetric.linkQuery.name()))
+                .containsKeys("count", "p50", "p95", "p99");
+        assertThat(durations.get(DurationMetric.linkQuery.name()).get("count")).isEqualTo(1L);
+    }
+}
@@ -126,6 +126,23 @@ public class ResultIterableTest {
         assertThat(getResultIterableValues(riNew)).containsExactlyElementsOf(expectedValues);
     }
 
+    @Test
+    public void testIteratorOverMatchingEntries() throws Exception {
+        ResultIterable riSource = createResultIterable(6, true, 100);
+        Collection<String> ids = new LinkedHashSet<String>(Arrays.asList("Id104", "Id101", "Id200"));
+
+        ArrayList<String> values = new ArrayList<String>();
+        Iterator<ResultEntry> it = riSource.iterator(ids);
+        while (it.hasNext()) {
+            values.add(it.next().getValue().asString());
+        }
+
+        // entries are in the order of the result, and the ids are left unchanged
+        assertThat(values).containsExactly("Value101", "Value104");
+        assertThat(ids).containsExactly("Id104", "Id101", "Id200");
+        assertThat(riSource.getAllIds()).hasSize(6);
+    }
+
     ResultIterable createResultIterable(int numItems, boolean fullObject, int startId) {
         Collection<String> newIds = Collections.synchronizedSet(new LinkedHashSet<String>());
         JsonValue newObjList = null;
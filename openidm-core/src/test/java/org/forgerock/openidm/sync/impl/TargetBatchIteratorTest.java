@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.Router;
+import org.forgerock.services.context.RootContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TargetBatchIterator}.
+ */
+public class TargetBatchIteratorTest {
+
+    private static final Answer<String> IDENTITY = new Answer<String>() {
+        @Override
+        public String answer(InvocationOnMock invocation) throws Throwable {
+            return (String) invocation.getArguments()[0];
+        }
+    };
+
+    private ObjectMapping mapping;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final Router router = new Router();
+        router.addRoute(uriTemplate("managed/user"), new MemoryBackend());
+        final ConnectionFactory connectionFactory = newInternalConnectionFactory(router);
+        for (String id : asList("a", "b", "c")) {
+            connectionFactory.getConnection().create(new RootContext(),
+                    Requests.newCreateRequest("managed/user", id, json(object(field("userName", id)))));
+        }
+
+        final LinkType linkType = mock(LinkType.class);
+        when(linkType.normalizeTargetId(anyString())).thenAnswer(IDENTITY);
+        mapping = mock(ObjectMapping.class);
+        when(mapping.getConnectionFactory()).thenReturn(connectionFactory);
+        when(mapping.getTargetObjectSet()).thenReturn("managed/user");
+        when(mapping.getLinkType()).thenReturn(linkType);
+    }
+
+    @Test
+    public void testMissingValuesAreReadInBatches() {
+        final List<ResultEntry> entries = asList(
+                new ResultEntry("a", null),
+                new ResultEntry("b", json(object(field("userName", "prequeried")))),
+                new ResultEntry("c", null),
+                new ResultEntry("deleted", null));
+
+        final Iterator<ResultEntry> iter = new TargetBatchIterator(entries.iterator(), mapping, new RootContext(), 2);
+        final List<ResultEntry> read = new ArrayList<>();
+        while (iter.hasNext()) {
+            read.add(iter.next());
+        }
+
+        assertThat(read).hasSize(4);
+        assertThat(read.get(0).getId()).isEqualTo("a");
+        assertThat(read.get(0).getValue().get("userName").asString()).isEqualTo("a");
+        assertThat(read.get(1).getValue().get("userName").asString()).isEqualTo("prequeried");
+        assertThat(read.get(2).getValue().get("userName").asString()).isEqualTo("c");
+        // not returned by the query, read on demand
+        assertThat(read.get(3).getId()).isEqualTo("deleted");
+        assertThat(read.get(3).getValue()).isNull();
+    }
+
+    @Test
+    public void testValuesAreMatchedByNormalizedId() throws Exception {
+        mapping.getConnectionFactory().getConnection().create(new RootContext(),
+                Requests.newCreateRequest("managed/user", "Bob", json(object(field("userName", "Bob")))));
+        // a case insensitive target
+        when(mapping.getLinkType().normalizeTargetId(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return ((String) invocation.getArguments()[0]).toLowerCase();
+            }
+        });
+
+        final Iterator<ResultEntry> iter = new TargetBatchIterator(
+                asList(new ResultEntry("Bob", null)).iterator(), mapping, new RootContext(), 2);
+
+        final ResultEntry read = iter.next();
+        assertThat(read.getId()).isEqualTo("Bob");
+        assertThat(read.getValue().get("userName").asString()).isEqualTo("Bob");
+        assertThat(iter.hasNext()).isFalse();
+    }
+}
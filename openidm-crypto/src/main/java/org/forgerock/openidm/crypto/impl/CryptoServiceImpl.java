@@ -30,6 +30,7 @@ import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStore.SecretKeyEntry;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -38,6 +39,7 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
 import org.forgerock.json.JsonException;
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonTransformer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
@@ -45,7 +47,6 @@ import org.forgerock.json.crypto.JsonCrypto;
 import org.forgerock.json.crypto.JsonCryptoException;
 import org.forgerock.json.crypto.JsonCryptoTransformer;
 import org.forgerock.json.crypto.JsonEncryptor;
-import org.forgerock.json.crypto.simple.SimpleDecryptor;
 import org.forgerock.json.crypto.simple.SimpleEncryptor;
 import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
@@ -152,8 +153,7 @@ public class CryptoServiceImpl implements CryptoService, CryptoUpdateService, Sh
                             .build();
                 }
                 keySelector = new UpdatableKeyStoreSelector(keyStore, new String(clearPassword));
-                decryptionTransformers.add(new JsonCryptoTransformer(new SimpleDecryptor(
-                        keySelector)));
+                decryptionTransformers.add(new JsonCryptoTransformer(new PooledSimpleDecryptor(keySelector)));
                 Enumeration<String> aliases = keyStore.aliases();
                 while (aliases.hasMoreElements()) {
                     logger.debug("Available cryptography key: {}", aliases.nextElement());
@@ -210,7 +210,7 @@ public class CryptoServiceImpl implements CryptoService, CryptoUpdateService, Sh
     
     public void updateKeySelector(KeyStore ks, String password) {
         keySelector.update(ks, password);
-        decryptionTransformers.add(new JsonCryptoTransformer(new SimpleDecryptor(keySelector)));
+        decryptionTransformers.add(new JsonCryptoTransformer(new PooledSimpleDecryptor(keySelector)));
     }
 
     public void deactivate(@SuppressWarnings("unused") BundleContext context) {
@@ -250,14 +250,86 @@ public class CryptoServiceImpl implements CryptoService, CryptoUpdateService, Sh
     public JsonValue decrypt(JsonValue value) throws JsonException {
         JsonValue result = null;
         if (value != null) {
-            result = new JsonValue(value);
-            result.getTransformers().addAll(0, getDecryptionTransformers());
-            result.applyTransformers();
-            result = result.copy();
+            result = new JsonValue(decryptCopy(value.getObject()), value.getPointer());
         }
         return result;
     }
 
+    /**
+     * Deep copies the object in a single pass, decrypting the encrypted values found at any level rather than
+     * installing the decryption transformers on every node of the tree and copying it afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    private Object decryptCopy(Object object) throws JsonException {
+        if (object instanceof Map) {
+            final JsonValue node = new JsonValue(object);
+            if (isEncrypted(node)) {
+                node.getTransformers().addAll(getDecryptionTransformers());
+                node.applyTransformers();
+                // the decrypted value may itself be a structure to copy
+                return decryptCopy(node.getObject());
+            }
+            final Map<String, Object> map = (Map<String, Object>) object;
+            final Map<String, Object> copy = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                copy.put(entry.getKey(), decryptCopy(entry.getValue()));
+            }
+            return copy;
+        } else if (object instanceof List) {
+            final List<Object> list = (List<Object>) object;
+            final List<Object> copy = new ArrayList<>(list.size());
+            for (Object element : list) {
+                copy.add(decryptCopy(element));
+            }
+            return copy;
+        }
+        return object;
+    }
+
+    @Override
+    public JsonValue decrypt(JsonValue value, Collection<JsonPointer> pointers) throws JsonException {
+        if (value == null) {
+            return null;
+        }
+        JsonValue result = value;
+        for (JsonPointer pointer : pointers) {
+            final JsonValue encrypted = result.get(pointer);
+            if (encrypted == null || !isEncrypted(encrypted)) {
+                continue;
+            }
+            if (result == value) {
+                result = new JsonValue(shallowCopy(value.getObject()));
+            }
+            copyParents(result, pointer);
+            result.put(pointer, decrypt(encrypted).getObject());
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the containers on the path to the pointer with shallow copies, so that the value at the pointer
+     * can be replaced without modifying the original value.
+     */
+    private static void copyParents(JsonValue root, JsonPointer pointer) {
+        JsonValue parent = root;
+        for (int i = 0; i < pointer.size() - 1; i++) {
+            final JsonValue child = parent.get(pointer.get(i));
+            final Object copy = shallowCopy(child.getObject());
+            parent.put(pointer.get(i), copy);
+            parent = parent.get(pointer.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object shallowCopy(Object object) {
+        if (object instanceof Map) {
+            return new LinkedHashMap<>((Map<String, Object>) object);
+        } else if (object instanceof List) {
+            return new ArrayList<>((List<Object>) object);
+        }
+        return object;
+    }
+
     @Override
     public JsonValue decrypt(String value) throws JsonException {
         JsonValue jsonValue = JsonUtil.parseStringified(value);
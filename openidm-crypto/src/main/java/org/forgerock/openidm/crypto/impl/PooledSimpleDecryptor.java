@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.crypto.impl;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.json.crypto.JsonCryptoException;
+import org.forgerock.json.crypto.JsonDecryptor;
+import org.forgerock.json.crypto.simple.SimpleDecryptor;
+import org.forgerock.json.crypto.simple.SimpleKeySelector;
+import org.forgerock.openidm.util.JsonUtil;
+import org.forgerock.util.encode.Base64;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A {@link JsonDecryptor} for values encrypted by the simple encryptor, which reuses {@link Cipher} instances
+ * per thread, keyed by key alias and cipher transformation, instead of looking up a cipher provider for each
+ * decrypted value.
+ * <p>
+ * Only values encrypted directly with a secret key are decrypted here; anything else, such as values encrypted
+ * with a wrapped session key, is delegated to a {@link SimpleDecryptor}.
+ */
+class PooledSimpleDecryptor implements JsonDecryptor {
+
+    private static final String CIPHER = "cipher";
+    private static final String KEY = "key";
+    private static final String IV = "iv";
+    private static final String DATA = "data";
+
+    /** the fields of a value encrypted directly with a secret key */
+    private static final Set<String> SYMMETRIC_FIELDS = new HashSet<>(Arrays.asList(CIPHER, KEY, IV, DATA));
+
+    private static final ObjectMapper MAPPER = JsonUtil.build();
+
+    private final SimpleKeySelector selector;
+    private final SimpleDecryptor delegate;
+
+    /** the ciphers of the current thread, by key alias and transformation */
+    private final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * Constructs a decryptor selecting keys with the given key selector.
+     *
+     * @param selector the key selector
+     */
+    PooledSimpleDecryptor(SimpleKeySelector selector) {
+        this.selector = selector;
+        this.delegate = new SimpleDecryptor(selector);
+    }
+
+    @Override
+    public String getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public JsonValue decrypt(JsonValue value) throws JsonCryptoException {
+        if (!value.isMap() || !value.get(KEY).isString() || !SYMMETRIC_FIELDS.containsAll(value.keys())) {
+            return delegate.decrypt(value);
+        }
+        try {
+            final String alias = value.get(KEY).asString();
+            final Key key = selector.select(alias);
+            if (key == null) {
+                throw new JsonCryptoException("key not found: " + alias);
+            }
+            final String iv = value.get(IV).asString();
+            final Cipher cipher = getCipher(alias, value.get(CIPHER).required().asString());
+            cipher.init(Cipher.DECRYPT_MODE, key, iv == null ? null : new IvParameterSpec(decode(iv)));
+            final byte[] plaintext = cipher.doFinal(decode(value.get(DATA).required().asString()));
+            return new JsonValue(MAPPER.readValue(plaintext, Object.class));
+        } catch (GeneralSecurityException | IOException | JsonValueException e) {
+            throw new JsonCryptoException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] decode(String base64) throws JsonCryptoException {
+        final byte[] decoded = Base64.decode(base64);
+        if (decoded == null) {
+            throw new JsonCryptoException("Invalid Base64 encoding of encrypted value");
+        }
+        return decoded;
+    }
+
+    private Cipher getCipher(String alias, String transformation) throws GeneralSecurityException {
+        final Map<String, Cipher> threadCiphers = ciphers.get();
+        final String cipherKey = alias + ":" + transformation;
+        Cipher cipher = threadCiphers.get(cipherKey);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            threadCiphers.put(cipherKey, cipher);
+        }
+        return cipher;
+    }
+}
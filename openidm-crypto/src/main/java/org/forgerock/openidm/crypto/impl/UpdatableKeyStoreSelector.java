@@ -26,6 +26,8 @@ package org.forgerock.openidm.crypto.impl;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.forgerock.json.crypto.JsonCryptoException;
 import org.forgerock.json.crypto.simple.SimpleKeySelector;
@@ -42,6 +44,9 @@ public class UpdatableKeyStoreSelector implements SimpleKeySelector {
     /** Password to retrieve keys with. */
     private char[] password;
 
+    /** Keys already retrieved from the key store, by alias; recovering a key from the key store is costly. */
+    private final ConcurrentMap<String, Key> keys = new ConcurrentHashMap<>();
+
     /**
      * Constructs a simple key store selector.
      *
@@ -55,8 +60,17 @@ public class UpdatableKeyStoreSelector implements SimpleKeySelector {
 
     @Override
     public Key select(String key) throws JsonCryptoException {
+        final Key selected = keys.get(key);
+        return selected != null ? selected : load(key);
+    }
+
+    private synchronized Key load(String key) throws JsonCryptoException {
         try {
-            return keyStore.getKey(key, password);
+            final Key loaded = keyStore.getKey(key, password);
+            if (loaded != null) {
+                keys.put(key, loaded);
+            }
+            return loaded;
         } catch (GeneralSecurityException gse) {
             throw new JsonCryptoException(gse);
         }
@@ -68,9 +82,10 @@ public class UpdatableKeyStoreSelector implements SimpleKeySelector {
      * @param keyStore the new KeyStore
      * @param password the new password
      */
-    public void update(KeyStore keyStore, String password) {
+    public synchronized void update(KeyStore keyStore, String password) {
         this.keyStore = keyStore;
         this.password = password.toCharArray();
+        keys.clear();
     }
 
 }
@@ -0,0 +1,118 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.crypto.impl;
+
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.crypto.KeyGenerator;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonTransformer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.crypto.JsonCrypto;
+import org.forgerock.json.crypto.JsonCryptoTransformer;
+import org.forgerock.json.crypto.JsonEncryptor;
+import org.forgerock.json.crypto.simple.SimpleEncryptor;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PooledSimpleDecryptorTest {
+
+    private static final String ALIAS = "openidm-sym-default";
+    private static final String PASSWORD = "changeit";
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+
+    private UpdatableKeyStoreSelector keySelector;
+    private JsonEncryptor encryptor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JCEKS");
+        keyStore.load(null, PASSWORD.toCharArray());
+        keyStore.setEntry(ALIAS, new KeyStore.SecretKeyEntry(KeyGenerator.getInstance("AES").generateKey()),
+                new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+        keySelector = new UpdatableKeyStoreSelector(keyStore, PASSWORD);
+        encryptor = new SimpleEncryptor(CIPHER, keySelector.select(ALIAS), ALIAS);
+    }
+
+    private JsonValue encrypt(Object value) throws Exception {
+        return new JsonCrypto(encryptor.getType(), encryptor.encrypt(json(value))).toJsonValue();
+    }
+
+    @Test
+    public void testDecryptReusesCipher() throws Exception {
+        final PooledSimpleDecryptor decryptor = new PooledSimpleDecryptor(keySelector);
+        for (int i = 0; i < 3; i++) {
+            final JsonCrypto crypto = new JsonCrypto(encrypt("Passw0rd" + i));
+            Assert.assertEquals(decryptor.decrypt(crypto.getValue()).asString(), "Passw0rd" + i);
+        }
+        final JsonCrypto crypto = new JsonCrypto(encrypt(object(field("question", "answer"))));
+        Assert.assertEquals(decryptor.decrypt(crypto.getValue()).get("question").asString(), "answer");
+    }
+
+    @Test
+    public void testDecryptSelectedFieldsOnly() throws Exception {
+        final CryptoServiceImpl cryptoService = new CryptoServiceImpl(keySelector,
+                Collections.<JsonTransformer>singletonList(
+                        new JsonCryptoTransformer(new PooledSimpleDecryptor(keySelector))));
+        final JsonValue user = json(object(
+                field("userName", "bjensen"),
+                field("password", encrypt("Passw0rd").getObject()),
+                field("address", object(field("city", "Bristol")))));
+
+        final JsonValue decrypted = cryptoService.decrypt(user,
+                Arrays.asList(new JsonPointer("password"), new JsonPointer("userName")));
+
+        Assert.assertEquals(decrypted.get("password").asString(), "Passw0rd");
+        Assert.assertEquals(decrypted.get("userName").asString(), "bjensen");
+        // the argument is left unmodified, the unencrypted properties are shared
+        Assert.assertTrue(cryptoService.isEncrypted(user.get("password")));
+        Assert.assertSame(decrypted.get("address").getObject(), user.get("address").getObject());
+        // nothing to decrypt returns the argument
+        Assert.assertSame(cryptoService.decrypt(decrypted, Arrays.asList(new JsonPointer("password"))), decrypted);
+    }
+
+    @Test
+    public void testDecryptNestedValuesLeavesArgumentUnmodified() throws Exception {
+        final CryptoServiceImpl cryptoService = new CryptoServiceImpl(keySelector,
+                Collections.<JsonTransformer>singletonList(
+                        new JsonCryptoTransformer(new PooledSimpleDecryptor(keySelector))));
+        final JsonValue user = json(object(
+                field("userName", "bjensen"),
+                field("password", encrypt("Passw0rd").getObject()),
+                field("kba", array(object(field("answer", encrypt("Bristol").getObject())))),
+                field("address", object(field("city", "Bristol")))));
+        final Object original = user.copy().getObject();
+
+        final JsonValue decrypted = cryptoService.decrypt(user);
+
+        Assert.assertEquals(decrypted.get("password").asString(), "Passw0rd");
+        Assert.assertEquals(decrypted.get("kba").get(0).get("answer").asString(), "Bristol");
+        // the result is a deep copy, modifying it leaves the argument unmodified
+        decrypted.get("address").put("city", "London");
+        decrypted.get("kba").get(0).put("question", "city");
+        Assert.assertEquals(user.getObject(), original);
+        Assert.assertTrue(cryptoService.isEncrypted(user.get("kba").get(0).get("answer")));
+    }
+}
@@ -27,6 +27,9 @@ package org.forgerock.openidm.external.email.impl;
 import com.sun.mail.util.MailSSLSocketFactory;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.router.IDMConnectionFactory;
 
 import java.util.Properties;
 import javax.mail.Message;
@@ -44,12 +47,17 @@ public class EmailClient {
 
     private static final String DEFAULT_HOST = "localhost";
     private static final String DEFAULT_PORT = "25";
+    private static final int DEFAULT_CONNECTION_POOL_SIZE = 4;
     private String username = null;
     private String password = null;
     private String fromAddr = null;
     private boolean smtpAuth = false;
     private Properties props = new Properties();
     private Session session;
+    private final SmtpTransportPool transportPool;
+    private final EmailStatistics statistics = new EmailStatistics();
+    // Only set when email is delivered asynchronously
+    private final EmailDeliveryQueue deliveryQueue;
     
     // Keys in the JSON configuration
     public static final String CONFIG_MAIL_SMTP_HOST = "host";
@@ -62,8 +70,22 @@ public class EmailClient {
     public static final String CONFIG_MAIL_SMTP_STARTTLS_ENABLE = "enable";
     public static final String CONFIG_MAIL_FROM = "from";
     public static final String CONFIG_MAIL_DEBUG = "debug";
+    public static final String CONFIG_MAIL_CONNECTION_POOL_SIZE = "connectionPoolSize";
+    public static final String CONFIG_MAIL_ASYNC = "async";
+    public static final String CONFIG_MAIL_ASYNC_ENABLE = "enable";
 
-    public EmailClient(JsonValue config) throws RuntimeException {
+    /**
+     * Constructs a client sending email as configured.
+     *
+     * @param config the email service configuration
+     * @param connectionFactory the router connection factory, to queue email in the repository when it is delivered
+     * asynchronously
+     * @param cryptoService the crypto service, to encrypt the email queued in the repository
+     * @param nodeId the name of this node, to claim queued email with
+     * @throws RuntimeException if the configuration is invalid
+     */
+    public EmailClient(JsonValue config, IDMConnectionFactory connectionFactory, CryptoService cryptoService,
+            String nodeId) throws RuntimeException {
 
         props.put("mail.smtp.host", config.get(CONFIG_MAIL_SMTP_HOST).defaultTo(DEFAULT_HOST).asString());
         props.put("mail.smtp.port", config.get(CONFIG_MAIL_SMTP_PORT).defaultTo(DEFAULT_PORT).asString());
@@ -94,6 +116,17 @@ public class EmailClient {
 
         fromAddr = config.get(CONFIG_MAIL_FROM).asString();
         session = Session.getInstance(props);
+        transportPool = new SmtpTransportPool(session, smtpAuth, username, password,
+                config.get(CONFIG_MAIL_CONNECTION_POOL_SIZE).defaultTo(DEFAULT_CONNECTION_POOL_SIZE).asInteger());
+
+        JsonValue asyncConfig = config.get(CONFIG_MAIL_ASYNC);
+        if (asyncConfig.get(CONFIG_MAIL_ASYNC_ENABLE).defaultTo(false).asBoolean()) {
+            deliveryQueue = new EmailDeliveryQueue(
+                    connectionFactory, cryptoService, transportPool, session, statistics, asyncConfig, nodeId);
+            statistics.setDeliveryQueue(deliveryQueue);
+        } else {
+            deliveryQueue = null;
+        }
     }
 
     /**
@@ -106,10 +139,67 @@ public class EmailClient {
      * subject: The subject
      * body : the message body
      *
+     * When asynchronous delivery is enabled, the message is queued in the repository once it is validated and sent
+     * later on.
+     *
      * @param params a JsonValue containing the from, to, cc, bcc, subject, and body parameters
-     * @throws BadRequestException
+     * @throws BadRequestException if the message is invalid or could not be sent
+     * @throws ResourceException if the message could not be queued
+     */
+    public void send(JsonValue params) throws ResourceException {
+        MimeMessage message = createMessage(params);
+        if (deliveryQueue != null) {
+            deliveryQueue.enqueue(message);
+        } else {
+            deliver(message);
+        }
+    }
+
+    /**
+     * Returns whether email is queued and delivered asynchronously.
+     *
+     * @return true if asynchronous delivery is enabled
+     */
+    public boolean isAsync() {
+        return deliveryQueue != null;
+    }
+
+    /**
+     * Returns the delivery counters and, for asynchronous delivery, the state of the queue.
+     *
+     * @return the email delivery statistics
+     */
+    public JsonValue getStatistics() {
+        JsonValue result = statistics.toJsonValue();
+        result.put("async", isAsync());
+        if (deliveryQueue != null) {
+            result.put("queued", deliveryQueue.size());
+            result.put("remainingCapacity", deliveryQueue.remainingCapacity());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the delivery statistics, to be registered as an MBean.
+     *
+     * @return the email delivery statistics
+     */
+    EmailStatistics getEmailStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Stops the asynchronous delivery, leaving the queued messages in the repository, and closes the pooled SMTP
+     * connections.
      */
-    public void send(JsonValue params) throws BadRequestException {
+    public void close() {
+        if (deliveryQueue != null) {
+            deliveryQueue.close();
+        }
+        transportPool.close();
+    }
+
+    private MimeMessage createMessage(JsonValue params) throws BadRequestException {
         InternetAddress from = null;
         InternetAddress[] to = null;
         InternetAddress[] cc = null;
@@ -161,7 +251,7 @@ public class EmailClient {
         }
 
         try {
-            Message message = new MimeMessage(session);
+            MimeMessage message = new MimeMessage(session);
             message.setFrom(from);
             message.setRecipients(Message.RecipientType.TO, to);
             if (cc != null) {
@@ -191,18 +281,30 @@ public class EmailClient {
                 throw new BadRequestException("Email type: " + type + " is not handled");
             }
 
-            Transport transport = session.getTransport("smtp");
+            return message;
+        } catch (MessagingException e) {
+            throw new BadRequestException(e);
+        }
+    }
 
-            if (smtpAuth) {
-                transport.connect(username, password);
-            } else {
-                transport.connect();
-            }
+    private void deliver(MimeMessage message) throws BadRequestException {
+        long start = System.currentTimeMillis();
+        Transport transport = null;
+        try {
+            transport = transportPool.acquire();
             message.saveChanges();
             transport.sendMessage(message, message.getAllRecipients());
-            transport.close();
-
+            transportPool.release(transport);
+            statistics.sent(System.currentTimeMillis() - start);
         } catch (MessagingException e) {
+            if (transport != null) {
+                if (SmtpTransportPool.isReusable(transport, e)) {
+                    transportPool.release(transport);
+                } else {
+                    transportPool.invalidate(transport);
+                }
+            }
+            statistics.failed();
             throw new BadRequestException(e);
         }
     }
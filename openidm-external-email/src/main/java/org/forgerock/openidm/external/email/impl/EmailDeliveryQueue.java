@@ -0,0 +1,531 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.forgerock.json.JsonException;
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.crypto.JsonCryptoException;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.ServiceUnavailableException;
+import org.forgerock.json.resource.SortKey;
+import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.router.IDMConnectionFactory;
+import org.forgerock.openidm.util.ContextUtil;
+import org.forgerock.openidm.util.DateUtil;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers email asynchronously from a bounded queue kept in the repository.
+ * <p>
+ * A queued message is stored as an entry under {@link #QUEUE_PATH}, so it survives a restart and is delivered by
+ * any node delivering email asynchronously. As messages carry e.g. password reset links, the message is encrypted
+ * with the {@code cryptoAlias} key; only its recipients are stored in the clear. Every node polls the entries which
+ * are neither waiting for a retry nor claimed, and claims them by updating them with its node name and a claim
+ * timeout under the entry's revision, so an entry is sent by one node at a time; the claim of a node which stops
+ * expires and the entry is sent again.
+ * <p>
+ * Worker threads send up to {@code batchSize} claimed messages at a time over a single pooled SMTP connection.
+ * A message is deleted once it is sent. Messages the server rejects permanently are deleted and counted as failed
+ * at once, keeping the connection. Messages which fail otherwise are retried with exponential backoff, starting at
+ * {@code retryDelay} milliseconds, until {@code maxRetries} is reached, and are then deleted and counted as failed;
+ * the connection is only replaced if the server did not reply or closed it.
+ * <p>
+ * No more than {@code queueSize} messages are queued: the queued entries are counted on every poll, reading the ids
+ * of no more than {@code queueSize + 1} entries, and messages queued and sent through this node are added and taken
+ * off the count in between.
+ * <p>
+ * The times the entries are queried on ({@code queued}, {@code nextAttempt} and {@code claimedUntil}) are stored
+ * as ISO-8601 UTC timestamps of fixed width, which order as strings, as the repositories do not all compare
+ * numbers in query filters.
+ * <pre>
+ *     "async" : {
+ *         "enable" : true,
+ *         "queueSize" : 1000,
+ *         "threads" : 2,
+ *         "batchSize" : 20,
+ *         "maxRetries" : 3,
+ *         "retryDelay" : 1000,
+ *         "pollInterval" : 1000,
+ *         "claimTimeout" : 300000,
+ *         "cryptoAlias" : "openidm-sym-default"
+ *     }
+ * </pre>
+ * Intervals are in milliseconds.
+ */
+class EmailDeliveryQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailDeliveryQueue.class);
+
+    // Keys in the "async" JSON configuration
+    static final String CONFIG_QUEUE_SIZE = "queueSize";
+    static final String CONFIG_THREADS = "threads";
+    static final String CONFIG_BATCH_SIZE = "batchSize";
+    static final String CONFIG_MAX_RETRIES = "maxRetries";
+    static final String CONFIG_RETRY_DELAY = "retryDelay";
+    static final String CONFIG_POLL_INTERVAL = "pollInterval";
+    static final String CONFIG_CLAIM_TIMEOUT = "claimTimeout";
+    static final String CONFIG_CRYPTO_ALIAS = "cryptoAlias";
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_RETRY_DELAY = 1000L;
+    private static final long DEFAULT_POLL_INTERVAL = 1000L;
+    private static final long DEFAULT_CLAIM_TIMEOUT = 300000L;
+    private static final String DEFAULT_CRYPTO_ALIAS = "openidm-sym-default";
+
+    static final String QUEUE_PATH = "repo/email/queue";
+
+    static final String FIELD_MESSAGE = "message";
+    static final String FIELD_RECIPIENTS = "recipients";
+    static final String FIELD_CREATED = "created";
+    static final String FIELD_QUEUED = "queued";
+    static final String FIELD_ATTEMPTS = "attempts";
+    static final String FIELD_NEXT_ATTEMPT = "nextAttempt";
+    static final String FIELD_CLAIMED_BY = "claimedBy";
+    static final String FIELD_CLAIMED_UNTIL = "claimedUntil";
+    static final String FIELD_LAST_ERROR = "lastError";
+
+    private static final DateUtil dateUtil = DateUtil.getDateUtil(ServerConstants.TIME_ZONE_UTC);
+
+    /** The time of an entry which is not waiting for a retry or claimed; the epoch, which is before any time */
+    private static final String NOT_SET = timestamp(0L);
+
+    /** The longest backoff is retryDelay * 2^MAX_BACKOFF_SHIFT */
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    /** how long closing the queue waits for the messages being sent */
+    private static final long CLOSE_TIMEOUT = 5000L;
+
+    private final IDMConnectionFactory connectionFactory;
+    private final CryptoService cryptoService;
+    private final String cryptoAlias;
+    private final SmtpTransportPool transportPool;
+    private final Session session;
+    private final EmailStatistics statistics;
+    private final String nodeId;
+    private final int queueSize;
+    private final int threads;
+    private final int batchSize;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final long claimTimeout;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService poller;
+    /** The number of queued entries, counted on every poll */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** The ids of the entries being sent on this node */
+    private final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Constructs and starts the delivery of queued email.
+     *
+     * @param connectionFactory the router connection factory, to store the queue in the repository
+     * @param cryptoService the crypto service, to encrypt the queued messages
+     * @param transportPool the pool of SMTP transports to send with
+     * @param session the mail session to read the queued messages in
+     * @param statistics the delivery counters to update
+     * @param config the "async" configuration
+     * @param nodeId the name of this node, to claim entries with
+     */
+    EmailDeliveryQueue(IDMConnectionFactory connectionFactory, CryptoService cryptoService,
+            SmtpTransportPool transportPool, Session session, EmailStatistics statistics, JsonValue config,
+            String nodeId) {
+        this.connectionFactory = connectionFactory;
+        this.cryptoService = cryptoService;
+        this.cryptoAlias = config.get(CONFIG_CRYPTO_ALIAS).defaultTo(DEFAULT_CRYPTO_ALIAS).asString();
+        this.transportPool = transportPool;
+        this.session = session;
+        this.statistics = statistics;
+        this.nodeId = nodeId;
+        this.queueSize = config.get(CONFIG_QUEUE_SIZE).defaultTo(DEFAULT_QUEUE_SIZE).asInteger();
+        this.threads = Math.max(1, config.get(CONFIG_THREADS).defaultTo(DEFAULT_THREADS).asInteger());
+        this.batchSize = Math.max(1, config.get(CONFIG_BATCH_SIZE).defaultTo(DEFAULT_BATCH_SIZE).asInteger());
+        this.maxRetries = config.get(CONFIG_MAX_RETRIES).defaultTo(DEFAULT_MAX_RETRIES).asInteger();
+        this.retryDelay = config.get(CONFIG_RETRY_DELAY).defaultTo(DEFAULT_RETRY_DELAY).asLong();
+        this.claimTimeout = Math.max(1, config.get(CONFIG_CLAIM_TIMEOUT).defaultTo(DEFAULT_CLAIM_TIMEOUT).asLong());
+        final long pollInterval =
+                Math.max(1, config.get(CONFIG_POLL_INTERVAL).defaultTo(DEFAULT_POLL_INTERVAL).asLong());
+        this.workers = Executors.newFixedThreadPool(threads, newThreadFactory("email-delivery-"));
+        this.poller = Executors.newSingleThreadScheduledExecutor(newThreadFactory("email-poller-"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    logger.warn("Failed to poll the email delivery queue", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * @param message the message to send
+     * @throws ServiceUnavailableException if the queue is full or closed
+     * @throws ResourceException if the message could not be stored
+     */
+    void enqueue(MimeMessage message) throws ResourceException {
+        if (!running) {
+            throw new ServiceUnavailableException("Email delivery is stopped");
+        }
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            throw new ServiceUnavailableException("Email delivery queue is full");
+        }
+        try {
+            final long now = System.currentTimeMillis();
+            final JsonValue entry = json(object(
+                    field(FIELD_MESSAGE, write(message).getObject()),
+                    field(FIELD_RECIPIENTS, InternetAddress.toString(message.getAllRecipients())),
+                    field(FIELD_CREATED, now),
+                    field(FIELD_QUEUED, timestamp(now)),
+                    field(FIELD_ATTEMPTS, 0),
+                    field(FIELD_NEXT_ATTEMPT, NOT_SET),
+                    field(FIELD_CLAIMED_UNTIL, NOT_SET)));
+            connectionFactory.getConnection().create(ContextUtil.createInternalContext(),
+                    Requests.newCreateRequest(QUEUE_PATH, entry));
+        } catch (ResourceException e) {
+            queued.decrementAndGet();
+            throw e;
+        } catch (MessagingException | IOException | JsonCryptoException | JsonException e) {
+            queued.decrementAndGet();
+            throw new InternalServerErrorException("Failed to queue email", e);
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for delivery.
+     *
+     * @return the queue depth
+     */
+    int size() {
+        // messages queued through other nodes are only counted on the next poll
+        return Math.max(0, queued.get());
+    }
+
+    /**
+     * Returns the number of messages which can still be queued.
+     *
+     * @return the remaining queue capacity
+     */
+    int remainingCapacity() {
+        return Math.max(0, queueSize - size());
+    }
+
+    /**
+     * Stops polling and waits for at most {@link #CLOSE_TIMEOUT} milliseconds for the messages being sent. The
+     * messages still queued stay in the repository; those claimed by this node but not sent are released, and are
+     * sent again once the delivery is started on any node.
+     */
+    void close() {
+        running = false;
+        poller.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts the queued entries and claims those which may be sent now, handing them to the workers in batches.
+     *
+     * @throws ResourceException if the queued entries could not be queried
+     */
+    void poll() throws ResourceException {
+        final Context context = ContextUtil.createInternalContext();
+        queued.set(countQueued(context));
+        final List<ResourceResponse> claimed = claimQueued(context, threads * batchSize - inFlight.size());
+        for (int start = 0; start < claimed.size(); start += batchSize) {
+            final List<ResourceResponse> batch =
+                    claimed.subList(start, Math.min(start + batchSize, claimed.size()));
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(context, batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // stopped meanwhile
+                release(context, claimed.subList(start, claimed.size()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts the queued entries up to one more than the queue size, which is all it takes to tell whether the queue
+     * is full.
+     */
+    private int countQueued(Context context) throws ResourceException {
+        final List<ResourceResponse> entries = new ArrayList<>();
+        connectionFactory.getConnection().query(context,
+                Requests.newQueryRequest(QUEUE_PATH)
+                        .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                        .addField(ResourceResponse.FIELD_CONTENT_ID)
+                        .setPageSize(queueSize + 1),
+                entries);
+        return entries.size();
+    }
+
+    /**
+     * Claims the oldest entries which are neither waiting for a retry nor claimed by a node.
+     *
+     * @param context the context to access the repository in
+     * @param limit the maximum number of entries to claim
+     * @return the claimed entries, which are registered as in flight
+     * @throws ResourceException if the queued entries could not be queried
+     */
+    List<ResourceResponse> claimQueued(Context context, int limit) throws ResourceException {
+        final List<ResourceResponse> claimed = new ArrayList<>();
+        if (limit <= 0) {
+            return claimed;
+        }
+        final long now = System.currentTimeMillis();
+        final String nowTimestamp = timestamp(now);
+        final List<ResourceResponse> ready = new ArrayList<>();
+        connectionFactory.getConnection().query(context,
+                Requests.newQueryRequest(QUEUE_PATH)
+                        .setQueryFilter(QueryFilter.and(
+                                QueryFilter.lessThan(new JsonPointer(FIELD_NEXT_ATTEMPT), nowTimestamp),
+                                QueryFilter.lessThan(new JsonPointer(FIELD_CLAIMED_UNTIL), nowTimestamp)))
+                        .addSortKey(SortKey.ascendingOrder(FIELD_QUEUED))
+                        .setPageSize(limit),
+                ready);
+        for (ResourceResponse entry : ready) {
+            if (inFlight.containsKey(entry.getId())) {
+                continue;
+            }
+            final ResourceResponse claim = claim(context, entry, now);
+            if (claim != null && inFlight.putIfAbsent(claim.getId(), Boolean.TRUE) == null) {
+                claimed.add(claim);
+            }
+        }
+        return claimed;
+    }
+
+    private ResourceResponse claim(Context context, ResourceResponse entry, long now) throws ResourceException {
+        final JsonValue content = entry.getContent().copy();
+        content.put(FIELD_CLAIMED_BY, nodeId);
+        content.put(FIELD_CLAIMED_UNTIL, timestamp(now + claimTimeout));
+        try {
+            final ResourceResponse response = connectionFactory.getConnection().update(context,
+                    Requests.newUpdateRequest(QUEUE_PATH, entry.getId(), content).setRevision(entry.getRevision()));
+            return newResourceResponse(entry.getId(), response.getRevision(), content);
+        } catch (PreconditionFailedException | NotFoundException e) {
+            logger.debug("Queued email {} was claimed by another node", entry.getId());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a batch of claimed messages over one connection, opening a new connection only after a failure.
+     * The messages not sent yet when the queue is closed are released.
+     */
+    private void deliver(Context context, List<ResourceResponse> batch) {
+        Transport transport = null;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (!running) {
+                    release(context, batch.subList(i, batch.size()));
+                    return;
+                }
+                final ResourceResponse entry = batch.get(i);
+                final JsonValue content = entry.getContent();
+                try {
+                    if (transport == null) {
+                        transport = transportPool.acquire();
+                    }
+                    transport.sendMessage(read(content),
+                            InternetAddress.parse(content.get(FIELD_RECIPIENTS).asString()));
+                } catch (MessagingException e) {
+                    if (transport != null && !SmtpTransportPool.isReusable(transport, e)) {
+                        transportPool.invalidate(transport);
+                        transport = null;
+                    }
+                    failed(context, entry, e);
+                    continue;
+                } catch (JsonException e) {
+                    // the message could not be decrypted, e.g. as the key is not available yet
+                    failed(context, entry, e);
+                    continue;
+                }
+                sent(context, entry);
+            }
+        } finally {
+            if (transport != null) {
+                transportPool.release(transport);
+            }
+        }
+    }
+
+    private void sent(Context context, ResourceResponse entry) {
+        try {
+            delete(context, entry);
+            statistics.sent(System.currentTimeMillis()
+                    - entry.getContent().get(FIELD_CREATED).defaultTo(System.currentTimeMillis()).asLong());
+        } finally {
+            inFlight.remove(entry.getId());
+        }
+    }
+
+    private void failed(Context context, ResourceResponse entry, Exception cause) {
+        try {
+            final JsonValue content = entry.getContent().copy();
+            final int attempts = content.get(FIELD_ATTEMPTS).defaultTo(0).asInteger() + 1;
+            if (cause instanceof MessagingException
+                    && SmtpTransportPool.isPermanentFailure((MessagingException) cause)) {
+                delete(context, entry);
+                statistics.failed();
+                logger.error("Email was rejected, not retrying it", cause);
+                return;
+            }
+            if (attempts > maxRetries) {
+                delete(context, entry);
+                statistics.failed();
+                logger.error("Failed to deliver email after {} attempt(s)", attempts, cause);
+                return;
+            }
+            statistics.retried();
+            final long delay = retryDelay << Math.min(attempts - 1, MAX_BACKOFF_SHIFT);
+            logger.debug("Failed to deliver email, retrying in {} ms", delay, cause);
+            content.put(FIELD_ATTEMPTS, attempts);
+            content.put(FIELD_LAST_ERROR, String.valueOf(cause.getMessage()));
+            content.put(FIELD_NEXT_ATTEMPT, timestamp(System.currentTimeMillis() + delay));
+            content.remove(FIELD_CLAIMED_BY);
+            content.put(FIELD_CLAIMED_UNTIL, NOT_SET);
+            connectionFactory.getConnection().update(context,
+                    Requests.newUpdateRequest(QUEUE_PATH, entry.getId(), content).setRevision(entry.getRevision()));
+        } catch (ResourceException e) {
+            // the entry is sent again once the claim expired
+            logger.warn("Failed to update queued email {}", entry.getId(), e);
+        } finally {
+            inFlight.remove(entry.getId());
+        }
+    }
+
+    private void delete(Context context, ResourceResponse entry) {
+        try {
+            connectionFactory.getConnection().delete(context,
+                    Requests.newDeleteRequest(QUEUE_PATH, entry.getId()).setRevision(entry.getRevision()));
+            queued.decrementAndGet();
+        } catch (ResourceException e) {
+            // the entry is sent again once the claim expired
+            logger.warn("Failed to delete queued email {}", entry.getId(), e);
+        }
+    }
+
+    private void release(Context context, List<ResourceResponse> entries) {
+        for (ResourceResponse entry : entries) {
+            final JsonValue content = entry.getContent().copy();
+            content.remove(FIELD_CLAIMED_BY);
+            content.put(FIELD_CLAIMED_UNTIL, NOT_SET);
+            try {
+                connectionFactory.getConnection().update(context,
+                        Requests.newUpdateRequest(QUEUE_PATH, entry.getId(), content)
+                                .setRevision(entry.getRevision()));
+            } catch (ResourceException e) {
+                logger.debug("Failed to release queued email {}, it is sent once the claim expired",
+                        entry.getId(), e);
+            } finally {
+                inFlight.remove(entry.getId());
+            }
+        }
+    }
+
+    private JsonValue write(MimeMessage message) throws MessagingException, IOException, JsonCryptoException {
+        message.saveChanges();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return cryptoService.encrypt(json(Base64.encode(out.toByteArray())),
+                ServerConstants.SECURITY_CRYPTOGRAPHY_DEFAULT_CIPHER, cryptoAlias);
+    }
+
+    private MimeMessage read(JsonValue content) throws MessagingException {
+        return new MimeMessage(session,
+                new ByteArrayInputStream(Base64.decode(cryptoService.decrypt(content.get(FIELD_MESSAGE)).asString())));
+    }
+
+    /**
+     * Formats a time of an entry to store and query it with.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @return the ISO-8601 UTC timestamp of the time
+     */
+    static String timestamp(long time) {
+        return dateUtil.formatDateTime(new Date(time));
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
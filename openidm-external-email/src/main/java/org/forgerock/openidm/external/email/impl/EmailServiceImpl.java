@@ -52,10 +52,14 @@ import org.forgerock.json.resource.ReadRequest;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.Responses;
+import org.forgerock.json.resource.ServiceUnavailableException;
 import org.forgerock.json.resource.SingletonResourceProvider;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
+import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.router.IDMConnectionFactory;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
 import org.osgi.framework.Constants;
@@ -81,11 +85,22 @@ public class EmailServiceImpl implements SingletonResourceProvider {
     final static Logger logger = LoggerFactory.getLogger(EmailServiceImpl.class);
     public static final String PID = "org.forgerock.openidm.external.email";
 
+    /** Action returning the delivery counters instead of sending email */
+    static final String ACTION_STATISTICS = "statistics";
+
     /** Enhanced configuration service. */
     @Reference(policy = ReferencePolicy.DYNAMIC)
     private volatile EnhancedConfig enhancedConfig;
 
-    EmailClient emailClient;
+    /** The router connection factory, to queue email in the repository */
+    @Reference(policy = ReferencePolicy.STATIC)
+    private IDMConnectionFactory connectionFactory;
+
+    /** The crypto service, to encrypt the email queued in the repository */
+    @Reference(policy = ReferencePolicy.STATIC)
+    private CryptoService cryptoService;
+
+    volatile EmailClient emailClient;
 
     @Action(operationDescription =
     @Operation(
@@ -105,12 +120,20 @@ public class EmailServiceImpl implements SingletonResourceProvider {
         Map<String, Object> result = new HashMap<>();
         logger.debug("External Email service action called for {} with {}",
                 request.getResourcePath(), request.getContent());
+        // the client is unset when the service is deactivated
+        final EmailClient client = emailClient;
+        if (client == null) {
+            return new ServiceUnavailableException("External email service is not available").asPromise();
+        }
+        if (ACTION_STATISTICS.equals(request.getAction())) {
+            return Promises.newResultPromise(Responses.newActionResponse(client.getStatistics()));
+        }
         try {
-            emailClient.send(request.getContent());
+            client.send(request.getContent());
         } catch (ResourceException e) {
             return e.asPromise();
         }
-        result.put("status", "OK");
+        result.put("status", client.isAsync() ? "QUEUED" : "OK");
         return Promises.newResultPromise(Responses.newActionResponse(new JsonValue(result)));
     }
 
@@ -133,7 +156,9 @@ public class EmailServiceImpl implements SingletonResourceProvider {
     void activate(ComponentContext compContext) {
         logger.debug("Activating Service with configuration {}", compContext.getProperties());
         try {
-            emailClient = new EmailClient(enhancedConfig.getConfigurationAsJson(compContext));
+            emailClient = new EmailClient(enhancedConfig.getConfigurationAsJson(compContext), connectionFactory,
+                    cryptoService, IdentityServer.getInstance().getNodeName());
+            emailClient.getEmailStatistics().register();
             logger.debug("external email client enabled");
         } catch (RuntimeException ex) {
             logger.warn("Configuration invalid, can not start external email client service.", ex);
@@ -145,6 +170,12 @@ public class EmailServiceImpl implements SingletonResourceProvider {
     @Deactivate
     void deactivate(ComponentContext compContext) {
         logger.debug("Deactivating Service {}", compContext.getProperties());
+        final EmailClient client = emailClient;
+        emailClient = null;
+        if (client != null) {
+            client.getEmailStatistics().unregister();
+            client.close();
+        }
         logger.info("Notification service stopped.");
     }
 }
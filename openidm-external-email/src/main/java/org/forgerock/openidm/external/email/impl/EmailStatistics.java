@@ -0,0 +1,163 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of the outbound email delivery, also registered with the platform MBean server.
+ */
+public class EmailStatistics implements EmailStatisticsMBean {
+
+    /** The name under which the statistics are registered with the platform MBean server. */
+    public static final String MBEAN_NAME = "org.forgerock.openidm.external.email:type=EmailService";
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailStatistics.class);
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    // Only set when email is delivered asynchronously
+    private volatile EmailDeliveryQueue deliveryQueue;
+
+    /**
+     * Sets the queue of the asynchronous delivery, whose depth is reported.
+     *
+     * @param deliveryQueue the delivery queue
+     */
+    void setDeliveryQueue(EmailDeliveryQueue deliveryQueue) {
+        this.deliveryQueue = deliveryQueue;
+    }
+
+    /**
+     * Records a delivered message.
+     *
+     * @param latency the time in milliseconds between the send request and the delivery
+     */
+    void sent(long latency) {
+        sent.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        do {
+            max = maxLatency.get();
+        } while (latency > max && !maxLatency.compareAndSet(max, latency));
+    }
+
+    /**
+     * Records a message which could not be delivered.
+     */
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Records a delivery attempt which is retried.
+     */
+    void retried() {
+        retried.incrementAndGet();
+    }
+
+    @Override
+    public long getSent() {
+        return sent.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.get();
+    }
+
+    @Override
+    public long getAverageLatency() {
+        final long sentCount = sent.get();
+        return sentCount == 0 ? 0 : totalLatency.get() / sentCount;
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public int getQueued() {
+        final EmailDeliveryQueue queue = deliveryQueue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * Returns the counters as JSON.
+     *
+     * @return the counters
+     */
+    JsonValue toJsonValue() {
+        return json(object(
+                field("sent", sent.get()),
+                field("failed", failed.get()),
+                field("retried", retried.get()),
+                field("averageLatency", getAverageLatency()),
+                field("maxLatency", maxLatency.get())));
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to register email statistics MBean", ex);
+        }
+    }
+
+    /**
+     * Unregisters these statistics from the platform MBean server.
+     */
+    void unregister() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to unregister email statistics MBean", ex);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+/**
+ * Provide JMX / MBean access to the delivery statistics of the external email service.
+ */
+public interface EmailStatisticsMBean {
+
+    /**
+     * Gets the number of messages delivered.
+     * @return the number of messages sent.
+     */
+    public long getSent();
+
+    /**
+     * Gets the number of messages which could not be delivered.
+     * @return the number of failed messages.
+     */
+    public long getFailed();
+
+    /**
+     * Gets the number of delivery attempts which were retried.
+     * @return the number of retries.
+     */
+    public long getRetried();
+
+    /**
+     * Gets the average time between a send request and the delivery of its message.
+     * @return the average latency in milliseconds.
+     */
+    public long getAverageLatency();
+
+    /**
+     * Gets the longest time between a send request and the delivery of its message.
+     * @return the maximum latency in milliseconds.
+     */
+    public long getMaxLatency();
+
+    /**
+     * Gets the number of messages waiting for asynchronous delivery.
+     * @return the queue depth, 0 if email is delivered synchronously.
+     */
+    public int getQueued();
+}
@@ -0,0 +1,177 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of connected, and if required authenticated, SMTP transports.
+ * <p>
+ * Transports are handed out to one caller at a time and kept open when they are released, so that subsequent
+ * messages do not pay for the SMTP handshake again. Idle transports are checked to still be connected before
+ * they are reused; transports which failed to send a message should be invalidated rather than released, unless
+ * they are still usable according to {@link #isReusable(Transport, MessagingException)}.
+ * <p>
+ * A failure to send a message is permanent if the server rejected the message, or all its recipients, with a 5xx
+ * reply: sending the message again would fail the same way. Replies of 4xx, and failures to connect, authenticate or
+ * talk to the server, are transient and worth retrying.
+ */
+class SmtpTransportPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    private final Session session;
+    private final boolean smtpAuth;
+    private final String username;
+    private final String password;
+    private final BlockingQueue<Transport> idle;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a pool of SMTP transports for the given session.
+     *
+     * @param session the mail session to get the transports from
+     * @param smtpAuth whether the transports must be authenticated
+     * @param username the SMTP username, if authentication is required
+     * @param password the SMTP password, if authentication is required
+     * @param maxIdle the maximum number of idle transports kept open
+     */
+    SmtpTransportPool(Session session, boolean smtpAuth, String username, String password, int maxIdle) {
+        this.session = session;
+        this.smtpAuth = smtpAuth;
+        this.username = username;
+        this.password = password;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+    }
+
+    /**
+     * Returns a connected transport, reusing an idle one if it is still connected.
+     *
+     * @return a connected transport
+     * @throws MessagingException if a new transport could not be connected
+     */
+    Transport acquire() throws MessagingException {
+        Transport transport;
+        while ((transport = idle.poll()) != null) {
+            if (transport.isConnected()) {
+                return transport;
+            }
+            closeQuietly(transport);
+        }
+        transport = session.getTransport("smtp");
+        if (smtpAuth) {
+            transport.connect(username, password);
+        } else {
+            transport.connect();
+        }
+        logger.debug("Opened SMTP connection");
+        return transport;
+    }
+
+    /**
+     * Returns a transport to the pool for reuse, or closes it if the pool is full or closed.
+     *
+     * @param transport the transport which successfully sent its messages
+     */
+    void release(Transport transport) {
+        if (closed || !idle.offer(transport)) {
+            closeQuietly(transport);
+        }
+    }
+
+    /**
+     * Closes a transport which is in an unknown state after a failure.
+     *
+     * @param transport the transport to discard
+     */
+    void invalidate(Transport transport) {
+        closeQuietly(transport);
+    }
+
+    /**
+     * Returns whether a failure to send a message is permanent, so the message should not be sent again.
+     *
+     * @param failure the failure to send a message
+     * @return true if the server rejected the message with a 5xx reply, or without a reply as it has no recipient
+     */
+    static boolean isPermanentFailure(MessagingException failure) {
+        if (!(failure instanceof SendFailedException)) {
+            // failed to connect, authenticate or talk to the server
+            return false;
+        }
+        // the addresses the server rejected are chained to the failure
+        for (Exception e = failure; e instanceof MessagingException; e = ((MessagingException) e).getNextException()) {
+            final Integer returnCode = getReturnCode(e);
+            if (returnCode != null && returnCode / 100 != 5) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a transport can still be used after it failed to send a message, which is the case if the
+     * server rejected the message and kept the connection open.
+     *
+     * @param transport the transport which failed to send a message
+     * @param failure the failure to send the message
+     * @return true if the transport can be used or released, false if it must be invalidated
+     */
+    static boolean isReusable(Transport transport, MessagingException failure) {
+        return failure instanceof SendFailedException && transport.isConnected();
+    }
+
+    private static Integer getReturnCode(Exception e) {
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        } else if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        }
+        return null;
+    }
+
+    /**
+     * Closes all idle transports; transports released afterwards are closed too.
+     */
+    void close() {
+        closed = true;
+        Transport transport;
+        while ((transport = idle.poll()) != null) {
+            closeQuietly(transport);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Failed to close SMTP connection", e);
+        }
+    }
+}
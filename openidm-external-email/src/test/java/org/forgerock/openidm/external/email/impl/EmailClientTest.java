@@ -0,0 +1,336 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newQueryRequest;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.Router;
+import org.forgerock.json.resource.ServiceUnavailableException;
+import org.forgerock.json.crypto.JsonCryptoException;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.router.IDMConnectionFactory;
+import org.forgerock.openidm.router.IDMConnectionFactoryWrapper;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.query.QueryFilter;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the delivery of the {@link EmailClient} against a local SMTP stand-in.
+ */
+public class EmailClientTest {
+
+    private static final String ENCRYPTED = "$encrypted";
+
+    private SmtpServerStub server;
+    private EmailClient client;
+    private IDMConnectionFactory connectionFactory;
+    private CryptoService cryptoService;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(EmailDeliveryQueue.QUEUE_PATH), new MemoryBackend());
+        connectionFactory = new IDMConnectionFactoryWrapper(newInternalConnectionFactory(router));
+
+        // stands in for the encryption by wrapping the value
+        cryptoService = mock(CryptoService.class);
+        when(cryptoService.encrypt(any(JsonValue.class), anyString(), anyString())).thenAnswer(new Answer<JsonValue>() {
+            @Override
+            public JsonValue answer(InvocationOnMock invocation) throws Throwable {
+                return json(object(field(ENCRYPTED, ((JsonValue) invocation.getArguments()[0]).getObject())));
+            }
+        });
+        when(cryptoService.decrypt(any(JsonValue.class))).thenAnswer(new Answer<JsonValue>() {
+            @Override
+            public JsonValue answer(InvocationOnMock invocation) throws Throwable {
+                return ((JsonValue) invocation.getArguments()[0]).get(ENCRYPTED);
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private EmailClient newClient(JsonValue async) {
+        return new EmailClient(json(object(
+                field(EmailClient.CONFIG_MAIL_SMTP_HOST, "localhost"),
+                field(EmailClient.CONFIG_MAIL_SMTP_PORT, String.valueOf(server.getPort())),
+                field(EmailClient.CONFIG_MAIL_FROM, "openidm@example.com"),
+                field(EmailClient.CONFIG_MAIL_ASYNC, async.getObject()))), connectionFactory, cryptoService, "node1");
+    }
+
+    private static JsonValue async(Object... fields) {
+        final JsonValue async = json(object(
+                field(EmailClient.CONFIG_MAIL_ASYNC_ENABLE, true),
+                field(EmailDeliveryQueue.CONFIG_POLL_INTERVAL, 10)));
+        for (int i = 0; i < fields.length; i += 2) {
+            async.put((String) fields[i], fields[i + 1]);
+        }
+        return async;
+    }
+
+    private List<ResourceResponse> queryQueue() throws Exception {
+        final List<ResourceResponse> entries = new ArrayList<>();
+        connectionFactory.getConnection().query(new RootContext(),
+                newQueryRequest(EmailDeliveryQueue.QUEUE_PATH).setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue()),
+                entries);
+        return entries;
+    }
+
+    private static JsonValue email(int i) {
+        return json(object(
+                field("to", "bjensen@example.com"),
+                field("subject", "Message " + i),
+                field("body", "Hello")));
+    }
+
+    private void awaitSent(long sent) throws InterruptedException {
+        await("sent", sent);
+    }
+
+    private void await(String counter, long count) throws InterruptedException {
+        for (int i = 0; i < 100 && client.getStatistics().get(counter).asLong() < count; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testSynchronousSendReusesConnection() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(json(null));
+
+        for (int i = 0; i < 3; i++) {
+            client.send(email(i));
+        }
+
+        assertThat(server.getMessages()).isEqualTo(3);
+        assertThat(server.getConnections()).isEqualTo(1);
+        assertThat(client.isAsync()).isFalse();
+        assertThat(client.getStatistics().get("sent").asLong()).isEqualTo(3);
+    }
+
+    @Test
+    public void testAsynchronousSendDeliversQueuedEmail() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(async(EmailDeliveryQueue.CONFIG_THREADS, 1));
+
+        for (int i = 0; i < 10; i++) {
+            client.send(email(i));
+        }
+        awaitSent(10);
+
+        assertThat(server.getMessages()).isEqualTo(10);
+        assertThat(server.getConnections()).isEqualTo(1);
+        assertThat(queryQueue()).isEmpty();
+    }
+
+    @Test
+    public void testAsynchronousSendRetriesFailedEmail() throws Exception {
+        server = new SmtpServerStub(1);
+        client = newClient(async(EmailDeliveryQueue.CONFIG_RETRY_DELAY, 10));
+
+        client.send(email(0));
+        awaitSent(1);
+
+        assertThat(server.getMessages()).isEqualTo(1);
+        assertThat(server.getConnections()).isEqualTo(1);
+        assertThat(client.getStatistics().get("retried").asLong()).isEqualTo(1);
+        assertThat(client.getStatistics().get("failed").asLong()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAsynchronousSendRetriesEmailAfterConnectionFailure() throws Exception {
+        server = new SmtpServerStub(1, "421 Service closing");
+        client = newClient(async(EmailDeliveryQueue.CONFIG_RETRY_DELAY, 10));
+
+        client.send(email(0));
+        awaitSent(1);
+
+        assertThat(server.getMessages()).isEqualTo(1);
+        assertThat(server.getConnections()).isEqualTo(2);
+        assertThat(client.getStatistics().get("retried").asLong()).isEqualTo(1);
+        assertThat(client.getStatistics().get("failed").asLong()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAsynchronousSendFailsRejectedEmailWithoutRetrying() throws Exception {
+        server = new SmtpServerStub(1, "550 Mailbox unavailable");
+        client = newClient(async(
+                EmailDeliveryQueue.CONFIG_THREADS, 1,
+                EmailDeliveryQueue.CONFIG_RETRY_DELAY, 10));
+
+        client.send(email(0));
+        client.send(email(1));
+        awaitSent(1);
+        await("failed", 1);
+
+        assertThat(server.getMessages()).isEqualTo(1);
+        assertThat(server.getConnections()).isEqualTo(1);
+        assertThat(client.getStatistics().get("retried").asLong()).isEqualTo(0);
+        assertThat(client.getStatistics().get("failed").asLong()).isEqualTo(1);
+        assertThat(queryQueue()).isEmpty();
+    }
+
+    @Test
+    public void testSynchronousSendKeepsConnectionAfterRejectedEmail() throws Exception {
+        server = new SmtpServerStub(1, "550 Mailbox unavailable");
+        client = newClient(json(null));
+
+        try {
+            client.send(email(0));
+            fail("Expected the email to be rejected");
+        } catch (BadRequestException e) {
+            // expected
+        }
+        client.send(email(1));
+
+        assertThat(server.getMessages()).isEqualTo(1);
+        assertThat(server.getConnections()).isEqualTo(1);
+        assertThat(client.getStatistics().get("failed").asLong()).isEqualTo(1);
+    }
+
+    @Test
+    public void testStatisticsAreRegisteredAsMBean() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(json(null));
+        final EmailStatistics statistics = client.getEmailStatistics();
+        final ObjectName name = new ObjectName(EmailStatistics.MBEAN_NAME);
+
+        statistics.register();
+        try {
+            client.send(email(0));
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Sent")).isEqualTo(1L);
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Queued")).isEqualTo(0);
+        } finally {
+            statistics.unregister();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name)).isFalse();
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testInvalidEmailIsRejectedBeforeQueueing() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(async());
+
+        client.send(json(object(field("to", "<bjensen@example.com"), field("body", "Hello"))));
+    }
+
+    @Test
+    public void testQueuedEmailSurvivesRestart() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(async(EmailDeliveryQueue.CONFIG_POLL_INTERVAL, 60000));
+
+        client.send(email(0));
+        client.close();
+
+        assertThat(server.getMessages()).isEqualTo(0);
+        assertThat(queryQueue()).hasSize(1);
+
+        client = newClient(async());
+        awaitSent(1);
+
+        assertThat(server.getMessages()).isEqualTo(1);
+        assertThat(queryQueue()).isEmpty();
+    }
+
+    @Test
+    public void testFullQueueRejectsEmail() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(async(
+                EmailDeliveryQueue.CONFIG_POLL_INTERVAL, 60000,
+                EmailDeliveryQueue.CONFIG_QUEUE_SIZE, 1));
+
+        client.send(email(0));
+        try {
+            client.send(email(1));
+            fail("Expected the queue to be full");
+        } catch (ServiceUnavailableException e) {
+            // expected
+        }
+
+        assertThat(client.getStatistics().get("remainingCapacity").asInteger()).isEqualTo(0);
+        assertThat(queryQueue()).hasSize(1);
+    }
+
+    @Test
+    public void testQueuedEmailIsEncrypted() throws Exception {
+        server = new SmtpServerStub(0);
+        client = newClient(async(EmailDeliveryQueue.CONFIG_POLL_INTERVAL, 60000));
+
+        client.send(email(0));
+
+        final List<ResourceResponse> entries = queryQueue();
+        assertThat(entries).hasSize(1);
+        final JsonValue stored = entries.get(0).getContent();
+        assertThat(stored.get(EmailDeliveryQueue.FIELD_MESSAGE).isDefined(ENCRYPTED)).isTrue();
+        assertThat(stored.get(EmailDeliveryQueue.FIELD_RECIPIENTS).asString()).isEqualTo("bjensen@example.com");
+    }
+
+    @Test
+    public void testEmailIsNotQueuedWhenEncryptionFails() throws Exception {
+        when(cryptoService.encrypt(any(JsonValue.class), anyString(), anyString()))
+                .thenThrow(new JsonCryptoException("no key"));
+        server = new SmtpServerStub(0);
+        client = newClient(async(
+                EmailDeliveryQueue.CONFIG_POLL_INTERVAL, 60000,
+                EmailDeliveryQueue.CONFIG_QUEUE_SIZE, 1));
+
+        try {
+            client.send(email(0));
+            fail("Expected the email not to be queued");
+        } catch (InternalServerErrorException e) {
+            // expected
+        }
+
+        assertThat(queryQueue()).isEmpty();
+        assertThat(client.getStatistics().get("remainingCapacity").asInteger()).isEqualTo(1);
+    }
+}
@@ -36,6 +36,7 @@ import org.forgerock.json.resource.ReadRequest;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.Responses;
+import org.forgerock.json.resource.ServiceUnavailableException;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.util.promise.Promise;
 import org.testng.annotations.Test;
@@ -89,6 +90,23 @@ public class EmailServiceImplTest {
         assertThat(promise).failedWithException().isInstanceOf(BadRequestException.class);
     }
 
+    @Test
+    public void testActionInstanceUnavailableWhenDeactivated() throws Exception {
+        // given
+        final EmailServiceImpl emailService = new EmailServiceImpl();
+        final ActionRequest actionRequest = mock(ActionRequest.class);
+
+        when(actionRequest.getResourcePath()).thenReturn(RESOURCE_PATH);
+        when(actionRequest.getContent()).thenReturn(json(object()));
+
+        // when
+        Promise<ActionResponse, ResourceException> promise =
+                emailService.actionInstance(mock(Context.class), actionRequest);
+
+        // then
+        assertThat(promise).failedWithException().isInstanceOf(ServiceUnavailableException.class);
+    }
+
     @Test
     public void testPatchInstanceForbidden() throws Exception {
         // given
@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.external.email.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal local SMTP stand-in accepting any message, counting connections and delivered messages.
+ */
+class SmtpServerStub implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+    private final AtomicInteger rejections;
+    private final String rejection;
+
+    /**
+     * Starts the server on a free local port.
+     *
+     * @param rejections the number of messages to reject with a transient failure before accepting any
+     * @throws IOException if the server socket could not be opened
+     */
+    SmtpServerStub(int rejections) throws IOException {
+        this(rejections, "451 Try again later");
+    }
+
+    /**
+     * Starts the server on a free local port.
+     *
+     * @param rejections the number of messages to reject before accepting any
+     * @param rejection the reply rejecting a message; the connection is closed after a 421 reply
+     * @throws IOException if the server socket could not be opened
+     */
+    SmtpServerStub(int rejections, String rejection) throws IOException {
+        this.rejections = new AtomicInteger(rejections);
+        this.rejection = rejection;
+        serverSocket = new ServerSocket(0);
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        final Thread handler = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getMessages() {
+        return messages.get();
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII))) {
+            final OutputStream out = s.getOutputStream();
+            reply(out, "220 localhost SMTP stub");
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String command = line.toUpperCase();
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-localhost");
+                    reply(out, "250 OK");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        // discard the message content
+                    }
+                    if (rejections.getAndDecrement() > 0) {
+                        reply(out, rejection);
+                        if (rejection.startsWith("421")) {
+                            return;
+                        }
+                    } else {
+                        messages.incrementAndGet();
+                        reply(out, "250 OK");
+                    }
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
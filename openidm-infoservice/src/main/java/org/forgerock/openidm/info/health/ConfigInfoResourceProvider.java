@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.info.health;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.services.context.Context;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Gets the timing of the configuration load performed at startup.
+ */
+public class ConfigInfoResourceProvider extends AbstractInfoResourceProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigInfoResourceProvider.class);
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> readInstance(Context context, ReadRequest request) {
+        try {
+            final ObjectName objectName = new ObjectName("org.forgerock.openidm.config:type=ConfigLoad");
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+            final JsonValue result = json(object(
+                    field("bulkLoaded", mBeanServer.getAttribute(objectName, "BulkLoaded")),
+                    field("objectCount", mBeanServer.getAttribute(objectName, "ObjectCount")),
+                    field("queryTime", mBeanServer.getAttribute(objectName, "QueryTime")),
+                    field("loadTime", mBeanServer.getAttribute(objectName, "LoadTime")),
+                    field("snapshotHits", mBeanServer.getAttribute(objectName, "SnapshotHits"))
+            ));
+            return newResourceResponse("", "", result).asPromise();
+        } catch (Exception e) {
+            logger.error("Unable to get configuration load mbean");
+            return new InternalServerErrorException("Unable to get configuration load mbean", e).asPromise();
+        }
+    }
+}
@@ -39,58 +39,91 @@ import java.util.HashMap;
 import java.util.Set;
 
 /**
- * Gets BoneCP usage statistics from the {@link com.jolbox.bonecp.StatisticsMBean StatisticsMBean}.
+ * Gets JDBC repository statistics from the {@code JDBCRepoStatisticsMBean}, connection pool usage from the HikariCP
+ * {@link com.zaxxer.hikari.HikariPoolMXBean HikariPoolMXBean} and, if enabled, BoneCP usage statistics from the
+ * {@link com.jolbox.bonecp.StatisticsMBean StatisticsMBean}.
  */
 public class DatabaseInfoResourceProvider extends AbstractInfoResourceProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(DatabaseInfoResourceProvider.class);
 
+    private static final String REPO_STATISTICS_MBEAN_NAME = "org.forgerock.openidm.repo.jdbc:type=JDBCRepo";
+    private static final String HIKARI_POOL_MBEAN_NAME = "com.zaxxer.hikari:type=Pool (*";
+    private static final String BONECP_MBEAN_NAME = "com.jolbox.bonecp:type=BoneCP-*";
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Promise<ResourceResponse, ResourceException> readInstance(Context context, ReadRequest request) {
 
-        Boolean enabled = Boolean.parseBoolean(
+        Boolean boneCPEnabled = Boolean.parseBoolean(
                 IdentityServer.getInstance().getProperty("openidm.bonecp.statistics.enabled", "false"));
-        if (!enabled) {
-            return new InternalServerErrorException("BoneCP statistics mbean not enabled").asPromise();
-        }
         try {
-            final ObjectName objectName = new ObjectName("com.jolbox.bonecp:type=BoneCP-*");
             final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
-
-            Set<ObjectName> names = mBeanServer.queryNames(objectName, null);
             JsonValue results = new JsonValue(new HashMap<String, Object>());
 
-            for (ObjectName name : names) {
-                final JsonValue singleResult = json(object(
-                        field("connectionWaitTimeAvg", mBeanServer.getAttribute(name, "ConnectionWaitTimeAvg")),
-                        field("statementExecuteTimeAvg", mBeanServer.getAttribute(name, "StatementExecuteTimeAvg")),
-                        field("statementPrepareTimeAvg", mBeanServer.getAttribute(name, "StatementPrepareTimeAvg")),
-                        field("totalLeasedConnections", mBeanServer.getAttribute(name, "TotalLeased")),
-                        field("totalFreeConnections", mBeanServer.getAttribute(name, "TotalFree")),
-                        field("totalCreatedConnections", mBeanServer.getAttribute(name, "TotalCreatedConnections")),
-                        field("cacheHits", mBeanServer.getAttribute(name, "CacheHits")),
-                        field("cacheMiss", mBeanServer.getAttribute(name, "CacheMiss")),
-                        field("statementsCached", mBeanServer.getAttribute(name, "StatementsCached")),
-                        field("statementsPrepared", mBeanServer.getAttribute(name, "StatementsPrepared")),
-                        field("connectionsRequested", mBeanServer.getAttribute(name, "ConnectionsRequested")),
-                        field("cumulativeConnectionWaitTime",
-                                mBeanServer.getAttribute(name, "CumulativeConnectionWaitTime")),
-                        field("cumulativeStatementExecutionTime",
-                                mBeanServer.getAttribute(name, "CumulativeStatementExecutionTime")),
-                        field("cumulativeStatementPrepareTime",
-                                mBeanServer.getAttribute(name, "CumulativeStatementPrepareTime")),
-                        field("cacheHitRatio", mBeanServer.getAttribute(name, "CacheHitRatio")),
-                        field("statementsExecuted", mBeanServer.getAttribute(name, "StatementsExecuted"))
-                ));
-                results.put(name.getCanonicalName(), singleResult.getObject());
+            final ObjectName repoName = new ObjectName(REPO_STATISTICS_MBEAN_NAME);
+            if (mBeanServer.isRegistered(repoName)) {
+                results.put(repoName.getCanonicalName(), json(object(
+                        field("connectionRequests", mBeanServer.getAttribute(repoName, "ConnectionRequests")),
+                        field("connectionWaitTimeAvg", mBeanServer.getAttribute(repoName, "ConnectionWaitTimeAvg")),
+                        field("connectionWaitTimeMax", mBeanServer.getAttribute(repoName, "ConnectionWaitTimeMax")),
+                        field("retries", mBeanServer.getAttribute(repoName, "Retries")),
+                        field("slowStatementThreshold",
+                                mBeanServer.getAttribute(repoName, "SlowStatementThreshold")),
+                        field("slowStatements", mBeanServer.getAttribute(repoName, "SlowStatements")),
+                        field("statements", mBeanServer.getAttribute(repoName, "StatementStatistics"))
+                )).getObject());
+            }
+
+            for (ObjectName name : mBeanServer.queryNames(new ObjectName(HIKARI_POOL_MBEAN_NAME), null)) {
+                results.put(name.getCanonicalName(), json(object(
+                        field("activeConnections", mBeanServer.getAttribute(name, "ActiveConnections")),
+                        field("idleConnections", mBeanServer.getAttribute(name, "IdleConnections")),
+                        field("totalConnections", mBeanServer.getAttribute(name, "TotalConnections")),
+                        field("threadsAwaitingConnection",
+                                mBeanServer.getAttribute(name, "ThreadsAwaitingConnection"))
+                )).getObject());
+            }
+
+            if (boneCPEnabled) {
+                putBoneCPStatistics(mBeanServer, results);
             }
             return newResourceResponse("", "", results).asPromise();
         } catch (Exception e) {
-            logger.error("Unable to get BoneCP statistics mbean");
-            return new InternalServerErrorException("Unable to get BoneCP statistics mbean", e).asPromise();
+            logger.error("Unable to get database statistics mbean");
+            return new InternalServerErrorException("Unable to get database statistics mbean", e).asPromise();
+        }
+    }
+
+    private void putBoneCPStatistics(MBeanServer mBeanServer, JsonValue results) throws Exception {
+        final ObjectName objectName = new ObjectName(BONECP_MBEAN_NAME);
+        Set<ObjectName> names = mBeanServer.queryNames(objectName, null);
+
+        for (ObjectName name : names) {
+            final JsonValue singleResult = json(object(
+                    field("connectionWaitTimeAvg", mBeanServer.getAttribute(name, "ConnectionWaitTimeAvg")),
+                    field("statementExecuteTimeAvg", mBeanServer.getAttribute(name, "StatementExecuteTimeAvg")),
+                    field("statementPrepareTimeAvg", mBeanServer.getAttribute(name, "StatementPrepareTimeAvg")),
+                    field("totalLeasedConnections", mBeanServer.getAttribute(name, "TotalLeased")),
+                    field("totalFreeConnections", mBeanServer.getAttribute(name, "TotalFree")),
+                    field("totalCreatedConnections", mBeanServer.getAttribute(name, "TotalCreatedConnections")),
+                    field("cacheHits", mBeanServer.getAttribute(name, "CacheHits")),
+                    field("cacheMiss", mBeanServer.getAttribute(name, "CacheMiss")),
+                    field("statementsCached", mBeanServer.getAttribute(name, "StatementsCached")),
+                    field("statementsPrepared", mBeanServer.getAttribute(name, "StatementsPrepared")),
+                    field("connectionsRequested", mBeanServer.getAttribute(name, "ConnectionsRequested")),
+                    field("cumulativeConnectionWaitTime",
+                            mBeanServer.getAttribute(name, "CumulativeConnectionWaitTime")),
+                    field("cumulativeStatementExecutionTime",
+                            mBeanServer.getAttribute(name, "CumulativeStatementExecutionTime")),
+                    field("cumulativeStatementPrepareTime",
+                            mBeanServer.getAttribute(name, "CumulativeStatementPrepareTime")),
+                    field("cacheHitRatio", mBeanServer.getAttribute(name, "CacheHitRatio")),
+                    field("statementsExecuted", mBeanServer.getAttribute(name, "StatementsExecuted"))
+            ));
+            results.put(name.getCanonicalName(), singleResult.getObject());
         }
     }
 }
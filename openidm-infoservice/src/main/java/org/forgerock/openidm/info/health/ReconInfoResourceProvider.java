@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2015 ForgeRock AS.
+ * Copyright 2015-2016 ForgeRock AS.
  */
 
 package org.forgerock.openidm.info.health;
@@ -53,7 +53,8 @@ public class ReconInfoResourceProvider extends AbstractInfoResourceProvider {
                     field("corePoolSize", mBeanServer.getAttribute(objectName, "CorePoolSize")),
                     field("largestPoolSize", mBeanServer.getAttribute(objectName, "LargestPoolSize")),
                     field("maximumPoolSize", mBeanServer.getAttribute(objectName, "MaximumPoolSize")),
-                    field("currentPoolSize", mBeanServer.getAttribute(objectName, "PoolSize"))
+                    field("currentPoolSize", mBeanServer.getAttribute(objectName, "PoolSize")),
+                    field("activeReconciliations", mBeanServer.getAttribute(objectName, "ActiveReconMetrics"))
             ));
             return newResourceResponse("", "", result).asPromise();
         } catch (Exception e) {
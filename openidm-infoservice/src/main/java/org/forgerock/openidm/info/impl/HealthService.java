@@ -55,6 +55,7 @@ import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.info.HealthInfo;
 import org.forgerock.openidm.info.health.OsInfoResourceProvider;
+import org.forgerock.openidm.info.health.ConfigInfoResourceProvider;
 import org.forgerock.openidm.info.health.DatabaseInfoResourceProvider;
 import org.forgerock.openidm.info.health.MemoryInfoResourceProvider;
 import org.forgerock.openidm.info.health.ReconInfoResourceProvider;
@@ -381,6 +382,7 @@ public class HealthService
         router.addRoute(uriTemplate("memory"), new MemoryInfoResourceProvider());
         router.addRoute(uriTemplate("recon"), new ReconInfoResourceProvider());
         router.addRoute(uriTemplate("jdbc"), new DatabaseInfoResourceProvider());
+        router.addRoute(uriTemplate("config"), new ConfigInfoResourceProvider());
 
         // Check if the framework has already started.  If so, schedule the start up
         // thread that checks the state of OpenIDM.
@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.messaging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters of a {@link MessageSubscriber}.
+ */
+public class MessageStatistics {
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong acknowledgedBatches = new AtomicLong();
+    private final AtomicLong handleTimeNanos = new AtomicLong();
+
+    /**
+     * Records a message received from the event channel.
+     */
+    public void received() {
+        received.incrementAndGet();
+    }
+
+    /**
+     * Records a message successfully processed by the handler.
+     *
+     * @param nanos the time the handler took, in nanoseconds.
+     */
+    public void handled(long nanos) {
+        handled.incrementAndGet();
+        handleTimeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a message the handler failed to process.
+     */
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Records an acknowledgement, or commit, of one or more messages.
+     */
+    public void acknowledged() {
+        acknowledgedBatches.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of messages received.
+     *
+     * @return the number of messages received.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Returns the number of messages successfully processed.
+     *
+     * @return the number of messages handled.
+     */
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * Returns the number of messages the handler failed to process.
+     *
+     * @return the number of failed messages.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of acknowledgements or commits sent to the event channel.
+     *
+     * @return the number of acknowledged batches.
+     */
+    public long getAcknowledgedBatches() {
+        return acknowledgedBatches.get();
+    }
+
+    /**
+     * Returns the total time spent in the handler for the successfully processed messages.
+     *
+     * @return the total handling time in milliseconds.
+     */
+    public long getHandleTime() {
+        return TimeUnit.NANOSECONDS.toMillis(handleTimeNanos.get());
+    }
+}
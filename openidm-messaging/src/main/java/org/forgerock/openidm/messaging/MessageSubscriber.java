@@ -25,6 +25,7 @@ import org.forgerock.json.resource.ResourceException;
  */
 public abstract class MessageSubscriber<T> {
     private final String name;
+    private final MessageStatistics statistics = new MessageStatistics();
 
     /**
      * Creates an instance with the provided name.
@@ -44,6 +45,15 @@ public abstract class MessageSubscriber<T> {
         return name;
     }
 
+    /**
+     * Returns the throughput counters of this instance.
+     *
+     * @return the statistics.
+     */
+    public MessageStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Implement this method to connect to the subscription resource.  Each message that is received is expected to
      * be passed to the handler for processing.
@@ -18,6 +18,9 @@ package org.forgerock.openidm.messaging;
 import static org.forgerock.guava.common.collect.FluentIterable.from;
 
 import javax.jms.Message;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -61,6 +64,9 @@ import org.slf4j.LoggerFactory;
  * Each individual instance of a Subscriber is expected to manage a single connection between IDM and the Messaging
  * event channel.  Increase the instanceCount in the configuration to increase message consumption throughput.
  * <br/>
+ * Each JMS subscriber may additionally run several consumer sessions on its connection, acknowledge messages in
+ * batches and keep messages with the same partition key in order, see {@link JmsMessageSubscriber}.
+ * <br/>
  * Each subscriber has an instance of a message handler.  The handler is expected to process the message and take all
  * actions that the message represents.
  * <br/>
@@ -84,6 +90,10 @@ import org.slf4j.LoggerFactory;
  *             },
  *             "properties": {
  *                 "sessionMode": "CLIENT",
+ *                 "concurrentConsumers": 4,
+ *                 "batchSize": 50,
+ *                 "batchTimeout": 1000,
+ *                 "partitionKey": "employeeId",
  *                 "jndi": {
  *                     "contextProperties": {
  *                         "java.naming.factory.initial": "org.apache.activemq.jndi.ActiveMQInitialContextFactory",
@@ -105,7 +115,7 @@ import org.slf4j.LoggerFactory;
         @Property(name = Constants.SERVICE_VENDOR, value = ServerConstants.SERVER_VENDOR_NAME),
         @Property(name = Constants.SERVICE_DESCRIPTION, value = "OpenIDM Messaging Service")
 })
-public class MessagingService {
+public class MessagingService implements MessagingServiceMBean {
     private static final Logger logger = LoggerFactory.getLogger(MessagingService.class);
 
     public static final String PID = "org.forgerock.openidm.messaging";
@@ -118,9 +128,11 @@ public class MessagingService {
     private static final String ENABLED = "enabled";
     private static final String SUBSCRIBER_TYPE_JMS = "JMS";
     private static final String HANDLER_TYPE_SCRIPTED = "SCRIPTED";
+    private static final String MBEAN_NAME = "org.forgerock.openidm.messaging:type=Messaging";
 
     private final List<MessageSubscriber<?>> subscribers = new ArrayList<>();
     private JsonValue config;
+    private long activated;
 
     /**
      * Enhanced configuration service.
@@ -215,6 +227,8 @@ public class MessagingService {
                         .transform(toSubscribedMessageSubscribers)) {
             subscribers.addAll(messageSubscribers);
         }
+        activated = System.currentTimeMillis();
+        registerMBean();
         logger.debug("OpenIDM MessagingService activated with {} activated subscribers.", subscribers.size());
     }
 
@@ -226,6 +240,7 @@ public class MessagingService {
     @Deactivate
     public void deactivate(ComponentContext context) {
         logger.debug("OpenIDM MessagingService deactivating.");
+        unregisterMBean();
         for (MessageSubscriber<?> subscriber : subscribers) {
             try {
                 subscriber.unsubscribe();
@@ -237,4 +252,86 @@ public class MessagingService {
         subscribers.clear();
         config = null;
     }
+
+    @Override
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        long received = 0;
+        for (MessageSubscriber<?> subscriber : subscribers) {
+            received += subscriber.getStatistics().getReceived();
+        }
+        return received;
+    }
+
+    @Override
+    public long getMessagesHandled() {
+        long handled = 0;
+        for (MessageSubscriber<?> subscriber : subscribers) {
+            handled += subscriber.getStatistics().getHandled();
+        }
+        return handled;
+    }
+
+    @Override
+    public long getMessagesFailed() {
+        long failed = 0;
+        for (MessageSubscriber<?> subscriber : subscribers) {
+            failed += subscriber.getStatistics().getFailed();
+        }
+        return failed;
+    }
+
+    @Override
+    public long getBatchesAcknowledged() {
+        long batches = 0;
+        for (MessageSubscriber<?> subscriber : subscribers) {
+            batches += subscriber.getStatistics().getAcknowledgedBatches();
+        }
+        return batches;
+    }
+
+    @Override
+    public double getAverageHandleTime() {
+        long handled = 0;
+        long handleTime = 0;
+        for (MessageSubscriber<?> subscriber : subscribers) {
+            handled += subscriber.getStatistics().getHandled();
+            handleTime += subscriber.getStatistics().getHandleTime();
+        }
+        return handled == 0 ? 0 : (double) handleTime / handled;
+    }
+
+    @Override
+    public double getThroughput() {
+        final long elapsed = System.currentTimeMillis() - activated;
+        return elapsed <= 0 ? 0 : getMessagesHandled() * 1000d / elapsed;
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to register messaging MBean", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister messaging MBean", e);
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.messaging;
+
+/**
+ * Provide JMX / MBean access to the throughput of the message subscribers.  Counters are summed over all subscribers.
+ */
+public interface MessagingServiceMBean {
+
+    /**
+     * Gets the number of subscribers activated.
+     * @return the number of subscribers.
+     */
+    int getSubscriberCount();
+
+    /**
+     * Gets the number of messages received by the subscribers.
+     * @return the number of messages received.
+     */
+    long getMessagesReceived();
+
+    /**
+     * Gets the number of messages successfully processed by the handlers.
+     * @return the number of messages handled.
+     */
+    long getMessagesHandled();
+
+    /**
+     * Gets the number of messages the handlers failed to process.
+     * @return the number of failed messages.
+     */
+    long getMessagesFailed();
+
+    /**
+     * Gets the number of acknowledgements or commits sent to the event channels.
+     * @return the number of acknowledged batches.
+     */
+    long getBatchesAcknowledged();
+
+    /**
+     * Gets the average time the handlers took to process a message.
+     * @return the average handling time in milliseconds.
+     */
+    double getAverageHandleTime();
+
+    /**
+     * Gets the number of messages handled per second since the service was activated.
+     * @return the throughput in messages per second.
+     */
+    double getThroughput();
+}
@@ -16,10 +16,27 @@
 package org.forgerock.openidm.messaging.jms;
 
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
 import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.InternalServerErrorException;
@@ -36,15 +53,47 @@ import org.slf4j.LoggerFactory;
 /**
  * A MessageSubscriber that subscribes to JMS destinations.  JMS messages are acknowledged only if the handler doesn't
  * throw an exception.
+ * <br/>
+ * The optional properties below tune the consumption throughput:
+ * <ul>
+ *     <li>concurrentConsumers - the number of sessions, each with its own consumer, sharing the connection.</li>
+ *     <li>batchSize - the number of messages acknowledged (CLIENT) or committed (TRANSACTED) at once.  If any message
+ *     of a batch fails, the whole batch is recovered or rolled back and redelivered; the messages of the batch which
+ *     were handled are then acknowledged without being handled again.  Batching requires the CLIENT or TRANSACTED
+ *     session mode, as the other modes acknowledge each message as it is received.</li>
+ *     <li>batchTimeout - the maximum time in milliseconds to wait for a batch to fill up.</li>
+ *     <li>partitionKey - the name of a JMS message property.  When set, a single consumer receives the messages and
+ *     hands them to concurrentConsumers threads, such that messages with the same property value are processed in
+ *     order by the same thread.  Once a message fails, the later messages of its partition in the batch are left
+ *     for redelivery rather than handled out of order.</li>
+ * </ul>
+ * Batched and partitioned consumers whose session fails re-create it, backing off between attempts.
  */
 public class JmsMessageSubscriber extends MessageSubscriber<Message> {
     private static final Logger logger = LoggerFactory.getLogger(JmsMessageSubscriber.class);
+
+    private static final String CONCURRENT_CONSUMERS = "concurrentConsumers";
+    private static final String BATCH_SIZE = "batchSize";
+    private static final String BATCH_TIMEOUT = "batchTimeout";
+    private static final String PARTITION_KEY = "partitionKey";
+    private static final long DEFAULT_BATCH_TIMEOUT = 1000L;
+    private static final long MIN_RECONNECT_DELAY = 1000L;
+    private static final long MAX_RECONNECT_DELAY = 60000L;
+    private static final long HANDLED_ID_LIFETIME = 300000L;
+
     private final SessionModeConfig sessionMode;
     private final JndiConfiguration jndiConfiguration;
     private final String messageSelector;
+    private final int concurrentConsumers;
+    private final int batchSize;
+    private final long batchTimeout;
+    private final String partitionKey;
 
-    private Session session;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
     private Connection connection;
+    private ExecutorService consumerExecutor;
+    private ExecutorService[] partitions;
+    private volatile boolean running;
 
     /**
      * Constructs a JMS Subscriber using the provided instance name and configuration.  The configuration is grabbed,
@@ -58,11 +107,21 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
         sessionMode = SessionModeConfig.valueOf(propertiesConfig.get("sessionMode").required().asString());
         messageSelector = propertiesConfig.get("messageSelector").asString();
         jndiConfiguration = new JndiConfiguration(propertiesConfig.get("jndi").required());
+        concurrentConsumers = Math.max(1, propertiesConfig.get(CONCURRENT_CONSUMERS).defaultTo(1).asInteger());
+        batchSize = Math.max(1, propertiesConfig.get(BATCH_SIZE).defaultTo(1).asInteger());
+        batchTimeout = propertiesConfig.get(BATCH_TIMEOUT).defaultTo(DEFAULT_BATCH_TIMEOUT).asLong();
+        partitionKey = propertiesConfig.get(PARTITION_KEY).asString();
+        if ((batchSize > 1 || partitionKey != null)
+                && sessionMode != SessionModeConfig.CLIENT && !sessionMode.isTransacted()) {
+            throw new InvalidException("JMS subscriber " + name + " batches or partitions messages, which requires"
+                    + " the CLIENT or TRANSACTED session mode, not " + sessionMode);
+        }
     }
 
     /**
      * Implemented to subscribe on the JNDI configured JMS destination (queue or topic).  Implemented to use a single
-     * connection and session.
+     * connection with one session per concurrent consumer.  Messages are delivered to a message listener per session,
+     * unless they are batched or partitioned, in which case each session is polled by its own thread.
      *
      * @param messageHandler an instance of a JMS message handler.
      */
@@ -75,10 +134,8 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
             throw new InternalServerErrorException("Failure loading JNDI JMS Context configurations.", e);
         }
 
-
-
         try {
-            if (null != connection || null != session) {
+            if (null != connection || !sessions.isEmpty()) {
                 // in case there exists an old connection or session, lets unsubscribe those before creating new ones.
                 unsubscribe();
             }
@@ -86,31 +143,31 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
             connection = contextManager.getConnectionFactory().createConnection();
             connection.setClientID(getName());
             connection.setExceptionListener(new SubscriptionExceptionListener(messageHandler));
-            session = connection.createSession(false, sessionMode.getMode());
-            session.createConsumer(contextManager.getDestination(), messageSelector)
-                    .setMessageListener(new javax.jms.MessageListener() {
-                        @Override
-                        public void onMessage(Message message) {
-                            String jmsMessageID = getMessageID(message);
-                            try {
-                                messageHandler.handleMessage(message);
-                                try {
-                                    logger.trace("JMS Message {} handled by {}", jmsMessageID, getName());
-                                    message.acknowledge();
-                                    logger.trace("JMS Message {} acknowledged by {}", jmsMessageID, getName());
-                                } catch (JMSException e) {
-                                    throw new InternalServerErrorException("Failure to acknowledge JMS message " +
-                                            jmsMessageID, e);
-                                }
-                            } catch (Exception e) {
-                                // if the handler throws an exception, the message won't be acknowledged.  This
-                                // leaves the message available to pick up later, by this or another subscriber.
-                                logger.error("Failure handling the JMS message {}.", jmsMessageID, e);
-                            }
-                        }
-                    });
+            if (batchSize == 1 && partitionKey == null) {
+                for (int i = 0; i < concurrentConsumers; i++) {
+                    final Session session = createSession();
+                    session.createConsumer(contextManager.getDestination(), messageSelector)
+                            .setMessageListener(new SubscriptionMessageListener(session, messageHandler));
+                }
+            } else {
+                running = true;
+                final int consumerCount = partitionKey == null ? concurrentConsumers : 1;
+                if (partitionKey != null) {
+                    partitions = new ExecutorService[concurrentConsumers];
+                    for (int i = 0; i < concurrentConsumers; i++) {
+                        partitions[i] = Executors.newSingleThreadExecutor(newThreadFactory("-partition-"));
+                    }
+                }
+                consumerExecutor = Executors.newFixedThreadPool(consumerCount, newThreadFactory("-consumer-"));
+                final Destination destination = contextManager.getDestination();
+                for (int i = 0; i < consumerCount; i++) {
+                    final Session session = createSession();
+                    consumerExecutor.execute(new BatchConsumer(destination, session,
+                            session.createConsumer(destination, messageSelector), messageHandler, partitions));
+                }
+            }
             connection.start();
-            logger.debug("JMSMessageSubscriber {} is subscribed", getName());
+            logger.debug("JMSMessageSubscriber {} is subscribed with {} consumer(s)", getName(), sessions.size());
         } catch (Exception e) {
             logger.error("Failure to create JMS subscription", e);
             unsubscribe();
@@ -118,6 +175,70 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
         }
     }
 
+    private Session createSession() throws JMSException {
+        final Session session = connection.createSession(sessionMode.isTransacted(), sessionMode.getMode());
+        sessions.add(session);
+        return session;
+    }
+
+    private ThreadFactory newThreadFactory(final String infix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, getName() + infix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Passes the message to the handler, recording the outcome.
+     *
+     * @return true if the handler processed the message without exception.
+     */
+    private boolean handle(MessageHandler<Message> messageHandler, Message message) {
+        final String jmsMessageID = getMessageID(message);
+        final long start = System.nanoTime();
+        try {
+            messageHandler.handleMessage(message);
+            getStatistics().handled(System.nanoTime() - start);
+            logger.trace("JMS Message {} handled by {}", jmsMessageID, getName());
+            return true;
+        } catch (Exception e) {
+            // if the handler throws an exception, the message won't be acknowledged.  This
+            // leaves the message available to pick up later, by this or another subscriber.
+            getStatistics().failed();
+            logger.error("Failure handling the JMS message {}.", jmsMessageID, e);
+            return false;
+        }
+    }
+
+    /**
+     * Acknowledges, or commits, all messages received by the session up to and including the given message.
+     */
+    private void acknowledge(Session session, Message message) throws JMSException {
+        if (sessionMode.isTransacted()) {
+            session.commit();
+        } else {
+            message.acknowledge();
+        }
+        getStatistics().acknowledged();
+        logger.trace("JMS Message {} acknowledged by {}", getMessageID(message), getName());
+    }
+
+    /**
+     * Makes the unacknowledged messages of the session available for redelivery.
+     */
+    private void redeliver(Session session) throws JMSException {
+        if (sessionMode.isTransacted()) {
+            session.rollback();
+        } else if (sessionMode == SessionModeConfig.CLIENT) {
+            session.recover();
+        }
+    }
+
     private String getMessageID(Message message) {
         String jmsMessageID = "unknown";
         try {
@@ -129,18 +250,38 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
     }
 
     /**
-     * Implemented to close the JMS session and connection associated with this instance.
+     * Implemented to stop the consumer threads and close the JMS sessions and connection associated with this
+     * instance.
      */
     @Override
     public void unsubscribe() {
-        if (null != session) {
+        running = false;
+        if (null != consumerExecutor) {
+            consumerExecutor.shutdown();
+            try {
+                if (!consumerExecutor.awaitTermination(batchTimeout * 2, TimeUnit.MILLISECONDS)) {
+                    logger.warn("JMS consumers of {} did not stop in time", getName());
+                    consumerExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumerExecutor = null;
+        }
+        if (null != partitions) {
+            for (ExecutorService partition : partitions) {
+                partition.shutdownNow();
+            }
+            partitions = null;
+        }
+        for (Session session : sessions) {
             try {
                 session.close();
-                session = null;
             } catch (JMSException e) {
                 logger.error("Failure to close JMS session", e);
             }
         }
+        sessions.clear();
         if (null != connection) {
             try {
                 connection.close();
@@ -151,6 +292,216 @@ public class JmsMessageSubscriber extends MessageSubscriber<Message> {
         }
     }
 
+    /**
+     * Message listener acknowledging each message once it is handled.
+     */
+    private class SubscriptionMessageListener implements javax.jms.MessageListener {
+        private final Session session;
+        private final MessageHandler<Message> messageHandler;
+
+        SubscriptionMessageListener(Session session, MessageHandler<Message> messageHandler) {
+            this.session = session;
+            this.messageHandler = messageHandler;
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            getStatistics().received();
+            try {
+                if (handle(messageHandler, message)) {
+                    acknowledge(session, message);
+                } else if (sessionMode.isTransacted()) {
+                    redeliver(session);
+                }
+            } catch (JMSException e) {
+                logger.error("Failure to acknowledge JMS message {}.", getMessageID(message), e);
+            }
+        }
+    }
+
+    /**
+     * Polls a session for messages and acknowledges them in batches of up to batchSize messages, or whatever was
+     * received within batchTimeout.  When partitioned, messages are handled by the partition thread selected by
+     * their partition key, and the batch is acknowledged once all of its messages have been handled.
+     * <br/>
+     * A session can only acknowledge or recover all of its messages at once, so when a batch fails the ids of the
+     * messages which were handled are kept, and these messages are acknowledged without being handled again when
+     * they are redelivered, whichever later batch they are redelivered in.  An id is kept until its message is
+     * redelivered, or for HANDLED_ID_LIFETIME if the message is never redelivered to this consumer.  If the session
+     * fails, it is closed and re-created with an increasing delay.
+     */
+    private class BatchConsumer implements Runnable {
+        private final Destination destination;
+        private final MessageHandler<Message> messageHandler;
+        private final ExecutorService[] partitions;
+        /** the ids of the messages handled in failed batches, which are not handled again, and when they expire */
+        private final ConcurrentMap<String, Long> handledBeforeRedelivery = new ConcurrentHashMap<>();
+        /** whether a message of the partition failed in the current batch, only accessed by the partition thread */
+        private final boolean[] failedPartitions;
+        private Session session;
+        private MessageConsumer consumer;
+        private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+        BatchConsumer(Destination destination, Session session, MessageConsumer consumer,
+                MessageHandler<Message> messageHandler, ExecutorService[] partitions) {
+            this.destination = destination;
+            this.session = session;
+            this.consumer = consumer;
+            this.messageHandler = messageHandler;
+            this.partitions = partitions;
+            this.failedPartitions = partitions != null ? new boolean[partitions.length] : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        if (consumer == null) {
+                            session = createSession();
+                            consumer = session.createConsumer(destination, messageSelector);
+                        }
+                        consume();
+                    } catch (JMSException | RuntimeException e) {
+                        if (!running) {
+                            break;
+                        }
+                        logger.warn("JMS consumer of {} failed, reconnecting in {} ms", getName(), reconnectDelay, e);
+                        close();
+                        Thread.sleep(reconnectDelay);
+                        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void consume() throws JMSException, InterruptedException {
+            final List<Message> batch = new ArrayList<>(batchSize);
+            final List<Future<Boolean>> pending = new ArrayList<>(batchSize);
+            boolean success = true;
+            long batchStart = 0;
+            while (running) {
+                final long wait = batch.isEmpty()
+                        ? batchTimeout
+                        : Math.max(1, batchStart + batchTimeout - System.currentTimeMillis());
+                final Message message = consumer.receive(wait);
+                if (message != null) {
+                    getStatistics().received();
+                    if (batch.isEmpty()) {
+                        batchStart = System.currentTimeMillis();
+                    }
+                    batch.add(message);
+                    if (partitions != null) {
+                        final int partition = partitionFor(message);
+                        pending.add(partitions[partition].submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                // keep the order of the partition, its later messages wait for redelivery
+                                if (failedPartitions[partition] || !handleOnce(message)) {
+                                    failedPartitions[partition] = true;
+                                    return false;
+                                }
+                                return true;
+                            }
+                        }));
+                    } else if (!handleOnce(message)) {
+                        // stop the batch at the first failure, it is redelivered as a whole
+                        success = false;
+                    }
+                }
+                if (!batch.isEmpty() && (!success || batch.size() >= batchSize
+                        || System.currentTimeMillis() - batchStart >= batchTimeout)) {
+                    final List<String> handled = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (partitions == null ? success || i < batch.size() - 1 : isSuccess(pending.get(i))) {
+                            final String id = batch.get(i).getJMSMessageID();
+                            if (id != null) {
+                                handled.add(id);
+                            }
+                        } else {
+                            success = false;
+                        }
+                    }
+                    final long now = System.currentTimeMillis();
+                    expireHandledBeforeRedelivery(now);
+                    if (success) {
+                        acknowledge(session, batch.get(batch.size() - 1));
+                        reconnectDelay = MIN_RECONNECT_DELAY;
+                    } else {
+                        for (String id : handled) {
+                            handledBeforeRedelivery.put(id, now + HANDLED_ID_LIFETIME);
+                        }
+                        redeliver(session);
+                    }
+                    if (failedPartitions != null) {
+                        Arrays.fill(failedPartitions, false);
+                    }
+                    batch.clear();
+                    pending.clear();
+                    success = true;
+                }
+            }
+        }
+
+        /**
+         * Handles the message, unless it was already handled before the batch it belonged to was redelivered.
+         */
+        private boolean handleOnce(Message message) {
+            final String id = getMessageID(message);
+            if (!handledBeforeRedelivery.isEmpty() && id != null && handledBeforeRedelivery.remove(id) != null) {
+                logger.trace("JMS Message {} was handled before redelivery by {}", id, getName());
+                return true;
+            }
+            return handle(messageHandler, message);
+        }
+
+        /**
+         * Forgets the ids of handled messages which were not redelivered to this consumer in time.
+         */
+        private void expireHandledBeforeRedelivery(long now) {
+            if (handledBeforeRedelivery.isEmpty()) {
+                return;
+            }
+            for (Iterator<Long> expiries = handledBeforeRedelivery.values().iterator(); expiries.hasNext();) {
+                if (expiries.next() < now) {
+                    expiries.remove();
+                }
+            }
+        }
+
+        private boolean isSuccess(Future<Boolean> result) throws InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                logger.error("Failure handling a JMS message of {}", getName(), e);
+                return false;
+            }
+        }
+
+        private int partitionFor(Message message) throws JMSException {
+            String key = message.getStringProperty(partitionKey);
+            if (key == null) {
+                key = message.getJMSMessageID();
+            }
+            return Math.abs((key == null ? 0 : key.hashCode()) % partitions.length);
+        }
+
+        private void close() {
+            if (session != null) {
+                sessions.remove(session);
+                try {
+                    session.close();
+                } catch (JMSException e) {
+                    logger.debug("Failure to close JMS session", e);
+                }
+            }
+            session = null;
+            consumer = null;
+        }
+    }
+
     /**
      * Exception handler for the JMS connection.
      */
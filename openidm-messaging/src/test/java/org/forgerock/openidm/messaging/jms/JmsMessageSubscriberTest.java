@@ -0,0 +1,380 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.messaging.jms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.matches;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openidm.config.enhanced.InvalidException;
+import org.forgerock.openidm.messaging.MessageHandler;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the batched and partitioned consumption of the {@link JmsMessageSubscriber} against an in-memory queue.
+ */
+public class JmsMessageSubscriberTest {
+    private static final String PARTITION_KEY = "employeeId";
+
+    private static ConnectionFactory connectionFactory;
+    private static Destination destination;
+
+    private BlockingQueue<Message> queue;
+    private Session session;
+    private JmsMessageSubscriber subscriber;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        queue = new LinkedBlockingQueue<>();
+        session = mock(Session.class);
+        when(session.createConsumer(any(Destination.class), anyString())).thenReturn(new QueueConsumer(queue));
+        final Connection connection = mock(Connection.class);
+        when(connection.createSession(anyBoolean(), anyInt())).thenReturn(session);
+        connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.createConnection()).thenReturn(connection);
+        destination = mock(Destination.class);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (subscriber != null) {
+            subscriber.unsubscribe();
+        }
+    }
+
+    private JmsMessageSubscriber newSubscriber(JsonValue properties) {
+        if (!properties.isDefined("sessionMode")) {
+            properties.put("sessionMode", "CLIENT");
+        }
+        properties.put("jndi", object(
+                field("contextProperties", object(
+                        field("java.naming.factory.initial", TestContextFactory.class.getName()))),
+                field("destinationName", "testQ"),
+                field("connectionFactoryName", "TestFactory")));
+        return new JmsMessageSubscriber("test", properties);
+    }
+
+    private static Message message(String id, String key) throws JMSException {
+        final Message message = mock(Message.class);
+        when(message.getJMSMessageID()).thenReturn(id);
+        when(message.getStringProperty(PARTITION_KEY)).thenReturn(key);
+        return message;
+    }
+
+    private void awaitProcessed(long count) throws InterruptedException {
+        for (int i = 0; i < 100
+                && subscriber.getStatistics().getHandled() + subscriber.getStatistics().getFailed() < count; i++) {
+            Thread.sleep(50);
+        }
+        // leave the consumer time to complete the batch
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void testBatchIsAcknowledgedOnce() throws Exception {
+        subscriber = newSubscriber(json(object(field("batchSize", 3), field("batchTimeout", 5000))));
+        final Message first = message("1", null);
+        final Message second = message("2", null);
+        final Message third = message("3", null);
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) {
+            }
+        });
+        awaitProcessed(3);
+
+        verify(first, never()).acknowledge();
+        verify(second, never()).acknowledge();
+        verify(third, times(1)).acknowledge();
+        assertThat(subscriber.getStatistics().getHandled()).isEqualTo(3);
+        assertThat(subscriber.getStatistics().getAcknowledgedBatches()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailedBatchIsRecovered() throws Exception {
+        subscriber = newSubscriber(json(object(field("batchSize", 2), field("batchTimeout", 5000))));
+        final Message bad = message("bad", null);
+        queue.add(bad);
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) throws ResourceException {
+                throw new InternalServerErrorException("failed");
+            }
+        });
+        awaitProcessed(1);
+
+        verify(bad, never()).acknowledge();
+        verify(session, times(1)).recover();
+        assertThat(subscriber.getStatistics().getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecoveredMessagesAreNotHandledTwice() throws Exception {
+        subscriber = newSubscriber(json(object(field("batchSize", 2), field("batchTimeout", 5000))));
+        final Message first = message("1", null);
+        final Message second = message("2", null);
+        queue.add(first);
+        queue.add(second);
+        // the recovered batch is redelivered
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                queue.add(first);
+                queue.add(second);
+                return null;
+            }
+        }).when(session).recover();
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) throws ResourceException {
+                try {
+                    handled.add(message.getJMSMessageID());
+                } catch (JMSException e) {
+                    throw new InternalServerErrorException(e);
+                }
+                if (handled.size() == 2) {
+                    throw new InternalServerErrorException("failed once");
+                }
+            }
+        });
+        awaitProcessed(3);
+
+        assertThat(handled).containsExactly("1", "2", "2");
+        verify(session, times(1)).recover();
+        verify(second, times(1)).acknowledge();
+    }
+
+    @Test
+    public void testRecoveredMessagesInALaterBatchAreNotHandledTwice() throws Exception {
+        subscriber = newSubscriber(json(object(field("batchSize", 2), field("batchTimeout", 5000))));
+        final Message first = message("1", null);
+        final Message second = message("2", null);
+        queue.add(first);
+        queue.add(second);
+        // other messages fill the next batch before the recovered batch is redelivered
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws JMSException {
+                queue.add(message("3", null));
+                queue.add(message("4", null));
+                queue.add(first);
+                queue.add(second);
+                return null;
+            }
+        }).when(session).recover();
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) throws ResourceException {
+                try {
+                    handled.add(message.getJMSMessageID());
+                } catch (JMSException e) {
+                    throw new InternalServerErrorException(e);
+                }
+                if (handled.size() == 2) {
+                    throw new InternalServerErrorException("failed once");
+                }
+            }
+        });
+        awaitProcessed(5);
+
+        assertThat(handled).containsExactly("1", "2", "3", "4", "2");
+        verify(session, times(1)).recover();
+        verify(second, times(1)).acknowledge();
+    }
+
+    @Test
+    public void testConsumerReconnectsAfterFailure() throws Exception {
+        final MessageConsumer failing = mock(MessageConsumer.class);
+        when(failing.receive(anyLong())).thenThrow(new JMSException("connection lost"));
+        when(session.createConsumer(any(Destination.class), anyString()))
+                .thenReturn(failing, new QueueConsumer(queue));
+        subscriber = newSubscriber(json(object(field("batchSize", 2), field("batchTimeout", 100))));
+        final Message message = message("1", null);
+        queue.add(message);
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) {
+            }
+        });
+        awaitProcessed(1);
+
+        verify(session, times(1)).close();
+        verify(message, times(1)).acknowledge();
+    }
+
+    @Test(expectedExceptions = InvalidException.class)
+    public void testBatchingRequiresAcknowledgedSessions() {
+        newSubscriber(json(object(field("sessionMode", "AUTO"), field("batchSize", 10))));
+    }
+
+    @Test
+    public void testPartitionedMessagesKeepOrderPerKey() throws Exception {
+        subscriber = newSubscriber(json(object(
+                field("concurrentConsumers", 4),
+                field("batchSize", 10),
+                field("batchTimeout", 200),
+                field("partitionKey", PARTITION_KEY))));
+        for (int i = 0; i < 40; i++) {
+            queue.add(message(String.valueOf(i), "employee" + (i % 5)));
+        }
+        final Map<String, List<Integer>> handled = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+
+        subscriber.subscribe(new MessageHandler<Message>() {
+            @Override
+            public void handleMessage(Message message) throws ResourceException {
+                try {
+                    final String key = message.getStringProperty(PARTITION_KEY);
+                    synchronized (handled) {
+                        if (!handled.containsKey(key)) {
+                            handled.put(key, new ArrayList<Integer>());
+                        }
+                    }
+                    // random work to interleave the partitions
+                    Thread.sleep((long) (Math.random() * 5));
+                    handled.get(key).add(Integer.valueOf(message.getJMSMessageID()));
+                } catch (JMSException | InterruptedException e) {
+                    throw new InternalServerErrorException(e);
+                }
+            }
+        });
+        awaitProcessed(40);
+
+        assertThat(subscriber.getStatistics().getHandled()).isEqualTo(40);
+        assertThat(handled).hasSize(5);
+        for (List<Integer> ids : handled.values()) {
+            assertThat(ids).hasSize(8).isSorted();
+        }
+    }
+
+    /**
+     * A context factory returning the mocked connection factory and destination.  Static class so that it can be
+     * instantiated via the JNDI context loader.
+     */
+    public static class TestContextFactory implements InitialContextFactory {
+
+        @Override
+        public javax.naming.Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+            try {
+                javax.naming.Context context = mock(javax.naming.Context.class);
+                when(context.lookup(matches("TestFactory"))).thenReturn(connectionFactory);
+                when(context.lookup(matches("testQ"))).thenReturn(destination);
+                return context;
+            } catch (Exception e) {
+                throw new IllegalStateException("trouble setting up testing initial context", e);
+            }
+        }
+    }
+
+    /**
+     * A MessageConsumer receiving from an in-memory queue.
+     */
+    private static class QueueConsumer implements MessageConsumer {
+        private final BlockingQueue<Message> queue;
+
+        QueueConsumer(BlockingQueue<Message> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public String getMessageSelector() throws JMSException {
+            return null;
+        }
+
+        @Override
+        public MessageListener getMessageListener() throws JMSException {
+            return null;
+        }
+
+        @Override
+        public void setMessageListener(MessageListener listener) throws JMSException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message receive() throws JMSException {
+            return receive(0);
+        }
+
+        @Override
+        public Message receive(long timeout) throws JMSException {
+            try {
+                return queue.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public Message receiveNoWait() throws JMSException {
+            return queue.poll();
+        }
+
+        @Override
+        public void close() throws JMSException {
+        }
+    }
+}
@@ -48,6 +48,8 @@ public class HikariCPDataSourceFactory implements DataSourceFactory {
         if (cfg.getPoolName() == null || cfg.getPoolName().isEmpty()) {
             cfg.setPoolName(UUID.randomUUID().toString());
         }
+        // expose active/idle connection counts and waiting threads to the database health endpoint
+        cfg.setRegisterMbeans(true);
         
         logger.debug("HikariDataSource: {}", cfg);
         return new HikariDataSource(cfg);
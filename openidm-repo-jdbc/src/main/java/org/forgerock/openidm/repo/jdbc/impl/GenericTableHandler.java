@@ -98,6 +98,9 @@ public class GenericTableHandler implements TableHandler {
     final boolean enableBatching; // Whether to use JDBC statement batching.
     int maxBatchSize;       // The maximum number of statements to batch together. If max batch size is 1, do not use batching.
 
+    // Whether update and delete check the revision in their WHERE clause rather than reading the row FOR UPDATE.
+    private boolean optimisticLocking;
+
     public enum QueryDefinition {
         READTYPEQUERYSTR,
         CREATETYPEQUERYSTR,
@@ -108,7 +111,9 @@ public class GenericTableHandler implements TableHandler {
         DELETEQUERYSTR,
         PROPCREATEQUERYSTR,
         PROPDELETEQUERYSTR,
-        QUERYALLIDS
+        QUERYALLIDS,
+        OPTIMISTICUPDATEQUERYSTR,
+        READIDQUERYSTR
     }
 
     @Override
@@ -169,6 +174,31 @@ public class GenericTableHandler implements TableHandler {
         }
     }
 
+    /**
+     * Sets whether update and delete check the revision in their WHERE clause and decide on the outcome from the
+     * number of affected rows, rather than reading the row FOR UPDATE first.
+     *
+     * @param optimisticLocking true to use optimistic locking
+     */
+    public void setOptimisticLocking(boolean optimisticLocking) {
+        this.optimisticLocking = optimisticLocking;
+    }
+
+    /**
+     * @return whether update and delete use optimistic locking
+     */
+    public boolean isOptimisticLocking() {
+        return optimisticLocking;
+    }
+
+    /**
+     * @return whether searchable properties are written to, and queried from, the properties table; false for
+     * handlers which search the full object itself
+     */
+    protected boolean usesPropertiesTable() {
+        return true;
+    }
+
     /**
      * Get the length of the searchable index.
      */
@@ -193,6 +223,8 @@ public class GenericTableHandler implements TableHandler {
         result.put(QueryDefinition.CREATEQUERYSTR, "INSERT INTO " + mainTable + " (objecttypes_id, objectid, rev, fullobject) VALUES (?,?,?,?)");
         result.put(QueryDefinition.UPDATEQUERYSTR, "UPDATE " + mainTable + " obj SET obj.objectid = ?, obj.rev = ?, obj.fullobject = ? WHERE obj.id = ?");
         result.put(QueryDefinition.DELETEQUERYSTR, "DELETE obj FROM " + mainTable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id AND objtype.objecttype = ? WHERE obj.objectid = ? AND obj.rev = ?");
+        result.put(QueryDefinition.OPTIMISTICUPDATEQUERYSTR, "UPDATE " + mainTable + " obj SET obj.objectid = ?, obj.rev = ?, obj.fullobject = ? WHERE obj.objecttypes_id = (SELECT objtype.id FROM " + typeTable + " objtype WHERE objtype.objecttype = ?) AND obj.objectid = ? AND obj.rev = ?");
+        result.put(QueryDefinition.READIDQUERYSTR, "SELECT obj.id FROM " + mainTable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id WHERE objtype.objecttype = ? AND obj.objectid = ?");
 
         /* DB2 Script
         deleteQueryStr = "DELETE FROM " + dbSchemaName + "." + mainTableName + " obj WHERE EXISTS (SELECT 1 FROM " + dbSchemaName + ".objecttypes objtype WHERE obj.objecttypes_id = objtype.id AND objtype.objecttype = ?) AND obj.objectid = ? AND obj.rev = ?";
@@ -298,7 +330,7 @@ public class GenericTableHandler implements TableHandler {
      * @throws SQLException if the insert failed
      */
     void writeValueProperties(String fullId, long dbId, String localId, JsonValue value, Connection connection) throws SQLException {
-        if (cfg.hasPossibleSearchableProperties()) {
+        if (usesPropertiesTable() && cfg.hasPossibleSearchableProperties()) {
             Integer batchingCount = 0;
             PreparedStatement propCreateStatement = getPreparedStatement(connection, QueryDefinition.PROPCREATEQUERYSTR);
             try {
@@ -534,6 +566,11 @@ public class GenericTableHandler implements TableHandler {
         String newRev = Integer.toString(revInt);
         obj.put("_rev", newRev); // Save the rev in the object, and return the changed rev from the create.
 
+        if (optimisticLocking) {
+            optimisticUpdate(fullId, type, localId, rev, newRev, obj, connection);
+            return;
+        }
+
         ResultSet rs = null;
         PreparedStatement updateStatement = null;
         PreparedStatement deletePropStatement = null;
@@ -548,7 +585,6 @@ public class GenericTableHandler implements TableHandler {
                 throw new PreconditionFailedException("Update rejected as current Object revision " + existingRev + " is different than expected by caller (" + rev + "), the object has changed since retrieval.");
             }
             updateStatement = getPreparedStatement(connection, QueryDefinition.UPDATEQUERYSTR);
-            deletePropStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEQUERYSTR);
 
             // Support changing object identifier
             String newLocalId = (String) obj.get("_id");
@@ -572,15 +608,18 @@ public class GenericTableHandler implements TableHandler {
                 throw new InternalServerErrorException("Update execution did not result in updating 1 row as expected. Updated rows: " + updateCount);
             }
 
-            JsonValue jv = new JsonValue(obj);
-            // TODO: only update what changed?
-            logger.trace("Populating prepared statement {} for {} {} {}", deletePropStatement, fullId, type, localId);
-            deletePropStatement.setString(1, type);
-            deletePropStatement.setString(2, localId);
-            logger.debug("Update properties del statement: {}", deletePropStatement);
-            int deleteCount = deletePropStatement.executeUpdate();
-            logger.trace("Deleted child rows: {} for: {}", deleteCount, fullId);
-            writeValueProperties(fullId, dbId, localId, jv, connection);
+            if (usesPropertiesTable()) {
+                JsonValue jv = new JsonValue(obj);
+                // TODO: only update what changed?
+                deletePropStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEQUERYSTR);
+                logger.trace("Populating prepared statement {} for {} {} {}", deletePropStatement, fullId, type, localId);
+                deletePropStatement.setString(1, type);
+                deletePropStatement.setString(2, localId);
+                logger.debug("Update properties del statement: {}", deletePropStatement);
+                int deleteCount = deletePropStatement.executeUpdate();
+                logger.trace("Deleted child rows: {} for: {}", deleteCount, fullId);
+                writeValueProperties(fullId, dbId, localId, jv, connection);
+            }
         } finally {
             if (rs != null) {
                 // Ensure associated statement also is closed
@@ -593,6 +632,139 @@ public class GenericTableHandler implements TableHandler {
         }
     }
 
+    /**
+     * Updates an object with the revision check in the UPDATE statement, without reading it FOR UPDATE first. Only
+     * if no row was updated is the object read to tell a changed revision from a missing object.
+     *
+     * @param fullId qualified id of component type and id
+     * @param type the component type
+     * @param localId the id of the object within the component type
+     * @param rev the revision expected by the caller
+     * @param newRev the revision of the updated object
+     * @param obj the updated object
+     * @param connection the connection to use
+     * @throws PreconditionFailedException if the object has a different revision
+     * @throws NotFoundException if the object does not exist
+     * @throws InternalServerErrorException if more than one row was updated
+     * @throws SQLException for general DB issues
+     * @throws IOException if the object could not be serialized
+     */
+    protected void optimisticUpdate(String fullId, String type, String localId, String rev, String newRev,
+            Map<String, Object> obj, Connection connection)
+            throws SQLException, IOException, PreconditionFailedException, NotFoundException, InternalServerErrorException {
+        PreparedStatement updateStatement = null;
+        PreparedStatement deletePropStatement = null;
+        try {
+            // Support changing object identifier
+            String newLocalId = (String) obj.get("_id");
+            if (newLocalId != null && !localId.equals(newLocalId)) {
+                logger.debug("Object identifier is changing from " + localId + " to " + newLocalId);
+            } else {
+                newLocalId = localId; // If it hasn't changed, use the existing ID
+                obj.put("_id", newLocalId); // Ensure the ID is saved in the object
+            }
+            String objString = mapper.writeValueAsString(obj);
+
+            updateStatement = getPreparedStatement(connection, QueryDefinition.OPTIMISTICUPDATEQUERYSTR);
+            logger.trace("Populating prepared statement {} for {} {} {} {} {}", updateStatement, fullId, newLocalId, newRev, objString, rev);
+            updateStatement.setString(1, newLocalId);
+            updateStatement.setString(2, newRev);
+            updateStatement.setString(3, objString);
+            updateStatement.setString(4, type);
+            updateStatement.setString(5, localId);
+            updateStatement.setString(6, rev);
+            logger.debug("Update statement: {}", updateStatement);
+            int updateCount = updateStatement.executeUpdate();
+            logger.trace("Updated rows: {} for {}", updateCount, fullId);
+            if (updateCount == 0) {
+                throw revisionMismatch("Update", fullId, type, localId, rev, connection);
+            } else if (updateCount > 1) {
+                throw new InternalServerErrorException("Update execution did not result in updating 1 row as expected. Updated rows: " + updateCount);
+            }
+
+            if (usesPropertiesTable()) {
+                deletePropStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEQUERYSTR);
+                logger.trace("Populating prepared statement {} for {} {} {}", deletePropStatement, fullId, type, newLocalId);
+                deletePropStatement.setString(1, type);
+                deletePropStatement.setString(2, newLocalId);
+                logger.debug("Update properties del statement: {}", deletePropStatement);
+                int deleteCount = deletePropStatement.executeUpdate();
+                logger.trace("Deleted child rows: {} for: {}", deleteCount, fullId);
+                if (cfg.hasPossibleSearchableProperties()) {
+                    writeValueProperties(fullId, readDbId(fullId, type, newLocalId, connection), newLocalId,
+                            new JsonValue(obj), connection);
+                }
+            }
+        } finally {
+            CleanupHelper.loggedClose(updateStatement);
+            CleanupHelper.loggedClose(deletePropStatement);
+        }
+    }
+
+    /**
+     * Reads the database id of an object, which the update has locked already.
+     *
+     * @param fullId qualified id of component type and id
+     * @param type the component type
+     * @param localId the id of the object within the component type
+     * @param connection the connection to use
+     * @return the database id of the object
+     * @throws InternalServerErrorException if the object is not found
+     * @throws SQLException for general DB issues
+     */
+    private long readDbId(String fullId, String type, String localId, Connection connection)
+            throws InternalServerErrorException, SQLException {
+        PreparedStatement readIdStatement = null;
+        ResultSet rs = null;
+        try {
+            readIdStatement = getPreparedStatement(connection, QueryDefinition.READIDQUERYSTR);
+            readIdStatement.setString(1, type);
+            readIdStatement.setString(2, localId);
+            rs = readIdStatement.executeQuery();
+            if (!rs.next()) {
+                throw new InternalServerErrorException("Updated object " + fullId + " not found in " + type);
+            }
+            return rs.getLong("id");
+        } finally {
+            CleanupHelper.loggedClose(rs);
+            CleanupHelper.loggedClose(readIdStatement);
+        }
+    }
+
+    /**
+     * Determines why an optimistic update or delete did not affect a row.
+     *
+     * @param operation the operation, for the error message
+     * @param fullId qualified id of component type and id
+     * @param type the component type
+     * @param localId the id of the object within the component type
+     * @param rev the revision expected by the caller
+     * @param connection the connection to use
+     * @return the exception to throw if the object exists with a different revision
+     * @throws NotFoundException if the object does not exist
+     * @throws SQLException for general DB issues
+     */
+    PreconditionFailedException revisionMismatch(String operation, String fullId, String type, String localId,
+            String rev, Connection connection) throws NotFoundException, SQLException {
+        PreparedStatement readStatement = null;
+        ResultSet rs = null;
+        try {
+            readStatement = getPreparedStatement(connection, QueryDefinition.READQUERYSTR);
+            readStatement.setString(1, type);
+            readStatement.setString(2, localId);
+            rs = readStatement.executeQuery();
+            if (!rs.next()) {
+                throw new NotFoundException("Object " + fullId + " not found in " + type);
+            }
+            return new PreconditionFailedException(operation + " rejected as current Object revision "
+                    + rs.getString("rev") + " is different than expected by caller (" + rev + "), "
+                    + "the object has changed since retrieval.");
+        } finally {
+            CleanupHelper.loggedClose(rs);
+            CleanupHelper.loggedClose(readStatement);
+        }
+    }
+
     /**
      * @see org.forgerock.openidm.repo.jdbc.impl.GenericTableHandler#delete(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.sql.Connection)
      */
@@ -601,6 +773,12 @@ public class GenericTableHandler implements TableHandler {
             throws PreconditionFailedException, InternalServerErrorException, NotFoundException, SQLException, IOException {
         logger.debug("Delete with fullid {}", fullId);
 
+        // A delete of any revision has to find out the current revision first
+        if (optimisticLocking && !"*".equals(rev)) {
+            optimisticDelete(fullId, type, localId, rev, connection);
+            return;
+        }
+
         // First check if the revision matches and select it for UPDATE
         ResultSet existing = null;
         PreparedStatement deleteStatement = null;
@@ -644,6 +822,46 @@ public class GenericTableHandler implements TableHandler {
         }
     }
 
+    /**
+     * Deletes an object with the revision check in the DELETE statement, without reading it FOR UPDATE first.
+     *
+     * @param fullId qualified id of component type and id
+     * @param type the component type
+     * @param localId the id of the object within the component type
+     * @param rev the revision expected by the caller
+     * @param connection the connection to use
+     * @throws PreconditionFailedException if the object has a different revision
+     * @throws NotFoundException if the object does not exist
+     * @throws SQLException for general DB issues
+     */
+    private void optimisticDelete(String fullId, String type, String localId, String rev, Connection connection)
+            throws PreconditionFailedException, NotFoundException, SQLException {
+        PreparedStatement deleteStatement = null;
+        try {
+            deleteStatement = getPreparedStatement(connection, QueryDefinition.DELETEQUERYSTR);
+            logger.trace("Populating prepared statement {} for {} {} {} {}", deleteStatement, fullId, type, localId, rev);
+
+            // Rely on ON DELETE CASCADE for connected object properties to be deleted
+            deleteStatement.setString(1, type);
+            deleteStatement.setString(2, localId);
+            deleteStatement.setString(3, rev);
+            logger.debug("Delete statement: {}", deleteStatement);
+
+            int deletedRows = deleteStatement.executeUpdate();
+            logger.trace("Deleted {} rows for id : {} {}", deletedRows, localId);
+            if (deletedRows < 1) {
+                try {
+                    throw revisionMismatch("Delete", fullId, type, localId, rev, connection);
+                } catch (NotFoundException ex) {
+                    throw new NotFoundException("Object does not exist for delete on: " + fullId);
+                }
+            }
+            logger.debug("delete for id succeeded: {} revision: {}", localId, rev);
+        } finally {
+            CleanupHelper.loggedClose(deleteStatement);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.forgerock.openidm.repo.jdbc.impl.TableHandler#delete(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.sql.Connection)
      */
@@ -43,6 +43,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -70,6 +71,7 @@ import org.forgerock.json.resource.CountPolicy;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
 import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.NotFoundException;
 import org.forgerock.json.resource.NotSupportedException;
 import org.forgerock.json.resource.PatchRequest;
 import org.forgerock.json.resource.PreconditionFailedException;
@@ -77,6 +79,7 @@ import org.forgerock.json.resource.QueryRequest;
 import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.QueryResponse;
 import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.Request;
 import org.forgerock.json.resource.RequestHandler;
 import org.forgerock.json.resource.Requests;
 import org.forgerock.json.resource.ResourceResponse;
@@ -84,6 +87,7 @@ import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
 import org.forgerock.openidm.config.enhanced.InvalidException;
+import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.crypto.CryptoService;
 import org.forgerock.openidm.repo.RepoBootService;
@@ -91,6 +95,7 @@ import org.forgerock.openidm.repo.RepositoryService;
 import org.forgerock.openidm.repo.jdbc.DatabaseType;
 import org.forgerock.openidm.repo.jdbc.ErrorType;
 import org.forgerock.openidm.repo.jdbc.TableHandler;
+import org.forgerock.openidm.repo.jdbc.impl.GenericTableHandler.QueryDefinition;
 import org.forgerock.openidm.util.Accessor;
 import org.forgerock.util.promise.Promise;
 import org.osgi.framework.BundleContext;
@@ -122,6 +127,17 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     public static final String CONFIG_DB_TYPE = "dbType";
     public static final String CONFIG_MAX_TX_RETRY = "maxTxRetry";
     public static final String CONFIG_MAX_BATCH_SIZE = "maxBatchSize";
+    public static final String CONFIG_SLOW_QUERY_THRESHOLD = "slowQueryThreshold";
+    public static final String CONFIG_READ_REPLICAS = "readReplicas";
+    public static final String CONFIG_OPTIMISTIC_LOCKING = "optimisticLocking";
+
+    // Statement keys for query filters, query expressions and command expressions
+    private static final String STATEMENT_QUERY_FILTER = "_queryFilter";
+    private static final String STATEMENT_QUERY_EXPRESSION = "_queryExpression";
+    private static final String STATEMENT_COMMAND_EXPRESSION = "_commandExpression";
+
+    /** The resource type of the read replica heartbeats */
+    private static final String HEARTBEAT_TYPE = "replica/heartbeat";
 
     Map<String, TableHandler> tableHandlers;
     TableHandler defaultTableHandler;
@@ -131,6 +147,9 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     private JsonValue config;
     private int maxTxRetry = 5;
 
+    /** Connection, statement and retry statistics, exposed via JMX */
+    private final JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+
     /** CryptoService for detecting whether a value is encrypted */
     @Reference
     protected CryptoService cryptoService;
@@ -143,16 +162,20 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     private DataSourceService dataSourceService;
 
+    /** Routes reads and queries to the read replicas, if configured */
+    private volatile ReadReplicaRouter readReplicaRouter;
+
     @Reference(referenceInterface = DataSourceService.class,
             cardinality = ReferenceCardinality.MANDATORY_MULTIPLE,
             bind = "bindDataSourceService",
             unbind = "unbindDataSourceService",
             policy = ReferencePolicy.DYNAMIC,
             strategy = ReferenceStrategy.EVENT)
-    private Map<String, DataSourceService> dataSourceServices = new HashMap<>();
+    private Map<String, DataSourceService> dataSourceServices = new ConcurrentHashMap<>();
 
     protected void bindDataSourceService(DataSourceService service, Map<String, Object> properties) {
         dataSourceServices.put(properties.get(ServerConstants.CONFIG_FACTORY_PID).toString(), service);
+        dataSourcesChanged();
     }
 
     protected void unbindDataSourceService(DataSourceService service, Map<String, Object> properties) {
@@ -162,6 +185,17 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 break;
             }
         }
+        dataSourcesChanged();
+    }
+
+    /**
+     * Lets the read replicas follow the data sources coming and going.
+     */
+    private void dataSourcesChanged() {
+        final ReadReplicaRouter router = readReplicaRouter;
+        if (router != null) {
+            router.dataSourcesChanged();
+        }
     }
 
     /**
@@ -200,6 +234,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
             throw ex;
         }
         init(config);
+        statistics.register();
         logger.info("Repository started.");
     }
 
@@ -212,6 +247,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     @Deactivate
     void deactivate(ComponentContext compContext) {
         logger.debug("Deactivating Service {}", compContext);
+        statistics.unregister();
         logger.info("Repository stopped.");
     }
 
@@ -243,7 +279,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     @Override
     public Promise<ResourceResponse, ResourceException> handleRead(Context context, ReadRequest request) {
         try {
-            return read(request).asPromise();
+            return read(request, isReadFromPrimary(request), ReadReplicaRouter.clientOf(context)).asPromise();
         } catch (final ResourceException e) {
             return e.asPromise();
         } catch (Exception e) {
@@ -253,25 +289,42 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public ResourceResponse read(ReadRequest request) throws ResourceException {
+        return read(request, true, null);
+    }
+
+    /**
+     * Tells whether a request asks to be served by the primary rather than a read replica, e.g. because an update
+     * will be conditional on the revision read.
+     *
+     * @param request the read or query request
+     * @return true if {@link ServerConstants#PARAM_READ_FROM_PRIMARY} is set
+     */
+    private static boolean isReadFromPrimary(Request request) {
+        return Boolean.parseBoolean(request.getAdditionalParameter(ServerConstants.PARAM_READ_FROM_PRIMARY));
+    }
+
+    /**
+     * Reads an object from a read replica, or from the primary data source.
+     *
+     * @param request the read request
+     * @param fromPrimary whether the object has to be read from the primary, e.g. to read back a write
+     * @param client the client reading, for read-your-writes, or null to read from the primary
+     * @return the object
+     * @throws ResourceException if reading the object failed
+     */
+    private ResourceResponse read(final ReadRequest request, boolean fromPrimary, String client)
+            throws ResourceException {
         if (request.getResourcePathObject().size() < 2) {
             throw new BadRequestException(
                     "The repository requires clients to supply an identifier for the object to read.");
         }
         // Parse the remaining resourceName
         final String type = request.getResourcePathObject().parent().toString();
-        final String localId = request.getResourcePathObject().leaf();
-
-        Connection connection = null;
+        final ReadReplicaRouter.ReadOperation<ResourceResponse> operation = readOperation(request);
         try {
-            connection = getConnection();
-            connection.setAutoCommit(true); // Ensure this does not get
-                                            // transaction isolation handling
-            TableHandler handler = getTableHandler(type);
-            if (handler == null) {
-                throw newResourceException(ResourceException.INTERNAL_ERROR,
-                        "No handler configured for resource type " + type);
-            }
-            return handler.read(request.getResourcePath(), type, localId, connection);
+            return fromPrimary
+                    ? operation.read(dataSourceService)
+                    : readReplicaRouter.read(client, type, operation);
         } catch (SQLException ex) {
             if (logger.isDebugEnabled()) {
                 logger.debug("SQL Exception in read of {} with error code {}, sql state {}",
@@ -284,15 +337,50 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         } catch (IOException ex) {
             logger.debug("IO Exception in read of {}", request.getResourcePath(), ex);
             throw new InternalServerErrorException("Conversion of read object failed", ex);
-        } finally {
-            CleanupHelper.loggedClose(connection);
         }
     }
 
+    /**
+     * Creates the read of an object, to be done on the data source the object is read from.
+     *
+     * @param request the read request, with a resource path of at least two elements
+     * @return the read
+     */
+    private ReadReplicaRouter.ReadOperation<ResourceResponse> readOperation(final ReadRequest request) {
+        final String type = request.getResourcePathObject().parent().toString();
+        final String localId = request.getResourcePathObject().leaf();
+        return new ReadReplicaRouter.ReadOperation<ResourceResponse>() {
+            @Override
+            public ResourceResponse read(DataSourceService source)
+                    throws SQLException, ResourceException, IOException {
+                Connection connection = null;
+                try {
+                    connection = getConnection(source);
+                    connection.setAutoCommit(true); // Ensure this does not get
+                                                    // transaction isolation handling
+                    TableHandler handler = getTableHandler(type);
+                    if (handler == null) {
+                        throw newResourceException(ResourceException.INTERNAL_ERROR,
+                                "No handler configured for resource type " + type);
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        return handler.read(request.getResourcePath(), type, localId, connection);
+                    } finally {
+                        statistics.statementExecuted(QueryDefinition.READQUERYSTR.name(), type,
+                                System.nanoTime() - start);
+                    }
+                } finally {
+                    CleanupHelper.loggedClose(connection);
+                }
+            }
+        };
+    }
+
     @Override
     public Promise<ResourceResponse, ResourceException> handleCreate(Context context, CreateRequest request) {
         try {
-            return create(request).asPromise();
+            return create(request, ReadReplicaRouter.clientOf(context)).asPromise();
         } catch (final ResourceException e) {
             return e.asPromise();
         } catch (Exception e) {
@@ -302,6 +390,10 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public ResourceResponse create(CreateRequest request) throws ResourceException {
+        return create(request, null);
+    }
+
+    private ResourceResponse create(CreateRequest request, String client) throws ResourceException {
         if (request.getResourcePathObject().isEmpty()) {
             throw new BadRequestException(
                     "The repository requires clients to supply a type for the object to create.");
@@ -330,9 +422,16 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 connection = getConnection();
                 connection.setAutoCommit(false);
 
-                handler.create(fullId, type, localId, obj.asMap(), connection);
+                final long start = System.nanoTime();
+                try {
+                    handler.create(fullId, type, localId, obj.asMap(), connection);
+                } finally {
+                    statistics.statementExecuted(QueryDefinition.CREATEQUERYSTR.name(), type,
+                            System.nanoTime() - start);
+                }
 
                 connection.commit();
+                readReplicaRouter.written(client, type);
                 logger.debug("Committed created object for id: {}", fullId);
 
             } catch (SQLException ex) {
@@ -351,6 +450,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 if (handler.isRetryable(ex, connection)) {
                     if (tryCount <= maxTxRetry) {
                         retry = true;
+                        statistics.retried();
                         logger.debug("Retryable exception encountered, retry attempt {} of {} : {}", tryCount, maxTxRetry, ex.getMessage());
                     }
                 }
@@ -384,7 +484,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     @Override
     public Promise<ResourceResponse, ResourceException> handleUpdate(Context context, UpdateRequest request) {
         try {
-            return update(request).asPromise();
+            return update(request, ReadReplicaRouter.clientOf(context)).asPromise();
         } catch (final ResourceException e) {
             return e.asPromise();
         } catch (Exception e) {
@@ -394,6 +494,10 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public ResourceResponse update(UpdateRequest request) throws ResourceException {
+        return update(request, null);
+    }
+
+    private ResourceResponse update(UpdateRequest request, String client) throws ResourceException {
         if (request.getResourcePathObject().size() < 2) {
             throw new BadRequestException(
                     "The repository requires clients to supply an identifier for the object to update.");
@@ -405,7 +509,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         Map<String, Object> obj = request.getContent().asMap();
         String rev = request.getRevision() != null && !"".equals(request.getRevision())
                 ? request.getRevision()
-                : read(Requests.newReadRequest(request.getResourcePath())).getRevision();
+                : read(Requests.newReadRequest(request.getResourcePath()), true, client).getRevision();
 
         Connection connection = null;
         Integer previousIsolationLevel = null;
@@ -425,9 +529,16 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
                 connection.setAutoCommit(false);
 
-                handler.update(request.getResourcePath(), type, localId, rev, obj, connection);
+                final long start = System.nanoTime();
+                try {
+                    handler.update(request.getResourcePath(), type, localId, rev, obj, connection);
+                } finally {
+                    statistics.statementExecuted(QueryDefinition.UPDATEQUERYSTR.name(), type,
+                            System.nanoTime() - start);
+                }
 
                 connection.commit();
+                readReplicaRouter.written(client, type);
                 logger.debug("Commited updated object for id: {}", request.getResourcePath());
             } catch (SQLException ex) {
                 if (logger.isDebugEnabled()) {
@@ -438,6 +549,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 if (handler.isRetryable(ex, connection)) {
                     if (tryCount <= maxTxRetry) {
                         retry = true;
+                        statistics.retried();
                         logger.debug("Retryable exception encountered, retry attempt {} of {} : {}", tryCount, maxTxRetry, ex.getMessage());
                     }
                 }
@@ -473,13 +585,13 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         } while (retry);
 
         // Return the newly created resource
-        return read(Requests.newReadRequest(request.getResourcePath()));
+        return read(Requests.newReadRequest(request.getResourcePath()), true, client);
     }
 
     @Override
     public Promise<ResourceResponse, ResourceException> handleDelete(Context context, DeleteRequest request) {
         try {
-            return delete(request).asPromise();
+            return delete(request, ReadReplicaRouter.clientOf(context)).asPromise();
         } catch (final ResourceException e) {
             return e.asPromise();
         } catch (Exception e) {
@@ -489,6 +601,10 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public ResourceResponse delete(DeleteRequest request) throws ResourceException {
+        return delete(request, null);
+    }
+
+    private ResourceResponse delete(DeleteRequest request, String client) throws ResourceException {
         if (request.getResourcePathObject().size() < 2) {
             throw new BadRequestException(
                     "The repository requires clients to supply an identifier for the object to update.");
@@ -522,9 +638,16 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 // Read in the resource before deleting
                 result = handler.read(request.getResourcePath(), type, localId, connection);
 
-                handler.delete(request.getResourcePath(), type, localId, request.getRevision(), connection);
+                final long start = System.nanoTime();
+                try {
+                    handler.delete(request.getResourcePath(), type, localId, request.getRevision(), connection);
+                } finally {
+                    statistics.statementExecuted(QueryDefinition.DELETEQUERYSTR.name(), type,
+                            System.nanoTime() - start);
+                }
 
                 connection.commit();
+                readReplicaRouter.written(client, type);
                 logger.debug("Commited deleted object for id: {}", request.getResourcePath());
             } catch (ResourceException ex) {
                 logger.debug("ResourceException in delete of {}", request.getResourcePath(), ex);
@@ -544,6 +667,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 if (handler.isRetryable(ex, connection)) {
                     if (tryCount <= maxTxRetry) {
                         retry = true;
+                        statistics.retried();
                         logger.debug("Retryable exception encountered, retry attempt {} of {} : {}", tryCount, maxTxRetry, ex.getMessage());
                     }
                 }
@@ -602,7 +726,8 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
             // Once cookie is processed Queries.query() can rely on the offset.
             request.setPagedResultsOffset(firstResultIndex);
 
-            List<ResourceResponse> results = query(request);
+            final String client = isReadFromPrimary(request) ? null : ReadReplicaRouter.clientOf(context);
+            List<ResourceResponse> results = query(request, client);
             for (ResourceResponse result : results) {
                 handler.handleResource(result);
             }
@@ -633,7 +758,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                             countRequest.setPagedResultsOffset(0);
                             countRequest.setPagedResultsCookie(null);
 
-                            List<ResourceResponse> countResult = query(countRequest);
+                            List<ResourceResponse> countResult = query(countRequest, client);
 
                             if (countResult != null && !countResult.isEmpty()) {
                                 resultCount = countResult.get(0).getContent().get("total").asInteger();
@@ -681,10 +806,22 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public List<ResourceResponse> query(QueryRequest request) throws ResourceException {
+        return query(request, null);
+    }
+
+    /**
+     * Queries a read replica, or the primary data source.
+     *
+     * @param request the query request
+     * @param client the client querying, for read-your-writes, or null to query the primary
+     * @return the query results
+     * @throws ResourceException if the query failed
+     */
+    private List<ResourceResponse> query(final QueryRequest request, String client) throws ResourceException {
         String fullId = request.getResourcePath();
-        String type = trimStartingSlash(fullId);
+        final String type = trimStartingSlash(fullId);
         logger.trace("Full id: {} Extracted type: {}", fullId, type);
-        Map<String, Object> params = new HashMap<>();
+        final Map<String, Object> params = new HashMap<>();
         params.putAll(request.getAdditionalParameters());
         params.put(QUERY_ID, request.getQueryId());
         params.put(QUERY_EXPRESSION, request.getQueryExpression());
@@ -693,18 +830,40 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         params.put(PAGED_RESULTS_OFFSET, request.getPagedResultsOffset());
         params.put(SORT_KEYS, request.getSortKeys());  
 
-        Connection connection = null;
         try {
-            TableHandler tableHandler = getTableHandler(type);
+            final TableHandler tableHandler = getTableHandler(type);
             if (tableHandler == null) {
                 throw newResourceException(ResourceException.INTERNAL_ERROR,
                         "No handler configured for resource type " + type);
             }
-            connection = getConnection();
-            connection.setAutoCommit(true); // Ensure we do not implicitly
-                                            // start transaction isolation
-
-            List<Map<String, Object>> docs = tableHandler.query(type, params, connection);
+            final List<Map<String, Object>> docs = readReplicaRouter.read(client, type,
+                    new ReadReplicaRouter.ReadOperation<List<Map<String, Object>>>() {
+                        @Override
+                        public List<Map<String, Object>> read(DataSourceService source)
+                                throws SQLException, ResourceException {
+                            Connection connection = null;
+                            try {
+                                connection = getConnection(source);
+                                connection.setAutoCommit(true); // Ensure we do not implicitly
+                                                                // start transaction isolation
+                                final long start = System.nanoTime();
+                                String statement = statementKey(request);
+                                try {
+                                    return tableHandler.query(type, params, connection);
+                                } catch (BadRequestException ex) {
+                                    // not a configured query id, which is not recorded
+                                    statement = null;
+                                    throw ex;
+                                } finally {
+                                    if (statement != null) {
+                                        statistics.statementExecuted(statement, type, System.nanoTime() - start);
+                                    }
+                                }
+                            } finally {
+                                CleanupHelper.loggedClose(connection);
+                            }
+                        }
+                    });
             List<ResourceResponse> results = new ArrayList<>();
             for (Map<String, Object> resultMap : docs) {
                 String id = (String) resultMap.get("_id");
@@ -723,8 +882,9 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         } catch (ResourceException ex) {
             logger.debug("ResourceException in query of {}", fullId, ex);
             throw ex;
-        } finally {
-            CleanupHelper.loggedClose(connection);
+        } catch (IOException ex) {
+            logger.debug("IO Exception in query of {}", fullId, ex);
+            throw new InternalServerErrorException("Conversion of query results failed", ex);
         }
     }
     
@@ -732,7 +892,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     public Promise<ActionResponse, ResourceException> handleAction(Context context, ActionRequest request) {
         try {
             if (ACTION_COMMAND.equalsIgnoreCase(request.getAction())) {
-                return command(request).asPromise();
+                return command(request, ReadReplicaRouter.clientOf(context)).asPromise();
             } else {
                 throw new NotSupportedException("Action operations are not supported");
             }
@@ -747,10 +907,11 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
      * Performs the repo command defined by the {@code request).
      *
      * @param request the request specifying the commandId or commandExpression and command parameters
+     * @param client the client issuing the command, for read-your-writes, or null
      * @return the number of records affected
      * @throws ResourceException on failure to execute the command query
      */
-    private ActionResponse command(ActionRequest request) throws ResourceException {
+    private ActionResponse command(ActionRequest request, String client) throws ResourceException {
         final String type = request.getResourcePath();
 
         JsonValue result = null;
@@ -770,9 +931,24 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 connection = getConnection();
                 connection.setAutoCommit(false);
 
-                result = new JsonValue(handler.command(type, new HashMap<String, Object>(request.getAdditionalParameters()), connection));
+                final long start = System.nanoTime();
+                String statement = request.getAdditionalParameters().get("commandExpression") != null
+                        ? STATEMENT_COMMAND_EXPRESSION
+                        : request.getAdditionalParameters().get("commandId");
+                try {
+                    result = new JsonValue(handler.command(type, new HashMap<String, Object>(request.getAdditionalParameters()), connection));
+                } catch (BadRequestException ex) {
+                    // not a configured command id, which is not recorded
+                    statement = null;
+                    throw ex;
+                } finally {
+                    if (statement != null) {
+                        statistics.statementExecuted(statement, type, System.nanoTime() - start);
+                    }
+                }
 
                 connection.commit();
+                readReplicaRouter.written(client, type);
             } catch (SQLException ex) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("SQL Exception in command on {} with error code {}, sql state {}",
@@ -782,6 +958,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 if (handler.isRetryable(ex, connection)) {
                     if (tryCount <= maxTxRetry) {
                         retry = true;
+                        statistics.retried();
                         logger.debug("Retryable exception encountered, retry attempt {} of {} : {}", tryCount, maxTxRetry, ex.getMessage());
                     }
                 }
@@ -826,13 +1003,48 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     Connection getConnection() throws SQLException {
         EventEntry measure = Publisher.start(Name.get("openidm/internal/JDBCRepoService/getConnection"), null, null);
+        final long start = System.nanoTime();
         try {
             return dataSourceService.getDataSource().getConnection();
         } finally {
+            statistics.connectionAcquired(System.nanoTime() - start);
+            measure.end();
+        }
+    }
+
+    /**
+     * Gets a connection to read from a data source, which is a read replica if configured.
+     *
+     * @param source the data source to read from
+     * @return the connection
+     * @throws SQLException if no connection could be obtained
+     */
+    Connection getConnection(DataSourceService source) throws SQLException {
+        EventEntry measure = Publisher.start(Name.get("openidm/internal/JDBCRepoService/getReadConnection"), null, null);
+        final long start = System.nanoTime();
+        try {
+            return source.getDataSource().getConnection();
+        } finally {
+            statistics.connectionAcquired(System.nanoTime() - start);
             measure.end();
         }
     }
 
+    /**
+     * Gets the key under which the execution of a query is recorded in the statistics.
+     *
+     * @param request the query request
+     * @return the query id, or the query filter or query expression parameter name
+     */
+    private static String statementKey(QueryRequest request) {
+        if (request.getQueryFilter() != null) {
+            return STATEMENT_QUERY_FILTER;
+        } else if (request.getQueryExpression() != null) {
+            return STATEMENT_QUERY_EXPRESSION;
+        }
+        return request.getQueryId();
+    }
+
     TableHandler getTableHandler(String type) {
         TableHandler handler = tableHandlers.get(type);
         if (handler != null) {
@@ -891,13 +1103,26 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                     .defaultTo(DatabaseType.ANSI_SQL99.name())
                     .as(enumConstant(DatabaseType.class));
             maxTxRetry = config.get(CONFIG_MAX_TX_RETRY).defaultTo(5).asInteger();
+            statistics.setSlowStatementThreshold(config.get(CONFIG_SLOW_QUERY_THRESHOLD).defaultTo(1000).asLong());
+            readReplicaRouter = ReadReplicaRouter.fromConfig(config.get(CONFIG_READ_REPLICAS), dataSourceService,
+                    dataSourceServices);
+            final Long maxReplicaLag = ReadReplicaRouter.maxLagOf(config.get(CONFIG_READ_REPLICAS));
+            if (maxReplicaLag != null) {
+                readReplicaRouter.checkLag(new RepoHeartbeat(IdentityServer.getInstance().getNodeName()),
+                        maxReplicaLag, TimeUnit.MILLISECONDS);
+            }
             int maxBatchSize = config.get(CONFIG_MAX_BATCH_SIZE).defaultTo(100).asInteger();
+            // may be overridden per resource mapping
+            boolean optimisticLocking = config.get(CONFIG_OPTIMISTIC_LOCKING).defaultTo(false).asBoolean();
 
             JsonValue defaultMapping = config.get("resourceMapping").get("default");
             if (!defaultMapping.isNull()) {
-                defaultTableHandler =
+                GenericTableHandler handler =
                         getGenericTableHandler(databaseType, defaultMapping, dataSourceService.getDatabaseName(),
                                 genericQueries, genericCommands, maxBatchSize);
+                handler.setOptimisticLocking(
+                        defaultMapping.get(CONFIG_OPTIMISTIC_LOCKING).defaultTo(optimisticLocking).asBoolean());
+                defaultTableHandler = handler;
                 logger.debug("Using default table handler: {}", defaultTableHandler);
             } else {
                 logger.warn("No default table handler configured");
@@ -912,6 +1137,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
             GenericTableHandler defaultConfigHandler =
                     getGenericTableHandler(databaseType, defaultTableProps, dataSourceService.getDatabaseName(),
                             genericQueries, genericCommands, 1);
+            defaultConfigHandler.setOptimisticLocking(optimisticLocking);
             tableHandlers.put("config", defaultConfigHandler);
 
             JsonValue genericMapping = config.get("resourceMapping").get("genericMapping");
@@ -922,9 +1148,11 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                         // For matching purposes strip the wildcard at the end
                         key = key.substring(0, key.length() - 1);
                     }
-                    TableHandler handler =
+                    GenericTableHandler handler =
                             getGenericTableHandler(databaseType, value, dataSourceService.getDatabaseName(),
                                     genericQueries, genericCommands, maxBatchSize);
+                    handler.setOptimisticLocking(
+                            value.get(CONFIG_OPTIMISTIC_LOCKING).defaultTo(optimisticLocking).asBoolean());
 
                     tableHandlers.put(key, handler);
                     logger.debug("For pattern {} added handler: {}", key, handler);
@@ -942,12 +1170,14 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                         // For matching purposes strip the wildcard at the end
                         key = key.substring(0, key.length() - 1);
                     }
-                    TableHandler handler =
+                    MappedTableHandler handler =
                             getMappedTableHandler(databaseType, value,
                                     value.get("table").required().asString(),
                                     value.get("objectToColumn").required().asMap(),
                                     dataSourceService.getDatabaseName(), explicitQueries, explicitCommands,
                                     maxBatchSize);
+                    handler.setOptimisticLocking(
+                            value.get(CONFIG_OPTIMISTIC_LOCKING).defaultTo(optimisticLocking).asBoolean());
 
                     tableHandlers.put(key, handler);
                     logger.debug("For pattern {} added handler: {}", key, handler);
@@ -999,6 +1229,11 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                     new OracleTableHandler(tableConfig, dbSchemaName, queries, commands, maxBatchSize,
                             new DefaultSQLExceptionHandler());
         case POSTGRESQL:
+            if (tableConfig.get(PostgreSQLJsonbTableHandler.CONFIG_JSONB).defaultTo(false).asBoolean()) {
+                return
+                        new PostgreSQLJsonbTableHandler(tableConfig, dbSchemaName, queries, commands, maxBatchSize,
+                                new DefaultSQLExceptionHandler());
+            }
             return
                     new PostgreSQLTableHandler(tableConfig, dbSchemaName, queries, commands, maxBatchSize,
                             new DefaultSQLExceptionHandler());
@@ -1062,4 +1297,41 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                             new DefaultSQLExceptionHandler(), cryptoServiceAccessor);
         }
     }
+
+    /**
+     * Keeps the heartbeats of the read replica lag check in the repository, one object per node, see
+     * {@link ReadReplicaRouter#checkLag(ReadReplicaRouter.Heartbeat, long, TimeUnit)}.
+     */
+    private final class RepoHeartbeat implements ReadReplicaRouter.Heartbeat {
+        private final String nodeId;
+        private final ReadRequest readRequest;
+
+        private RepoHeartbeat(String nodeId) {
+            this.nodeId = nodeId;
+            this.readRequest = Requests.newReadRequest(HEARTBEAT_TYPE, nodeId);
+        }
+
+        @Override
+        public void beat(long beat) throws ResourceException {
+            final JsonValue content = json(object(field("beat", beat)));
+            final ResourceResponse current;
+            try {
+                current = read(readRequest, true, null);
+            } catch (NotFoundException e) {
+                create(Requests.newCreateRequest(HEARTBEAT_TYPE, nodeId, content), null);
+                return;
+            }
+            update(Requests.newUpdateRequest(readRequest.getResourcePath(), content)
+                    .setRevision(current.getRevision()), null);
+        }
+
+        @Override
+        public long lastBeat(DataSourceService replica) throws SQLException, ResourceException, IOException {
+            try {
+                return readOperation(readRequest).read(replica).getContent().get("beat").defaultTo(0L).asLong();
+            } catch (NotFoundException e) {
+                return 0L;
+            }
+        }
+    }
 }
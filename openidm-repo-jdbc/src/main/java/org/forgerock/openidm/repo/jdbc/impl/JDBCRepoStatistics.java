@@ -0,0 +1,250 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records connection acquisition, statement execution and retry statistics of the {@link JDBCRepoService}.
+ * <p>
+ * Statements are keyed by the query id or command id they were issued for, or by the
+ * {@link GenericTableHandler.QueryDefinition} of the repository operation, and broken down by the resource they were
+ * executed on. Query filters and query expressions are keyed by their parameter name. Only ids of configured queries
+ * and commands are recorded, and the number of statements and resources per statement is capped, so that the keys
+ * stay bounded whatever the clients send.
+ */
+public class JDBCRepoStatistics implements JDBCRepoStatisticsMBean {
+
+    /** The name under which the statistics are registered with the platform MBean server. */
+    public static final String MBEAN_NAME = "org.forgerock.openidm.repo.jdbc:type=JDBCRepo";
+
+    private static final Logger logger = LoggerFactory.getLogger(JDBCRepoStatistics.class);
+
+    /** The key the statements, or resources of a statement, beyond the cap are recorded under */
+    static final String OTHER = "_other";
+
+    /** The maximum number of statements recorded separately */
+    static final int MAX_STATEMENTS = 500;
+
+    /** The maximum number of resources recorded separately per statement */
+    static final int MAX_RESOURCES = 100;
+
+    private final AtomicLong connectionRequests = new AtomicLong();
+    private final AtomicLong connectionWaitTime = new AtomicLong();
+    private final AtomicLong connectionWaitTimeMax = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong slowStatements = new AtomicLong();
+    private final ConcurrentMap<String, StatementStatistic> statements = new ConcurrentHashMap<>();
+
+    private volatile long slowStatementThreshold;
+
+    /**
+     * Sets the execution time above which a statement is logged as slow.
+     *
+     * @param slowStatementThreshold the threshold in milliseconds, 0 or less to not flag slow statements
+     */
+    void setSlowStatementThreshold(long slowStatementThreshold) {
+        this.slowStatementThreshold = Math.max(0, slowStatementThreshold);
+    }
+
+    /**
+     * Records a connection request to the data source.
+     *
+     * @param waitTime the time taken to obtain the connection in nanoseconds
+     */
+    void connectionAcquired(long waitTime) {
+        connectionRequests.incrementAndGet();
+        connectionWaitTime.addAndGet(waitTime);
+        updateMax(connectionWaitTimeMax, waitTime);
+    }
+
+    /**
+     * Records the execution of a statement.
+     *
+     * @param statement the query id, command id or operation the statement was executed for
+     * @param resourceName the resource the statement was executed on
+     * @param executionTime the execution time in nanoseconds
+     */
+    void statementExecuted(String statement, String resourceName, long executionTime) {
+        final StatementStatistic statistic = get(statements, statement, MAX_STATEMENTS);
+        statistic.record(executionTime);
+        get(statistic.resources, resourceName, MAX_RESOURCES).record(executionTime);
+
+        final long threshold = slowStatementThreshold;
+        final long executionMillis = TimeUnit.NANOSECONDS.toMillis(executionTime);
+        if (threshold > 0 && executionMillis > threshold) {
+            slowStatements.incrementAndGet();
+            logger.warn("Slow statement {} on {} took {} ms, over the threshold of {} ms",
+                    statement, resourceName, executionMillis, threshold);
+        }
+    }
+
+    /**
+     * Records an operation retried after a retryable SQL exception.
+     */
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public long getConnectionRequests() {
+        return connectionRequests.get();
+    }
+
+    @Override
+    public double getConnectionWaitTimeAvg() {
+        final long requests = connectionRequests.get();
+        return requests == 0 ? 0 : toMillis(connectionWaitTime.get()) / requests;
+    }
+
+    @Override
+    public long getConnectionWaitTimeMax() {
+        return TimeUnit.NANOSECONDS.toMillis(connectionWaitTimeMax.get());
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getSlowStatementThreshold() {
+        return slowStatementThreshold;
+    }
+
+    @Override
+    public long getSlowStatements() {
+        return slowStatements.get();
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getStatementStatistics() {
+        final Map<String, Map<String, Object>> result = new TreeMap<>();
+        for (Map.Entry<String, StatementStatistic> entry : statements.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().asMap());
+        }
+        return result;
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to register JDBC repository statistics MBean", ex);
+        }
+    }
+
+    /**
+     * Unregisters these statistics from the platform MBean server.
+     */
+    void unregister() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(MBEAN_NAME);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to unregister JDBC repository statistics MBean", ex);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the statistic of a key, recording the keys beyond the maximum number of keys under {@link #OTHER}.
+     */
+    private static StatementStatistic get(ConcurrentMap<String, StatementStatistic> statistics, String key,
+            int maxKeys) {
+        final String statisticKey = key == null || (statistics.size() >= maxKeys && !statistics.containsKey(key))
+                ? OTHER
+                : key;
+        StatementStatistic statistic = statistics.get(statisticKey);
+        if (statistic == null) {
+            final StatementStatistic newStatistic = new StatementStatistic();
+            statistic = statistics.putIfAbsent(statisticKey, newStatistic);
+            if (statistic == null) {
+                statistic = newStatistic;
+            }
+        }
+        return statistic;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * The execution statistics of a single statement, or of a statement on a single resource.
+     */
+    private static final class StatementStatistic {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        /** the breakdown by resource, only used for the statistics of a statement */
+        private final ConcurrentMap<String, StatementStatistic> resources = new ConcurrentHashMap<>();
+
+        private void record(long executionTime) {
+            count.incrementAndGet();
+            totalTime.addAndGet(executionTime);
+            updateMax(maxTime, executionTime);
+        }
+
+        private Map<String, Object> asMap() {
+            final long executions = count.get();
+            final long total = totalTime.get();
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", executions);
+            result.put("totalTime", TimeUnit.NANOSECONDS.toMillis(total));
+            result.put("averageTime", executions == 0 ? 0d : toMillis(total) / executions);
+            result.put("maxTime", TimeUnit.NANOSECONDS.toMillis(maxTime.get()));
+            if (!resources.isEmpty()) {
+                final Map<String, Object> byResource = new TreeMap<>();
+                for (Map.Entry<String, StatementStatistic> entry : resources.entrySet()) {
+                    byResource.put(entry.getKey(), entry.getValue().asMap());
+                }
+                result.put("resources", byResource);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import java.util.Map;
+
+/**
+ * Provide JMX / MBean access to the connection and statement statistics of the JDBC repository.
+ */
+public interface JDBCRepoStatisticsMBean {
+
+    /**
+     * Gets the number of connections requested from the data source.
+     * @return the number of connection requests.
+     */
+    public long getConnectionRequests();
+
+    /**
+     * Gets the average time spent waiting for a connection from the data source.
+     * @return the average wait time in milliseconds.
+     */
+    public double getConnectionWaitTimeAvg();
+
+    /**
+     * Gets the longest time spent waiting for a connection from the data source.
+     * @return the maximum wait time in milliseconds.
+     */
+    public long getConnectionWaitTimeMax();
+
+    /**
+     * Gets the number of operations retried after a retryable SQL exception.
+     * @return the number of retries.
+     */
+    public long getRetries();
+
+    /**
+     * Gets the execution time above which a statement is logged as slow.
+     * @return the threshold in milliseconds, 0 if slow statements are not flagged.
+     */
+    public long getSlowStatementThreshold();
+
+    /**
+     * Gets the number of statements which took longer than the slow statement threshold.
+     * @return the number of slow statements.
+     */
+    public long getSlowStatements();
+
+    /**
+     * Gets the execution statistics per query id, command id or repository operation.
+     * @return the count, total, average and maximum execution time in milliseconds keyed by statement, with the
+     *         same statistics per resource under "resources".
+     */
+    public Map<String, Map<String, Object>> getStatementStatistics();
+}
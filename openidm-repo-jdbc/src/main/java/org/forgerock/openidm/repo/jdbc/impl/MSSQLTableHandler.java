@@ -84,6 +84,10 @@ public class MSSQLTableHandler extends GenericTableHandler {
         result.put(QueryDefinition.UPDATEQUERYSTR,
                 "UPDATE obj SET obj.objectid = ?, obj.rev = ?, obj.fullobject = ? FROM "
                         + mainTable + " obj WHERE obj.id = ? AND obj.rev = ?");
+        result.put(QueryDefinition.OPTIMISTICUPDATEQUERYSTR,
+                "UPDATE obj SET obj.objectid = ?, obj.rev = ?, obj.fullobject = ? FROM "
+                        + mainTable + " obj WHERE obj.objecttypes_id = (SELECT objtype.id FROM "
+                        + typeTable + " objtype WHERE objtype.objecttype = ?) AND obj.objectid = ? AND obj.rev = ?");
 
         return result;
 
@@ -102,6 +106,11 @@ public class MSSQLTableHandler extends GenericTableHandler {
         String newRev = Integer.toString(revInt);
         obj.put("_rev", newRev); // Save the rev in the object, and return the changed rev from the create.
 
+        if (isOptimisticLocking()) {
+            optimisticUpdate(fullId, type, localId, rev, newRev, obj, connection);
+            return;
+        }
+
         ResultSet rs = null;
         PreparedStatement updateStatement = null;
         PreparedStatement deletePropStatement = null;
@@ -94,8 +94,12 @@ public class MappedTableHandler implements TableHandler {
     String readForUpdateQueryStr;
     String createQueryStr;
     String updateQueryStr;
+    String optimisticUpdateQueryStr;
     String deleteQueryStr;
 
+    // Whether update and delete check the revision in their WHERE clause rather than reading the row FOR UPDATE.
+    private boolean optimisticLocking;
+
     public MappedTableHandler(String tableName, Map<String, Object> mapping, String dbSchemaName,
             JsonValue queriesConfig, JsonValue commandsConfig, SQLExceptionHandler sqlExceptionHandler,
             Accessor<CryptoService> cryptoServiceAccessor) throws InternalServerErrorException {
@@ -145,6 +149,16 @@ public class MappedTableHandler implements TableHandler {
         initializeQueries();
     }
 
+    /**
+     * Sets whether update and delete check the revision in their WHERE clause and decide on the outcome from the
+     * number of affected rows, rather than reading the row FOR UPDATE first.
+     *
+     * @param optimisticLocking true to use optimistic locking
+     */
+    public void setOptimisticLocking(boolean optimisticLocking) {
+        this.optimisticLocking = optimisticLocking;
+    }
+
     protected void initializeQueries() {
         final String mainTable = dbSchemaName == null ? tableName : dbSchemaName + "." + tableName;
         final StringBuffer colNames = new StringBuffer();
@@ -174,6 +188,7 @@ public class MappedTableHandler implements TableHandler {
         createQueryStr =
                 "INSERT INTO " + mainTable + " (" + colNames + ") VALUES ( " + prepTokens + ")";
         updateQueryStr = "UPDATE " + mainTable + " SET " + updateAssign + " WHERE objectid = ?";
+        optimisticUpdateQueryStr = updateQueryStr + " AND rev = ?";
         deleteQueryStr = "DELETE FROM " + mainTable + " WHERE objectid = ? AND rev = ?";
 
         logger.debug("Unprepared query strings {} {} {} {} {}",
@@ -379,16 +394,21 @@ public class MappedTableHandler implements TableHandler {
         ResultSet rs = null;
         PreparedStatement updateStatement = null;
         try {
-            rs = readForUpdate(fullId, type, localId, connection);
-            String existingRev = explicitMapping.getRev(rs);
-            logger.debug("Update existing object {} rev: {} ", fullId, existingRev);
-
-            if (!existingRev.equals(rev)) {
-                throw new PreconditionFailedException("Update rejected as current Object revision "
-                        + existingRev + " is different than expected by caller (" + rev
-                        + "), the object has changed since retrieval.");
+            if (optimisticLocking) {
+                // the revision is checked by the UPDATE statement
+                updateStatement = queries.getPreparedStatement(connection, optimisticUpdateQueryStr);
+            } else {
+                rs = readForUpdate(fullId, type, localId, connection);
+                String existingRev = explicitMapping.getRev(rs);
+                logger.debug("Update existing object {} rev: {} ", fullId, existingRev);
+
+                if (!existingRev.equals(rev)) {
+                    throw new PreconditionFailedException("Update rejected as current Object revision "
+                            + existingRev + " is different than expected by caller (" + rev
+                            + "), the object has changed since retrieval.");
+                }
+                updateStatement = queries.getPreparedStatement(connection, updateQueryStr);
             }
-            updateStatement = queries.getPreparedStatement(connection, updateQueryStr);
 
             // Support changing object identifier
             String newLocalId = (String) obj.get("_id");
@@ -407,10 +427,15 @@ public class MappedTableHandler implements TableHandler {
                     populatePrepStatementColumns(updateStatement, objVal,
                             tokenReplacementPropPointers);
             updateStatement.setString(nextCol, localId);
+            if (optimisticLocking) {
+                updateStatement.setString(nextCol + 1, rev);
+            }
             logger.debug("Update statement: {}", updateStatement);
             int updateCount = updateStatement.executeUpdate();
             logger.trace("Updated rows: {} for {}", updateCount, fullId);
-            if (updateCount != 1) {
+            if (updateCount == 0 && optimisticLocking) {
+                throw revisionMismatch("Update", fullId, type, localId, rev, connection);
+            } else if (updateCount != 1) {
                 throw new InternalServerErrorException(
                         "Update execution did not result in updating 1 row as expected. Updated rows: "
                                 + updateCount);
@@ -426,6 +451,30 @@ public class MappedTableHandler implements TableHandler {
         }
     }
 
+    /**
+     * Determines why an optimistic update or delete did not affect a row.
+     *
+     * @param operation the operation, for the error message
+     * @param fullId qualified id of component type and id
+     * @param type the component type
+     * @param localId the id of the object within the component type
+     * @param rev the revision expected by the caller
+     * @param connection the connection to use
+     * @return the exception to throw if the object exists with a different revision
+     * @throws NotFoundException if the object does not exist
+     * @throws SQLException for general DB issues
+     * @throws IOException if the object could not be read
+     * @throws InternalServerErrorException if the object could not be mapped
+     */
+    PreconditionFailedException revisionMismatch(String operation, String fullId, String type, String localId,
+            String rev, Connection connection)
+            throws NotFoundException, SQLException, IOException, InternalServerErrorException {
+        String existingRev = read(fullId, type, localId, connection).getRevision();
+        return new PreconditionFailedException(operation + " rejected as current Object revision "
+                + existingRev + " is different than expected by caller (" + rev
+                + "), the object has changed since retrieval.");
+    }
+
     /**
      * @see org.forgerock.openidm.repo.jdbc.TableHandler#delete(java.lang.String,
      *      java.lang.String, java.lang.String, java.lang.String,
@@ -437,20 +486,24 @@ public class MappedTableHandler implements TableHandler {
             SQLException, IOException {
         logger.debug("Delete with fullid {}", fullId);
 
-        // First check if the revision matches and select it for UPDATE
+        // First check if the revision matches and select it for UPDATE,
+        // unless the DELETE statement checks the revision
+        final boolean optimistic = optimisticLocking && !"*".equals(rev);
         ResultSet existing = null;
         PreparedStatement deleteStatement = null;
         try {
-            try {
-                existing = readForUpdate(fullId, type, localId, connection);
-            } catch (NotFoundException ex) {
-                throw new NotFoundException("Object does not exist for delete on: " + fullId);
-            }
-            String existingRev = explicitMapping.getRev(existing);
-            if (!"*".equals(rev) && !rev.equals(existingRev)) {
-                throw new PreconditionFailedException("Delete rejected as current Object revision "
-                        + existingRev + " is different than " + "expected by caller " + rev
-                        + ", the object has changed since retrieval.");
+            if (!optimistic) {
+                try {
+                    existing = readForUpdate(fullId, type, localId, connection);
+                } catch (NotFoundException ex) {
+                    throw new NotFoundException("Object does not exist for delete on: " + fullId);
+                }
+                String existingRev = explicitMapping.getRev(existing);
+                if (!"*".equals(rev) && !rev.equals(existingRev)) {
+                    throw new PreconditionFailedException("Delete rejected as current Object revision "
+                            + existingRev + " is different than " + "expected by caller " + rev
+                            + ", the object has changed since retrieval.");
+                }
             }
 
             // Proceed with the valid delete
@@ -463,7 +516,13 @@ public class MappedTableHandler implements TableHandler {
 
             int deletedRows = deleteStatement.executeUpdate();
             logger.trace("Deleted {} rows for id : {} {}", deletedRows, localId);
-            if (deletedRows < 1) {
+            if (deletedRows < 1 && optimistic) {
+                try {
+                    throw revisionMismatch("Delete", fullId, type, localId, rev, connection);
+                } catch (NotFoundException ex) {
+                    throw new NotFoundException("Object does not exist for delete on: " + fullId);
+                }
+            } else if (deletedRows < 1) {
                 throw new InternalServerErrorException("Deleting object for " + fullId
                         + " failed, DB reported " + deletedRows + " rows deleted");
             } else {
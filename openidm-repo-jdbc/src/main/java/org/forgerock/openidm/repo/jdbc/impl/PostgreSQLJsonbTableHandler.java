@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openidm.repo.jdbc.SQLExceptionHandler;
+import org.forgerock.openidm.repo.util.StringSQLQueryFilterVisitor;
+import org.forgerock.openidm.repo.util.StringSQLRenderer;
+import org.forgerock.openidm.util.ResourceUtil;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Postgres-specific generic table handler for tables storing fullobject as {@code jsonb}.
+ * <p>
+ * Objects are searched in fullobject itself, so nothing is written to the properties table. Equality assertions on
+ * string, number and boolean values are rendered as a {@code jsonb} containment, {@code fullobject @> '{"a":{"b":v}}'},
+ * which a GIN index on fullobject can serve. As {@code jsonb} compares typed values, the value must have the same JSON
+ * type as the stored one, e.g. a stored "5" does not equal 5. All other assertions compare
+ * {@code jsonb_extract_path_text(fullobject, ...)}, which expression indexes can serve.
+ * <p>
+ * The handler is used for a generic mapping with {@code "jsonb" : true}, after the table has been migrated with
+ * {@code db/postgresql/scripts/updates/v5_jsonb_generic_tables.sql}.
+ */
+public class PostgreSQLJsonbTableHandler extends PostgreSQLTableHandler {
+
+    /** Generic mapping configuration to store fullobject as jsonb. */
+    public static final String CONFIG_JSONB = "jsonb";
+
+    private class JsonbContainmentQueryFilterVisitor extends JsonExtractPathQueryFilterVisitor {
+        @Override
+        public StringSQLRenderer visitValueAssertion(Map<String, Object> objects, String operand, JsonPointer field,
+                Object valueAssertion) {
+            if (!"=".equals(operand)
+                    || ResourceUtil.RESOURCE_FIELD_CONTENT_ID_POINTER.equals(field)
+                    || !isContainable(field, valueAssertion)) {
+                return super.visitValueAssertion(objects, operand, field, valueAssertion);
+            }
+            final String document;
+            try {
+                document = mapper.writeValueAsString(containmentDocument(field, valueAssertion));
+            } catch (JsonProcessingException e) {
+                return super.visitValueAssertion(objects, operand, field, valueAssertion);
+            }
+            ++objectNumber;
+            String value = "v" + objectNumber;
+            objects.put(value, document);
+            return new StringSQLRenderer("(obj.fullobject @> ${" + value + "}::jsonb)");
+        }
+    }
+
+    /**
+     * Construct a table handler for Postgres jsonb tables
+     *
+     * {@inheritDoc}
+     */
+    public PostgreSQLJsonbTableHandler(JsonValue tableConfig, String dbSchemaName, JsonValue queriesConfig,
+            JsonValue commandsConfig, int maxBatchSize, SQLExceptionHandler sqlExceptionHandler) {
+        super(tableConfig, dbSchemaName, queriesConfig, commandsConfig, maxBatchSize, sqlExceptionHandler);
+    }
+
+    @Override
+    protected boolean usesPropertiesTable() {
+        return false;
+    }
+
+    @Override
+    protected String getFullObjectType() {
+        return "jsonb";
+    }
+
+    @Override
+    protected String getExtractPathTextFunction() {
+        return "jsonb_extract_path_text";
+    }
+
+    @Override
+    protected StringSQLQueryFilterVisitor<Map<String, Object>> newQueryFilterVisitor() {
+        return new JsonbContainmentQueryFilterVisitor();
+    }
+
+    /**
+     * A containment only asserts equality for scalar values on a path of object members; an array index in the
+     * path would be taken as a member name.
+     */
+    private static boolean isContainable(JsonPointer field, Object valueAssertion) {
+        if (field.isEmpty()
+                || !(valueAssertion instanceof String
+                        || valueAssertion instanceof Number
+                        || valueAssertion instanceof Boolean)) {
+            return false;
+        }
+        for (String token : field.toArray()) {
+            if (!token.isEmpty() && isArrayIndex(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isArrayIndex(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the document {@code {"a":{"b":value}}} for the field /a/b.
+     */
+    private static Object containmentDocument(JsonPointer field, Object valueAssertion) {
+        Object document = valueAssertion;
+        String[] tokens = field.toArray();
+        for (int i = tokens.length - 1; i >= 0; i--) {
+            Map<String, Object> member = new LinkedHashMap<>(1);
+            member.put(tokens[i], document);
+            document = member;
+        }
+        return document;
+    }
+}
@@ -70,6 +70,7 @@ public class PostgreSQLMappedTableHandler extends MappedTableHandler {
         createQueryStr =
                 "INSERT INTO " + mainTable + " (" + colNames + ") VALUES ( " + prepTokens + ")";
         updateQueryStr = "UPDATE " + mainTable + " SET " + updateAssign + " WHERE objectid = ?";
+        optimisticUpdateQueryStr = updateQueryStr + " AND rev = ?";
         deleteQueryStr = "DELETE FROM " + mainTable + " WHERE objectid = ? AND rev = ?";
 
         logger.debug("Unprepared query strings {} {} {} {} {}",
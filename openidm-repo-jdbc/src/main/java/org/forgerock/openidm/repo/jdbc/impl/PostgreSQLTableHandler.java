@@ -50,7 +50,7 @@ import org.forgerock.util.query.QueryFilter;
  */
 public class PostgreSQLTableHandler extends GenericTableHandler {
 
-    private class JsonExtractPathQueryFilterVisitor extends StringSQLQueryFilterVisitor<Map<String, Object>> {
+    class JsonExtractPathQueryFilterVisitor extends StringSQLQueryFilterVisitor<Map<String, Object>> {
         // value number for each value placeholder
         int objectNumber = 0;
 
@@ -63,8 +63,8 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
          *
          * where ${pn} are placeholders for the JsonPointer path elements.
          */
-        private StringSQLRenderer jsonExtractPathOnField(JsonPointer field, final Map<String, Object> objects) {
-            return new StringSQLRenderer("json_extract_path_text(obj.fullobject, ")
+        StringSQLRenderer jsonExtractPathOnField(JsonPointer field, final Map<String, Object> objects) {
+            return new StringSQLRenderer(getExtractPathTextFunction() + "(obj.fullobject, ")
                     .append(StringUtils.join(
                             FluentIterable.from(Arrays.asList(field.toArray()))
                                     .transform(new Function<String, String>() {
@@ -134,15 +134,38 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
         String typeTable = dbSchemaName == null ? "objecttypes" : dbSchemaName + ".objecttypes";
         String mainTable = dbSchemaName == null ? mainTableName : dbSchemaName + "." + mainTableName;
         String propertyTable = dbSchemaName == null ? propTableName : dbSchemaName + "." + propTableName;
+        String fullObjectType = getFullObjectType();
 
-        result.put(QueryDefinition.UPDATEQUERYSTR, "UPDATE " + mainTable + " SET objectid = ?, rev = ?, fullobject = ?::json WHERE id = ?");
-        result.put(QueryDefinition.CREATEQUERYSTR, "INSERT INTO " + mainTable + " (objecttypes_id, objectid, rev, fullobject) VALUES (?,?,?,?::json)");
+        result.put(QueryDefinition.UPDATEQUERYSTR, "UPDATE " + mainTable + " SET objectid = ?, rev = ?, fullobject = ?::" + fullObjectType + " WHERE id = ?");
+        result.put(QueryDefinition.OPTIMISTICUPDATEQUERYSTR, "UPDATE " + mainTable + " SET objectid = ?, rev = ?, fullobject = ?::" + fullObjectType + " WHERE objecttypes_id = (SELECT objtype.id FROM " + typeTable + " objtype WHERE objtype.objecttype = ?) AND objectid = ? AND rev = ?");
+        result.put(QueryDefinition.CREATEQUERYSTR, "INSERT INTO " + mainTable + " (objecttypes_id, objectid, rev, fullobject) VALUES (?,?,?,?::" + fullObjectType + ")");
         result.put(QueryDefinition.DELETEQUERYSTR, "DELETE FROM " + mainTable + " obj USING " + typeTable + " objtype WHERE obj.objecttypes_id = objtype.id AND objtype.objecttype = ? AND obj.objectid = ? AND obj.rev = ?");
         result.put(QueryDefinition.PROPDELETEQUERYSTR, "DELETE FROM " + propertyTable + " WHERE " + mainTableName + "_id IN (SELECT obj.id FROM " + mainTable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id WHERE objtype.objecttype = ? AND obj.objectid = ?)");
         result.put(QueryDefinition.READFORUPDATEQUERYSTR, "SELECT obj.* FROM " + mainTable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id AND objtype.objecttype = ? WHERE obj.objectid  = ? FOR UPDATE OF obj");
         return result;
     }
-    
+
+    /**
+     * @return the column type of fullobject, which written objects are cast to
+     */
+    protected String getFullObjectType() {
+        return "json";
+    }
+
+    /**
+     * @return the function extracting the text of a path from fullobject, used for query filters and sort keys
+     */
+    protected String getExtractPathTextFunction() {
+        return "json_extract_path_text";
+    }
+
+    /**
+     * @return the visitor rendering the WHERE clause of a query filter
+     */
+    protected StringSQLQueryFilterVisitor<Map<String, Object>> newQueryFilterVisitor() {
+        return new JsonExtractPathQueryFilterVisitor();
+    }
+
     @Override
     public String renderQueryFilter(QueryFilter<JsonPointer> filter, Map<String, Object> replacementTokens, Map<String, Object> params) {
         final String offsetParam = (String) params.get(PAGED_RESULTS_OFFSET);
@@ -157,7 +180,7 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
             for (int i = 0; i < sortKeys.size(); i++) {
                 final SortKey sortKey = sortKeys.get(i);
                 final String tokenName = "sortKey" + i;
-                keys.add("json_extract_path_text(fullobject, ${" + tokenName + (sortKey.isAscendingOrder() ? "}) ASC" : "}) DESC"));
+                keys.add(getExtractPathTextFunction() + "(fullobject, ${" + tokenName + (sortKey.isAscendingOrder() ? "}) ASC" : "}) DESC"));
                 replacementTokens.put(tokenName, sortKey.getField().toString().substring(1));
             }
             pageClause = " ORDER BY " + StringUtils.join(keys, ", ") + pageClause;
@@ -168,6 +191,6 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
                 + " FROM ${_dbSchema}.${_mainTable} obj"
                 + " INNER JOIN ${_dbSchema}.objecttypes objtype ON objtype.id = obj.objecttypes_id AND objtype.objecttype = ${otype}"
                 + " WHERE "
-                + filter.accept(new JsonExtractPathQueryFilterVisitor(), replacementTokens).toSQL() + pageClause;
+                + filter.accept(newQueryFilterVisitor(), replacementTokens).toSQL() + pageClause;
     }
 }
@@ -0,0 +1,522 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openidm.datasource.DataSourceService;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.SecurityContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes reads and queries of the {@link JDBCRepoService} to read replica data sources, and everything else to the
+ * primary data source.
+ * <p>
+ * Only the resource types configured for it are read from the replicas, and only for requests with an authenticated
+ * client. Reads without a request context, e.g. of the cluster and configuration services, and reads of an object
+ * which is about to be updated read from the primary.
+ * <p>
+ * Replicas are used round robin. A client which has written a resource type within the read-your-writes window
+ * reads that type from the primary, so that it does not read back its own write from a replica which has not caught
+ * up yet. The window should therefore be larger than the expected replication lag. Clients are told apart by the
+ * authenticated id of the request context.
+ * <p>
+ * If a maximum lag is configured, a heartbeat is written to the primary once per maximum lag, and a replica which
+ * does not yet show the previous heartbeat, written at least the maximum lag before, is skipped until it does.
+ * <p>
+ * A read which fails on a replica, whether the replica fails to hand out a connection or the read itself fails, is
+ * done again on the primary, and the replica is skipped until the retry interval has passed. Reads fall back to the
+ * primary if no replica is available.
+ */
+class ReadReplicaRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaRouter.class);
+
+    // Keys in the "readReplicas" configuration
+    static final String CONFIG_USE_DATA_SOURCES = "useDataSources";
+    static final String CONFIG_READ_YOUR_WRITES_WINDOW = "readYourWritesWindow";
+    static final String CONFIG_RETRY_INTERVAL = "retryInterval";
+    static final String CONFIG_RESOURCE_TYPES = "resourceTypes";
+    static final String CONFIG_MAX_LAG = "maxLag";
+
+    private static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 5000L;
+    private static final long DEFAULT_RETRY_INTERVAL = 30000L;
+
+    /** The number of tracked writes above which the writes outside the window are dropped */
+    private static final int MAX_TRACKED_WRITES = 10000;
+
+    /**
+     * A read of the repository, done on a replica or on the primary.
+     *
+     * @param <T> the result of the read
+     */
+    interface ReadOperation<T> {
+
+        /**
+         * Reads from a data source.
+         *
+         * @param dataSourceService the data source to read from
+         * @return the result of the read
+         * @throws SQLException if the data source failed to hand out a connection or the read failed
+         * @throws ResourceException if the read failed otherwise
+         * @throws IOException if the result of the read could not be converted
+         */
+        T read(DataSourceService dataSourceService) throws SQLException, ResourceException, IOException;
+    }
+
+    /**
+     * Writes heartbeats to the primary and reads them back from the replicas, to tell how far a replica lags behind.
+     */
+    interface Heartbeat {
+
+        /**
+         * Writes a heartbeat to the primary.
+         *
+         * @param beat the heartbeat, larger than any heartbeat written before
+         * @throws ResourceException if writing the heartbeat failed
+         */
+        void beat(long beat) throws ResourceException;
+
+        /**
+         * Reads the last heartbeat from a replica.
+         *
+         * @param replica the replica data source
+         * @return the last heartbeat the replica has applied, or 0 if it has none
+         * @throws SQLException if reading the heartbeat failed
+         * @throws ResourceException if reading the heartbeat failed otherwise
+         * @throws IOException if the heartbeat could not be converted
+         */
+        long lastBeat(DataSourceService replica) throws SQLException, ResourceException, IOException;
+    }
+
+    private final DataSourceService primary;
+    /** the names of the configured replicas, or null if the replicas are fixed */
+    private final List<String> replicaNames;
+    /** the available data sources by name, which the replicas are resolved from */
+    private final Map<String, DataSourceService> dataSourceServices;
+    /** the resource types read from the replicas, a trailing "*" matching any type with the prefix */
+    private final Collection<String> resourceTypes;
+    private final long readYourWritesWindow;
+    private final long retryInterval;
+
+    /** writes and reads the heartbeats, or null if the replica lag is not checked */
+    private volatile Heartbeat heartbeat;
+    private long maxLag;
+    /** when the replica lag was last checked, in nanoseconds */
+    private final AtomicLong lastLagCheck = new AtomicLong();
+    /** the heartbeat written at the last lag check, or 0 */
+    private volatile long lastBeat;
+
+    private volatile List<Replica> replicas;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /** the time of the last write per client and resource type, in nanoseconds */
+    private final ConcurrentMap<Write, Long> lastWrites = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a router with a fixed set of replicas.
+     *
+     * @param primary the data source for writes and for reads which may not go to a replica
+     * @param replicas the read replica data sources, may be empty
+     * @param resourceTypes the resource types read from the replicas, a trailing "*" matching any type with the
+     *                      prefix
+     * @param readYourWritesWindow how long after a write of a resource type it is read from the primary
+     * @param retryInterval how long a replica which failed is skipped
+     * @param unit the unit of {@code readYourWritesWindow} and {@code retryInterval}
+     */
+    ReadReplicaRouter(DataSourceService primary, List<DataSourceService> replicas, Collection<String> resourceTypes,
+            long readYourWritesWindow, long retryInterval, TimeUnit unit) {
+        this(primary, null, Collections.<String, DataSourceService>emptyMap(), resourceTypes, readYourWritesWindow,
+                retryInterval, unit);
+        this.replicas = toReplicas(replicas, Collections.<DataSourceService, Replica>emptyMap());
+    }
+
+    private ReadReplicaRouter(DataSourceService primary, List<String> replicaNames,
+            Map<String, DataSourceService> dataSourceServices, Collection<String> resourceTypes,
+            long readYourWritesWindow, long retryInterval, TimeUnit unit) {
+        this.primary = primary;
+        this.replicaNames = replicaNames;
+        this.dataSourceServices = dataSourceServices;
+        this.resourceTypes = resourceTypes;
+        this.readYourWritesWindow = unit.toNanos(readYourWritesWindow);
+        this.retryInterval = unit.toNanos(retryInterval);
+        this.replicas = Collections.emptyList();
+    }
+
+    /**
+     * Builds the router from the read replica configuration.
+     * <pre>
+     *     "readReplicas" : {
+     *         "useDataSources" : [ "replica1", "replica2" ],
+     *         "resourceTypes" : [ "managed/*", "audit/access" ],
+     *         "readYourWritesWindow" : 5000,
+     *         "retryInterval" : 30000,
+     *         "maxLag" : 10000
+     *     }
+     * </pre>
+     * {@code readYourWritesWindow}, {@code retryInterval} and {@code maxLag} are in milliseconds. All operations use
+     * the primary if there is no configuration, and reads of resource types not listed in {@code resourceTypes} use
+     * the primary. The replica lag is only checked if {@code maxLag} is configured, see
+     * {@link #checkLag(Heartbeat, long, TimeUnit)}. The replicas are looked up by name in the available data sources,
+     * again whenever {@link #dataSourcesChanged()} is called.
+     *
+     * @param config the readReplicas configuration, may be null
+     * @param primary the primary data source
+     * @param dataSourceServices the available data sources by name
+     * @return the router
+     */
+    static ReadReplicaRouter fromConfig(JsonValue config, DataSourceService primary,
+            Map<String, DataSourceService> dataSourceServices) {
+        final JsonValue replicaConfig = config == null ? new JsonValue(null) : config;
+        if (replicaConfig.isNull()) {
+            return new ReadReplicaRouter(primary, Collections.<DataSourceService>emptyList(),
+                    Collections.<String>emptyList(), 0, 0, TimeUnit.MILLISECONDS);
+        }
+        final List<String> names = new ArrayList<>();
+        for (JsonValue name : replicaConfig.get(CONFIG_USE_DATA_SOURCES).required().expect(List.class)) {
+            names.add(name.asString());
+        }
+        final List<String> resourceTypes = new ArrayList<>();
+        for (JsonValue resourceType : replicaConfig.get(CONFIG_RESOURCE_TYPES).required().expect(List.class)) {
+            resourceTypes.add(resourceType.asString());
+        }
+        final ReadReplicaRouter router = new ReadReplicaRouter(primary, names, dataSourceServices, resourceTypes,
+                replicaConfig.get(CONFIG_READ_YOUR_WRITES_WINDOW).defaultTo(DEFAULT_READ_YOUR_WRITES_WINDOW).asLong(),
+                replicaConfig.get(CONFIG_RETRY_INTERVAL).defaultTo(DEFAULT_RETRY_INTERVAL).asLong(),
+                TimeUnit.MILLISECONDS);
+        router.dataSourcesChanged();
+        return router;
+    }
+
+    /**
+     * Gets the configured maximum replica lag.
+     *
+     * @param config the readReplicas configuration, may be null
+     * @return the maximum lag in milliseconds, or null if the replica lag is not to be checked
+     */
+    static Long maxLagOf(JsonValue config) {
+        return config == null ? null : config.get(CONFIG_MAX_LAG).asLong();
+    }
+
+    /**
+     * Checks the replica lag with heartbeats. Once per {@code maxLag}, on a read which could go to a replica, the
+     * router reads the last heartbeat from each replica, and then writes a new heartbeat to the primary. A replica
+     * which has not applied the heartbeat of the previous check, written at least {@code maxLag} before, lags behind
+     * by more than {@code maxLag} and is skipped until a later check finds it caught up.
+     *
+     * @param heartbeat writes and reads the heartbeats
+     * @param maxLag the maximum lag of a replica which is read from
+     * @param unit the unit of {@code maxLag}
+     */
+    void checkLag(Heartbeat heartbeat, long maxLag, TimeUnit unit) {
+        this.maxLag = unit.toNanos(maxLag);
+        this.lastLagCheck.set(System.nanoTime() - this.maxLag);
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Looks the configured replicas up again in the available data sources, after a data source was added or
+     * removed. A replica which is still available keeps its failure state.
+     */
+    synchronized void dataSourcesChanged() {
+        if (replicaNames == null) {
+            return;
+        }
+        final List<DataSourceService> available = new ArrayList<>(replicaNames.size());
+        for (String name : replicaNames) {
+            final DataSourceService replica = dataSourceServices.get(name);
+            if (replica != null) {
+                available.add(replica);
+            } else {
+                logger.warn("Read replica data source {} is not available, reads will not be routed to it", name);
+            }
+        }
+        final Map<DataSourceService, Replica> current = new IdentityHashMap<>();
+        for (Replica replica : replicas) {
+            current.put(replica.dataSourceService, replica);
+        }
+        replicas = toReplicas(available, current);
+    }
+
+    private List<Replica> toReplicas(List<DataSourceService> services, Map<DataSourceService, Replica> current) {
+        final List<Replica> result = new ArrayList<>(services.size());
+        for (DataSourceService dataSourceService : services) {
+            final Replica replica = current.get(dataSourceService);
+            result.add(replica != null ? replica : new Replica(dataSourceService));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Gets the client a request context belongs to, which read-your-writes is tracked for.
+     *
+     * @param context the request context, may be null
+     * @return the authenticated id, or null without a context or if not authenticated
+     */
+    static String clientOf(Context context) {
+        if (context != null && context.containsContext(SecurityContext.class)) {
+            final String authenticationId = context.asContext(SecurityContext.class).getAuthenticationId();
+            if (authenticationId != null && !authenticationId.isEmpty()) {
+                return authenticationId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a resource type from a replica, unless the type is not read from the replicas, there is no client, the
+     * client has written the type within the read-your-writes window, or no replica is available. A read which fails
+     * on the replica because the replica can not be reached (see {@link #isReplicaFailure(SQLException)}) is done on
+     * the primary, and the replica is skipped for the retry interval. Any other failure of the read is thrown, as it
+     * would fail on the primary as well.
+     *
+     * @param client the client reading, as returned by {@link #clientOf(Context)}, null to read from the primary
+     * @param type the resource type to read
+     * @param operation the read
+     * @param <T> the result of the read
+     * @return the result of the read
+     * @throws SQLException if the read failed on the primary, or failed on the replica other than by the replica
+     *                      not being reachable
+     * @throws ResourceException if the read failed otherwise
+     * @throws IOException if the result of the read could not be converted
+     */
+    <T> T read(String client, String type, ReadOperation<T> operation)
+            throws SQLException, ResourceException, IOException {
+        final Replica replica = client == null || !isReadFromReplica(type) || isRecentlyWritten(client, type)
+                ? null
+                : nextReplica();
+        if (replica != null) {
+            try {
+                return operation.read(replica.dataSourceService);
+            } catch (SQLException ex) {
+                if (!isReplicaFailure(ex)) {
+                    throw ex;
+                }
+                logger.warn("Read from replica {} failed, reading from the primary and skipping it for {} ms: {}",
+                        replica.dataSourceService.getDatabaseName(),
+                        TimeUnit.NANOSECONDS.toMillis(retryInterval), ex.getMessage());
+                replica.failed();
+            }
+        }
+        return operation.read(primary);
+    }
+
+    /**
+     * Tells whether a read failed because of the replica rather than the statement: a transient failure, e.g. a
+     * timeout getting a connection from the pool, a failure which needs a new connection, or a connection exception
+     * (SQLState class 08).
+     *
+     * @param ex the failure of the read
+     * @return true if the read should be done on the primary instead
+     */
+    static boolean isReplicaFailure(SQLException ex) {
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                final String sqlState = ((SQLException) t).getSQLState();
+                if (sqlState != null && sqlState.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a resource type is configured to be read from the replicas.
+     *
+     * @param type the resource type
+     * @return true if the type may be read from a replica
+     */
+    boolean isReadFromReplica(String type) {
+        for (String resourceType : resourceTypes) {
+            if (resourceType.endsWith("*")
+                    ? type.startsWith(resourceType.substring(0, resourceType.length() - 1))
+                    : type.equals(resourceType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Replica nextReplica() {
+        final List<Replica> candidates = replicas;
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        checkLag(candidates);
+        final int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            final Replica replica = candidates.get((start + i) % candidates.size());
+            if (replica.isAvailable()) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the replica lag if the last check is at least the maximum lag ago, see
+     * {@link #checkLag(Heartbeat, long, TimeUnit)}. Only one of the concurrent readers does the check.
+     */
+    private void checkLag(List<Replica> candidates) {
+        final Heartbeat beats = heartbeat;
+        if (beats == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long lastCheck = lastLagCheck.get();
+        if (now - lastCheck < maxLag || !lastLagCheck.compareAndSet(lastCheck, now)) {
+            return;
+        }
+        final long previousBeat = lastBeat;
+        if (previousBeat != 0) {
+            for (Replica replica : candidates) {
+                try {
+                    final boolean lagging = beats.lastBeat(replica.dataSourceService) < previousBeat;
+                    if (lagging != replica.lagging) {
+                        logger.info("Read replica {} {} more than {} ms behind the primary",
+                                replica.dataSourceService.getDatabaseName(), lagging ? "is" : "is no longer",
+                                TimeUnit.NANOSECONDS.toMillis(maxLag));
+                    }
+                    replica.lagging = lagging;
+                } catch (SQLException | ResourceException | IOException ex) {
+                    logger.warn("Reading the heartbeat from replica {} failed, skipping it until the next check: {}",
+                            replica.dataSourceService.getDatabaseName(), ex.getMessage());
+                    replica.lagging = true;
+                }
+            }
+        }
+        final long beat = Math.max(System.currentTimeMillis(), previousBeat + 1);
+        try {
+            beats.beat(beat);
+            lastBeat = beat;
+        } catch (ResourceException ex) {
+            logger.warn("Writing the replica heartbeat failed: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Records a committed write of a resource type, so that the client reads it from the primary for the
+     * read-your-writes window.
+     *
+     * @param client the client which wrote, as returned by {@link #clientOf(Context)}
+     * @param type the written resource type
+     */
+    void written(String client, String type) {
+        if (client == null || (replicaNames == null && replicas.isEmpty()) || !isReadFromReplica(type)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        lastWrites.put(new Write(client, type), now);
+        if (lastWrites.size() > MAX_TRACKED_WRITES) {
+            // drop the writes of clients which did not read back within the window
+            final Iterator<Long> iterator = lastWrites.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next() >= readYourWritesWindow) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private boolean isRecentlyWritten(String client, String type) {
+        final Write write = new Write(client, type);
+        final Long lastWrite = lastWrites.get(write);
+        if (lastWrite == null) {
+            return false;
+        }
+        if (System.nanoTime() - lastWrite < readYourWritesWindow) {
+            return true;
+        }
+        // keep the map to the writes within the window
+        lastWrites.remove(write, lastWrite);
+        return false;
+    }
+
+    /**
+     * A write of a resource type by a client.
+     */
+    private static final class Write {
+        private final String client;
+        private final String type;
+
+        private Write(String client, String type) {
+            this.client = client;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Write)) {
+                return false;
+            }
+            final Write other = (Write) o;
+            return (client == null ? other.client == null : client.equals(other.client)) && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (client == null ? 0 : client.hashCode()) + type.hashCode();
+        }
+    }
+
+    /**
+     * A read replica, when it may be used again after a failure, and whether it lags behind.
+     */
+    private final class Replica {
+        private final DataSourceService dataSourceService;
+        private volatile long failedAt;
+        private volatile boolean failed;
+        private volatile boolean lagging;
+
+        private Replica(DataSourceService dataSourceService) {
+            this.dataSourceService = dataSourceService;
+        }
+
+        private boolean isAvailable() {
+            return !lagging && (!failed || System.nanoTime() - failedAt >= retryInterval);
+        }
+
+        private void failed() {
+            failedAt = System.nanoTime();
+            failed = true;
+        }
+    }
+}
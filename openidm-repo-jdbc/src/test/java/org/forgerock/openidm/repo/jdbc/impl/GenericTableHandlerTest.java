@@ -0,0 +1,394 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.SortKey;
+import org.forgerock.openidm.repo.QueryConstants;
+import org.forgerock.util.query.QueryFilter;
+import org.h2.jdbcx.JdbcDataSource;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the optimistic locking of GenericTableHandler, against mocked statements and against the generic tables
+ * of an embedded H2 database.
+ */
+public class GenericTableHandlerTest {
+
+    private GenericTableHandler handler;
+    private Connection connection;
+    private PreparedStatement updateStatement;
+    private PreparedStatement deleteStatement;
+    private PreparedStatement readStatement;
+    private ResultSet readResult;
+    private Connection database;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        handler = new GenericTableHandler(
+                json(object(
+                        field("mainTable", "managedobjects"),
+                        field("propertiesTable", "managedobjectproperties"),
+                        field("searchableDefault", false))),
+                "openidm", json(object()), json(object()), 1, null);
+        handler.setOptimisticLocking(true);
+
+        connection = mock(Connection.class);
+        updateStatement = mock(PreparedStatement.class);
+        deleteStatement = mock(PreparedStatement.class);
+        readStatement = mock(PreparedStatement.class);
+        readResult = mock(ResultSet.class);
+        when(connection.prepareStatement(startsWith("UPDATE"))).thenReturn(updateStatement);
+        when(connection.prepareStatement(startsWith("DELETE"))).thenReturn(deleteStatement);
+        when(connection.prepareStatement(startsWith("SELECT obj.rev"))).thenReturn(readStatement);
+        when(readStatement.executeQuery()).thenReturn(readResult);
+    }
+
+    @AfterMethod
+    public void tearDown() throws SQLException {
+        if (database != null) {
+            // drops the in-memory database
+            database.close();
+            database = null;
+        }
+    }
+
+    /**
+     * Opens an embedded H2 database with the objecttypes, managedobjects and managedobjectproperties tables, and
+     * returns an H2 table handler with optimistic locking on them.
+     */
+    private GenericTableHandler openDatabase() throws SQLException {
+        return openDatabase(json(object(
+                field("mainTable", "managedobjects"),
+                field("propertiesTable", "managedobjectproperties"),
+                field("searchableDefault", true))));
+    }
+
+    /**
+     * Opens an embedded H2 database with the objecttypes, managedobjects and managedobjectproperties tables, and
+     * returns an H2 table handler with optimistic locking on them, configured with the given table configuration.
+     */
+    private GenericTableHandler openDatabase(JsonValue tableConfig) throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:genericTableHandlerTest");
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        database = dataSource.getConnection();
+        try (Statement statement = database.createStatement()) {
+            statement.execute("CREATE SCHEMA openidm");
+            statement.execute("CREATE TABLE openidm.objecttypes ("
+                    + "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                    + "objecttype VARCHAR(255) UNIQUE)");
+            statement.execute("CREATE TABLE openidm.managedobjects ("
+                    + "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                    + "objecttypes_id BIGINT NOT NULL REFERENCES openidm.objecttypes (id) ON DELETE CASCADE, "
+                    + "objectid VARCHAR(255) NOT NULL, "
+                    + "rev VARCHAR(38) NOT NULL, "
+                    + "fullobject CLOB, "
+                    + "UNIQUE (objecttypes_id, objectid))");
+            statement.execute("CREATE TABLE openidm.managedobjectproperties ("
+                    + "managedobjects_id BIGINT NOT NULL REFERENCES openidm.managedobjects (id) ON DELETE CASCADE, "
+                    + "propkey VARCHAR(255) NOT NULL, "
+                    + "proptype VARCHAR(32), "
+                    + "propvalue VARCHAR(2000))");
+        }
+        GenericTableHandler h2Handler = new H2TableHandler(tableConfig,
+                "openidm", json(object()), json(object()), 1, null);
+        h2Handler.setOptimisticLocking(true);
+        return h2Handler;
+    }
+
+    private String readUserNameProperty() throws SQLException {
+        try (Statement statement = database.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT propvalue FROM openidm.managedobjectproperties WHERE propkey = '/userName'")) {
+            Assert.assertTrue(rs.next());
+            String userName = rs.getString(1);
+            Assert.assertFalse(rs.next());
+            return userName;
+        }
+    }
+
+    private static Map<String, Object> object0() {
+        Map<String, Object> obj = new HashMap<>();
+        obj.put("_id", "0");
+        obj.put("userName", "bjensen");
+        return obj;
+    }
+
+    @Test
+    public void testUpdateDoesNotReadForUpdate() throws Exception {
+        when(updateStatement.executeUpdate()).thenReturn(1);
+
+        handler.update("managed/user/0", "managed/user", "0", "1", object0(), connection);
+
+        verify(updateStatement).setString(6, "1");
+        verify(connection, never()).prepareStatement(contains("FOR UPDATE"));
+        verify(connection, never()).prepareStatement(startsWith("SELECT obj.rev"));
+    }
+
+    @Test(expectedExceptions = PreconditionFailedException.class)
+    public void testUpdateOfChangedRevision() throws Exception {
+        when(updateStatement.executeUpdate()).thenReturn(0);
+        when(readResult.next()).thenReturn(true);
+        when(readResult.getString("rev")).thenReturn("2");
+
+        handler.update("managed/user/0", "managed/user", "0", "1", object0(), connection);
+    }
+
+    @Test(expectedExceptions = NotFoundException.class)
+    public void testUpdateOfMissingObject() throws Exception {
+        when(updateStatement.executeUpdate()).thenReturn(0);
+        when(readResult.next()).thenReturn(false);
+
+        handler.update("managed/user/0", "managed/user", "0", "1", object0(), connection);
+    }
+
+    @Test
+    public void testDeleteDoesNotReadForUpdate() throws Exception {
+        when(deleteStatement.executeUpdate()).thenReturn(1);
+
+        handler.delete("managed/user/0", "managed/user", "0", "1", connection);
+
+        verify(deleteStatement).setString(3, "1");
+        verify(connection, never()).prepareStatement(startsWith("SELECT"));
+    }
+
+    @Test(expectedExceptions = PreconditionFailedException.class)
+    public void testDeleteOfChangedRevision() throws Exception {
+        when(deleteStatement.executeUpdate()).thenReturn(0);
+        when(readResult.next()).thenReturn(true);
+        when(readResult.getString("rev")).thenReturn("2");
+
+        handler.delete("managed/user/0", "managed/user", "0", "1", connection);
+    }
+
+    @Test(expectedExceptions = NotFoundException.class)
+    public void testDeleteOfMissingObject() throws Exception {
+        when(deleteStatement.executeUpdate()).thenReturn(0);
+        when(readResult.next()).thenReturn(false);
+
+        handler.delete("managed/user/0", "managed/user", "0", "1", connection);
+    }
+
+    @Test
+    public void testPessimisticUpdateReadsForUpdate() throws Exception {
+        handler.setOptimisticLocking(false);
+        PreparedStatement readForUpdateStatement = mock(PreparedStatement.class);
+        ResultSet row = mock(ResultSet.class);
+        when(connection.prepareStatement(contains("FOR UPDATE"))).thenReturn(readForUpdateStatement);
+        when(readForUpdateStatement.executeQuery()).thenReturn(row);
+        when(row.next()).thenReturn(true);
+        when(row.getString("rev")).thenReturn("1");
+        when(row.getStatement()).thenReturn(readForUpdateStatement);
+        when(updateStatement.executeUpdate()).thenReturn(1);
+
+        handler.update("managed/user/0", "managed/user", "0", "1", object0(), connection);
+
+        verify(readForUpdateStatement).setString(2, "0");
+        verify(updateStatement, never()).setString(6, anyString());
+    }
+
+    @Test
+    public void testOptimisticUpdateInDatabase() throws Exception {
+        GenericTableHandler h2Handler = openDatabase();
+        h2Handler.create("managed/user/0", "managed/user", "0", object0(), database);
+        Map<String, Object> obj = object0();
+        obj.put("userName", "scarter");
+
+        h2Handler.update("managed/user/0", "managed/user", "0", "0", obj, database);
+
+        ResourceResponse updated = h2Handler.read("managed/user/0", "managed/user", "0", database);
+        Assert.assertEquals(updated.getRevision(), "1");
+        Assert.assertEquals(updated.getContent().get("userName").asString(), "scarter");
+        // the searchable properties are rewritten
+        Assert.assertEquals(readUserNameProperty(), "scarter");
+    }
+
+    @Test
+    public void testOptimisticUpdateOfChangedRevisionInDatabase() throws Exception {
+        GenericTableHandler h2Handler = openDatabase();
+        h2Handler.create("managed/user/0", "managed/user", "0", object0(), database);
+        Map<String, Object> obj = object0();
+        obj.put("userName", "scarter");
+
+        try {
+            h2Handler.update("managed/user/0", "managed/user", "0", "1", obj, database);
+            Assert.fail("Update of a changed revision succeeded");
+        } catch (PreconditionFailedException e) {
+            // expected
+        }
+
+        ResourceResponse unchanged = h2Handler.read("managed/user/0", "managed/user", "0", database);
+        Assert.assertEquals(unchanged.getRevision(), "0");
+        Assert.assertEquals(unchanged.getContent().get("userName").asString(), "bjensen");
+        Assert.assertEquals(readUserNameProperty(), "bjensen");
+    }
+
+    @Test(expectedExceptions = NotFoundException.class)
+    public void testOptimisticUpdateOfMissingObjectInDatabase() throws Exception {
+        GenericTableHandler h2Handler = openDatabase();
+        h2Handler.create("managed/user/1", "managed/user", "1", object0(), database);
+
+        h2Handler.update("managed/user/0", "managed/user", "0", "0", object0(), database);
+    }
+
+    @Test
+    public void testOptimisticDeleteOfChangedRevisionInDatabase() throws Exception {
+        GenericTableHandler h2Handler = openDatabase();
+        h2Handler.create("managed/user/0", "managed/user", "0", object0(), database);
+
+        try {
+            h2Handler.delete("managed/user/0", "managed/user", "0", "1", database);
+            Assert.fail("Delete of a changed revision succeeded");
+        } catch (PreconditionFailedException e) {
+            // expected
+        }
+        h2Handler.delete("managed/user/0", "managed/user", "0", "0", database);
+
+        try {
+            h2Handler.read("managed/user/0", "managed/user", "0", database);
+            Assert.fail("Deleted object was read");
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+
+    private static Map<String, Object> outboxEntry(String id, String sequence, String state, String nextAttempt) {
+        Map<String, Object> obj = new HashMap<>();
+        obj.put("_id", id);
+        obj.put("sequence", sequence);
+        obj.put("state", state);
+        obj.put("nextAttempt", nextAttempt);
+        obj.put("newValue", Collections.singletonMap("userName", "bjensen"));
+        return obj;
+    }
+
+    private static List<String> ids(List<Map<String, Object>> results) {
+        List<String> ids = new ArrayList<>();
+        for (Map<String, Object> result : results) {
+            ids.add((String) result.get("_id"));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testTimestampRangeQueryInDatabase() throws Exception {
+        // the table configuration of the sync outbox: only the queried fields are searchable
+        GenericTableHandler h2Handler = openDatabase(json(object(
+                field("mainTable", "managedobjects"),
+                field("propertiesTable", "managedobjectproperties"),
+                field("searchableDefault", false),
+                field("properties", object(
+                        field("/state", object(field("searchable", true))),
+                        field("/sequence", object(field("searchable", true))),
+                        field("/nextAttempt", object(field("searchable", true))))))));
+        final String type = "synchronisation/syncOutbox";
+        h2Handler.create(type + "/due", type, "due",
+                outboxEntry("due", "0000000000002000000", "PENDING", "2016-06-01T10:00:00.000Z"), database);
+        h2Handler.create(type + "/unset", type, "unset",
+                outboxEntry("unset", "0000000000001000000", "PENDING", "1970-01-01T00:00:00.000Z"), database);
+        h2Handler.create(type + "/waiting", type, "waiting",
+                outboxEntry("waiting", "0000000000003000000", "PENDING", "2016-06-01T10:00:00.001Z"), database);
+        h2Handler.create(type + "/dead", type, "dead",
+                outboxEntry("dead", "0000000000000000000", "DEAD", "1970-01-01T00:00:00.000Z"), database);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put(QueryConstants.QUERY_FILTER, QueryFilter.and(
+                QueryFilter.equalTo(new JsonPointer("state"), "PENDING"),
+                QueryFilter.lessThanOrEqualTo(new JsonPointer("nextAttempt"), "2016-06-01T10:00:00.000Z")));
+        params.put(QueryConstants.PAGE_SIZE, 0);
+        params.put(QueryConstants.PAGED_RESULTS_OFFSET, 0);
+        params.put(QueryConstants.SORT_KEYS, Collections.singletonList(SortKey.ascendingOrder("sequence")));
+
+        List<Map<String, Object>> due = h2Handler.query(type, params, database);
+        Assert.assertEquals(ids(due), Arrays.asList("unset", "due"));
+
+        params.put(QueryConstants.QUERY_FILTER,
+                QueryFilter.greaterThan(new JsonPointer("nextAttempt"), "2016-06-01T10:00:00.000Z"));
+        params.put(QueryConstants.PAGE_SIZE, 0);
+        params.put(QueryConstants.PAGED_RESULTS_OFFSET, 0);
+        Assert.assertEquals(ids(h2Handler.query(type, params, database)), Collections.singletonList("waiting"));
+
+        // the fields which are not searchable are not stored in the properties table
+        try (Statement statement = database.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT COUNT(*) FROM openidm.managedobjectproperties WHERE propkey LIKE '/newValue%'")) {
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals(rs.getInt(1), 0);
+        }
+    }
+
+    @Test
+    public void testExpiredQueryInDatabase() throws Exception {
+        // the table configuration of the self-service process store: only the expiry is searchable
+        GenericTableHandler h2Handler = openDatabase(json(object(
+                field("mainTable", "managedobjects"),
+                field("propertiesTable", "managedobjectproperties"),
+                field("searchableDefault", false),
+                field("properties", object(field("/expires", object(field("searchable", true))))))));
+        final String type = "selfservice/processStore";
+        for (String[] flow : new String[][] {
+                { "expired", "2016-06-01T09:59:59.999Z" },
+                { "expiring", "2016-06-01T10:00:00.000Z" },
+                { "active", "2016-06-01T10:30:00.000Z" } }) {
+            Map<String, Object> obj = new HashMap<>();
+            obj.put("_id", flow[0]);
+            obj.put("state", Collections.singletonMap("$crypto", "encrypted"));
+            obj.put("expires", flow[1]);
+            h2Handler.create(type + "/" + flow[0], type, flow[0], obj, database);
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put(QueryConstants.QUERY_FILTER,
+                QueryFilter.lessThan(new JsonPointer("expires"), "2016-06-01T10:00:00.000Z"));
+        params.put(QueryConstants.PAGE_SIZE, 0);
+        params.put(QueryConstants.PAGED_RESULTS_OFFSET, 0);
+
+        Assert.assertEquals(ids(h2Handler.query(type, params, database)), Collections.singletonList("expired"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test of JDBCRepoStatistics
+ */
+public class JDBCRepoStatisticsTest {
+
+    @Test
+    public void testConnectionAcquisition() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        statistics.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(2));
+        statistics.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(6));
+
+        Assert.assertEquals(statistics.getConnectionRequests(), 2);
+        Assert.assertEquals(statistics.getConnectionWaitTimeAvg(), 4d);
+        Assert.assertEquals(statistics.getConnectionWaitTimeMax(), 6);
+    }
+
+    @Test
+    public void testStatementsAreRecordedPerKey() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        statistics.statementExecuted("query-all-ids", "managed/user", TimeUnit.MILLISECONDS.toNanos(10));
+        statistics.statementExecuted("query-all-ids", "managed/user", TimeUnit.MILLISECONDS.toNanos(30));
+        statistics.statementExecuted(GenericTableHandler.QueryDefinition.READQUERYSTR.name(), "managed/user",
+                TimeUnit.MILLISECONDS.toNanos(1));
+
+        Map<String, Map<String, Object>> statements = statistics.getStatementStatistics();
+        Assert.assertEquals(statements.size(), 2);
+        Map<String, Object> queryAllIds = statements.get("query-all-ids");
+        Assert.assertEquals(queryAllIds.get("count"), 2L);
+        Assert.assertEquals(queryAllIds.get("totalTime"), 40L);
+        Assert.assertEquals(queryAllIds.get("averageTime"), 20d);
+        Assert.assertEquals(queryAllIds.get("maxTime"), 30L);
+        Assert.assertEquals(statements.get("READQUERYSTR").get("count"), 1L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStatementsAreBrokenDownPerResource() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        statistics.statementExecuted("query-all-ids", "managed/user", TimeUnit.MILLISECONDS.toNanos(10));
+        statistics.statementExecuted("query-all-ids", "managed/user", TimeUnit.MILLISECONDS.toNanos(30));
+        statistics.statementExecuted("query-all-ids", "managed/role", TimeUnit.MILLISECONDS.toNanos(5));
+
+        Map<String, Object> queryAllIds = statistics.getStatementStatistics().get("query-all-ids");
+        Assert.assertEquals(queryAllIds.get("count"), 3L);
+        Map<String, Map<String, Object>> resources = (Map<String, Map<String, Object>>) queryAllIds.get("resources");
+        Assert.assertEquals(resources.size(), 2);
+        Assert.assertEquals(resources.get("managed/user").get("count"), 2L);
+        Assert.assertEquals(resources.get("managed/user").get("maxTime"), 30L);
+        Assert.assertEquals(resources.get("managed/role").get("count"), 1L);
+    }
+
+    @Test
+    public void testStatementsAreCapped() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        for (int i = 0; i < JDBCRepoStatistics.MAX_STATEMENTS + 10; i++) {
+            statistics.statementExecuted("query-" + i, "managed/user", TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        statistics.statementExecuted("query-0", "managed/user", TimeUnit.MILLISECONDS.toNanos(1));
+
+        Map<String, Map<String, Object>> statements = statistics.getStatementStatistics();
+        Assert.assertEquals(statements.size(), JDBCRepoStatistics.MAX_STATEMENTS + 1);
+        Assert.assertEquals(statements.get("query-0").get("count"), 2L);
+        Assert.assertEquals(statements.get(JDBCRepoStatistics.OTHER).get("count"), 10L);
+    }
+
+    @Test
+    public void testSlowStatements() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        statistics.statementExecuted("slow", "managed/user", TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(statistics.getSlowStatements(), 0, "No threshold configured");
+
+        statistics.setSlowStatementThreshold(100);
+        statistics.statementExecuted("fast", "managed/user", TimeUnit.MILLISECONDS.toNanos(100));
+        statistics.statementExecuted("slow", "managed/user", TimeUnit.MILLISECONDS.toNanos(101));
+        Assert.assertEquals(statistics.getSlowStatements(), 1);
+    }
+
+    @Test
+    public void testRetries() {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        statistics.retried();
+        statistics.retried();
+        Assert.assertEquals(statistics.getRetries(), 2);
+    }
+
+    @Test
+    public void testRegistration() throws Exception {
+        JDBCRepoStatistics statistics = new JDBCRepoStatistics();
+        ObjectName name = new ObjectName(JDBCRepoStatistics.MBEAN_NAME);
+
+        statistics.register();
+        try {
+            statistics.retried();
+            Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Retries"), 1L);
+        } finally {
+            statistics.unregister();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
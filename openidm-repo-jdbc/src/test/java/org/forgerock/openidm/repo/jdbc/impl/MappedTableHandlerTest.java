@@ -0,0 +1,148 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.mock;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.util.Accessor;
+import org.h2.jdbcx.JdbcDataSource;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the optimistic locking of MappedTableHandler against an explicit table of an embedded H2 database
+ */
+public class MappedTableHandlerTest {
+
+    private MappedTableHandler handler;
+    private Connection connection;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:mappedTableHandlerTest");
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        connection = dataSource.getConnection();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA openidm");
+            statement.execute("CREATE TABLE openidm.internaluser ("
+                    + "objectid VARCHAR(255) NOT NULL PRIMARY KEY, "
+                    + "rev VARCHAR(38) NOT NULL, "
+                    + "pwd VARCHAR(510))");
+        }
+
+        Map<String, Object> mapping = new LinkedHashMap<>();
+        mapping.put("_id", "objectid");
+        mapping.put("_rev", "rev");
+        mapping.put("password", "pwd");
+        final CryptoService cryptoService = mock(CryptoService.class);
+        Accessor<CryptoService> cryptoServiceAccessor = new Accessor<CryptoService>() {
+            @Override
+            public CryptoService access() {
+                return cryptoService;
+            }
+        };
+        handler = new MappedTableHandler("internaluser", mapping, "openidm", json(object()), json(object()), null,
+                cryptoServiceAccessor);
+        handler.setOptimisticLocking(true);
+
+        handler.create("repo/internal/user/admin", "repo/internal/user", "admin", user("admin"), connection);
+    }
+
+    @AfterMethod
+    public void tearDown() throws SQLException {
+        // drops the in-memory database
+        connection.close();
+    }
+
+    private static Map<String, Object> user(String password) {
+        Map<String, Object> obj = new HashMap<>();
+        obj.put("password", password);
+        return obj;
+    }
+
+    private ResourceResponse readAdmin() throws Exception {
+        return handler.read("repo/internal/user/admin", "repo/internal/user", "admin", connection);
+    }
+
+    @Test
+    public void testOptimisticUpdate() throws Exception {
+        handler.update("repo/internal/user/admin", "repo/internal/user", "admin", "0", user("secret"), connection);
+
+        ResourceResponse updated = readAdmin();
+        Assert.assertEquals(updated.getRevision(), "1");
+        Assert.assertEquals(updated.getContent().get("password").asString(), "secret");
+    }
+
+    @Test
+    public void testOptimisticUpdateOfChangedRevision() throws Exception {
+        handler.update("repo/internal/user/admin", "repo/internal/user", "admin", "0", user("secret"), connection);
+
+        try {
+            handler.update("repo/internal/user/admin", "repo/internal/user", "admin", "0", user("other"),
+                    connection);
+            Assert.fail("Update of a changed revision succeeded");
+        } catch (PreconditionFailedException e) {
+            // expected
+        }
+
+        ResourceResponse unchanged = readAdmin();
+        Assert.assertEquals(unchanged.getRevision(), "1");
+        Assert.assertEquals(unchanged.getContent().get("password").asString(), "secret");
+    }
+
+    @Test(expectedExceptions = NotFoundException.class)
+    public void testOptimisticUpdateOfMissingObject() throws Exception {
+        handler.update("repo/internal/user/anonymous", "repo/internal/user", "anonymous", "0", user("anonymous"),
+                connection);
+    }
+
+    @Test
+    public void testOptimisticDeleteOfChangedRevision() throws Exception {
+        try {
+            handler.delete("repo/internal/user/admin", "repo/internal/user", "admin", "1", connection);
+            Assert.fail("Delete of a changed revision succeeded");
+        } catch (PreconditionFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(readAdmin().getRevision(), "0");
+
+        handler.delete("repo/internal/user/admin", "repo/internal/user", "admin", "0", connection);
+        try {
+            readAdmin();
+            Assert.fail("Deleted object was read");
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
+import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.json.resource.QueryFilters;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the query filter rendering and writes of PostgreSQLJsonbTableHandler
+ */
+public class PostgreSQLJsonbTableHandlerTest {
+
+    private PostgreSQLJsonbTableHandler handler;
+    private Map<String, Object> replacementTokens;
+    private Map<String, Object> params;
+
+    @BeforeMethod
+    public void setUp() {
+        handler = new PostgreSQLJsonbTableHandler(
+                json(object(
+                        field("mainTable", "managedobjects"),
+                        field("propertiesTable", "managedobjectproperties"),
+                        field("searchableDefault", true),
+                        field(PostgreSQLJsonbTableHandler.CONFIG_JSONB, true))),
+                "openidm", json(object()), json(object()), 1, null);
+        replacementTokens = new HashMap<>();
+        params = new HashMap<>();
+        params.put(PAGED_RESULTS_OFFSET, "0");
+        params.put(PAGE_SIZE, "10");
+        params.put("_resource", "managed/user");
+    }
+
+    private String render(String filter) {
+        return handler.renderQueryFilter(QueryFilters.parse(filter), replacementTokens, params);
+    }
+
+    @Test
+    public void testEqualsUsesContainment() {
+        String sql = render("name/first eq \"Barbara\"");
+
+        Assert.assertTrue(sql.contains("WHERE (obj.fullobject @> ${v1}::jsonb)"), sql);
+        Assert.assertEquals(replacementTokens.get("v1"), "{\"name\":{\"first\":\"Barbara\"}}");
+    }
+
+    @Test
+    public void testEqualsOnNumberAndBoolean() {
+        render("age eq 42 and active eq true");
+
+        Assert.assertEquals(replacementTokens.get("v1"), "{\"age\":42}");
+        Assert.assertEquals(replacementTokens.get("v2"), "{\"active\":true}");
+    }
+
+    @Test
+    public void testEqualsOnArrayIndexUsesExtractPath() {
+        String sql = render("emails/0 eq \"bjensen@example.com\"");
+
+        Assert.assertTrue(sql.contains("jsonb_extract_path_text(obj.fullobject, ${p2}, ${p3}) = (${v1})"), sql);
+    }
+
+    @Test
+    public void testEqualsOnIdUsesObjectId() {
+        String sql = render("_id eq \"bjensen\"");
+
+        Assert.assertTrue(sql.contains("(obj.objectid = ${v1})"), sql);
+    }
+
+    @Test
+    public void testRangeAndLikeUseExtractPath() {
+        String sql = render("userName sw \"bj\" and age gt 30");
+
+        Assert.assertTrue(sql.contains("(jsonb_extract_path_text(obj.fullobject, ${p2}) LIKE (${v1}))"), sql);
+        Assert.assertTrue(sql.contains("(jsonb_extract_path_text(obj.fullobject, ${p4})::numeric > (${v3})::numeric)"),
+                sql);
+    }
+
+    @Test
+    public void testWritesJsonbWithoutProperties() throws Exception {
+        Connection connection = mock(Connection.class);
+        PreparedStatement createStatement = mock(PreparedStatement.class);
+        PreparedStatement typeStatement = mock(PreparedStatement.class);
+        ResultSet typeResult = mock(ResultSet.class);
+        ResultSet keys = mock(ResultSet.class);
+        when(connection.prepareStatement(startsWith("SELECT id FROM"))).thenReturn(typeStatement);
+        when(typeStatement.executeQuery()).thenReturn(typeResult);
+        when(typeResult.next()).thenReturn(true);
+        when(connection.prepareStatement(startsWith("INSERT INTO openidm.managedobjects"),
+                eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(createStatement);
+        when(createStatement.getGeneratedKeys()).thenReturn(keys);
+        when(keys.next()).thenReturn(true);
+
+        Map<String, Object> obj = new HashMap<>();
+        obj.put("userName", "bjensen");
+        handler.create("managed/user/0", "managed/user", "0", obj, connection);
+
+        verify(createStatement).executeUpdate();
+        verify(connection, never()).prepareStatement(startsWith("INSERT INTO openidm.managedobjectproperties"));
+        Assert.assertTrue(handler.queryMap.get(GenericTableHandler.QueryDefinition.CREATEQUERYSTR)
+                .endsWith("?::jsonb)"));
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openidm.datasource.DataSourceService;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.services.context.SecurityContext;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Test of ReadReplicaRouter, with a primary and a replica in-memory database which each know their name.
+ */
+public class ReadReplicaRouterTest {
+
+    /** The resource types read from the replicas */
+    private static final List<String> MANAGED = Collections.singletonList("managed/*");
+
+    /** Reads the name of the database read from */
+    private static final ReadReplicaRouter.ReadOperation<String> DATABASE_NAME =
+            new ReadReplicaRouter.ReadOperation<String>() {
+                @Override
+                public String read(DataSourceService dataSourceService) throws SQLException {
+                    try (Connection connection = dataSourceService.getDataSource().getConnection();
+                            Statement statement = connection.createStatement();
+                            ResultSet rs = statement.executeQuery("SELECT name FROM dbname")) {
+                        Assert.assertTrue(rs.next());
+                        return rs.getString(1);
+                    }
+                }
+            };
+
+    private DataSourceService primary;
+    private DataSourceService replica;
+
+    @BeforeClass
+    public void setUp() throws SQLException {
+        primary = dataSourceService("primary");
+        replica = dataSourceService("replica");
+    }
+
+    private static DataSourceService dataSourceService(String name) throws SQLException {
+        JDBCDataSource dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:readReplicaRouterTest-" + name);
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE dbname (name VARCHAR(16))");
+            statement.execute("INSERT INTO dbname VALUES ('" + name + "')");
+        }
+        return service(name, dataSource);
+    }
+
+    private static DataSourceService service(String name, DataSource dataSource) {
+        DataSourceService service = mock(DataSourceService.class);
+        when(service.getDatabaseName()).thenReturn(name);
+        when(service.getDataSource()).thenReturn(dataSource);
+        return service;
+    }
+
+    private static String databaseRead(ReadReplicaRouter router, String client, String type)
+            throws SQLException, ResourceException, IOException {
+        return router.read(client, type, DATABASE_NAME);
+    }
+
+    @Test
+    public void testReadsGoToReplica() throws Exception {
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 1, 1,
+                TimeUnit.MINUTES);
+
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+    }
+
+    @Test
+    public void testReadsWithoutClientGoToPrimary() throws Exception {
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 1, 1,
+                TimeUnit.MINUTES);
+
+        Assert.assertEquals(databaseRead(router, null, "managed/user"), "primary");
+    }
+
+    @Test
+    public void testOnlyConfiguredTypesGoToReplica() throws Exception {
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica),
+                Arrays.asList("managed/*", "audit/access"), 1, 1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(databaseRead(router, "alice", "managed/role"), "replica");
+        Assert.assertEquals(databaseRead(router, "alice", "audit/access"), "replica");
+        Assert.assertEquals(databaseRead(router, "alice", "audit/activity"), "primary");
+        Assert.assertEquals(databaseRead(router, "alice", "cluster/states"), "primary");
+        Assert.assertEquals(databaseRead(router, "alice", "link"), "primary");
+    }
+
+    @Test
+    public void testLaggingReplicaIsSkipped() throws Exception {
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong applied = new AtomicLong();
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 1, 1,
+                TimeUnit.MINUTES);
+        // check the lag on every read
+        router.checkLag(new ReadReplicaRouter.Heartbeat() {
+            @Override
+            public void beat(long beat) {
+                written.set(beat);
+            }
+
+            @Override
+            public long lastBeat(DataSourceService dataSourceService) {
+                return applied.get();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+
+        // no heartbeat to compare with yet
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+        Assert.assertTrue(written.get() > 0);
+        // the replica has not applied the heartbeat
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+        // the replica caught up
+        applied.set(written.get());
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+    }
+
+    @Test
+    public void testLagIsNotCheckedWithinMaxLag() throws Exception {
+        final AtomicLong beats = new AtomicLong();
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 1, 1,
+                TimeUnit.MINUTES);
+        router.checkLag(new ReadReplicaRouter.Heartbeat() {
+            @Override
+            public void beat(long beat) {
+                beats.incrementAndGet();
+            }
+
+            @Override
+            public long lastBeat(DataSourceService dataSourceService) {
+                return 0L;
+            }
+        }, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+        }
+        Assert.assertEquals(beats.get(), 1L);
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 1, 1,
+                TimeUnit.MINUTES);
+        router.written("alice", "managed/user");
+
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+        Assert.assertEquals(databaseRead(router, "alice", "managed/role"), "replica");
+        // other clients keep reading from the replica
+        Assert.assertEquals(databaseRead(router, "bob", "managed/user"), "replica");
+    }
+
+    @Test
+    public void testReadsGoToReplicaAfterWindow() throws Exception {
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(replica), MANAGED, 0, 1,
+                TimeUnit.MINUTES);
+        router.written("alice", "managed/user");
+
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+    }
+
+    @Test
+    public void testFallbackToPrimaryOnReplicaFailure() throws Exception {
+        DataSource failing = mock(DataSource.class);
+        when(failing.getConnection()).thenThrow(new SQLTransientConnectionException("Connection refused"));
+        DataSourceService failingReplica = service("failing", failing);
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(failingReplica, replica), MANAGED,
+                1, 1, TimeUnit.MINUTES);
+
+        // the read failed on the replica is done on the primary
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+        // the failing replica is skipped until the retry interval has passed
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+        }
+    }
+
+    @Test
+    public void testStatementFailureIsThrown() throws Exception {
+        // a replica which hands out connections, but fails the statement
+        JDBCDataSource broken = new JDBCDataSource();
+        broken.setUrl("jdbc:hsqldb:mem:readReplicaRouterTest-broken");
+        broken.setUser("sa");
+        broken.setPassword("");
+        ReadReplicaRouter router = new ReadReplicaRouter(primary, Arrays.asList(service("broken", broken)), MANAGED,
+                1, 1, TimeUnit.MINUTES);
+
+        // the replica is not skipped for a failure of the statement
+        for (int i = 0; i < 2; i++) {
+            try {
+                databaseRead(router, "alice", "managed/user");
+                Assert.fail("Failed statement was read from the primary");
+            } catch (SQLException e) {
+                Assert.assertFalse(ReadReplicaRouter.isReplicaFailure(e));
+            }
+        }
+    }
+
+    @Test
+    public void testIsReplicaFailure() {
+        Assert.assertTrue(ReadReplicaRouter.isReplicaFailure(new SQLTransientConnectionException("timeout")));
+        Assert.assertTrue(ReadReplicaRouter.isReplicaFailure(new SQLException("Communications link failure",
+                "08S01")));
+        Assert.assertTrue(ReadReplicaRouter.isReplicaFailure(new SQLNonTransientConnectionException("refused",
+                "08001")));
+        Assert.assertTrue(ReadReplicaRouter.isReplicaFailure(new SQLException("wrapped",
+                new SQLTransientConnectionException("timeout"))));
+        Assert.assertFalse(ReadReplicaRouter.isReplicaFailure(new SQLSyntaxErrorException("no such table",
+                "42S02")));
+        Assert.assertFalse(ReadReplicaRouter.isReplicaFailure(new SQLException("constraint violation", "23000")));
+    }
+
+    @Test
+    public void testFromConfig() throws Exception {
+        Map<String, DataSourceService> dataSourceServices = new ConcurrentHashMap<>();
+        dataSourceServices.put("default", primary);
+        dataSourceServices.put("replica", replica);
+
+        ReadReplicaRouter router = ReadReplicaRouter.fromConfig(
+                json(object(
+                        field(ReadReplicaRouter.CONFIG_USE_DATA_SOURCES, array("replica", "missing")),
+                        field(ReadReplicaRouter.CONFIG_RESOURCE_TYPES, array("managed/user")))),
+                primary, dataSourceServices);
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+        Assert.assertEquals(databaseRead(router, "alice", "managed/role"), "primary");
+
+        router = ReadReplicaRouter.fromConfig(null, primary, Collections.<String, DataSourceService>emptyMap());
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+    }
+
+    @Test
+    public void testReplicasFollowDataSources() throws Exception {
+        Map<String, DataSourceService> dataSourceServices = new ConcurrentHashMap<>();
+        dataSourceServices.put("default", primary);
+        ReadReplicaRouter router = ReadReplicaRouter.fromConfig(
+                json(object(
+                        field(ReadReplicaRouter.CONFIG_USE_DATA_SOURCES, array("replica")),
+                        field(ReadReplicaRouter.CONFIG_RESOURCE_TYPES, array("managed/*")))),
+                primary, dataSourceServices);
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+
+        dataSourceServices.put("replica", replica);
+        router.dataSourcesChanged();
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "replica");
+
+        dataSourceServices.remove("replica");
+        router.dataSourcesChanged();
+        Assert.assertEquals(databaseRead(router, "alice", "managed/user"), "primary");
+    }
+
+    @Test
+    public void testClientOf() {
+        Context root = new RootContext();
+        Assert.assertEquals(ReadReplicaRouter.clientOf(new SecurityContext(root, "alice", null)), "alice");
+        Assert.assertNull(ReadReplicaRouter.clientOf(new SecurityContext(root, null, null)));
+        Assert.assertNull(ReadReplicaRouter.clientOf(root));
+        Assert.assertNull(ReadReplicaRouter.clientOf(null));
+    }
+}
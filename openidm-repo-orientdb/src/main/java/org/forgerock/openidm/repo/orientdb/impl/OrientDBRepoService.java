@@ -69,7 +69,6 @@ import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
 import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
-import org.forgerock.openidm.repo.QueryConstants;
 import org.forgerock.openidm.repo.RepoBootService;
 import org.forgerock.openidm.repo.RepositoryService;
 import org.forgerock.openidm.repo.orientdb.impl.query.Commands;
@@ -81,6 +80,7 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.command.OCommandResultListener;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentPool;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
@@ -556,10 +556,7 @@ public class OrientDBRepoService implements RequestHandler, RepositoryService, R
         request.setPagedResultsOffset(firstResultIndex);
 
         try {
-            List<ResourceResponse> results = query(request);
-            for (ResourceResponse result : results) {
-                handler.handleResource(result);
-            }
+            final int resultSize = query(request, handler);
 
             /*
              * Execute additional -count query if we are paging
@@ -604,10 +601,10 @@ public class OrientDBRepoService implements RequestHandler, RepositoryService, R
                 }
 
 
-                if (results.size() < requestPageSize) {
+                if (resultSize < requestPageSize) {
                     nextCookie = null;
                 } else {
-                    final int remainingResults = resultCount - (firstResultIndex + results.size());
+                    final int remainingResults = resultCount - (firstResultIndex + resultSize);
                     if (remainingResults == 0) {
                         nextCookie = null;
                     } else {
@@ -632,41 +629,48 @@ public class OrientDBRepoService implements RequestHandler, RepositoryService, R
 
     @Override
     public List<ResourceResponse> query(final QueryRequest request) throws ResourceException {
-        List<ResourceResponse> results = new ArrayList<ResourceResponse>();
+        final List<ResourceResponse> results = new ArrayList<ResourceResponse>();
+        query(request, new QueryResourceHandler() {
+            @Override
+            public boolean handleResource(ResourceResponse resource) {
+                return results.add(resource);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Performs the query, passing each result to the handler as soon as it is read from the database. No more
+     * results are read once the handler returns false.
+     *
+     * @param request the query request
+     * @param handler the handler of the results
+     * @return the number of results passed to the handler
+     * @throws ResourceException on failure to perform the query
+     */
+    private int query(final QueryRequest request, final QueryResourceHandler handler) throws ResourceException {
         logger.trace("Full id: {} Extracted type: {}", request.getResourcePath(), request.getResourcePath());
-        // TODO: Statistics is not returned in result anymore
-        // TODO: result is not needed in map form anymore
-        Map<String, Object> result = new HashMap<String, Object>();
         ODatabaseDocumentTx db = getConnection();
         try {
-            //List<Map<String, Object>> docs = new ArrayList<Map<String, Object>>();
-            //result.put(QueryConstants.QUERY_RESULT, docs);
             long start = System.currentTimeMillis();
-            List<ODocument> queryResult = queries.query(request.getResourcePath(), request, db);
-            long end = System.currentTimeMillis();
-            if (queryResult != null) {
-                long convStart = System.currentTimeMillis();
-                for (ODocument entry : queryResult) {
-                    Map<String, Object> convertedEntry = DocumentUtil.toMap(entry);
-                    //docs.add(convertedEntry);
-                    results.add(newResourceResponse(
+            int resultSize = queries.query(request.getResourcePath(), request, db, new OCommandResultListener() {
+                @Override
+                public boolean result(Object record) {
+                    Map<String, Object> convertedEntry = DocumentUtil.toMap((ODocument) record);
+                    return handler.handleResource(newResourceResponse(
                             (String) convertedEntry.get(DocumentUtil.TAG_ID),
                             (String) convertedEntry.get(DocumentUtil.TAG_REV),
                             new JsonValue(convertedEntry)));
                 }
-                long convEnd = System.currentTimeMillis();
-                result.put(QueryConstants.STATISTICS_CONVERSION_TIME, Long.valueOf(convEnd-convStart));
-            }
-            result.put(QueryConstants.STATISTICS_QUERY_TIME, Long.valueOf(end-start));
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("Query result contains {} records, took {} ms and took {} ms to convert result.",
-                        new Object[] {results.size(),
-                        result.get(QueryConstants.STATISTICS_QUERY_TIME),
-                        result.get(QueryConstants.STATISTICS_CONVERSION_TIME)});
-            }
-            return results;
+                @Override
+                public void end() {
+                }
+            });
+            long end = System.currentTimeMillis();
+            logger.debug("Query result contains {} records, took {} ms including conversion of the results.",
+                    resultSize, end - start);
+            return resultSize;
         } finally {
             if (db != null) {
                 db.close();
@@ -27,7 +27,11 @@ import com.orientechnologies.orient.core.command.OCommandRequest;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
+import org.forgerock.guava.common.cache.Cache;
+import org.forgerock.guava.common.cache.CacheBuilder;
 import org.forgerock.json.resource.BadRequestException;
 import org.forgerock.json.resource.Request;
 import org.forgerock.openidm.smartevent.Name;
@@ -55,9 +59,22 @@ public abstract class ConfiguredQueries<Q extends OCommandRequest, R extends Req
 
     private final TokenHandler tokenHandler = new TokenHandler();
     
+    // The maximum number of ad-hoc queries and query filter shapes kept prepared
+    static final int INLINE_QUERY_CACHE_SIZE = 500;
+
     // Pre-configured queries, key is query id
     private final Map<String, QueryInfo<Q>> configuredQueries;
 
+    // Prepared ad-hoc queries, key is the query expression with tokens
+    private final Cache<String, QueryInfo<Q>> inlineQueries = CacheBuilder.newBuilder()
+            .maximumSize(INLINE_QUERY_CACHE_SIZE)
+            .build();
+
+    // Prepared query filter queries, key is the shape of the query filter
+    private final Cache<String, QueryInfo<Q>> filterQueries = CacheBuilder.newBuilder()
+            .maximumSize(INLINE_QUERY_CACHE_SIZE)
+            .build();
+
     ConfiguredQueries(Map<String, QueryInfo<Q>> configuredQueries) {
         this.configuredQueries = configuredQueries;
     }
@@ -97,23 +114,6 @@ public abstract class ConfiguredQueries<Q extends OCommandRequest, R extends Req
         return configuredQueries.containsKey(queryId);
     }
 
-    /**
-     * Resolve the query string which can contain %{token} tokens to a fully resolved query
-     * Doing the resolution ourselves means it can not be a prepared statement with tokens
-     * that gets re-used, but it allows us to replace more parts of the query than just
-     * the where clause.
-     *  
-     * @param queryString The query with tokens
-     * @param params THe parameters to replace the tokens with
-     * @return the query with any found tokens replaced
-     * @throws BadRequestException if the queryString contains token missing from params
-     */
-    private Q resolveQuery(String queryString, Map<String, String> params)
-            throws BadRequestException {
-        String resolvedQueryString = tokenHandler.replaceTokensWithValues(queryString, params);
-        return createQueryObject(resolvedQueryString);
-    }
-
     /**
      * Populate and prepare the query information with the query expression passed in the parameters
      *
@@ -121,9 +121,17 @@ public abstract class ConfiguredQueries<Q extends OCommandRequest, R extends Req
      * @param queryExpression the parameters with the query expression and token replacement key/values
      * @return the populated query info
      */
-    private QueryInfo<Q> resolveInlineQuery(final String type, String queryExpression) {
-        // TODO: LRU cache
-        return prepareQuery(queryExpression);
+    private QueryInfo<Q> resolveInlineQuery(final String type, final String queryExpression) {
+        try {
+            return inlineQueries.get(queryExpression, new Callable<QueryInfo<Q>>() {
+                @Override
+                public QueryInfo<Q> call() {
+                    return prepareQuery(queryExpression);
+                }
+            });
+        } catch (ExecutionException e) {
+            return prepareQuery(queryExpression);
+        }
     }
 
     /**
@@ -193,6 +201,29 @@ public abstract class ConfiguredQueries<Q extends OCommandRequest, R extends Req
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Find the prepared query for a query filter shape.
+     *
+     * @param shape the shape of the query filter, its fields and operators without its values
+     * @return the prepared query, or null if no query is prepared for the shape
+     */
+    QueryInfo<Q> findFilterQueryInfo(String shape) {
+        return filterQueries.getIfPresent(shape);
+    }
+
+    /**
+     * Prepare and keep the query for a query filter shape.
+     *
+     * @param shape the shape of the query filter, its fields and operators without its values
+     * @param queryString the query the filter renders to, including tokens to replace
+     * @return the prepared query
+     */
+    QueryInfo<Q> putFilterQueryInfo(String shape, String queryString) {
+        QueryInfo<Q> queryInfo = prepareQuery(queryString);
+        filterQueries.put(shape, queryInfo);
+        return queryInfo;
+    }
+
     /**
      * Execute a query, either a pre-configured query by using the query ID, or a query expression passed as 
      * part of the params.
@@ -211,7 +242,7 @@ public abstract class ConfiguredQueries<Q extends OCommandRequest, R extends Req
     U doTokenSubsitutionQuery(QueryInfo<Q> queryInfo, Map<String, String> params, ODatabaseDocumentTx database)
             throws BadRequestException {
         // Substitute tokens manually, which supports replacing any part of the query
-        Q query = resolveQuery(queryInfo.getQueryString(), params);
+        Q query = createQueryObject(queryInfo.getTemplate().resolve(params));
         logger.debug("Manual token substitution for {} resulted in {}", queryInfo.getQueryString(), query);
         return database.command(query).execute(params);
     }
@@ -37,12 +37,16 @@ import org.forgerock.openidm.smartevent.Name;
 import org.forgerock.openidm.smartevent.Publisher;
 import org.forgerock.openidm.util.ResourceUtil;
 import org.forgerock.util.query.QueryFilter;
+import org.forgerock.util.query.QueryFilterVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.command.OCommandResultListener;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.exception.OQueryParsingException;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQLParsingException;
+import com.orientechnologies.orient.core.sql.query.OSQLAsynchQuery;
 import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
@@ -54,28 +58,23 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
 
     final static Logger logger = LoggerFactory.getLogger(Queries.class);
 
+    // Monitoring event name for rendering a query filter shape into a query
+    static final Name EVENT_QUERY_FILTER_RENDER = Name.get(EVENT_RAW_QUERY_PREFIX + "_query_filter_render");
+
     private class OrientQueryFilterVisitor extends StringSQLQueryFilterVisitor<Map<String, String>> {
         int objectNumber = 0;
         @Override
         public StringSQLRenderer visitValueAssertion(Map<String, String> objects, String operand, JsonPointer field, Object valueAssertion) {
             ++objectNumber;
             String value = "v"+objectNumber;
-            if (ResourceUtil.RESOURCE_FIELD_CONTENT_ID_POINTER.equals(field)) {
-                objects.put(field.toString(), DocumentUtil.ORIENTDB_PRIMARY_KEY);
-            } else {
-                objects.put(field.toString(), field.toString());
-            }
+            putField(objects, field);
             objects.put(value, String.valueOf(valueAssertion));
             return new StringSQLRenderer("(${dotnotation:" + field.toString() + "} " + operand + " ${" + value + "})");
         }
 
         @Override
         public StringSQLRenderer visitPresentFilter(Map<String, String> objects, JsonPointer field) {
-            if (ResourceUtil.RESOURCE_FIELD_CONTENT_ID_POINTER.equals(field)) {
-                objects.put(field.toString(), DocumentUtil.ORIENTDB_PRIMARY_KEY);
-            } else {
-                objects.put(field.toString(), field.toString());
-            }
+            putField(objects, field);
             return new StringSQLRenderer("(${dotnotation:" + field.toString() + "} IS NOT NULL)");
         }
 
@@ -86,13 +85,132 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
 
         @Override
         public StringSQLRenderer visitStartsWithFilter(Map<String, String> parameters, JsonPointer field, Object valueAssertion) {
-            // OrientDB needs double % for "like anything"
-            return "".equals(valueAssertion)
-                ? visitValueAssertion(parameters, "LIKE", field, "%%")
-                : visitValueAssertion(parameters, "LIKE", field, valueAssertion + "%");
+            return visitValueAssertion(parameters, "LIKE", field, startsWith(valueAssertion));
+        }
+    }
+
+    /**
+     * Collects the parameters of a query filter the way {@link OrientQueryFilterVisitor} does, and records the
+     * shape of the filter, its fields and operators without its values, which the query the filter renders to
+     * depends on. The query is then only rendered for a shape that is not prepared yet.
+     */
+    private static class FilterShapeVisitor implements QueryFilterVisitor<Void, Map<String, String>, JsonPointer> {
+        final StringBuilder shape = new StringBuilder();
+        int objectNumber = 0;
+
+        private Void visitValueAssertion(Map<String, String> objects, String operand, JsonPointer field,
+                Object valueAssertion) {
+            ++objectNumber;
+            putField(objects, field);
+            objects.put("v" + objectNumber, String.valueOf(valueAssertion));
+            appendField(field).append(operand).append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitPresentFilter(Map<String, String> objects, JsonPointer field) {
+            putField(objects, field);
+            appendField(field).append("pr)");
+            return null;
+        }
+
+        @Override
+        public Void visitContainsFilter(Map<String, String> objects, JsonPointer field, Object valueAssertion) {
+            return visitValueAssertion(objects, "LIKE", field, "%" + valueAssertion + "%");
+        }
+
+        @Override
+        public Void visitEqualsFilter(Map<String, String> objects, JsonPointer field, Object valueAssertion) {
+            return visitValueAssertion(objects, "=", field, valueAssertion);
+        }
+
+        @Override
+        public Void visitExtendedMatchFilter(Map<String, String> objects, JsonPointer field, String operator,
+                Object valueAssertion) {
+            throw new UnsupportedOperationException("Extended match filter not supported on this endpoint");
+        }
+
+        @Override
+        public Void visitGreaterThanFilter(Map<String, String> objects, JsonPointer field, Object valueAssertion) {
+            return visitValueAssertion(objects, ">", field, valueAssertion);
+        }
+
+        @Override
+        public Void visitGreaterThanOrEqualToFilter(Map<String, String> objects, JsonPointer field,
+                Object valueAssertion) {
+            return visitValueAssertion(objects, ">=", field, valueAssertion);
+        }
+
+        @Override
+        public Void visitLessThanFilter(Map<String, String> objects, JsonPointer field, Object valueAssertion) {
+            return visitValueAssertion(objects, "<", field, valueAssertion);
+        }
+
+        @Override
+        public Void visitLessThanOrEqualToFilter(Map<String, String> objects, JsonPointer field,
+                Object valueAssertion) {
+            return visitValueAssertion(objects, "<=", field, valueAssertion);
+        }
+
+        @Override
+        public Void visitStartsWithFilter(Map<String, String> objects, JsonPointer field, Object valueAssertion) {
+            return visitValueAssertion(objects, "LIKE", field, startsWith(valueAssertion));
+        }
+
+        @Override
+        public Void visitBooleanLiteralFilter(Map<String, String> objects, boolean value) {
+            shape.append(value ? "(true)" : "(false)");
+            return null;
+        }
+
+        @Override
+        public Void visitNotFilter(Map<String, String> objects, QueryFilter<JsonPointer> subFilter) {
+            shape.append("(!");
+            subFilter.accept(this, objects);
+            shape.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitAndFilter(Map<String, String> objects, List<QueryFilter<JsonPointer>> subFilters) {
+            return visitCompositeFilter(objects, subFilters, '&');
+        }
+
+        @Override
+        public Void visitOrFilter(Map<String, String> objects, List<QueryFilter<JsonPointer>> subFilters) {
+            return visitCompositeFilter(objects, subFilters, '|');
+        }
+
+        private Void visitCompositeFilter(Map<String, String> objects, List<QueryFilter<JsonPointer>> subFilters,
+                char operand) {
+            shape.append('(').append(operand);
+            for (QueryFilter<JsonPointer> subFilter : subFilters) {
+                subFilter.accept(this, objects);
+            }
+            shape.append(')');
+            return null;
+        }
+
+        /** Appends the field prefixed with its length, so that no field name can be mistaken for an operator. */
+        private StringBuilder appendField(JsonPointer field) {
+            final String name = field.toString();
+            return shape.append('(').append(name.length()).append(':').append(name).append(' ');
         }
     }
 
+    private static void putField(Map<String, String> objects, JsonPointer field) {
+        if (ResourceUtil.RESOURCE_FIELD_CONTENT_ID_POINTER.equals(field)) {
+            objects.put(field.toString(), DocumentUtil.ORIENTDB_PRIMARY_KEY);
+        } else {
+            objects.put(field.toString(), field.toString());
+        }
+    }
+
+    private static String startsWith(Object valueAssertion) {
+        // OrientDB needs double % for "like anything"
+        return "".equals(valueAssertion) ? "%%" : valueAssertion + "%";
+    }
+
     public Queries() {
         super(new HashMap<String, QueryInfo<OSQLSynchQuery<ODocument>>>());
     }
@@ -129,17 +247,40 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
 
     private QueryInfo<OSQLSynchQuery<ODocument>> findQueryInfo(String type, Map<String, String> params,
             String queryId, String queryExpression, QueryFilter<JsonPointer> filter) {
-        String queryString = queryExpression == null ? null : queryExpression + params.get("pageClause");
+        // the page clause is left as a token, so that all pages of a query share the prepared query
+        String queryString = queryExpression == null
+                ? null
+                : queryExpression + "${unquoted:" + QueryConstants.PAGE_CLAUSE + "}";
         if (filter != null) {
-            // If there is a filter, use it's query string
-            queryString = "SELECT * FROM ${unquoted:_resource} WHERE "
-                    + filter.accept(new OrientQueryFilterVisitor(), params).toSQL()
-                    + " " + params.get(QueryConstants.PAGE_CLAUSE);
+            // If there is a filter, use it's query, which only depends on the shape of the filter as the values
+            // are left as tokens, so it is only rendered for a shape which is not prepared yet
+            final FilterShapeVisitor shapeVisitor = new FilterShapeVisitor();
+            filter.accept(shapeVisitor, params);
+            final String shape = shapeVisitor.shape.toString();
+            final QueryInfo<OSQLSynchQuery<ODocument>> queryInfo = findFilterQueryInfo(shape);
+            return queryInfo != null ? queryInfo : putFilterQueryInfo(shape, renderFilterQuery(filter, params));
         }
-        // treat the query created by the filter as a queryExpression
         return findQueryInfo(type, queryId, queryString);
     }
 
+    /**
+     * Renders the query for a query filter, with its values left as tokens.
+     *
+     * @param filter the query filter
+     * @param params the parameters to add the field and value tokens of the filter to
+     * @return the query expression, including tokens to replace
+     */
+    String renderFilterQuery(QueryFilter<JsonPointer> filter, Map<String, String> params) {
+        EventEntry measure = Publisher.start(EVENT_QUERY_FILTER_RENDER, filter, null);
+        try {
+            return "SELECT * FROM ${unquoted:_resource} WHERE "
+                    + filter.accept(new OrientQueryFilterVisitor(), params).toSQL()
+                    + " ${unquoted:" + QueryConstants.PAGE_CLAUSE + "}";
+        } finally {
+            measure.end();
+        }
+    }
+
     /**
      * Execute a query, either a pre-configured query by using the query ID, or a query expression passed as 
      * part of the params.
@@ -155,6 +296,37 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
      */
     public List<ODocument> query(final String type, QueryRequest request, final ODatabaseDocumentTx database)
             throws BadRequestException {
+        final List<ODocument> result = new ArrayList<ODocument>();
+        query(type, request, database, new OCommandResultListener() {
+            @Override
+            public boolean result(Object record) {
+                result.add((ODocument) record);
+                return true;
+            }
+
+            @Override
+            public void end() {
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Execute a query, either a pre-configured query by using the query ID, or a query expression passed as
+     * part of the params, passing each result record to the listener as soon as OrientDB reads it.
+     *
+     * The query stops reading records as soon as the listener returns false.
+     *
+     * @param type the relative/local resource name, which needs to be converted to match the OrientDB document class name
+     * @param request the query request, including parameters which include the query id, or the query expression, as well as the
+     *        token key/value pairs to replace in the query
+     * @param database a handle to a database connection instance for exclusive use by the query method whilst it is executing.
+     * @param listener the listener of the result records
+     * @return the number of result records passed to the listener
+     * @throws BadRequestException if the passed request parameters are invalid, e.g. missing query id or query expression or tokens.
+     */
+    public int query(final String type, QueryRequest request, final ODatabaseDocumentTx database,
+            final OCommandResultListener listener) throws BadRequestException {
 
         final Map<String, String> params = new HashMap<String, String>(request.getAdditionalParameters());
         params.put(QueryConstants.RESOURCE_NAME, OrientDBRepoService.typeToOrientClassName(type));
@@ -176,15 +348,14 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
                     + " does not match any configured queries on the OrientDB repository service.");
         }
 
-        List<ODocument> result = null;
-
         logger.debug("Evaluate query {}", queryInfo.getQueryString());
         Name eventName = getEventName(request.getQueryId(), request.getQueryExpression());
         EventEntry measure = Publisher.start(eventName, queryInfo, null);
 
         try {
-            result = doTokenSubsitutionQuery(queryInfo, params, database);
-            measure.setResult(result);
+            final int count = doStreamingQuery(queryInfo, params, database, listener);
+            measure.setResult(count);
+            return count;
         } catch (OQueryParsingException firstTryEx) {
             // TODO: consider differentiating between bad configuration and bad request
             logger.debug("Failed to resolve and parse the query {} with params: {}",
@@ -203,8 +374,68 @@ public class Queries extends ConfiguredQueries<OSQLSynchQuery<ODocument>, QueryR
         } finally {
             measure.end();
         }
+    }
 
-        return result;
+    /**
+     * Executes the query with its values bound as parameters, so that OrientDB is handed the same query text
+     * for every execution of the query, or with all tokens substituted if the query can not be executed with
+     * parameters.
+     *
+     * @return the number of result records passed to the listener
+     */
+    private int doStreamingQuery(QueryInfo<OSQLSynchQuery<ODocument>> queryInfo, Map<String, String> params,
+            ODatabaseDocumentTx database, OCommandResultListener listener) throws BadRequestException {
+        if (queryInfo.isUsePrepared()) {
+            final CountingListener counter = new CountingListener(listener);
+            try {
+                database.command(new OSQLAsynchQuery<ODocument>(
+                        queryInfo.getTemplate().resolveForBinding(params), counter)).execute(params);
+                return counter.count;
+            } catch (OCommandSQLParsingException e) {
+                // includes OQueryParsingException
+                if (counter.count > 0) {
+                    throw e;
+                }
+                logger.debug("Query {} could not be executed with parameters, substituting tokens instead",
+                        queryInfo.getQueryString(), e);
+            }
+            final int count = doSubstitutedQuery(queryInfo, params, database, listener);
+            // the query does not allow parameters, but works with substituted tokens
+            queryInfo.setUsePrepared(false);
+            return count;
+        }
+        return doSubstitutedQuery(queryInfo, params, database, listener);
+    }
+
+    private int doSubstitutedQuery(QueryInfo<OSQLSynchQuery<ODocument>> queryInfo, Map<String, String> params,
+            ODatabaseDocumentTx database, OCommandResultListener listener) throws BadRequestException {
+        final CountingListener counter = new CountingListener(listener);
+        database.command(new OSQLAsynchQuery<ODocument>(queryInfo.getTemplate().resolve(params), counter))
+                .execute(params);
+        return counter.count;
+    }
+
+    /**
+     * Counts the result records passed on to a listener.
+     */
+    private static final class CountingListener implements OCommandResultListener {
+        private final OCommandResultListener delegate;
+        private int count;
+
+        private CountingListener(OCommandResultListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean result(Object record) {
+            count++;
+            return delegate.result(record);
+        }
+
+        @Override
+        public void end() {
+            delegate.end();
+        }
     }
 
     /**
@@ -28,9 +28,10 @@ package org.forgerock.openidm.repo.orientdb.impl.query;
  * 
  */
 final class QueryInfo<Q> {
-    private boolean usePrepared;
+    private volatile boolean usePrepared;
     private Q preparedQuery;
     private String queryString;
+    private final QueryTemplate template;
 
     /**
      * Constructor
@@ -43,6 +44,7 @@ final class QueryInfo<Q> {
         this.usePrepared = usePrepared;
         this.preparedQuery = preparedQuery;
         this.queryString = queryString;
+        this.template = new QueryTemplate(queryString);
     }
     
     /**
@@ -72,4 +74,11 @@ final class QueryInfo<Q> {
     public String getQueryString() {
         return queryString;
     }
+
+    /**
+     * @return the query string parsed into its literal parts and tokens
+     */
+    QueryTemplate getTemplate() {
+        return template;
+    }
 }
\ No newline at end of file
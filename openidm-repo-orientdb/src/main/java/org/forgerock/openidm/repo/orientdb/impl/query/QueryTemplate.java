@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.repo.orientdb.impl.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.forgerock.json.resource.BadRequestException;
+
+/**
+ * A query string with tokens of the format ${token-name}, parsed once into its literal parts and tokens so that
+ * resolving it for each execution does not scan the query string again.
+ * <p>
+ * Tokens with a prefix (${unquoted:...}, ${dotnotation:...}, ${list:...}) shape the query and are always replaced
+ * by their values. Tokens without a prefix stand for a quoted value and may instead be bound as an OrientDB
+ * parameter of the form :token-name, so that the resolved query text is the same whatever the values are.
+ */
+final class QueryTemplate {
+
+    // The OpenIDM query token is of format ${token-name}
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("\\$\\{(.+?)\\}");
+
+    // The names OrientDB accepts for a named parameter
+    private static final Pattern PARAMETER_NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String queryString;
+    /** the literal parts of the query, one more than there are tokens */
+    private final List<String> literals = new ArrayList<>();
+    private final List<String> tokenPrefixes = new ArrayList<>();
+    private final List<String> tokenKeys = new ArrayList<>();
+
+    /**
+     * Parses a query string.
+     *
+     * @param queryString the query with tokens
+     */
+    QueryTemplate(String queryString) {
+        this.queryString = queryString;
+        final Matcher matcher = TOKEN_PATTERN.matcher(queryString);
+        int start = 0;
+        while (matcher.find()) {
+            literals.add(queryString.substring(start, matcher.start()));
+            final String[] tokenKeyParts = matcher.group(1).split(":", 2);
+            // if prefix found
+            if (tokenKeyParts.length == 2) {
+                tokenPrefixes.add(tokenKeyParts[0]);
+                tokenKeys.add(tokenKeyParts[1]);
+            } else {
+                tokenPrefixes.add(null);
+                tokenKeys.add(tokenKeyParts[0]);
+            }
+            start = matcher.end();
+        }
+        literals.add(queryString.substring(start));
+    }
+
+    /**
+     * @return the query with tokens
+     */
+    String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * Replaces all tokens with the values from the passed in map.
+     *
+     * @param params the parameters to replace the tokens
+     * @return the query with all tokens replaced with their values
+     * @throws BadRequestException if a token in the query is not in the passed parameters
+     */
+    String resolve(Map<String, String> params) throws BadRequestException {
+        return resolve(params, false);
+    }
+
+    /**
+     * Replaces the tokens which shape the query with the values from the passed in map, and the value tokens with
+     * OrientDB parameters, to be executed with the same map as parameters.
+     *
+     * @param params the parameters to replace the tokens
+     * @return the query with shaping tokens replaced with their values and value tokens replaced with parameters
+     * @throws BadRequestException if a token in the query is not in the passed parameters
+     */
+    String resolveForBinding(Map<String, String> params) throws BadRequestException {
+        return resolve(params, true);
+    }
+
+    private String resolve(Map<String, String> params, boolean bindValues) throws BadRequestException {
+        final StringBuilder builder = new StringBuilder(queryString.length());
+        for (int i = 0; i < tokenKeys.size(); i++) {
+            builder.append(literals.get(i));
+            final String tokenPrefix = tokenPrefixes.get(i);
+            final String tokenKey = tokenKeys.get(i);
+            if (bindValues && isBindable(tokenPrefix, tokenKey, params)) {
+                builder.append(':').append(tokenKey);
+            } else {
+                builder.append(TokenHandler.tokenValue(tokenPrefix, tokenKey, params));
+            }
+        }
+        builder.append(literals.get(literals.size() - 1));
+        return builder.toString();
+    }
+
+    private static boolean isBindable(String tokenPrefix, String tokenKey, Map<String, String> params) {
+        // a null value is replaced by an empty string, which a parameter would not do
+        return tokenPrefix == null
+                && params.get(tokenKey) != null
+                && PARAMETER_NAME_PATTERN.matcher(tokenKey).matches();
+    }
+}
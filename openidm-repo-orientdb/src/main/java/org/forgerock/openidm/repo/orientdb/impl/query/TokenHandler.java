@@ -108,54 +108,67 @@ public class TokenHandler {
                 tokenPrefix = tokenKeyParts[0];
                 tokenKey = tokenKeyParts[1];
             }
-            if (!params.containsKey(tokenKey)) {
-                // fail with an exception if token not found
-                throw new BadRequestException("Missing entry in params passed to query for token " + tokenKey);
-            } else {
-                Object replacement = params.get(tokenKey);
-
-                if (PREFIX_LIST.equals(tokenPrefix)) {
-                    // escape quotes, quote each element, and split on ,
-                    replacement = Arrays.asList(("'" + replacement.toString().replaceAll("'", "\\\\'").replaceAll(",", "','") + "'").split(","));
-                }
+            String replacement = tokenValue(tokenPrefix, tokenKey, params);
+            matcher.appendReplacement(buffer, "");
+            buffer.append(replacement);
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
 
-                if (replacement instanceof List) {
-                    StringBuffer commaSeparated = new StringBuffer();
-                    boolean first = true;
-                    for (Object entry : ((List) replacement)) {
-                        if (!first) {
-                            commaSeparated.append(",");
-                        } else {
-                            first = false;
-                        }
-                        commaSeparated.append(entry.toString());
-                    }
-                    replacement = commaSeparated.toString();
-                }
+    /**
+     * Returns the replacement of a single token of format ${prefix:token-name}.
+     *
+     * @param tokenPrefix the optional prefix controlling the representation of the value, may be null
+     * @param tokenKey the token name, which must be a key in the passed map
+     * @param params the parameters to replace the tokens. Values can be String or List.
+     * @return the replacement of the token
+     * @throws BadRequestException if the token is not in the passed parameters
+     */
+    static String tokenValue(String tokenPrefix, String tokenKey, Map<String, String> params)
+            throws BadRequestException {
+        if (!params.containsKey(tokenKey)) {
+            // fail with an exception if token not found
+            throw new BadRequestException("Missing entry in params passed to query for token " + tokenKey);
+        }
+        Object replacement = params.get(tokenKey);
 
-                if (replacement == null) {
-                    replacement = "";
-                }
-                
-                // Optional control of representation via prefix
-                if (tokenPrefix != null) {
-                    if (tokenPrefix.equals(PREFIX_UNQUOTED)) {
-                        // Leave replacement unquoted
-                    } else if (tokenPrefix.equals(PREFIX_DOTNOTATION)) {
-                        // Convert Json Pointer to OrientDB dot notation
-                        replacement = JSON_POINTER_TO_DOT_NOTATION.apply(replacement.toString());
-                    }
+        if (PREFIX_LIST.equals(tokenPrefix)) {
+            // escape quotes, quote each element, and split on ,
+            replacement = Arrays.asList(("'" + replacement.toString().replaceAll("'", "\\\\'").replaceAll(",", "','") + "'").split(","));
+        }
+
+        if (replacement instanceof List) {
+            StringBuffer commaSeparated = new StringBuffer();
+            boolean first = true;
+            for (Object entry : ((List) replacement)) {
+                if (!first) {
+                    commaSeparated.append(",");
                 } else {
-                    // Default is single quoted string replacement (escaping single quotes in replacement)
-                    replacement = "'" + replacement.toString().replaceAll("'", "\\\\'") + "'";
+                    first = false;
                 }
-                
-                matcher.appendReplacement(buffer, "");
-                buffer.append(replacement);
+                commaSeparated.append(entry.toString());
             }
+            replacement = commaSeparated.toString();
         }
-        matcher.appendTail(buffer);
-        return buffer.toString();
+
+        if (replacement == null) {
+            replacement = "";
+        }
+
+        // Optional control of representation via prefix
+        if (tokenPrefix != null) {
+            if (tokenPrefix.equals(PREFIX_UNQUOTED)) {
+                // Leave replacement unquoted
+            } else if (tokenPrefix.equals(PREFIX_DOTNOTATION)) {
+                // Convert Json Pointer to OrientDB dot notation
+                replacement = JSON_POINTER_TO_DOT_NOTATION.apply(replacement.toString());
+            }
+        } else {
+            // Default is single quoted string replacement (escaping single quotes in replacement)
+            replacement = "'" + replacement.toString().replaceAll("'", "\\\\'") + "'";
+        }
+        return replacement.toString();
     }
 
     /**
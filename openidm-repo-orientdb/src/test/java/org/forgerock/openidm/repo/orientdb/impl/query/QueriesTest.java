@@ -25,14 +25,132 @@ package org.forgerock.openidm.repo.orientdb.impl.query;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.QueryFilters;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.util.query.QueryFilter;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.orientechnologies.orient.core.command.OCommandResultListener;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class QueriesTest {
 
+    private ODatabaseDocumentTx db;
+
+    @BeforeClass
+    public void createDatabase() {
+        db = new ODatabaseDocumentTx("memory:queriesTest").create();
+        for (String userName : new String[] { "bjensen", "scarter", "o'neil" }) {
+            new ODocument("managed_user")
+                    .field("_openidm_id", userName + "-id")
+                    .field("userName", userName)
+                    .save();
+        }
+    }
+
+    @AfterClass
+    public void dropDatabase() {
+        db.drop();
+    }
+
+    private static Queries queries() {
+        Map<String, String> queryStrings = new HashMap<String, String>();
+        queryStrings.put("for-userName", "SELECT * FROM ${unquoted:_resource} WHERE userName = ${uid}");
+        Queries queries = new Queries();
+        queries.setConfiguredQueries(queryStrings);
+        return queries;
+    }
+
+    /** Collects the user names of the results, stopping after the given number of results. */
+    private static OCommandResultListener collect(final List<String> userNames, final int limit) {
+        return new OCommandResultListener() {
+            @Override
+            public boolean result(Object record) {
+                userNames.add(((ODocument) record).<String>field("userName"));
+                return userNames.size() < limit;
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+    }
+
+    @Test
+    public void queryBindsValues() throws BadRequestException {
+        Queries queries = queries();
+        QueryRequest request = Requests.newQueryRequest("managed/user")
+                .setQueryId("for-userName")
+                .setAdditionalParameter("uid", "o'neil");
+
+        List<String> userNames = new ArrayList<String>();
+        assertThat(queries.query("managed/user", request, db, collect(userNames, Integer.MAX_VALUE))).isEqualTo(1);
+        assertThat(userNames).containsExactly("o'neil");
+        assertThat(queries.findQueryInfo("managed/user", "for-userName", null).isUsePrepared()).isTrue();
+    }
+
+    @Test
+    public void queryStopsWhenListenerDoesNotAcceptMore() throws BadRequestException {
+        QueryRequest request = Requests.newQueryRequest("managed/user")
+                .setQueryFilter(QueryFilters.parse("userName pr"));
+
+        List<String> userNames = new ArrayList<String>();
+        assertThat(queries().query("managed/user", request, db, collect(userNames, 2))).isEqualTo(2);
+        assertThat(userNames).hasSize(2);
+    }
+
+    /** Counts the query filters rendered into queries. */
+    private static class RenderCountingQueries extends Queries {
+        int rendered;
+
+        @Override
+        String renderFilterQuery(QueryFilter<JsonPointer> filter, Map<String, String> params) {
+            rendered++;
+            return super.renderFilterQuery(filter, params);
+        }
+    }
+
+    @Test
+    public void queryFiltersOfTheSameShapeShareTheQuery() throws BadRequestException {
+        RenderCountingQueries queries = new RenderCountingQueries();
+        for (String userName : new String[] { "bjensen", "scarter" }) {
+            QueryRequest request = Requests.newQueryRequest("managed/user")
+                    .setQueryFilter(QueryFilter.equalTo(new JsonPointer("userName"), (Object) userName));
+            List<ODocument> result = queries.query("managed/user", request, db);
+            assertThat(result).hasSize(1);
+            assertThat(result.get(0).<String>field("userName")).isEqualTo(userName);
+        }
+        // the second filter is only walked for its shape and values
+        assertThat(queries.rendered).isEqualTo(1);
+    }
+
+    @Test
+    public void queryFiltersOfAnotherShapeAreRendered() throws BadRequestException {
+        RenderCountingQueries queries = new RenderCountingQueries();
+        QueryRequest equals = Requests.newQueryRequest("managed/user")
+                .setQueryFilter(QueryFilters.parse("userName eq \"scarter\""));
+        QueryRequest startsWith = Requests.newQueryRequest("managed/user")
+                .setQueryFilter(QueryFilters.parse("userName sw \"s\""));
+        QueryRequest or = Requests.newQueryRequest("managed/user")
+                .setQueryFilter(QueryFilters.parse("userName eq \"scarter\" or userName eq \"bjensen\""));
+
+        assertThat(queries.query("managed/user", equals, db)).hasSize(1);
+        assertThat(queries.query("managed/user", startsWith, db)).hasSize(1);
+        assertThat(queries.query("managed/user", or, db)).hasSize(2);
+        assertThat(queries.rendered).isEqualTo(3);
+    }
+
     @Test
     public void setConfiguredQueriesDefaultQueryAllIds() throws BadRequestException {
         Map<String,String> queryStrings = new HashMap<String, String>();
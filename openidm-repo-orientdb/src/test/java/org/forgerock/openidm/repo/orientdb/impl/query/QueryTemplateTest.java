@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.repo.orientdb.impl.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.json.resource.BadRequestException;
+import org.testng.annotations.Test;
+
+public class QueryTemplateTest {
+
+    private static final String QUERY = "SELECT * FROM ${unquoted:_resource} WHERE ${dotnotation:field} = ${value}"
+            + " AND name LIKE ${name-like} ${unquoted:pageClause}";
+
+    private static Map<String, String> params(String value) {
+        final Map<String, String> params = new HashMap<>();
+        params.put("_resource", "managed_user");
+        params.put("field", "/address/city");
+        params.put("value", value);
+        params.put("name-like", "b%");
+        params.put("pageClause", "SKIP 0 LIMIT 10");
+        return params;
+    }
+
+    @Test
+    public void testResolveMatchesTokenHandler() throws BadRequestException {
+        final QueryTemplate template = new QueryTemplate(QUERY);
+        final Map<String, String> params = params("O'Neil");
+
+        assertThat(template.resolve(params))
+                .isEqualTo(new TokenHandler().replaceTokensWithValues(QUERY, params))
+                .isEqualTo("SELECT * FROM managed_user WHERE address.city = 'O\\'Neil'"
+                        + " AND name LIKE 'b%' SKIP 0 LIMIT 10");
+    }
+
+    @Test
+    public void testResolveForBindingKeepsValuesOutOfTheQuery() throws BadRequestException {
+        final QueryTemplate template = new QueryTemplate(QUERY);
+
+        // token names OrientDB can not take as a parameter name are substituted
+        assertThat(template.resolveForBinding(params("Bristol")))
+                .isEqualTo(template.resolveForBinding(params("London")))
+                .isEqualTo("SELECT * FROM managed_user WHERE address.city = :value"
+                        + " AND name LIKE 'b%' SKIP 0 LIMIT 10");
+    }
+
+    @Test
+    public void testNullValuesAreSubstituted() throws BadRequestException {
+        assertThat(new QueryTemplate("SELECT * FROM managed_user WHERE name = ${value}")
+                .resolveForBinding(params(null)))
+                .isEqualTo("SELECT * FROM managed_user WHERE name = ''");
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testMissingToken() throws BadRequestException {
+        new QueryTemplate("SELECT * FROM managed_user WHERE name = ${missing}").resolveForBinding(params("x"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.router;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.Request;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.SecurityContext;
+
+/**
+ * The {@code customAuthz} checks of the access rules which the native router authorization filter evaluates in Java
+ * rather than in the script engine, by the expression naming them in the rule, e.g. {@code "ownDataOnly()"}.
+ * <p>
+ * The checks of the common functions of {@code router-authz.js} are registered by default. Other bundles may
+ * register further checks; an expression without a registered check is evaluated by the {@code customAuthz} script.
+ */
+public final class AuthorizationChecks {
+
+    /**
+     * A custom authorization check implemented in Java.
+     */
+    public interface Check {
+        /**
+         * Evaluates the check.
+         *
+         * @param context the request context
+         * @param request the request
+         * @return true if the request passes the check
+         */
+        boolean isAllowed(Context context, Request request);
+    }
+
+    private static final Map<String, Check> checks = new ConcurrentHashMap<>();
+
+    static {
+        register("disallowQueryExpression()", new Check() {
+            @Override
+            public boolean isAllowed(Context context, Request request) {
+                return !(request instanceof QueryRequest)
+                        || StringUtils.isEmpty(((QueryRequest) request).getQueryExpression());
+            }
+        });
+        register("disallowCommandAction()", new Check() {
+            @Override
+            public boolean isAllowed(Context context, Request request) {
+                return !(request instanceof ActionRequest)
+                        || !"command".equals(((ActionRequest) request).getAction());
+            }
+        });
+        register("ownDataOnly()", new Check() {
+            @Override
+            public boolean isAllowed(Context context, Request request) {
+                if (!context.containsContext(SecurityContext.class)) {
+                    return false;
+                }
+                final Map<String, Object> authorization =
+                        context.asContext(SecurityContext.class).getAuthorization();
+                return request.getResourcePath().equals(
+                        authorization.get(SecurityContext.AUTHZID_COMPONENT) + "/"
+                                + authorization.get(SecurityContext.AUTHZID_ID));
+            }
+        });
+        register("isSelfServiceRequest()", new Check() {
+            @Override
+            public boolean isAllowed(Context context, Request request) {
+                return "selfservice".equals(context.getContextName());
+            }
+        });
+    }
+
+    private AuthorizationChecks() {
+        // static registry
+    }
+
+    /**
+     * Registers a check, replacing the check registered for the same expression.
+     *
+     * @param expression the customAuthz expression of the access rules, e.g. {@code "isAdmin()"}
+     * @param check the check evaluating the expression
+     */
+    public static void register(String expression, Check check) {
+        checks.put(expression.trim(), check);
+    }
+
+    /**
+     * Unregisters the check of an expression, which is then evaluated by the customAuthz script again.
+     *
+     * @param expression the customAuthz expression
+     */
+    public static void unregister(String expression) {
+        checks.remove(expression.trim());
+    }
+
+    /**
+     * Gets the check registered for an expression.
+     *
+     * @param expression the customAuthz expression
+     * @return the check, or null if the expression is evaluated by the customAuthz script
+     */
+    public static Check get(String expression) {
+        return checks.get(expression);
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.router.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.ScriptException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.Filter;
+import org.forgerock.json.resource.ForbiddenException;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.PatchRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.Request;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.RequestType;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.json.resource.http.HttpContext;
+import org.forgerock.openidm.router.AuthorizationChecks;
+import org.forgerock.openidm.util.JsonUtil;
+import org.forgerock.script.Script;
+import org.forgerock.script.ScriptEntry;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.SecurityContext;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A router filter enforcing the access rules of {@code access.js} natively, without evaluating
+ * {@code router-authz.js} in the script engine for every request.
+ * <p>
+ * The rules are compiled into a rule table from {@code access.js}, by the {@code customAuthz} script, which is
+ * evaluated with the {@code compileAccessRules} binding and returns the rules of {@code httpAccessConfig} as a JSON
+ * string. The rules are compiled again when {@code script/access.js} in the project changes:
+ * <pre>
+ *     "authorization" : {
+ *         "customAuthz" : {
+ *             "type" : "text/javascript",
+ *             "file" : "router-authz.js"
+ *         }
+ *     }
+ * </pre>
+ * The rules may instead be configured with the filter, in the format of {@code access.js}:
+ * <pre>
+ *     "authorization" : {
+ *         "rules" : [
+ *             {
+ *                 "pattern" : "managed/*",
+ *                 "roles" : "openidm-admin",
+ *                 "methods" : "*",
+ *                 "actions" : "*",
+ *                 "excludePatterns" : "managed/secret/*",
+ *                 "customAuthz" : "disallowQueryExpression()"
+ *             }
+ *         ]
+ *     }
+ * </pre>
+ * The rules are evaluated in order with the same semantics as {@code router-authz.js}; the request is allowed
+ * as soon as a rule matches. A rule with a method it does not know is logged and matches no request.
+ * <p>
+ * A {@code customAuthz} expression with a check registered with {@link AuthorizationChecks} is evaluated in Java;
+ * any other expression is evaluated by the {@code customAuthz} script, which is only invoked for rules that need
+ * it and is given the expression in the {@code customAuthz} binding along with {@code request} and
+ * {@code context}. If the project has its own copy of the {@code customAuthz} script, it may have changed the
+ * functions the checks stand in for, so all expressions are evaluated by the script unless
+ * {@code "nativeChecks" : true} is configured.
+ */
+class AuthorizationFilter implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationFilter.class);
+
+    private static final String ANY = "*";
+
+    /** The access configuration the rules are compiled from, relative to the project location */
+    static final String ACCESS_CONFIG_PATH = "script/access.js";
+
+    /** The binding asking the customAuthz script for the access rules */
+    static final String COMPILE_ACCESS_RULES = "compileAccessRules";
+
+    /** How often the access configuration is checked for changes, in milliseconds */
+    private static final long ACCESS_CONFIG_CHECK_INTERVAL = 1000;
+
+    /** Headers of which one must be present for a non-read HTTP request, to prevent CSRF. */
+    private static final String[] AJAX_HEADERS = { "X-Requested-With", "Authorization", "X-OpenIDM-Username" };
+
+    /** the script compiling the access configuration and evaluating custom authorization expressions, may be null */
+    private final Pair<JsonPointer, ScriptEntry> customAuthzScript;
+
+    /** the access configuration the rules are compiled from, or null if the rules are configured */
+    private final File accessConfig;
+
+    /** whether expressions with a registered check are evaluated in Java rather than by the script */
+    private final boolean nativeChecks;
+
+    /** the compiled access rules, in evaluation order; null until compiled from the access configuration */
+    private volatile AccessRule[] rules;
+    private volatile long nextAccessConfigCheck;
+    private long accessConfigModified;
+
+    /**
+     * Constructs the filter from the authorization configuration.
+     *
+     * @param config the authorization configuration
+     * @param customAuthzScript the script compiling the access configuration and evaluating custom authorization
+     *                          expressions, or null
+     * @param accessConfig the access configuration to compile the rules from, unless they are configured
+     * @param customAuthzScriptCustomized whether the project has its own copy of the customAuthz script
+     * @throws JsonValueException if the rule configuration is incorrect
+     */
+    AuthorizationFilter(JsonValue config, Pair<JsonPointer, ScriptEntry> customAuthzScript, File accessConfig,
+            boolean customAuthzScriptCustomized) throws JsonValueException {
+        this.customAuthzScript = customAuthzScript;
+        this.nativeChecks = config.get("nativeChecks")
+                .defaultTo(customAuthzScript == null || !customAuthzScriptCustomized).asBoolean();
+        if (config.isDefined("rules")) {
+            this.rules = compile(config.get("rules"));
+            this.accessConfig = null;
+        } else if (customAuthzScript != null) {
+            this.accessConfig = accessConfig;
+        } else {
+            throw new JsonValueException(config, "Access rules require either rules or a customAuthz script");
+        }
+    }
+
+    private AccessRule[] compile(JsonValue rulesConfig) throws JsonValueException {
+        rulesConfig.required().expect(List.class);
+        final List<AccessRule> compiled = new ArrayList<>(rulesConfig.size());
+        for (JsonValue rule : rulesConfig) {
+            compiled.add(new AccessRule(rule));
+            final String expression = compiled.get(compiled.size() - 1).customAuthzExpression;
+            if (expression != null && getCheck(expression) == null && customAuthzScript == null) {
+                throw new JsonValueException(rule.get("customAuthz"),
+                        "Custom authorization expression requires a customAuthz script");
+            }
+        }
+        return compiled.toArray(new AccessRule[compiled.size()]);
+    }
+
+    /**
+     * Gets the access rules, compiling them from the access configuration first if it changed.
+     *
+     * @param context the request context, to evaluate the customAuthz script in
+     * @return the compiled rules
+     * @throws ResourceException if the rules have never been compiled and can not be
+     */
+    private AccessRule[] getRules(Context context) throws ResourceException {
+        if (accessConfig == null) {
+            return rules;
+        }
+        final long now = System.currentTimeMillis();
+        if (rules == null || now >= nextAccessConfigCheck) {
+            synchronized (this) {
+                if (rules == null || now >= nextAccessConfigCheck) {
+                    nextAccessConfigCheck = now + ACCESS_CONFIG_CHECK_INTERVAL;
+                    final long modified = accessConfig.lastModified();
+                    if (rules == null || modified != accessConfigModified) {
+                        compileAccessConfig(context, modified);
+                    }
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Compiles the rules of the access configuration. If they can not be compiled, the previously compiled rules
+     * stay in effect and compiling them is tried again with the next check for changes.
+     */
+    private void compileAccessConfig(Context context, long modified) throws ResourceException {
+        try {
+            final Script script = customAuthzScript.getValue().getScript(context);
+            script.put(COMPILE_ACCESS_RULES, true);
+            final Object result = script.eval();
+            rules = compile(result instanceof String
+                    ? JsonUtil.parseStringified((String) result)
+                    : new JsonValue(result));
+            accessConfigModified = modified;
+            logger.debug("Compiled {} access rules from {}", rules.length, accessConfig);
+        } catch (ScriptException | JsonValueException e) {
+            if (rules == null) {
+                throw new InternalServerErrorException("Failed to compile the access rules of " + accessConfig, e);
+            }
+            logger.warn("Failed to compile the access rules of {}, the previous rules stay in effect",
+                    accessConfig, e);
+        }
+    }
+
+    @Override
+    public Promise<ActionResponse, ResourceException> filterAction(Context context, ActionRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleAction(context, request)
+                : denied.<ActionResponse>asPromise();
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterCreate(Context context, CreateRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleCreate(context, request)
+                : denied.<ResourceResponse>asPromise();
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterDelete(Context context, DeleteRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleDelete(context, request)
+                : denied.<ResourceResponse>asPromise();
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterPatch(Context context, PatchRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handlePatch(context, request)
+                : denied.<ResourceResponse>asPromise();
+    }
+
+    @Override
+    public Promise<QueryResponse, ResourceException> filterQuery(Context context, QueryRequest request,
+            QueryResourceHandler handler, RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleQuery(context, request, handler)
+                : denied.<QueryResponse>asPromise();
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterRead(Context context, ReadRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleRead(context, request)
+                : denied.<ResourceResponse>asPromise();
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterUpdate(Context context, UpdateRequest request,
+            RequestHandler next) {
+        final ResourceException denied = authorize(context, request);
+        return denied == null
+                ? next.handleUpdate(context, request)
+                : denied.<ResourceResponse>asPromise();
+    }
+
+    /**
+     * Authorizes the request.
+     *
+     * @param context the request context
+     * @param request the request
+     * @return null if the request is allowed, otherwise the exception to fail the request with
+     */
+    private ResourceException authorize(Context context, Request request) {
+        try {
+            if (isAllowed(context, request)) {
+                logger.debug("Request allowed");
+                return null;
+            }
+        } catch (ResourceException e) {
+            return e;
+        }
+        return new ForbiddenException("Access denied");
+    }
+
+    /**
+     * Evaluates the access rules for the request.
+     *
+     * @param context the request context
+     * @param request the request
+     * @return true if the request is allowed by a rule
+     * @throws ResourceException if a custom authorization check fails the request
+     */
+    boolean isAllowed(Context context, Request request) throws ResourceException {
+        final RequestType method = request.getRequestType();
+
+        // We only need to block non-AJAX requests when the method is not "read"
+        if (context.containsContext(HttpContext.class)
+                && !RequestType.READ.equals(method)
+                && !isAJAXRequest(context.asContext(HttpContext.class))) {
+            return false;
+        }
+
+        final String resourcePath = request.getResourcePath();
+        final String action = request instanceof ActionRequest
+                ? StringUtils.defaultString(((ActionRequest) request).getAction())
+                : "";
+        final Set<String> roles = getRoles(context);
+
+        logger.debug("Access Check for HTTP request for resource id: {}, role: {}, method: {}, action: {}",
+                resourcePath, roles, method, action);
+
+        for (AccessRule rule : getRules(context)) {
+            if (rule.matches(resourcePath, roles, method, action) && passesCustomAuthz(rule, context, request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean passesCustomAuthz(AccessRule rule, Context context, Request request) throws ResourceException {
+        if (rule.customAuthzExpression == null) {
+            return true;
+        }
+        final AuthorizationChecks.Check check = getCheck(rule.customAuthzExpression);
+        if (check != null) {
+            return check.isAllowed(context, request);
+        }
+        if (customAuthzScript == null) {
+            logger.warn("No check registered for customAuthz {}, and no customAuthz script",
+                    rule.customAuthzExpression);
+            return false;
+        }
+        try {
+            final Script script = customAuthzScript.getValue().getScript(context);
+            script.put("request", request);
+            script.put("context", context);
+            script.put("customAuthz", rule.customAuthzExpression);
+            return Boolean.TRUE.equals(script.eval());
+        } catch (ResourceException e) {
+            throw e;
+        } catch (ScriptException e) {
+            logger.warn("Failed to evaluate customAuthz {}: {}", rule.customAuthzExpression, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the check evaluating a customAuthz expression in Java.
+     *
+     * @param expression the customAuthz expression
+     * @return the registered check, or null if the expression is to be evaluated by the script
+     */
+    private AuthorizationChecks.Check getCheck(String expression) {
+        return nativeChecks ? AuthorizationChecks.get(expression) : null;
+    }
+
+    private static boolean isAJAXRequest(HttpContext httpContext) {
+        for (String header : httpContext.getHeaders().keySet()) {
+            for (String ajaxHeader : AJAX_HEADERS) {
+                if (ajaxHeader.equalsIgnoreCase(header)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> getRoles(Context context) {
+        if (!context.containsContext(SecurityContext.class)) {
+            return Collections.emptySet();
+        }
+        final Object roles = context.asContext(SecurityContext.class).getAuthorization()
+                .get(SecurityContext.AUTHZID_ROLES);
+        if (!(roles instanceof Collection)) {
+            return Collections.emptySet();
+        }
+        final Set<String> lowerCaseRoles = new HashSet<>();
+        for (Object role : (Collection<Object>) roles) {
+            if (role != null) {
+                lowerCaseRoles.add(role.toString().toLowerCase(Locale.ROOT));
+            }
+        }
+        return lowerCaseRoles;
+    }
+
+    /**
+     * Splits a comma separated configuration list into a lower case set, or null if it matches any value.
+     */
+    private static Set<String> toMatchSet(JsonValue value) {
+        final String list = value.defaultTo("").asString();
+        if (ANY.equals(list.trim())) {
+            return null;
+        }
+        final Set<String> items = new HashSet<>();
+        for (String item : list.split(",")) {
+            items.add(item.trim().toLowerCase(Locale.ROOT));
+        }
+        return items;
+    }
+
+    /**
+     * An access rule compiled from its configuration.
+     */
+    static final class AccessRule {
+        private final ResourcePattern pattern;
+        private final ResourcePattern[] excludePatterns;
+        /** lower case role names, or null for any role */
+        private final Set<String> roles;
+        /** the allowed methods, or null for any method */
+        private final EnumSet<RequestType> methods;
+        /** lower case action names, or null for any action */
+        private final Set<String> actions;
+        /** the customAuthz expression, or null if there is none */
+        private final String customAuthzExpression;
+
+        AccessRule(JsonValue config) throws JsonValueException {
+            pattern = new ResourcePattern(config.get("pattern").required().asString());
+
+            final List<ResourcePattern> excludes = new ArrayList<>();
+            if (config.isDefined("excludePatterns") && !config.get("excludePatterns").isNull()) {
+                for (String exclude : config.get("excludePatterns").asString().split(",")) {
+                    excludes.add(new ResourcePattern(exclude));
+                }
+            }
+            excludePatterns = excludes.toArray(new ResourcePattern[excludes.size()]);
+
+            roles = toMatchSet(config.get("roles").required());
+            actions = toMatchSet(config.get("actions"));
+
+            final Set<String> methodNames = toMatchSet(config.get("methods"));
+            if (methodNames == null) {
+                methods = null;
+            } else {
+                methods = EnumSet.noneOf(RequestType.class);
+                boolean unknownMethod = false;
+                for (String methodName : methodNames) {
+                    if (!methodName.isEmpty()) {
+                        try {
+                            methods.add(RequestType.valueOf(methodName.toUpperCase(Locale.ROOT)));
+                        } catch (IllegalArgumentException e) {
+                            logger.warn("Unknown method {} in the access rule for {}, the rule matches no request",
+                                    methodName, config.get("pattern").asString());
+                            unknownMethod = true;
+                        }
+                    }
+                }
+                if (unknownMethod) {
+                    // one mistyped rule must neither grant access nor fail every request
+                    methods.clear();
+                }
+            }
+
+            customAuthzExpression = StringUtils.trimToNull(config.get("customAuthz").asString());
+        }
+
+        /**
+         * Matches the rule on everything but the custom authorization.
+         */
+        boolean matches(String resourcePath, Set<String> requestRoles, RequestType method, String action) {
+            if (!pattern.matches(resourcePath)) {
+                return false;
+            }
+            for (ResourcePattern exclude : excludePatterns) {
+                if (exclude.matches(resourcePath)) {
+                    return false;
+                }
+            }
+            if (roles != null && Collections.disjoint(roles, requestRoles)) {
+                return false;
+            }
+            if (methods != null && !methods.contains(method)) {
+                return false;
+            }
+            return action.isEmpty() || actions == null || actions.contains(action.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A resource pattern of an access rule: {@code *} matches all resources, a pattern ending in {@code /*} matches
+     * all resources below the parent, anything else matches exactly.
+     */
+    static final class ResourcePattern {
+        private final String exact;
+        private final String prefix;
+
+        ResourcePattern(String pattern) {
+            if (ANY.equals(pattern)) {
+                exact = null;
+                prefix = "";
+            } else if (pattern.endsWith("/*")) {
+                exact = pattern;
+                prefix = pattern.substring(0, pattern.length() - 1);
+            } else {
+                exact = pattern;
+                prefix = null;
+            }
+        }
+
+        boolean matches(String resourcePath) {
+            return resourcePath.equals(exact) || (prefix != null && resourcePath.startsWith(prefix));
+        }
+    }
+}
@@ -48,6 +48,7 @@ import org.forgerock.json.resource.Filters;
 import org.forgerock.json.resource.Request;
 import org.forgerock.json.resource.RequestType;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
+import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.router.RouterFilterRegistration;
 import org.forgerock.openidm.filter.ScriptedFilter;
@@ -201,9 +202,10 @@ public class RouterConfig {
         final Pair<JsonPointer, ScriptEntry> onRequest = getScript(config.get("onRequest"));
         final Pair<JsonPointer, ScriptEntry> onResponse = getScript(config.get("onResponse"));
         final Pair<JsonPointer, ScriptEntry> onFailure = getScript(config.get("onFailure"));
+        final JsonValue authorization = config.get("authorization").expect(Map.class);
 
         // Require at least one of the following
-        if (null == onRequest && null == onResponse && null == onFailure) {
+        if (null == onRequest && null == onResponse && null == onFailure && authorization.isNull()) {
             return null;
         }
 
@@ -225,9 +227,23 @@ public class RouterConfig {
         }
 
         // Create the filter
-        Filter filter = (null == filterCondition)
-                ? new ScriptedFilter(onRequest, onResponse, onFailure)
-                : Filters.conditionalFilter(filterCondition, new ScriptedFilter(onRequest, onResponse, onFailure));
+        Filter filter;
+        if (!authorization.isNull()) {
+            if (null != onRequest || null != onResponse || null != onFailure) {
+                throw new JsonValueException(authorization,
+                        "An authorization filter must not define onRequest, onResponse or onFailure scripts");
+            }
+            final String customAuthzFile = authorization.get("customAuthz").get("file").asString();
+            filter = new AuthorizationFilter(authorization, getScript(authorization.get("customAuthz")),
+                    IdentityServer.getFileForProjectPath(AuthorizationFilter.ACCESS_CONFIG_PATH),
+                    customAuthzFile != null
+                            && IdentityServer.getFileForProjectPath("script/" + customAuthzFile).exists());
+        } else {
+            filter = new ScriptedFilter(onRequest, onResponse, onFailure);
+        }
+        if (null != filterCondition) {
+            filter = Filters.conditionalFilter(filterCondition, filter);
+        }
 
         // Check for a condition script
         if (null != condition) {
@@ -0,0 +1,264 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.router.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.json.resource.ForbiddenException;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.Request;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.router.AuthorizationChecks;
+import org.forgerock.script.Script;
+import org.forgerock.script.ScriptEntry;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.services.context.SecurityContext;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the rule evaluation of the native router {@link AuthorizationFilter}.
+ */
+public class AuthorizationFilterTest {
+
+    private AuthorizationFilter filter;
+    private Router requestHandler;
+
+    @BeforeClass
+    public void beforeClass() {
+        filter = new AuthorizationFilter(json(object(field("rules", array(
+                object(
+                        field("pattern", "info/*"),
+                        field("roles", "*"),
+                        field("methods", "read"),
+                        field("actions", "*")),
+                object(
+                        field("pattern", "authentication"),
+                        field("roles", "*"),
+                        field("methods", "read,action"),
+                        field("actions", "getAuthToken")),
+                object(
+                        field("pattern", "managed/user/*"),
+                        field("roles", "openidm-authorized"),
+                        field("methods", "read"),
+                        field("actions", "*"),
+                        field("customAuthz", "ownDataOnly()")),
+                object(
+                        field("pattern", "*"),
+                        field("roles", "openidm-admin"),
+                        field("methods", "*"),
+                        field("actions", "*"),
+                        field("excludePatterns", "repo,repo/*"),
+                        field("customAuthz", "disallowQueryExpression()")))))), null, null, false);
+
+        requestHandler = new Router();
+        requestHandler.addRoute(uriTemplate("managed/user"), new MemoryBackend());
+    }
+
+    @Test
+    public void testWildcardPattern() throws Exception {
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newReadRequest("info/ping"))).isTrue();
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newReadRequest("info"))).isFalse();
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newDeleteRequest("info/ping"))).isFalse();
+    }
+
+    @Test
+    public void testActions() throws Exception {
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newActionRequest("authentication", "getAuthToken"))).isTrue();
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newActionRequest("authentication", "logout"))).isFalse();
+        assertThat(filter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newReadRequest("authentication"))).isTrue();
+    }
+
+    @Test
+    public void testRolesAreCaseInsensitive() throws Exception {
+        assertThat(filter.isAllowed(context("admin", "OpenIDM-Admin"),
+                Requests.newDeleteRequest("managed/user/1"))).isTrue();
+    }
+
+    @Test
+    public void testExcludePatterns() throws Exception {
+        assertThat(filter.isAllowed(context("admin", "openidm-admin"),
+                Requests.newReadRequest("repo/internal/user/openidm-admin"))).isFalse();
+        assertThat(filter.isAllowed(context("admin", "openidm-admin"),
+                Requests.newReadRequest("repo"))).isFalse();
+    }
+
+    @Test
+    public void testBuiltInCustomAuthz() throws Exception {
+        assertThat(filter.isAllowed(context("1", "openidm-authorized"),
+                Requests.newReadRequest("managed/user/1"))).isTrue();
+        assertThat(filter.isAllowed(context("1", "openidm-authorized"),
+                Requests.newReadRequest("managed/user/2"))).isFalse();
+        assertThat(filter.isAllowed(context("admin", "openidm-admin"),
+                Requests.newQueryRequest("managed/user").setQueryId("query-all-ids"))).isTrue();
+        assertThat(filter.isAllowed(context("admin", "openidm-admin"),
+                Requests.newQueryRequest("managed/user").setQueryExpression("select *"))).isFalse();
+    }
+
+    @Test(expectedExceptions = ForbiddenException.class)
+    public void testDeniedRequestFails() throws Exception {
+        filter.filterRead(context("anonymous", "anonymous"), Requests.newReadRequest("managed/user/1"),
+                requestHandler).getOrThrow();
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void testScriptedCustomAuthzRequiresScript() {
+        new AuthorizationFilter(json(object(field("rules", array(
+                object(
+                        field("pattern", "*"),
+                        field("roles", "*"),
+                        field("customAuthz", "checkIfUIIsEnabled('selfRegistration')")))))), null, null, false);
+    }
+
+    @Test
+    public void testRegisteredCustomAuthz() throws Exception {
+        AuthorizationChecks.register("isOwner()", new AuthorizationChecks.Check() {
+            @Override
+            public boolean isAllowed(Context context, Request request) {
+                return "owner".equals(context.asContext(SecurityContext.class).getAuthenticationId());
+            }
+        });
+        try {
+            final AuthorizationFilter ownerFilter = new AuthorizationFilter(json(object(field("rules", array(
+                    object(
+                            field("pattern", "*"),
+                            field("roles", "*"),
+                            field("methods", "*"),
+                            field("actions", "*"),
+                            field("customAuthz", "isOwner()")))))), null, null, false);
+
+            assertThat(ownerFilter.isAllowed(context("owner", "openidm-authorized"),
+                    Requests.newReadRequest("managed/user/1"))).isTrue();
+            assertThat(ownerFilter.isAllowed(context("other", "openidm-authorized"),
+                    Requests.newReadRequest("managed/user/1"))).isFalse();
+        } finally {
+            AuthorizationChecks.unregister("isOwner()");
+        }
+    }
+
+    @Test
+    public void testRulesAreCompiledFromAccessConfig() throws Exception {
+        final Script script = mock(Script.class);
+        when(script.eval()).thenReturn("[{\"pattern\":\"info/*\",\"roles\":\"*\",\"methods\":\"read\","
+                + "\"actions\":\"*\"}]");
+        final ScriptEntry scriptEntry = mock(ScriptEntry.class);
+        when(scriptEntry.getScript(any(Context.class))).thenReturn(script);
+        final File accessConfig = File.createTempFile("access", ".js");
+        try {
+            final AuthorizationFilter compiledFilter = new AuthorizationFilter(json(object()),
+                    Pair.of(new JsonPointer("customAuthz"), scriptEntry), accessConfig, false);
+
+            assertThat(compiledFilter.isAllowed(context("anonymous", "anonymous"),
+                    Requests.newReadRequest("info/ping"))).isTrue();
+            assertThat(compiledFilter.isAllowed(context("anonymous", "anonymous"),
+                    Requests.newReadRequest("managed/user/1"))).isFalse();
+            verify(script).put(AuthorizationFilter.COMPILE_ACCESS_RULES, true);
+        } finally {
+            accessConfig.delete();
+        }
+    }
+
+    @Test
+    public void testRuleWithUnknownMethodMatchesNoRequest() throws Exception {
+        final AuthorizationFilter typoFilter = new AuthorizationFilter(json(object(field("rules", array(
+                object(
+                        field("pattern", "managed/*"),
+                        field("roles", "*"),
+                        field("methods", "read,raed"),
+                        field("actions", "*")),
+                object(
+                        field("pattern", "info/*"),
+                        field("roles", "*"),
+                        field("methods", "read"),
+                        field("actions", "*")))))), null, null, false);
+
+        assertThat(typoFilter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newReadRequest("managed/user/1"))).isFalse();
+        assertThat(typoFilter.isAllowed(context("anonymous", "anonymous"),
+                Requests.newReadRequest("info/ping"))).isTrue();
+    }
+
+    @Test
+    public void testCustomizedScriptEvaluatesBuiltInExpressions() throws Exception {
+        final Script script = mock(Script.class);
+        // the project's ownDataOnly() also lets user 2 read user 1
+        when(script.eval()).thenReturn(true);
+        final ScriptEntry scriptEntry = mock(ScriptEntry.class);
+        when(scriptEntry.getScript(any(Context.class))).thenReturn(script);
+        final JsonValue rules = json(object(field("rules", array(
+                object(
+                        field("pattern", "managed/user/*"),
+                        field("roles", "*"),
+                        field("methods", "read"),
+                        field("actions", "*"),
+                        field("customAuthz", "ownDataOnly()"))))));
+
+        final AuthorizationFilter customizedFilter = new AuthorizationFilter(rules,
+                Pair.of(new JsonPointer("customAuthz"), scriptEntry), null, true);
+        assertThat(customizedFilter.isAllowed(context("2", "openidm-authorized"),
+                Requests.newReadRequest("managed/user/1"))).isTrue();
+        verify(script).put("customAuthz", "ownDataOnly()");
+
+        // the built-in check is used again if asked for
+        rules.put("nativeChecks", true);
+        final Script nativeScript = mock(Script.class);
+        when(scriptEntry.getScript(any(Context.class))).thenReturn(nativeScript);
+        final AuthorizationFilter nativeFilter = new AuthorizationFilter(rules,
+                Pair.of(new JsonPointer("customAuthz"), scriptEntry), null, true);
+        assertThat(nativeFilter.isAllowed(context("2", "openidm-authorized"),
+                Requests.newReadRequest("managed/user/1"))).isFalse();
+        verify(nativeScript, never()).eval();
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void testRulesRequireAccessConfigScript() {
+        new AuthorizationFilter(json(object()), null, null, false);
+    }
+
+    private static Context context(String id, String role) {
+        final Map<String, Object> authzid = new HashMap<>();
+        authzid.put(SecurityContext.AUTHZID_ID, id);
+        authzid.put(SecurityContext.AUTHZID_ROLES, new ArrayList<>(Arrays.asList(role)));
+        authzid.put(SecurityContext.AUTHZID_COMPONENT, "managed/user");
+        return new SecurityContext(new RootContext(), id, authzid);
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.selfservice.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Requests.newDeleteRequest;
+import static org.forgerock.json.resource.Requests.newQueryRequest;
+import static org.forgerock.json.resource.Requests.newReadRequest;
+import static org.forgerock.openidm.util.ContextUtil.createInternalContext;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.forgerock.json.JsonException;
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.crypto.JsonCryptoException;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.core.ServerConstants;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.openidm.util.DateUtil;
+import org.forgerock.selfservice.core.ProcessStore;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ProcessStore} for stateful self-service processes. The flows are held in memory for their time to live,
+ * up to a maximum number of flows, after which the oldest flows are evicted. With {@code "repository" : true} the
+ * flows are also written to the repository, so a flow continued on another node, or evicted from memory, is found
+ * there. As the state of a flow holds e.g. reset tokens and security answers, it is encrypted with the self-service
+ * shared key before it is written; a flow whose state cannot be encrypted is kept in memory only.
+ * <pre>
+ *     "processStore" : {
+ *         "maxSize" : 10000,
+ *         "ttl" : 1800,
+ *         "repository" : false
+ *     }
+ * </pre>
+ * The time to live is in seconds. The expiry of the flows in the repository is stored as an ISO-8601 UTC timestamp,
+ * which orders as a string, so the expired flows can be queried on every repository.
+ */
+public class BoundedProcessStore implements ProcessStore, BoundedProcessStoreMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoundedProcessStore.class);
+
+    /** Self-service configuration of the process store, which makes the process stateful. */
+    static final String CONFIG_PROCESS_STORE = "processStore";
+
+    static final String CONFIG_MAX_SIZE = "maxSize";
+    static final String CONFIG_TTL = "ttl";
+    static final String CONFIG_REPOSITORY = "repository";
+
+    static final String REPO_PATH = "repo/selfservice/processStore";
+
+    private static final String FIELD_STATE = "state";
+    private static final String FIELD_EXPIRES = "expires";
+
+    private static final DateUtil dateUtil = DateUtil.getDateUtil(ServerConstants.TIME_ZONE_UTC);
+
+    /** The shortest interval between purges of the expired flows in the repository */
+    private static final long MIN_PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    /** The flows in the order they were added, which is the order they expire in */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final int maxSize;
+    private final long ttl;
+    private final ConnectionFactory connectionFactory;
+    private final CryptoService cryptoService;
+    private final String cryptoAlias;
+    private final String mbeanName;
+
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong repositoryHits = new AtomicLong();
+    private final AtomicLong repositoryErrors = new AtomicLong();
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    /**
+     * Constructs the store.
+     *
+     * @param config the processStore configuration
+     * @param connectionFactory the connection factory to reach the repository
+     * @param cryptoService the crypto service to encrypt the flows written to the repository
+     * @param cryptoAlias the alias of the key to encrypt the flows written to the repository with
+     * @param name the name of the self-service process, which names the statistics MBean
+     */
+    BoundedProcessStore(JsonValue config, ConnectionFactory connectionFactory, CryptoService cryptoService,
+            String cryptoAlias, String name) {
+        this.maxSize = Math.max(1, config.get(CONFIG_MAX_SIZE).defaultTo(10000).asInteger());
+        this.ttl = TimeUnit.SECONDS.toMillis(Math.max(1, config.get(CONFIG_TTL).defaultTo(1800L).asLong()));
+        this.connectionFactory = config.get(CONFIG_REPOSITORY).defaultTo(false).asBoolean()
+                ? connectionFactory
+                : null;
+        this.cryptoService = cryptoService;
+        this.cryptoAlias = cryptoAlias;
+        this.mbeanName = "org.forgerock.openidm.selfservice:type=ProcessStore,name=" + ObjectName.quote(name);
+    }
+
+    /**
+     * @return the current time in milliseconds
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void add(String key, JsonValue state) {
+        final long now = currentTimeMillis();
+        final long expires = now + ttl;
+        synchronized (entries) {
+            purgeExpired(now);
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() >= maxSize && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+                evicted.incrementAndGet();
+            }
+            entries.put(key, new Entry(state, expires));
+        }
+        added.incrementAndGet();
+
+        if (connectionFactory != null) {
+            try {
+                final JsonValue encrypted = cryptoService.encrypt(state.copy(),
+                        ServerConstants.SECURITY_CRYPTOGRAPHY_DEFAULT_CIPHER, cryptoAlias);
+                connectionFactory.getConnection().create(createInternalContext(),
+                        newCreateRequest(REPO_PATH, key, json(object(
+                                field(FIELD_STATE, encrypted.getObject()),
+                                field(FIELD_EXPIRES, dateUtil.formatDateTime(new Date(expires)))))));
+            } catch (JsonCryptoException | JsonException e) {
+                repositoryErrors.incrementAndGet();
+                logger.warn("Failed to encrypt self-service flow {}, keeping it in memory only", key, e);
+            } catch (ResourceException e) {
+                repositoryErrors.incrementAndGet();
+                logger.warn("Failed to store self-service flow {} in the repository", key, e);
+            }
+            purgeRepository(now);
+        }
+    }
+
+    @Override
+    public JsonValue remove(String key) {
+        final long now = currentTimeMillis();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(key);
+        }
+        if (connectionFactory != null) {
+            final Entry stored = removeFromRepository(key, entry == null);
+            if (entry == null && stored != null) {
+                repositoryHits.incrementAndGet();
+                entry = stored;
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= now) {
+            expired.incrementAndGet();
+            return null;
+        }
+        completed.incrementAndGet();
+        return entry.state;
+    }
+
+    /**
+     * Drops the expired flows, which are at the head of the entries. Called holding the lock on the entries.
+     */
+    private void purgeExpired(long now) {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expires > now) {
+                break;
+            }
+            iterator.remove();
+            expired.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes a flow from the repository.
+     *
+     * @param key the key of the flow
+     * @param read whether to read the flow before deleting it
+     * @return the flow read, or null if not read or not found
+     */
+    private Entry removeFromRepository(String key, boolean read) {
+        final Context context = createInternalContext();
+        try {
+            Entry entry = null;
+            if (read) {
+                final JsonValue content = connectionFactory.getConnection()
+                        .read(context, newReadRequest(REPO_PATH, key)).getContent();
+                entry = new Entry(cryptoService.decrypt(content.get(FIELD_STATE)),
+                        dateUtil.parseTimestamp(content.get(FIELD_EXPIRES).asString()).getMillis());
+            }
+            connectionFactory.getConnection().delete(context, newDeleteRequest(REPO_PATH, key));
+            return entry;
+        } catch (NotFoundException e) {
+            return null;
+        } catch (JsonException e) {
+            repositoryErrors.incrementAndGet();
+            logger.warn("Failed to decrypt self-service flow {} read from the repository", key, e);
+            return null;
+        } catch (ResourceException e) {
+            repositoryErrors.incrementAndGet();
+            logger.warn("Failed to remove self-service flow {} from the repository", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the expired flows from the repository, which are left there by abandoned flows. Runs at most once per
+     * time to live on this node.
+     */
+    private void purgeRepository(long now) {
+        final long next = nextPurge.get();
+        if (now < next || !nextPurge.compareAndSet(next, now + Math.max(ttl, MIN_PURGE_INTERVAL))) {
+            return;
+        }
+        final Context context = createInternalContext();
+        final List<ResourceResponse> expiredFlows = new ArrayList<>();
+        try {
+            connectionFactory.getConnection().query(context,
+                    newQueryRequest(REPO_PATH).setQueryFilter(
+                            QueryFilter.lessThan(new JsonPointer(FIELD_EXPIRES),
+                                    dateUtil.formatDateTime(new Date(now)))),
+                    expiredFlows);
+            for (ResourceResponse flow : expiredFlows) {
+                try {
+                    connectionFactory.getConnection().delete(context, newDeleteRequest(REPO_PATH, flow.getId()));
+                } catch (NotFoundException e) {
+                    // taken up or purged by another node
+                }
+            }
+            logger.debug("Purged {} expired self-service flows from the repository", expiredFlows.size());
+        } catch (ResourceException e) {
+            repositoryErrors.incrementAndGet();
+            logger.warn("Failed to purge expired self-service flows from the repository", e);
+        }
+    }
+
+    @Override
+    public int getActiveFlows() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getAdded() {
+        return added.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getExpired() {
+        return expired.get();
+    }
+
+    @Override
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    @Override
+    public long getRepositoryHits() {
+        return repositoryHits.get();
+    }
+
+    @Override
+    public long getRepositoryErrors() {
+        return repositoryErrors.get();
+    }
+
+    /**
+     * Registers the statistics of this store with the platform MBean server.
+     */
+    void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(mbeanName);
+            if (!mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.registerMBean(this, mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to register self-service process store MBean", ex);
+        }
+    }
+
+    /**
+     * Unregisters the statistics of this store from the platform MBean server.
+     */
+    void unregister() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanObjectName = new ObjectName(mbeanName);
+            if (mBeanServer.isRegistered(mbeanObjectName)) {
+                mBeanServer.unregisterMBean(mbeanObjectName);
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to unregister self-service process store MBean", ex);
+        }
+    }
+
+    private static final class Entry {
+        private final JsonValue state;
+        private final long expires;
+
+        private Entry(JsonValue state, long expires) {
+            this.state = state;
+            this.expires = expires;
+        }
+    }
+}
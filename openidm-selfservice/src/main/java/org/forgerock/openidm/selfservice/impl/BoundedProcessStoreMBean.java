@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.selfservice.impl;
+
+/**
+ * Statistics of the process store of a stateful self-service process.
+ */
+public interface BoundedProcessStoreMBean {
+
+    /**
+     * @return the number of flows held in memory on this node
+     */
+    int getActiveFlows();
+
+    /**
+     * @return the number of flows stored
+     */
+    long getAdded();
+
+    /**
+     * @return the number of flows taken up again by their next stage
+     */
+    long getCompleted();
+
+    /**
+     * @return the number of flows taken up after their time to live expired
+     */
+    long getExpired();
+
+    /**
+     * @return the number of flows evicted from memory because the store was full
+     */
+    long getEvicted();
+
+    /**
+     * @return the number of flows found in the repository rather than in memory, e.g. after a node hop
+     */
+    long getRepositoryHits();
+
+    /**
+     * @return the number of failed repository operations
+     */
+    long getRepositoryErrors();
+}
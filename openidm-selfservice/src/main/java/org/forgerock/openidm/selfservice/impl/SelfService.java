@@ -95,9 +95,12 @@ public class SelfService implements IdentityProviderListener {
     /** the default self-service shared key alias */
     private static final String DEFAULT_SHARED_KEY_ALIAS = "openidm-selfservice-key";
 
+    /** the self-service shared key alias */
+    private static final String SHARED_KEY_ALIAS =
+            IdentityServer.getInstance().getProperty(SHARED_KEY_PROPERTY, DEFAULT_SHARED_KEY_ALIAS);
+
     /** the router path to read the shared key */
-    private static final String SHARED_KEY_ROUTER_PATH = "security/keystore/privatekey/"
-            + IdentityServer.getInstance().getProperty(SHARED_KEY_PROPERTY, DEFAULT_SHARED_KEY_ALIAS);
+    private static final String SHARED_KEY_ROUTER_PATH = "security/keystore/privatekey/" + SHARED_KEY_ALIAS;
 
     /** the JsonPointer location in the read-response for the encoded shared secret key */
     private static final JsonPointer ENCODED_SECRET_PTR = new JsonPointer("/secret/encoded");
@@ -128,7 +131,7 @@ public class SelfService implements IdentityProviderListener {
     @Reference(policy = ReferencePolicy.STATIC)
     private KbaConfiguration kbaConfiguration;
 
-    /** CryptoService - not used directly, but added to make sure shared key gets created before use */
+    /** CryptoService - makes sure the shared key gets created before use, and encrypts the stored flows */
     @Reference(policy = ReferencePolicy.DYNAMIC)
     private volatile CryptoService cryptoService;
 
@@ -143,6 +146,9 @@ public class SelfService implements IdentityProviderListener {
     private RequestHandler processService;
     private ServiceRegistration<RequestHandler> serviceRegistration = null;
     private ComponentContext context;
+    /** The processStore config, which makes the process stateful; null for a stateless process */
+    private JsonValue processStoreConfig = new JsonValue(null);
+    private BoundedProcessStore processStore;
 
     @Activate
     void activate(ComponentContext context) throws Exception {
@@ -162,6 +168,15 @@ public class SelfService implements IdentityProviderListener {
             properties = ComponentContextUtil.getModifiableProperties(context);
             properties.put(ServerConstants.ROUTER_PREFIX,
                     resourcePath(ROUTER_PREFIX).concat(resourcePath(factoryPid)).toString());
+
+            // the process store is not part of the Commons Self-Service config
+            processStoreConfig = config.get(BoundedProcessStore.CONFIG_PROCESS_STORE);
+            config.remove(BoundedProcessStore.CONFIG_PROCESS_STORE);
+            if (processStoreConfig.isNotNull()) {
+                processStore = new BoundedProcessStore(processStoreConfig, connectionFactory, cryptoService,
+                        SHARED_KEY_ALIAS, factoryPid);
+                processStore.register();
+            }
             identityProviderConfigChanged();
 
         } catch (Exception ex) {
@@ -185,8 +200,8 @@ public class SelfService implements IdentityProviderListener {
             }
         }
 
-        // force storage type to stateless
-        config.put("storage", "stateless");
+        // force storage type to stateless, unless a process store is configured
+        config.put("storage", processStoreConfig.isNull() ? "stateless" : "stateful");
     }
 
     private Client newHttpClient() throws HttpApplicationException {
@@ -322,6 +337,10 @@ public class SelfService implements IdentityProviderListener {
     }
 
     private ProcessStore newProcessStore() {
+        if (processStore != null) {
+            // kept across re-configurations, so the flows in progress are not lost
+            return processStore;
+        }
         return new ProcessStore() {
             final Map<String, JsonValue> store = new HashMap<>();
             @Override
@@ -346,6 +365,10 @@ public class SelfService implements IdentityProviderListener {
             /* Catch if the service was already removed */
             serviceRegistration = null;
         } finally {
+            if (processStore != null) {
+                processStore.unregister();
+                processStore = null;
+            }
             processService = null;
             config = null;
             LOGGER.info("Self-service stopped.");
@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.selfservice.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.json.resource.Resources.newInternalConnectionFactory;
+import static org.forgerock.json.resource.Router.uriTemplate;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.crypto.JsonCryptoException;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.MemoryBackend;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.Router;
+import org.forgerock.openidm.crypto.CryptoService;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.query.QueryFilter;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link BoundedProcessStore}.
+ */
+public class BoundedProcessStoreTest {
+
+    private static final String ENCRYPTED = "$encrypted";
+
+    private ConnectionFactory connectionFactory;
+    private CryptoService cryptoService;
+    private long now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final Router router = new Router();
+        router.addRoute(uriTemplate(BoundedProcessStore.REPO_PATH), new MemoryBackend());
+        connectionFactory = newInternalConnectionFactory(router);
+        now = 1000000L;
+
+        // stands in for the encryption by wrapping the value
+        cryptoService = mock(CryptoService.class);
+        when(cryptoService.encrypt(any(JsonValue.class), anyString(), anyString())).thenAnswer(new Answer<JsonValue>() {
+            @Override
+            public JsonValue answer(InvocationOnMock invocation) throws Throwable {
+                return json(object(field(ENCRYPTED, ((JsonValue) invocation.getArguments()[0]).getObject())));
+            }
+        });
+        when(cryptoService.decrypt(any(JsonValue.class))).thenAnswer(new Answer<JsonValue>() {
+            @Override
+            public JsonValue answer(InvocationOnMock invocation) throws Throwable {
+                return ((JsonValue) invocation.getArguments()[0]).get(ENCRYPTED);
+            }
+        });
+    }
+
+    private BoundedProcessStore newStore(JsonValue config) {
+        return new BoundedProcessStore(config, connectionFactory, cryptoService, "openidm-selfservice-key", "reset") {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    private static JsonValue state(String stage) {
+        return json(object(field("stage", stage)));
+    }
+
+    @Test
+    public void testRemoveReturnsStateOnce() {
+        final BoundedProcessStore store = newStore(json(object()));
+        store.add("flow1", state("emailValidation"));
+
+        assertThat(store.getActiveFlows()).isEqualTo(1);
+        assertThat(store.remove("flow1").get("stage").asString()).isEqualTo("emailValidation");
+        assertThat(store.remove("flow1")).isNull();
+        assertThat(store.getActiveFlows()).isEqualTo(0);
+        assertThat(store.getCompleted()).isEqualTo(1);
+    }
+
+    @Test
+    public void testExpiredFlowIsNotReturned() {
+        final BoundedProcessStore store = newStore(json(object(field(BoundedProcessStore.CONFIG_TTL, 60))));
+        store.add("flow1", state("emailValidation"));
+
+        now += 60000L;
+
+        assertThat(store.remove("flow1")).isNull();
+        assertThat(store.getExpired()).isEqualTo(1);
+    }
+
+    @Test
+    public void testExpiredFlowsArePurgedOnAdd() {
+        final BoundedProcessStore store = newStore(json(object(field(BoundedProcessStore.CONFIG_TTL, 60))));
+        store.add("flow1", state("emailValidation"));
+        store.add("flow2", state("emailValidation"));
+        now += 30000L;
+        store.add("flow3", state("emailValidation"));
+        now += 30000L;
+
+        store.add("flow4", state("emailValidation"));
+
+        assertThat(store.getActiveFlows()).isEqualTo(2);
+        assertThat(store.getExpired()).isEqualTo(2);
+        assertThat(store.remove("flow3")).isNotNull();
+    }
+
+    @Test
+    public void testOldestFlowIsEvictedWhenFull() {
+        final BoundedProcessStore store = newStore(json(object(field(BoundedProcessStore.CONFIG_MAX_SIZE, 2))));
+        store.add("flow1", state("emailValidation"));
+        store.add("flow2", state("emailValidation"));
+        store.add("flow3", state("emailValidation"));
+
+        assertThat(store.getActiveFlows()).isEqualTo(2);
+        assertThat(store.getEvicted()).isEqualTo(1);
+        assertThat(store.remove("flow1")).isNull();
+        assertThat(store.remove("flow2")).isNotNull();
+        assertThat(store.remove("flow3")).isNotNull();
+    }
+
+    @Test
+    public void testFlowIsFoundInRepositoryOnAnotherNode() {
+        final JsonValue config = json(object(field(BoundedProcessStore.CONFIG_REPOSITORY, true)));
+        final BoundedProcessStore node1 = newStore(config);
+        final BoundedProcessStore node2 = newStore(config);
+        node1.add("flow1", state("kbaSecurityAnswerVerificationStage"));
+
+        assertThat(node2.remove("flow1").get("stage").asString()).isEqualTo("kbaSecurityAnswerVerificationStage");
+        assertThat(node2.getRepositoryHits()).isEqualTo(1);
+        // taken up once only
+        assertThat(node1.remove("flow1")).isNull();
+        assertThat(node2.getRepositoryErrors()).isEqualTo(0);
+    }
+
+    @Test
+    public void testEvictedFlowIsFoundInRepository() {
+        final BoundedProcessStore store = newStore(json(object(
+                field(BoundedProcessStore.CONFIG_MAX_SIZE, 1),
+                field(BoundedProcessStore.CONFIG_REPOSITORY, true))));
+        store.add("flow1", state("emailValidation"));
+        store.add("flow2", state("emailValidation"));
+
+        assertThat(store.getEvicted()).isEqualTo(1);
+        assertThat(store.remove("flow1")).isNotNull();
+        assertThat(store.getRepositoryHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void testExpiredFlowInRepositoryIsNotReturned() {
+        final JsonValue config = json(object(
+                field(BoundedProcessStore.CONFIG_TTL, 60),
+                field(BoundedProcessStore.CONFIG_REPOSITORY, true)));
+        final BoundedProcessStore node1 = newStore(config);
+        final BoundedProcessStore node2 = newStore(config);
+        node1.add("flow1", state("emailValidation"));
+
+        now += 60000L;
+
+        assertThat(node2.remove("flow1")).isNull();
+        assertThat(node2.getExpired()).isEqualTo(1);
+    }
+
+    @Test
+    public void testExpiredFlowsArePurgedFromRepository() throws Exception {
+        final BoundedProcessStore store = newStore(json(object(
+                field(BoundedProcessStore.CONFIG_TTL, 60),
+                field(BoundedProcessStore.CONFIG_REPOSITORY, true))));
+        store.add("flow1", state("emailValidation"));
+        // the expiry is stored as a timestamp, which the repositories compare as a string
+        assertThat(readFlow("flow1").get("expires").asString()).isEqualTo("1970-01-01T00:17:40.000Z");
+
+        now += 120000L;
+        store.add("flow2", state("emailValidation"));
+
+        final List<ResourceResponse> flows = new ArrayList<>();
+        connectionFactory.getConnection().query(new RootContext(),
+                Requests.newQueryRequest(BoundedProcessStore.REPO_PATH)
+                        .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue()), flows);
+        assertThat(flows).hasSize(1);
+        assertThat(flows.get(0).getId()).isEqualTo("flow2");
+    }
+
+    private JsonValue readFlow(String key) throws Exception {
+        return connectionFactory.getConnection().read(new RootContext(),
+                Requests.newReadRequest(BoundedProcessStore.REPO_PATH, key)).getContent();
+    }
+
+    @Test
+    public void testFlowIsEncryptedInRepository() throws Exception {
+        final BoundedProcessStore store = newStore(json(object(field(BoundedProcessStore.CONFIG_REPOSITORY, true))));
+        store.add("flow1", state("kbaSecurityAnswerVerificationStage"));
+
+        final JsonValue stored = connectionFactory.getConnection().read(new RootContext(),
+                Requests.newReadRequest(BoundedProcessStore.REPO_PATH, "flow1")).getContent();
+        assertThat(stored.get("state").isDefined("stage")).isFalse();
+        assertThat(stored.get("state").get(ENCRYPTED).get("stage").asString())
+                .isEqualTo("kbaSecurityAnswerVerificationStage");
+    }
+
+    @Test
+    public void testFlowIsKeptInMemoryWhenEncryptionFails() throws Exception {
+        when(cryptoService.encrypt(any(JsonValue.class), anyString(), anyString()))
+                .thenThrow(new JsonCryptoException("no key"));
+        final BoundedProcessStore store = newStore(json(object(field(BoundedProcessStore.CONFIG_REPOSITORY, true))));
+        store.add("flow1", state("emailValidation"));
+
+        assertThat(store.getRepositoryErrors()).isEqualTo(1);
+        assertThat(newStore(json(object(field(BoundedProcessStore.CONFIG_REPOSITORY, true)))).remove("flow1"))
+                .isNull();
+        assertThat(store.remove("flow1").get("stage").asString()).isEqualTo("emailValidation");
+    }
+}
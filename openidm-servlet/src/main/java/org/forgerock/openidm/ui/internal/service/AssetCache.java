@@ -0,0 +1,301 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.ui.internal.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the UI assets served by the {@link ResourceServlet} in memory, with a strong ETag and, for compressible
+ * content, a compressed variant. An asset is loaded once and reloaded when its file changes, detected by the
+ * modification time and length of the file. Precompressed {@code .br} and {@code .gz} siblings of an asset are
+ * preferred over compressing it here; gzip is the only encoding produced at runtime.
+ * <p>
+ * The cache is bounded by the total size of the cached variants; the least recently used assets are dropped first.
+ * Assets larger than the maximum entry size are not cached.
+ */
+final class AssetCache {
+
+    static final String ENCODING_BROTLI = "br";
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_IDENTITY = "identity";
+
+    /** A compressed variant is only kept if it saves at least this share of the size */
+    private static final double MIN_COMPRESSION_SAVING = 0.1;
+
+    private final long maxSize;
+    private final long maxEntrySize;
+
+    /** guarded by this, in access order */
+    private final Map<File, Asset> assets = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    /**
+     * Constructs the cache.
+     *
+     * @param maxSize the maximum total size of the cached assets in bytes
+     * @param maxEntrySize the maximum size of a cached asset in bytes
+     */
+    AssetCache(long maxSize, long maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Gets the asset of a file, loading it if it is not cached or its file changed.
+     *
+     * @param file the canonical file of the asset
+     * @param contentType the content type of the asset, may be null
+     * @return the asset, or null if the file is too large to be cached
+     * @throws IOException if the file could not be read
+     */
+    Asset get(File file, String contentType) throws IOException {
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized (this) {
+            final Asset asset = assets.get(file);
+            if (asset != null && asset.lastModified == lastModified && asset.length == length) {
+                return asset;
+            }
+        }
+        if (length > maxEntrySize) {
+            return null;
+        }
+
+        final Asset asset = load(file, contentType, lastModified);
+        synchronized (this) {
+            final Asset previous = assets.put(file, asset);
+            if (previous != null) {
+                size -= previous.size();
+            }
+            size += asset.size();
+            final Iterator<Asset> leastRecentlyUsed = assets.values().iterator();
+            while (size > maxSize && leastRecentlyUsed.hasNext()) {
+                final Asset evicted = leastRecentlyUsed.next();
+                if (evicted != asset) {
+                    leastRecentlyUsed.remove();
+                    size -= evicted.size();
+                }
+            }
+        }
+        return asset;
+    }
+
+    /**
+     * Drops all cached assets.
+     */
+    synchronized void clear() {
+        assets.clear();
+        size = 0;
+    }
+
+    private Asset load(File file, String contentType, long lastModified) throws IOException {
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final String hash = hash(content);
+
+        byte[] brotli = readPrecompressed(file, ".br", lastModified);
+        byte[] gzip = readPrecompressed(file, ".gz", lastModified);
+        if (gzip == null && isCompressible(contentType)) {
+            gzip = gzip(content);
+        }
+        return new Asset(content, worthKeeping(brotli, content), worthKeeping(gzip, content), hash, lastModified,
+                file.length());
+    }
+
+    /**
+     * Reads a precompressed sibling of an asset, provided it is not older than the asset.
+     */
+    private byte[] readPrecompressed(File file, String suffix, long lastModified) throws IOException {
+        final File precompressed = new File(file.getPath() + suffix);
+        if (precompressed.isFile() && precompressed.lastModified() >= lastModified
+                && precompressed.length() <= maxEntrySize) {
+            return Files.readAllBytes(precompressed.toPath());
+        }
+        return null;
+    }
+
+    private static byte[] worthKeeping(byte[] compressed, byte[] content) {
+        return compressed != null && compressed.length <= content.length * (1 - MIN_COMPRESSION_SAVING)
+                ? compressed
+                : null;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType != null
+                && (contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml"));
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * A cached asset and its compressed variants.
+     */
+    static final class Asset {
+        private final byte[] content;
+        private final byte[] brotli;
+        private final byte[] gzip;
+        private final String hash;
+        private final long lastModified;
+        private final long length;
+
+        private Asset(byte[] content, byte[] brotli, byte[] gzip, String hash, long lastModified, long length) {
+            this.content = content;
+            this.brotli = brotli;
+            this.gzip = gzip;
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return the modification time of the file of the asset
+         */
+        long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return whether the asset has a compressed variant
+         */
+        boolean isCompressed() {
+            return brotli != null || gzip != null;
+        }
+
+        /**
+         * Selects the encoding to serve: the compressed variant with the highest quality value in the Accept-Encoding
+         * header, brotli before gzip on a tie, unless the identity encoding has a higher quality value. Codings
+         * not listed take the quality of {@code *}, if listed, and are not acceptable otherwise; the identity
+         * encoding is acceptable unless refused, though least preferred. If the identity encoding is refused and no
+         * compressed variant is acceptable, the identity encoding is served all the same.
+         *
+         * @param acceptEncoding the Accept-Encoding header of the request, may be null
+         * @return the content encoding, or null for the identity encoding
+         */
+        String selectEncoding(String acceptEncoding) {
+            if (acceptEncoding == null || !isCompressed()) {
+                return null;
+            }
+            final Map<String, Double> qualities = parseAcceptEncoding(acceptEncoding);
+            String selected = null;
+            double selectedQuality = 0;
+            for (String encoding : new String[] { ENCODING_BROTLI, ENCODING_GZIP }) {
+                final double quality = quality(qualities, encoding, 0);
+                if (getContent(encoding) != null && quality > selectedQuality) {
+                    selected = encoding;
+                    selectedQuality = quality;
+                }
+            }
+            return selected != null && selectedQuality >= quality(qualities, ENCODING_IDENTITY, Double.MIN_VALUE)
+                    ? selected
+                    : null;
+        }
+
+        /**
+         * @param encoding the content encoding, or null for the identity encoding
+         * @return the bytes of the variant
+         */
+        byte[] getContent(String encoding) {
+            if (ENCODING_BROTLI.equals(encoding)) {
+                return brotli;
+            } else if (ENCODING_GZIP.equals(encoding)) {
+                return gzip;
+            }
+            return content;
+        }
+
+        /**
+         * @param encoding the content encoding, or null for the identity encoding
+         * @return the strong ETag of the variant, quoted
+         */
+        String getETag(String encoding) {
+            return encoding == null ? "\"" + hash + "\"" : "\"" + hash + "-" + encoding + "\"";
+        }
+
+        private long size() {
+            return content.length
+                    + (brotli != null ? brotli.length : 0)
+                    + (gzip != null ? gzip.length : 0);
+        }
+
+        private static double quality(Map<String, Double> qualities, String encoding, double notListed) {
+            Double quality = qualities.get(encoding);
+            if (quality == null) {
+                quality = qualities.get("*");
+            }
+            return quality != null ? quality : notListed;
+        }
+
+        /**
+         * Parses the codings of an Accept-Encoding header, lower cased, with their quality values.
+         */
+        private static Map<String, Double> parseAcceptEncoding(String acceptEncoding) {
+            final Map<String, Double> qualities = new HashMap<>();
+            for (String coding : acceptEncoding.split(",")) {
+                final String[] parameters = coding.split(";");
+                final String name = parameters[0].trim().toLowerCase(Locale.ENGLISH);
+                if (name.isEmpty()) {
+                    continue;
+                }
+                double quality = 1;
+                for (int i = 1; i < parameters.length; i++) {
+                    final String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                qualities.put(name, quality);
+            }
+            return qualities;
+        }
+    }
+}
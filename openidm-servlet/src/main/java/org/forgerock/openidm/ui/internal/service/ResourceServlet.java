@@ -14,7 +14,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  *
- * Portions copyright 2013-2015 ForgeRock AS.
+ * Portions copyright 2013-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.ui.internal.service;
 
@@ -69,6 +69,14 @@ public final class ResourceServlet extends HttpServlet {
     private static final String CONFIG_CONTEXT_ROOT = "urlContextRoot";
     private static final String CONFIG_DEFAULT_DIR = "defaultDir";
     private static final String CONFIG_EXTENSION_DIR = "extensionDir";
+    private static final String CONFIG_ASSET_CACHE = "assetCache";
+    private static final String CONFIG_ASSET_CACHE_ENABLED = "enabled";
+    private static final String CONFIG_ASSET_CACHE_MAX_SIZE = "maxSize";
+    private static final String CONFIG_ASSET_CACHE_MAX_ENTRY_SIZE = "maxEntrySize";
+
+    /** asset cache defaults, in bytes */
+    private static final long DEFAULT_ASSET_CACHE_MAX_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_ASSET_CACHE_MAX_ENTRY_SIZE = 4L * 1024 * 1024;
 
     /** the Felix web console self-attaches to this servlet target */
     private static final String FELIX_WEB_CONSOLE = "/system/console";
@@ -77,6 +85,8 @@ public final class ResourceServlet extends HttpServlet {
     private String defaultDir;
     private String extensionDir;
     private String contextRoot;
+    /** the in-memory cache of the assets, null if disabled */
+    private volatile AssetCache assetCache;
 
     @Reference
     private WebContainer webContainer;
@@ -150,7 +160,7 @@ public final class ResourceServlet extends HttpServlet {
             if (url == null) {
                 res.sendError(HttpServletResponse.SC_NOT_FOUND);
             } else {
-                handle(req, res, url, target);
+                handle(req, res, url, file.getCanonicalFile(), target);
             }
         }
     }
@@ -185,6 +195,16 @@ public final class ResourceServlet extends HttpServlet {
         extensionDir = config.get(CONFIG_EXTENSION_DIR).asString();
         contextRoot = prependSlash(config.get(CONFIG_CONTEXT_ROOT).asString());
 
+        JsonValue cacheConfig = config.get(CONFIG_ASSET_CACHE);
+        if (cacheConfig.get(CONFIG_ASSET_CACHE_ENABLED).defaultTo(true).asBoolean()) {
+            assetCache = new AssetCache(
+                    cacheConfig.get(CONFIG_ASSET_CACHE_MAX_SIZE).defaultTo(DEFAULT_ASSET_CACHE_MAX_SIZE).asLong(),
+                    cacheConfig.get(CONFIG_ASSET_CACHE_MAX_ENTRY_SIZE)
+                            .defaultTo(DEFAULT_ASSET_CACHE_MAX_ENTRY_SIZE).asLong());
+        } else {
+            assetCache = null;
+        }
+
         Dictionary<String, Object> props = new Hashtable<>();
         webContainer.registerServlet(contextRoot, this,  props, webContainer.getDefaultSharedHttpContext());
         logger.debug("Registered UI servlet at {}", contextRoot);
@@ -194,17 +214,27 @@ public final class ResourceServlet extends HttpServlet {
      * Clears the servlet, unregistering it with the WebContainer and removing the bundle listener.
      */
     private void clear() {
+        AssetCache cache = assetCache;
+        if (cache != null) {
+            cache.clear();
+        }
         webContainer.unregister(contextRoot);
         logger.debug("Unregistered UI servlet at {}", contextRoot);
     }
     
-    private void handle(HttpServletRequest req, HttpServletResponse res, URL url, String resName)
+    private void handle(HttpServletRequest req, HttpServletResponse res, URL url, File file, String resName)
             throws IOException {
         String contentType = getServletContext().getMimeType(resName);
-        if (contentType != null) {
-            res.setContentType(contentType);
-        } else {
-            res.setContentType(getMimeType(resName));
+        if (contentType == null) {
+            contentType = getMimeType(resName);
+        }
+        res.setContentType(contentType);
+
+        AssetCache cache = assetCache;
+        AssetCache.Asset asset = cache != null ? cache.get(file, contentType) : null;
+        if (asset != null) {
+            handleCached(req, res, asset);
+            return;
         }
 
         long lastModified = getLastModified(url);
@@ -219,6 +249,57 @@ public final class ResourceServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Serves an asset from the cache, in the encoding preferred by the client, or responds not modified if the
+     * client's copy is current.
+     */
+    void handleCached(HttpServletRequest req, HttpServletResponse res, AssetCache.Asset asset)
+            throws IOException {
+        String encoding = asset.selectEncoding(req.getHeader("Accept-Encoding"));
+        String eTag = asset.getETag(encoding);
+        if (asset.isCompressed()) {
+            res.setHeader("Vary", "Accept-Encoding");
+        }
+        res.setHeader("ETag", eTag);
+        if (asset.getLastModified() != 0) {
+            res.setDateHeader("Last-Modified", asset.getLastModified());
+        }
+
+        // If-None-Match takes precedence over If-Modified-Since
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null
+                ? eTagMatches(ifNoneMatch, eTag)
+                : !resourceModified(asset.getLastModified(), req.getDateHeader("If-Modified-Since"))) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (encoding != null) {
+            res.setHeader("Content-Encoding", encoding);
+        }
+        byte[] content = asset.getContent(encoding);
+        res.setContentLength(content.length);
+        try (OutputStream os = res.getOutputStream()) {
+            os.write(content);
+        }
+    }
+
+    /**
+     * Matches an If-None-Match header against the ETag of the response, using the weak comparison.
+     */
+    private boolean eTagMatches(String ifNoneMatch, String eTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || eTag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private long getLastModified(URL url) {
         long lastModified = 0;
 
@@ -0,0 +1,167 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.ui.internal.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link AssetCache}.
+ */
+public class AssetCacheTest {
+
+    private File dir;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("assetCacheTest").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private File file(String name, int size) throws IOException {
+        final byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 'a');
+        final File file = new File(dir, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void testAssetIsCachedUntilFileChanges() throws IOException {
+        final AssetCache cache = new AssetCache(1024, 1024);
+        final File file = file("app.js", 100);
+
+        final AssetCache.Asset asset = cache.get(file, "application/javascript");
+        assertThat(cache.get(file, "application/javascript")).isSameAs(asset);
+
+        Files.write(file.toPath(), new byte[200]);
+        assertThat(cache.get(file, "application/javascript")).isNotSameAs(asset);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAssetsAreEvictedBySize() throws IOException {
+        // binary content is not compressed, so each asset takes the size of its file
+        final AssetCache cache = new AssetCache(250, 1024);
+        final File first = file("first.png", 100);
+        final File second = file("second.png", 100);
+        final File third = file("third.png", 100);
+
+        final AssetCache.Asset firstAsset = cache.get(first, "image/png");
+        final AssetCache.Asset secondAsset = cache.get(second, "image/png");
+        cache.get(first, "image/png");
+        cache.get(third, "image/png");
+
+        assertThat(cache.get(first, "image/png")).isSameAs(firstAsset);
+        assertThat(cache.get(second, "image/png")).isNotSameAs(secondAsset);
+    }
+
+    @Test
+    public void testAssetLargerThanMaxEntrySizeIsNotCached() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 100);
+
+        assertThat(cache.get(file("small.js", 100), "application/javascript")).isNotNull();
+        assertThat(cache.get(file("large.js", 101), "application/javascript")).isNull();
+    }
+
+    @Test
+    public void testEncodingNegotiation() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 1024 * 1024);
+        final AssetCache.Asset asset = cache.get(file("app.js", 1000), "application/javascript");
+
+        assertThat(asset.isCompressed()).isTrue();
+        assertThat(asset.selectEncoding("gzip, deflate")).isEqualTo(AssetCache.ENCODING_GZIP);
+        assertThat(asset.selectEncoding("GZIP;q=0.5")).isEqualTo(AssetCache.ENCODING_GZIP);
+        assertThat(asset.selectEncoding("gzip;q=0")).isNull();
+        assertThat(asset.selectEncoding("identity")).isNull();
+        assertThat(asset.selectEncoding(null)).isNull();
+        // no brotli variant without a precompressed sibling
+        assertThat(asset.selectEncoding("br")).isNull();
+        assertThat(asset.getContent(AssetCache.ENCODING_GZIP).length).isLessThan(1000);
+        assertThat(asset.getContent(null)).hasSize(1000);
+        assertThat(asset.getETag(AssetCache.ENCODING_GZIP)).isNotEqualTo(asset.getETag(null));
+    }
+
+    @Test
+    public void testEncodingQualityValues() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 1024 * 1024);
+        final File file = file("app.js", 1000);
+        file("app.js.br", 10).setLastModified(file.lastModified());
+        final AssetCache.Asset asset = cache.get(file, "application/javascript");
+
+        // the highest quality value wins, brotli on a tie
+        assertThat(asset.selectEncoding("br;q=0.5, gzip")).isEqualTo(AssetCache.ENCODING_GZIP);
+        assertThat(asset.selectEncoding("br;q=0.8, gzip;q=0.8")).isEqualTo(AssetCache.ENCODING_BROTLI);
+        assertThat(asset.selectEncoding("br;q=0, gzip;q=0.1")).isEqualTo(AssetCache.ENCODING_GZIP);
+        // an identity encoding with a higher quality value is preferred
+        assertThat(asset.selectEncoding("gzip;q=0.5, br;q=0.5, identity")).isNull();
+        assertThat(asset.selectEncoding("gzip, identity")).isEqualTo(AssetCache.ENCODING_GZIP);
+        // an unparsable quality value refuses the coding
+        assertThat(asset.selectEncoding("br;q=high, gzip;q=0.2")).isEqualTo(AssetCache.ENCODING_GZIP);
+    }
+
+    @Test
+    public void testEncodingWildcardAndRefusedIdentity() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 1024 * 1024);
+        final AssetCache.Asset asset = cache.get(file("app.js", 1000), "application/javascript");
+
+        // codings not listed take the quality value of *
+        assertThat(asset.selectEncoding("*")).isEqualTo(AssetCache.ENCODING_GZIP);
+        assertThat(asset.selectEncoding("*;q=0.5, gzip;q=0")).isNull();
+        assertThat(asset.selectEncoding("*;q=0, identity")).isNull();
+        assertThat(asset.selectEncoding("*;q=0, gzip")).isEqualTo(AssetCache.ENCODING_GZIP);
+        // a refused identity encoding makes the compressed variant the only one acceptable
+        assertThat(asset.selectEncoding("gzip;q=0.1, identity;q=0")).isEqualTo(AssetCache.ENCODING_GZIP);
+        // nothing acceptable, the identity encoding is served all the same
+        assertThat(asset.selectEncoding("identity;q=0")).isNull();
+        assertThat(asset.selectEncoding("deflate, identity;q=0")).isNull();
+    }
+
+    @Test
+    public void testPrecompressedSiblingIsPreferred() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 1024 * 1024);
+        final File file = file("app.js", 1000);
+        file("app.js.br", 10).setLastModified(file.lastModified());
+
+        final AssetCache.Asset asset = cache.get(file, "application/javascript");
+
+        assertThat(asset.selectEncoding("gzip, br")).isEqualTo(AssetCache.ENCODING_BROTLI);
+        assertThat(asset.getContent(AssetCache.ENCODING_BROTLI)).hasSize(10);
+    }
+
+    @Test
+    public void testIncompressibleContentHasNoVariant() throws IOException {
+        final AssetCache cache = new AssetCache(1024 * 1024, 1024 * 1024);
+        final AssetCache.Asset asset = cache.get(file("logo.png", 1000), "image/png");
+
+        assertThat(asset.isCompressed()).isFalse();
+        assertThat(asset.selectEncoding("gzip")).isNull();
+    }
+}
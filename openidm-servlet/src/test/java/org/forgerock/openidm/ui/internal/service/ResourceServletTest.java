@@ -0,0 +1,213 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.ui.internal.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the serving of cached assets by the {@link ResourceServlet}.
+ */
+public class ResourceServletTest {
+
+    private static final int SIZE = 1000;
+
+    private File file;
+    private AssetCache.Asset asset;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream body;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        final byte[] content = new byte[SIZE];
+        Arrays.fill(content, (byte) 'a');
+        file = File.createTempFile("resourceServletTest", ".js");
+        Files.write(file.toPath(), content);
+        asset = new AssetCache(1024 * 1024, 1024 * 1024).get(file, "application/javascript");
+
+        request = mock(HttpServletRequest.class);
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        response = mock(HttpServletResponse.class);
+        body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testMatchingETagRespondsNotModified() throws IOException {
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + asset.getETag(null));
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setHeader("ETag", asset.getETag(null));
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test
+    public void testWeakETagMatches() throws IOException {
+        when(request.getHeader("If-None-Match")).thenReturn("W/" + asset.getETag(null));
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test
+    public void testWildcardETagMatches() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        when(request.getHeader("If-None-Match")).thenReturn("*");
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setHeader("ETag", asset.getETag(AssetCache.ENCODING_GZIP));
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test
+    public void testETagListOfGzipVariantMatches() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=1.0, identity;q=0.5");
+        when(request.getHeader("If-None-Match")).thenReturn(
+                asset.getETag(null) + ",W/" + asset.getETag(AssetCache.ENCODING_GZIP));
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test
+    public void testNonMatchingETagServesContent() throws IOException {
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/\"another\"");
+        // If-None-Match takes precedence over If-Modified-Since
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(file.lastModified());
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertThat(body.size()).isEqualTo(SIZE);
+    }
+
+    @Test
+    public void testETagOfOtherEncodingServesContent() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        when(request.getHeader("If-None-Match")).thenReturn(asset.getETag(null));
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).setHeader("ETag", asset.getETag(AssetCache.ENCODING_GZIP));
+        assertThat(body.size()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testGzipIsServedWhenAccepted() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip");
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setHeader("Content-Encoding", AssetCache.ENCODING_GZIP);
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        verify(response).setContentLength(body.size());
+        assertThat(gunzip(body.toByteArray())).hasSize(SIZE);
+    }
+
+    @Test
+    public void testGzipIsServedForWildcard() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("*");
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setHeader("Content-Encoding", AssetCache.ENCODING_GZIP);
+        verify(response).setHeader("ETag", asset.getETag(AssetCache.ENCODING_GZIP));
+        assertThat(gunzip(body.toByteArray())).hasSize(SIZE);
+    }
+
+    @Test
+    public void testIdentityIsServedWhenNothingIsAcceptable() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("identity;q=0");
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response, never()).setHeader("Content-Encoding", anyString());
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        assertThat(body.size()).isEqualTo(SIZE);
+    }
+
+    @Test
+    public void testIdentityIsServedWithoutAcceptEncoding() throws IOException {
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, identity");
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response, never()).setHeader("Content-Encoding", anyString());
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        verify(response).setContentLength(SIZE);
+        assertThat(body.size()).isEqualTo(SIZE);
+    }
+
+    @Test
+    public void testUnmodifiedSinceRespondsNotModified() throws IOException {
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(file.lastModified());
+
+        new ResourceServlet().handleCached(request, response, asset);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            final byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                result.write(buffer, 0, n);
+            }
+        }
+        return result.toByteArray();
+    }
+}
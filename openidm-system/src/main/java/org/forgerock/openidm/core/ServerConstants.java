@@ -251,6 +251,12 @@ public final class ServerConstants {
     /** the default jwtsession hmac signing key alias */
     public static final String DEFAULT_JWTSESSION_SIGNING_KEY_ALIAS = "openidm-jwtsessionhmac-key";
 
+    /**
+     * Request parameter asking the repository to read from the primary database rather than a read replica, for
+     * reads whose revision a following update or delete is conditional on.
+     */
+    public static final String PARAM_READ_FROM_PRIMARY = "readFromPrimary";
+
     /**
      * Query input value for the QUERY_ID input key.
      *
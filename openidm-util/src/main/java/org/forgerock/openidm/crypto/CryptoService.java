@@ -15,11 +15,13 @@
  */
 package org.forgerock.openidm.crypto;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.forgerock.json.crypto.JsonCryptoException;
 import org.forgerock.json.crypto.JsonEncryptor;
 import org.forgerock.json.JsonException;
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonTransformer;
 import org.forgerock.json.JsonValue;
 
@@ -94,6 +96,24 @@ public interface CryptoService {
      */
     JsonValue decrypt(JsonValue value);
 
+    /**
+     * Decrypts only the values at the given pointers, where they are encrypted.
+     * <p>
+     * Unlike {@link #decrypt(JsonValue)}, the value is not deep copied and encrypted values elsewhere in it are
+     * left encrypted: only the containers on the path to a decrypted value are copied, so the argument is left
+     * unmodified while the rest of the structure is shared with the result. If nothing needs decrypting, the
+     * argument itself is returned. Callers handing the result to code which may modify it should pass a copy.
+     *
+     * @param value
+     *            the JSON value to be decrypted.
+     * @param pointers
+     *            the pointers to the values which may be encrypted.
+     * @return the value with the values at the given pointers decrypted.
+     * @throws JsonException
+     *             if an exception occurred decrypting the value.
+     */
+    JsonValue decrypt(JsonValue value, Collection<JsonPointer> pointers);
+
     /**
      * Decrypts a String if in a format supported by this service.
      *
@@ -17,6 +17,7 @@
 package org.forgerock.openidm.util;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.forgerock.guava.common.util.concurrent.AtomicDouble;
 
@@ -27,6 +28,9 @@ import org.forgerock.guava.common.util.concurrent.AtomicDouble;
  * <p>
  * Online mean and standard-deviation are calculated using the B. P. Welford (1962)
  * <a href="http://www.johndcook.com/blog/standard_deviation/">technique</a>.
+ * <p>
+ * Approximate {@link #percentile(double) percentiles} are read from a histogram of logarithmic buckets, each power
+ * of two being split into {@value #SUB_BUCKETS} linear sub-buckets, which bounds the relative error to 1/16.
  */
 public class DurationStatistics {
 
@@ -34,12 +38,18 @@ public class DurationStatistics {
     private static final double POSITIVE_EPSILON = 0.00000001;
     private static final double NEGATIVE_EPSILON = -POSITIVE_EPSILON;
 
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Buckets for all non-negative long values */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
     private final AtomicLong deltaCount;
     private final AtomicLong deltaSum;
     private final AtomicLong deltaMax;
     private final AtomicLong deltaMin;
     private final AtomicDouble deltaMean;
     private final AtomicDouble deltaStdDev;
+    private final AtomicLongArray histogram;
 
     /**
      * Creates a new instance.
@@ -51,6 +61,7 @@ public class DurationStatistics {
         deltaMin = new AtomicLong(INITIAL_DELTA_MIN);
         deltaMean = new AtomicDouble();
         deltaStdDev = new AtomicDouble();
+        histogram = new AtomicLongArray(BUCKETS);
     }
 
     /**
@@ -78,10 +89,41 @@ public class DurationStatistics {
             // this would only happen if method-contract was violated
             throw new IllegalStateException("Unexpected large startNanoTime value");
         }
+        record(delta);
+    }
+
+    /**
+     * Records a time-delta.
+     *
+     * @param delta Time-delta, in nanoseconds
+     */
+    void record(final long delta) {
         updateMean(deltaCount.incrementAndGet(), delta);
         updateMin(delta);
         updateMax(delta);
         deltaSum.addAndGet(delta);
+        histogram.incrementAndGet(bucketIndex(delta));
+    }
+
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle of the range of values of a bucket
+     */
+    private static long bucketValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >>> 1);
     }
 
     private void updateMean(long n, final long delta) {
@@ -186,6 +228,38 @@ public class DurationStatistics {
         return deltaCount.get();
     }
 
+    /**
+     * Get (approximate) percentile of time-deltas, in nanoseconds. The histogram is read without locking, so
+     * concurrently recorded data points may or may not be included.
+     *
+     * @param percentile Percentile, between 0 and 1, e.g. 0.99
+     * @return Approximate time-delta at the percentile, in nanoseconds, never outside of {@link #min()} and
+     * {@link #max()}; 0 if no data point was recorded
+     */
+    public long percentile(final double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Math.max(bucketValue(i), min()), max());
+            }
+        }
+        return max();
+    }
+
     /**
      * Get aggregate summation of time-deltas, in nanoseconds.
      *
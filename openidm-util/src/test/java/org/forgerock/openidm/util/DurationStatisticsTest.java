@@ -101,6 +101,35 @@ public class DurationStatisticsTest {
         statistics.stopNanoTime(Long.MAX_VALUE);
     }
 
+    @Test
+    public void testPercentiles() {
+        final DurationStatistics statistics = new DurationStatistics();
+        for (long i = 1; i <= ITERATIONS; ++i) {
+            statistics.record(i * 1_000_000);
+        }
+
+        assertThat(statistics.percentile(0)).isBetween(statistics.min(), statistics.min() * 17 / 16);
+        assertThat(statistics.percentile(1)).isBetween(statistics.max() * 15 / 16, statistics.max());
+        assertThat(statistics.percentile(0.5)).isBetween(500_000_000L * 15 / 16, 500_000_000L * 17 / 16);
+        assertThat(statistics.percentile(0.99)).isBetween(990_000_000L * 15 / 16, 990_000_000L * 17 / 16);
+    }
+
+    @Test
+    public void testPercentilesOfSmallValues() {
+        final DurationStatistics statistics = new DurationStatistics();
+        for (long i = 0; i < 10; ++i) {
+            statistics.record(i);
+        }
+
+        assertThat(statistics.percentile(0.5)).isEqualTo(4);
+        assertThat(statistics.percentile(0.9)).isEqualTo(8);
+    }
+
+    @Test
+    public void testPercentileEmpty() {
+        assertThat(new DurationStatistics().percentile(0.99)).isEqualTo(0);
+    }
+
     @Test
     public void testNanoToMillis() {
         assertThat(nanoToMillis(1_000_000)).isEqualTo(1);
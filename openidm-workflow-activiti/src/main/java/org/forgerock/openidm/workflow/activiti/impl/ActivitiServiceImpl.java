@@ -70,6 +70,7 @@ import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.crypto.CryptoService;
 import org.forgerock.openidm.router.RouteService;
+import org.forgerock.openidm.router.RouterFilterRegistration;
 import org.forgerock.script.ScriptRegistry;
 import org.forgerock.openidm.workflow.activiti.impl.session.OpenIDMSessionFactory;
 import org.forgerock.util.promise.Promise;
@@ -124,6 +125,7 @@ public class ActivitiServiceImpl implements RequestHandler {
     public static final String CONFIG_HISTORY = "history";
     public static final String CONFIG_USE_DATASOURCE = "useDataSource";
     public static final String CONFIG_WORKFLOWDIR = "workflowDirectory";
+    public static final String CONFIG_IDENTITY_CACHE = "identityCache";
     public static final String LOCALHOST = "localhost";
     public static final int DEFAULT_MAIL_PORT = 25;
     private boolean selfMadeProcessEngine = true;
@@ -187,8 +189,24 @@ public class ActivitiServiceImpl implements RequestHandler {
     @Reference(policy = ReferencePolicy.DYNAMIC)
     private volatile EnhancedConfig enhancedConfig;
 
+    /** The router filter registration, used to register the identity cache invalidation filter */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+    private volatile RouterFilterRegistration routerFilterRegistration;
+
+    void bindRouterFilterRegistration(RouterFilterRegistration routerFilterRegistration) {
+        this.routerFilterRegistration = routerFilterRegistration;
+        routerFilterRegistration.addFilter(identityCacheFilter);
+    }
+
+    void unbindRouterFilterRegistration(RouterFilterRegistration routerFilterRegistration) {
+        routerFilterRegistration.removeFilter(identityCacheFilter);
+        this.routerFilterRegistration = null;
+    }
+
     private final OpenIDMExpressionManager expressionManager = new OpenIDMExpressionManager();
     private final SharedIdentityService identityService = new SharedIdentityService();
+    /** Router filter evicting changed users and groups from the identity service cache */
+    private final IdentityCacheFilter identityCacheFilter = new IdentityCacheFilter(identityService);
     private final OpenIDMSessionFactory idmSessionFactory = new OpenIDMSessionFactory();
     private ProcessEngineFactory processEngineFactory;
     private Configuration barInstallerConfiguration;
@@ -406,6 +424,7 @@ public class ActivitiServiceImpl implements RequestHandler {
                 //Do Something?
             }
         }
+        identityService.setIdentityCache(null);
         logger.info(" Activiti ProcessEngine stopped.");
     }
 
@@ -440,6 +459,7 @@ public class ActivitiServiceImpl implements RequestHandler {
             historyLevel = config.get(CONFIG_HISTORY).asString();
             workflowDir = config.get(CONFIG_WORKFLOWDIR).defaultTo("workflow").asString();
         }
+        identityService.setIdentityCache(IdentityCache.fromConfig(config.get(CONFIG_IDENTITY_CACHE)));
     }
 
     //This method called before activate if there is a ProcessEngine service in the Service Registry
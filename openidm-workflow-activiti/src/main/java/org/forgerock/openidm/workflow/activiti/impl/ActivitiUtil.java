@@ -15,17 +15,28 @@
  */
 package org.forgerock.openidm.workflow.activiti.impl;
 
+import static org.forgerock.json.resource.Responses.newQueryResponse;
+
+import org.activiti.engine.query.Query;
 import org.forgerock.openidm.workflow.activiti.ActivitiConstants;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import org.forgerock.json.JsonException;
 import org.forgerock.json.JsonTransformer;
 import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.CountPolicy;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.openidm.util.DateUtil;
+import org.forgerock.util.Function;
 import org.joda.time.DateTime;
 
 /**
@@ -121,5 +132,62 @@ public class ActivitiUtil {
         }
         return wfParams;
     }
-    
+
+    /**
+     * Runs the Activiti query for the page of results requested by the paged results offset or cookie and the page
+     * size of the request, handing each result to the handler as soon as it is converted. Without a page size all
+     * results are returned. When paging, the results are counted only if the count policy of the request asks
+     * for it and the page does not already reveal the total.
+     *
+     * @param query the Activiti query with its criteria and sort order set
+     * @param request the query request
+     * @param handler the handler of the converted results
+     * @param converter the conversion of an Activiti result to a resource
+     * @param <U> the type of the Activiti results
+     * @return the query response with the cookie of the next page and, if counted, the total number of results
+     * @throws ResourceException if the cookie is invalid or a result could not be converted
+     */
+    public static <U> QueryResponse queryPage(Query<?, U> query, QueryRequest request,
+            QueryResourceHandler handler, Function<U, ResourceResponse, ResourceException> converter)
+            throws ResourceException {
+        final int pageSize = request.getPageSize();
+        final int offset = getPagedResultsOffset(request);
+        final List<U> results = pageSize > 0 ? query.listPage(offset, pageSize) : query.list();
+        for (U result : results) {
+            if (!handler.handleResource(converter.apply(result))) {
+                break;
+            }
+        }
+        if (pageSize <= 0) {
+            return newQueryResponse();
+        }
+
+        final int totalResults;
+        if (request.getTotalPagedResultsPolicy() == CountPolicy.NONE) {
+            totalResults = -1;
+        } else if (results.size() < pageSize && (offset == 0 || !results.isEmpty())) {
+            // the last page, no need to count
+            totalResults = offset + results.size();
+        } else {
+            totalResults = (int) query.count();
+        }
+        final String nextCookie = results.size() < pageSize || offset + results.size() == totalResults
+                ? null
+                : String.valueOf(offset + pageSize);
+        return totalResults < 0
+                ? newQueryResponse(nextCookie)
+                : newQueryResponse(nextCookie, CountPolicy.EXACT, totalResults);
+    }
+
+    private static int getPagedResultsOffset(QueryRequest request) throws BadRequestException {
+        final String pagedResultsCookie = request.getPagedResultsCookie();
+        if (pagedResultsCookie != null && !pagedResultsCookie.isEmpty()) {
+            try {
+                return Integer.parseInt(pagedResultsCookie);
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid paged results cookie");
+            }
+        }
+        return Math.max(0, request.getPagedResultsOffset());
+    }
 }
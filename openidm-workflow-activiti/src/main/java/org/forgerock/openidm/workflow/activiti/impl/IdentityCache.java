@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.workflow.activiti.impl;
+
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.guava.common.cache.Cache;
+import org.forgerock.guava.common.cache.CacheBuilder;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.ResourceResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of the user and group queries the {@link SharedIdentityService} issues while Activiti
+ * evaluates assignees and candidate groups.
+ * <p>
+ * Entries are keyed on the queried resource collection, the query id and the query parameters, and hold copies of
+ * the query results, including empty results. Entries expire after the configured time to live and are removed early
+ * via {@link #invalidate(String)} when a user, group or role is changed. Queries of all ids are not cached, as
+ * their results are unbounded.
+ * <p>
+ * Results are only cached with a {@link #stamp()} taken before the query was issued, so that the results of a query
+ * racing with a change of its resource collection are not cached after the change invalidated the collection.
+ */
+class IdentityCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdentityCache.class);
+
+    private static final String CONFIG_ENABLED = "enabled";
+    private static final String CONFIG_MAX_ENTRIES = "maxEntries";
+    private static final String CONFIG_TIME_TO_LIVE = "timeToLive";
+
+    private static final long DEFAULT_MAX_ENTRIES = 1000L;
+    private static final long DEFAULT_TIME_TO_LIVE_SECONDS = 60L;
+
+    private final Cache<String, Entry> cache;
+
+    /** the resource collections queries have been cached for */
+    private final Set<String> resourceNames = new CopyOnWriteArraySet<>();
+
+    /** Guards the stamps and the additions to the cache, so that no entry is added after it was invalidated. */
+    private final Object lock = new Object();
+
+    /** the last stamp, incremented by each invalidation */
+    private long stamp;
+
+    /** the stamp of the last invalidation of all resource collections */
+    private long invalidatedAll;
+
+    /** the stamp of the last invalidation of each resource collection */
+    private final Map<String, Long> invalidatedResources = new HashMap<>();
+
+    /**
+     * Constructs an identity cache.
+     *
+     * @param maxEntries the maximum number of cached queries
+     * @param timeToLive how long a query result is kept after it was cached
+     * @param unit the unit of {@code timeToLive}
+     */
+    IdentityCache(long maxEntries, long timeToLive, TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(timeToLive, unit)
+                .build();
+    }
+
+    /**
+     * Builds the identity cache from its configuration.
+     * <pre>
+     *     "identityCache" : {
+     *         "enabled" : true,
+     *         "maxEntries" : 1000,
+     *         "timeToLive" : 60
+     *     }
+     * </pre>
+     * {@code timeToLive} is in seconds. Caching is disabled unless {@code enabled} is set, as cached queries may
+     * return identities changed on another node for up to {@code timeToLive}.
+     *
+     * @param config the identityCache configuration, may be null
+     * @return the identity cache, or null if caching is disabled
+     */
+    static IdentityCache fromConfig(JsonValue config) {
+        final JsonValue cacheConfig = config == null ? new JsonValue(null) : config;
+        if (!cacheConfig.get(CONFIG_ENABLED).defaultTo(false).asBoolean()) {
+            return null;
+        }
+        final long timeToLive = cacheConfig.get(CONFIG_TIME_TO_LIVE).defaultTo(DEFAULT_TIME_TO_LIVE_SECONDS).asLong();
+        if (timeToLive <= 0) {
+            return null;
+        }
+        return new IdentityCache(
+                cacheConfig.get(CONFIG_MAX_ENTRIES).defaultTo(DEFAULT_MAX_ENTRIES).asLong(),
+                timeToLive, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the stamp to cache results with, to be taken before the query is issued.
+     *
+     * @return the current stamp
+     */
+    long stamp() {
+        synchronized (lock) {
+            return stamp;
+        }
+    }
+
+    /**
+     * Returns the cached results of a query.
+     *
+     * @param request the query request
+     * @return copies of the cached results, or null if the query is not cached
+     */
+    List<ResourceResponse> get(QueryRequest request) {
+        final Entry entry = cache.getIfPresent(key(request));
+        return entry != null ? entry.copyOfResults() : null;
+    }
+
+    /**
+     * Caches the results of a query, unless its resource collection was invalidated since the stamp was taken.
+     *
+     * @param request the query request
+     * @param results the query results
+     * @param stamp the {@link #stamp()} taken before the query was issued
+     */
+    void put(QueryRequest request, Collection<ResourceResponse> results, long stamp) {
+        final String resourceName = request.getResourcePathObject().toString();
+        final Entry entry = new Entry(resourceName, results);
+        synchronized (lock) {
+            final Long resourceInvalidated = invalidatedResources.get(resourceName);
+            if (invalidatedAll > stamp || (resourceInvalidated != null && resourceInvalidated > stamp)) {
+                logger.trace("Not caching identity query on {} invalidated while it ran", resourceName);
+                return;
+            }
+            resourceNames.add(resourceName);
+            cache.put(key(request), entry);
+        }
+    }
+
+    /**
+     * Removes all cached queries on a resource collection.
+     *
+     * @param resourcePath the resource path of the changed resource collection, e.g. {@code managed/user}
+     */
+    void invalidate(String resourcePath) {
+        synchronized (lock) {
+            invalidatedResources.put(resourcePath, ++stamp);
+            final Iterator<Entry> entries = cache.asMap().values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().resourceName.equals(resourcePath)) {
+                    entries.remove();
+                }
+            }
+        }
+        logger.trace("Invalidated cached identity queries on {}", resourcePath);
+    }
+
+    /**
+     * Removes all cached queries.
+     */
+    void invalidateAll() {
+        synchronized (lock) {
+            invalidatedAll = ++stamp;
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return the resource collections queries have been cached for
+     */
+    Set<String> getCachedResources() {
+        return resourceNames;
+    }
+
+    /**
+     * @return the approximate number of cached queries
+     */
+    long size() {
+        return cache.size();
+    }
+
+    private static String key(QueryRequest request) {
+        // order the parameters so that equal queries share an entry
+        final Map<String, String> parameters = new TreeMap<>(request.getAdditionalParameters());
+        return request.getResourcePathObject() + "?" + request.getQueryId() + parameters;
+    }
+
+    /**
+     * The cached results of a query.
+     */
+    private static final class Entry {
+        private final String resourceName;
+        private final List<ResourceResponse> results;
+
+        private Entry(String resourceName, Collection<ResourceResponse> results) {
+            this.resourceName = resourceName;
+            this.results = copy(results);
+        }
+
+        private List<ResourceResponse> copyOfResults() {
+            return copy(results);
+        }
+
+        private static List<ResourceResponse> copy(Collection<ResourceResponse> results) {
+            final List<ResourceResponse> copies = new ArrayList<>(results.size());
+            for (ResourceResponse result : results) {
+                copies.add(newResourceResponse(result.getId(), result.getRevision(), result.getContent().copy()));
+            }
+            return copies;
+        }
+    }
+}
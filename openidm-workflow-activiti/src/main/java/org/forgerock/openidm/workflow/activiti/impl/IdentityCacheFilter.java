@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.workflow.activiti.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.Filter;
+import org.forgerock.json.resource.PatchRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.Request;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Router filter that removes queries from the {@link IdentityCache} of the {@link SharedIdentityService} once a
+ * write to a cached user or group collection has completed, so that new assignees and candidate groups are seen on
+ * the next task evaluation rather than after the cache time to live.
+ * <p>
+ * Writes to roles clear the whole cache, since role changes may change the group membership of any user.
+ */
+class IdentityCacheFilter implements Filter {
+
+    private static final List<String> ROLE_PATHS = Arrays.asList("managed/role", "repo/internal/role", "internal/role");
+
+    private final SharedIdentityService identityService;
+
+    /**
+     * Constructs the filter.
+     *
+     * @param identityService the identity service whose cache is to be kept current
+     */
+    IdentityCacheFilter(SharedIdentityService identityService) {
+        this.identityService = identityService;
+    }
+
+    @Override
+    public Promise<ActionResponse, ResourceException> filterAction(Context context, ActionRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request);
+        return invalidation == null
+                ? next.handleAction(context, request)
+                : next.handleAction(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterCreate(Context context, CreateRequest request,
+            RequestHandler next) {
+        // a create may satisfy a cached query which found nothing
+        final Runnable invalidation = invalidationFor(request);
+        return invalidation == null
+                ? next.handleCreate(context, request)
+                : next.handleCreate(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterDelete(Context context, DeleteRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request);
+        return invalidation == null
+                ? next.handleDelete(context, request)
+                : next.handleDelete(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterPatch(Context context, PatchRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request);
+        return invalidation == null
+                ? next.handlePatch(context, request)
+                : next.handlePatch(context, request).thenAlways(invalidation);
+    }
+
+    @Override
+    public Promise<QueryResponse, ResourceException> filterQuery(Context context, QueryRequest request,
+            QueryResourceHandler handler, RequestHandler next) {
+        return next.handleQuery(context, request, handler);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterRead(Context context, ReadRequest request,
+            RequestHandler next) {
+        return next.handleRead(context, request);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> filterUpdate(Context context, UpdateRequest request,
+            RequestHandler next) {
+        final Runnable invalidation = invalidationFor(request);
+        return invalidation == null
+                ? next.handleUpdate(context, request)
+                : next.handleUpdate(context, request).thenAlways(invalidation);
+    }
+
+    /**
+     * Determines the cached queries a write request affects.
+     *
+     * @param request the write request
+     * @return the invalidation to run on completion of the request, or null if no cached query is affected
+     */
+    private Runnable invalidationFor(Request request) {
+        final IdentityCache cache = identityService.getIdentityCache();
+        if (cache == null) {
+            return null;
+        }
+        final String path = request.getResourcePathObject().toString();
+        for (String rolePath : ROLE_PATHS) {
+            if (isWithin(path, rolePath)) {
+                return invalidate(cache, null);
+            }
+        }
+        for (String resourceName : cache.getCachedResources()) {
+            if (isWithin(path, resourceName)) {
+                return invalidate(cache, resourceName);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWithin(String path, String collection) {
+        return path.equals(collection) || path.startsWith(collection + "/");
+    }
+
+    private static Runnable invalidate(final IdentityCache cache, final String resourceName) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (resourceName == null) {
+                    cache.invalidateAll();
+                } else {
+                    cache.invalidate(resourceName);
+                }
+            }
+        };
+    }
+}
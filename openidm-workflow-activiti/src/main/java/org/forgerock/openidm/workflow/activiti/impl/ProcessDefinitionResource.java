@@ -16,7 +16,6 @@
 package org.forgerock.openidm.workflow.activiti.impl;
 
 import static org.forgerock.json.JsonValue.json;
-import static org.forgerock.json.resource.Responses.newQueryResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
 import static org.forgerock.openidm.util.ResourceUtil.notSupportedOnCollection;
 import static org.forgerock.openidm.util.ResourceUtil.notSupportedOnInstance;
@@ -39,6 +38,7 @@ import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
 import org.forgerock.json.resource.InternalServerErrorException;
 import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.NotSupportedException;
 import org.forgerock.json.resource.PatchRequest;
 import org.forgerock.json.resource.QueryRequest;
 import org.forgerock.json.resource.QueryResourceHandler;
@@ -46,6 +46,7 @@ import org.forgerock.json.resource.QueryResponse;
 import org.forgerock.json.resource.ReadRequest;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.SortKey;
 import org.forgerock.services.context.SecurityContext;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.workflow.activiti.ActivitiConstants;
@@ -73,6 +74,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openidm.workflow.activiti.impl.mixin.DateFormTypeMixIn;
 import org.forgerock.openidm.workflow.activiti.impl.mixin.EnumFormTypeMixIn;
 import org.forgerock.openidm.workflow.activiti.impl.mixin.ProcessDefinitionMixIn;
+import org.forgerock.util.Function;
 import org.forgerock.util.encode.Base64;
 import org.forgerock.util.promise.Promise;
 
@@ -151,27 +153,21 @@ public class ProcessDefinitionResource implements CollectionResourceProvider {
             (Context context, QueryRequest request, QueryResourceHandler handler) {
         try {
             Authentication.setAuthenticatedUserId(context.asContext(SecurityContext.class).getAuthenticationId());
-            if (ActivitiConstants.QUERY_ALL_IDS.equals(request.getQueryId())) {
-                List<ProcessDefinition> definitionList =
-                        processEngine.getRepositoryService().createProcessDefinitionQuery().list();
-                if (definitionList != null && definitionList.size() > 0) {
-                    for (ProcessDefinition processDefinition : definitionList) {
-                        JsonValue value = json(mapper.convertValue(processDefinition, Map.class));
-                        ResourceResponse r = newResourceResponse(processDefinition.getId(), null, value);
-                        handler.handleResource(r);
-                    }
-                }
-                return newQueryResponse().asPromise();
-            } else if (ActivitiConstants.QUERY_FILTERED.equals(request.getQueryId())) {
+            if (ActivitiConstants.QUERY_ALL_IDS.equals(request.getQueryId())
+                    || ActivitiConstants.QUERY_FILTERED.equals(request.getQueryId())) {
                 ProcessDefinitionQuery query = processEngine.getRepositoryService().createProcessDefinitionQuery();
-                setProcessDefinitionParams(query, request);
-                List<ProcessDefinition> list = query.list();
-                for (ProcessDefinition processDefinition : list) {
-                    JsonValue value = json(mapper.convertValue(processDefinition, Map.class));
-                    ResourceResponse r = newResourceResponse(processDefinition.getId(), null, value);
-                    handler.handleResource(r);
+                if (ActivitiConstants.QUERY_FILTERED.equals(request.getQueryId())) {
+                    setProcessDefinitionParams(query, request);
                 }
-                return newQueryResponse().asPromise();
+                setSortKeys(query, request);
+                return ActivitiUtil.queryPage(query, request, handler,
+                        new Function<ProcessDefinition, ResourceResponse, ResourceException>() {
+                            @Override
+                            public ResourceResponse apply(ProcessDefinition processDefinition) {
+                                JsonValue value = json(mapper.convertValue(processDefinition, Map.class));
+                                return newResourceResponse(processDefinition.getId(), null, value);
+                            }
+                        }).asPromise();
             } else {
                 throw new BadRequestException("Unknown query-id");
             }
@@ -236,6 +232,51 @@ public class ProcessDefinitionResource implements CollectionResourceProvider {
         query = processDefinitionVersion == null ? query : query.processDefinitionVersion(Integer.getInteger(processDefinitionVersion));
     }
 
+    /**
+     * Sets what the result set should be ordered by.
+     *
+     * @param query ProcessDefinitionQuery that needs to be modified for ordering
+     * @param request incoming request
+     * @throws NotSupportedException
+     */
+    private void setSortKeys(ProcessDefinitionQuery query, QueryRequest request) throws NotSupportedException {
+        for (SortKey key : request.getSortKeys()) {
+            if (key.getField() != null && !key.getField().isEmpty()) {
+                switch (key.getField().toString().substring(1)) { // remove leading JsonPointer slash
+                    case ActivitiConstants.ID:
+                        query.orderByProcessDefinitionId();
+                        break;
+                    case ActivitiConstants.ACTIVITI_NAME:
+                        query.orderByProcessDefinitionName();
+                        break;
+                    case ActivitiConstants.ACTIVITI_KEY:
+                        query.orderByProcessDefinitionKey();
+                        break;
+                    case ActivitiConstants.ACTIVITI_VERSION:
+                        query.orderByProcessDefinitionVersion();
+                        break;
+                    case ActivitiConstants.ACTIVITI_CATEGORY:
+                        query.orderByProcessDefinitionCategory();
+                        break;
+                    case ActivitiConstants.ACTIVITI_DEPLOYMENTID:
+                        query.orderByDeploymentId();
+                        break;
+                    case ActivitiConstants.ACTIVITI_TENANTID:
+                        query.orderByTenantId();
+                        break;
+                    default:
+                        throw new NotSupportedException(
+                                "Sort key: " + key.getField().toString().substring(1) + " is not valid");
+                }
+                query = key.isAscendingOrder() ? query.asc() : query.desc();
+            }
+        }
+        if (request.getSortKeys().isEmpty() && request.getPageSize() > 0) {
+            // pages need a stable order
+            query.orderByProcessDefinitionId().asc();
+        }
+    }
+
     /**
      * Return the list of FormProperty-related data
      *
@@ -16,6 +16,7 @@
 package org.forgerock.openidm.workflow.activiti.impl;
 
 import static org.forgerock.json.resource.Requests.newUpdateRequest;
+import static org.forgerock.json.resource.Responses.newQueryResponse;
 
 import org.activiti.engine.IdentityService;
 import org.activiti.engine.identity.Group;
@@ -26,6 +27,7 @@ import org.activiti.engine.identity.UserQuery;
 import org.activiti.engine.impl.identity.Authentication;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -35,6 +37,7 @@ import org.forgerock.services.context.Context;
 import org.forgerock.json.resource.*;
 import org.forgerock.openidm.crypto.CryptoService;
 import org.forgerock.openidm.util.ContextUtil;
+import org.forgerock.openidm.workflow.activiti.ActivitiConstants;
 
 /**
  * @version $Revision$ $Date$
@@ -84,9 +87,14 @@ public class SharedIdentityService implements IdentityService {
     private Context context = ContextUtil.createInternalContext();
     private CryptoService cryptoService;
     private ConnectionFactory connectionFactory;
+    /** the cache of user and group queries, or null if caching is disabled */
+    private volatile IdentityCache identityCache;
     
     public static final String USER_PATH = "managed/user/";
     public static final String GROUP_PATH = "managed/group/";
+    /** the user and group resource collections, as cached queries refer to them */
+    private static final String USER_RESOURCE = "managed/user";
+    private static final String GROUP_RESOURCE = "managed/group";
 
     public void setCryptoService(CryptoService service) {
         this.cryptoService = service;
@@ -96,17 +104,51 @@ public class SharedIdentityService implements IdentityService {
         this.connectionFactory = connectionFactory;
     }
 
+    void setIdentityCache(IdentityCache identityCache) {
+        this.identityCache = identityCache;
+    }
+
+    IdentityCache getIdentityCache() {
+        return identityCache;
+    }
+
     private Connection getConnection() throws ResourceException {
         return connectionFactory.getConnection();
     }
 
+    /**
+     * Streams the results of a query to the handler. Streamed queries are not cached, they are not buffered.
+     */
     public QueryResponse query(QueryRequest request, QueryResourceHandler handler) throws ResourceException {
         return getConnection().query(context, request, handler);
     }
 
     public QueryResponse query(QueryRequest request, Collection<? super ResourceResponse> result)
             throws ResourceException {
-        return getConnection().query(context, request, result);
+        final IdentityCache cache = identityCache;
+        if (cache == null || ActivitiConstants.QUERY_ALL_IDS.equals(request.getQueryId())) {
+            return getConnection().query(context, request, result);
+        }
+        result.addAll(cachedQuery(cache, request));
+        return newQueryResponse();
+    }
+
+    private List<ResourceResponse> cachedQuery(IdentityCache cache, QueryRequest request) throws ResourceException {
+        List<ResourceResponse> results = cache.get(request);
+        if (results == null) {
+            final long stamp = cache.stamp();
+            results = new ArrayList<>();
+            getConnection().query(context, request, results);
+            cache.put(request, results, stamp);
+        }
+        return results;
+    }
+
+    private void invalidateCache(String resourcePath) {
+        final IdentityCache cache = identityCache;
+        if (cache != null) {
+            cache.invalidate(resourcePath);
+        }
     }
 
     /**
@@ -141,6 +183,8 @@ public class SharedIdentityService implements IdentityService {
                 }
             } catch (ResourceException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                invalidateCache(USER_RESOURCE);
             }
         }
     }
@@ -163,6 +207,8 @@ public class SharedIdentityService implements IdentityService {
             getConnection().delete(context, request);
         } catch (ResourceException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            invalidateCache(USER_RESOURCE);
         }
     }
 
@@ -206,6 +252,8 @@ public class SharedIdentityService implements IdentityService {
                 }
             } catch (ResourceException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                invalidateCache(GROUP_RESOURCE);
             }
         }
     }
@@ -222,6 +270,8 @@ public class SharedIdentityService implements IdentityService {
             getConnection().delete(context, request);
         } catch (ResourceException e) {
             throw new RuntimeException(e);
+        } finally {
+            invalidateCache(GROUP_RESOURCE);
         }
     }
 
@@ -16,7 +16,6 @@
 package org.forgerock.openidm.workflow.activiti.impl;
 
 import static org.forgerock.json.JsonValue.json;
-import static org.forgerock.json.resource.Responses.newQueryResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
 import static org.forgerock.openidm.util.ResourceUtil.notSupportedOnInstance;
 
@@ -50,6 +49,7 @@ import org.forgerock.json.resource.SortKey;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.workflow.activiti.ActivitiConstants;
 import org.forgerock.openidm.workflow.activiti.impl.mixin.HistoricTaskInstanceEntityMixIn;
+import org.forgerock.util.Function;
 import org.forgerock.util.promise.Promise;
 
 import java.util.Arrays;
@@ -134,16 +134,21 @@ public class TaskInstanceHistoryResource implements CollectionResourceProvider {
 
                 if (ActivitiConstants.QUERY_FILTERED.equals(request.getQueryId())) {
                     setTaskParams(query, request);
-                    setSortKeys(query, request);
                 }
-                for (HistoricTaskInstance i : query.list()) {
-                    JsonValue value = json(mapper.convertValue(i, Map.class));
-                    handler.handleResource(newResourceResponse(i.getId(), null, value));
-                }
-                return newQueryResponse().asPromise();
+                setSortKeys(query, request);
+                return ActivitiUtil.queryPage(query, request, handler,
+                        new Function<HistoricTaskInstance, ResourceResponse, ResourceException>() {
+                            @Override
+                            public ResourceResponse apply(HistoricTaskInstance taskInstance) {
+                                JsonValue value = json(mapper.convertValue(taskInstance, Map.class));
+                                return newResourceResponse(taskInstance.getId(), null, value);
+                            }
+                        }).asPromise();
             } else {
                 return new BadRequestException("Unknown query-id").asPromise();
             }
+        } catch (ResourceException e) {
+            return e.asPromise();
         } catch (Exception ex) {
             return new InternalServerErrorException(ex.getMessage(), ex).asPromise();
         }
@@ -321,5 +326,9 @@ public class TaskInstanceHistoryResource implements CollectionResourceProvider {
                 query = key.isAscendingOrder() ? query.asc() : query.desc();
             }
         }
+        if (request.getSortKeys().isEmpty() && request.getPageSize() > 0) {
+            // pages need a stable order
+            query.orderByTaskId().asc();
+        }
     }
 }
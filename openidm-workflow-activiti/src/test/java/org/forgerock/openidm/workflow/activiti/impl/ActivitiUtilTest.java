@@ -0,0 +1,136 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.workflow.activiti.impl;
+
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.activiti.engine.query.Query;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.CountPolicy;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.util.Function;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ActivitiUtilTest {
+
+    private static final Function<String, ResourceResponse, ResourceException> CONVERTER =
+            new Function<String, ResourceResponse, ResourceException>() {
+                @Override
+                public ResourceResponse apply(String id) {
+                    return newResourceResponse(id, null, json(id));
+                }
+            };
+
+    private Query<?, String> query;
+    private List<String> handled;
+    private QueryResourceHandler handler;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        query = mock(Query.class);
+        handled = new ArrayList<>();
+        handler = new QueryResourceHandler() {
+            @Override
+            public boolean handleResource(ResourceResponse resource) {
+                handled.add(resource.getId());
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testQueryWithoutPageSizeListsAll() throws Exception {
+        when(query.list()).thenReturn(Arrays.asList("1", "2", "3"));
+
+        final QueryResponse response = ActivitiUtil.queryPage(query,
+                Requests.newQueryRequest("workflow/taskinstance"), handler, CONVERTER);
+
+        Assert.assertEquals(handled, Arrays.asList("1", "2", "3"));
+        Assert.assertNull(response.getPagedResultsCookie());
+        verify(query, never()).listPage(anyInt(), anyInt());
+        verify(query, never()).count();
+    }
+
+    @Test
+    public void testQueryPageCountsAndReturnsCookie() throws Exception {
+        when(query.listPage(2, 2)).thenReturn(Arrays.asList("3", "4"));
+        when(query.count()).thenReturn(5L);
+        final QueryRequest request = Requests.newQueryRequest("workflow/taskinstance")
+                .setPageSize(2)
+                .setPagedResultsCookie("2")
+                .setTotalPagedResultsPolicy(CountPolicy.EXACT);
+
+        final QueryResponse response = ActivitiUtil.queryPage(query, request, handler, CONVERTER);
+
+        Assert.assertEquals(handled, Arrays.asList("3", "4"));
+        Assert.assertEquals(response.getPagedResultsCookie(), "4");
+        Assert.assertEquals(response.getTotalPagedResults(), 5);
+        verify(query, never()).list();
+    }
+
+    @Test
+    public void testLastPageIsNotCounted() throws Exception {
+        when(query.listPage(4, 2)).thenReturn(Arrays.asList("5"));
+        final QueryRequest request = Requests.newQueryRequest("workflow/taskinstance")
+                .setPageSize(2)
+                .setPagedResultsOffset(4)
+                .setTotalPagedResultsPolicy(CountPolicy.EXACT);
+
+        final QueryResponse response = ActivitiUtil.queryPage(query, request, handler, CONVERTER);
+
+        Assert.assertEquals(handled, Arrays.asList("5"));
+        Assert.assertNull(response.getPagedResultsCookie());
+        Assert.assertEquals(response.getTotalPagedResults(), 5);
+        verify(query, never()).count();
+    }
+
+    @Test
+    public void testCountPolicyNoneSkipsCount() throws Exception {
+        when(query.listPage(0, 2)).thenReturn(Arrays.asList("1", "2"));
+        final QueryRequest request = Requests.newQueryRequest("workflow/taskinstance").setPageSize(2);
+
+        final QueryResponse response = ActivitiUtil.queryPage(query, request, handler, CONVERTER);
+
+        Assert.assertEquals(response.getPagedResultsCookie(), "2");
+        Assert.assertEquals(response.getTotalPagedResults(), -1);
+        verify(query, never()).count();
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testInvalidCookie() throws Exception {
+        ActivitiUtil.queryPage(query,
+                Requests.newQueryRequest("workflow/taskinstance").setPageSize(2).setPagedResultsCookie("next"),
+                handler, CONVERTER);
+    }
+}
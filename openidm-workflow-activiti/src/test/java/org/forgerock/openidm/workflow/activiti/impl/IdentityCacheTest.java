@@ -0,0 +1,165 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.workflow.activiti.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newQueryResponse;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.identity.User;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class IdentityCacheTest {
+
+    private IdentityCache cache;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new IdentityCache(10, 1, TimeUnit.MINUTES);
+    }
+
+    private static QueryRequest forUserName(String userName) {
+        return Requests.newQueryRequest(SharedIdentityService.USER_PATH)
+                .setQueryId("for-userName")
+                .setAdditionalParameter("uid", userName);
+    }
+
+    @Test
+    public void testCachedResultsAreCopies() {
+        cache.put(forUserName("bjensen"), Collections.singletonList(
+                newResourceResponse("1", "0", json(object(field("userName", "bjensen"))))), cache.stamp());
+
+        final List<ResourceResponse> results = cache.get(forUserName("bjensen"));
+        Assert.assertEquals(results.size(), 1);
+        results.get(0).getContent().put("userName", "changed");
+        Assert.assertEquals(cache.get(forUserName("bjensen")).get(0).getContent().get("userName").asString(),
+                "bjensen");
+        Assert.assertNull(cache.get(forUserName("scarter")));
+    }
+
+    @Test
+    public void testInvalidateCollection() {
+        cache.put(forUserName("bjensen"), Collections.<ResourceResponse>emptyList(), cache.stamp());
+        cache.put(Requests.newQueryRequest(SharedIdentityService.GROUP_PATH).setQueryId("query-all-ids"),
+                Collections.<ResourceResponse>emptyList(), cache.stamp());
+        Assert.assertTrue(cache.getCachedResources().contains("managed/user"));
+
+        cache.invalidate("managed/user");
+
+        Assert.assertNull(cache.get(forUserName("bjensen")));
+        Assert.assertNotNull(cache.get(
+                Requests.newQueryRequest(SharedIdentityService.GROUP_PATH).setQueryId("query-all-ids")));
+    }
+
+    @Test
+    public void testStalePutIsRejected() {
+        final long stamp = cache.stamp();
+        cache.invalidate("managed/user");
+        cache.put(forUserName("bjensen"), Collections.<ResourceResponse>emptyList(), stamp);
+        Assert.assertNull(cache.get(forUserName("bjensen")));
+
+        cache.put(forUserName("bjensen"), Collections.<ResourceResponse>emptyList(), cache.stamp());
+        Assert.assertNotNull(cache.get(forUserName("bjensen")));
+
+        final long beforeAll = cache.stamp();
+        cache.invalidateAll();
+        cache.put(forUserName("scarter"), Collections.<ResourceResponse>emptyList(), beforeAll);
+        Assert.assertNull(cache.get(forUserName("scarter")));
+    }
+
+    @Test
+    public void testDisabledByConfig() {
+        Assert.assertNull(IdentityCache.fromConfig(null));
+        Assert.assertNull(IdentityCache.fromConfig(json(object())));
+        Assert.assertNotNull(IdentityCache.fromConfig(json(object(field("enabled", true)))));
+        Assert.assertNull(IdentityCache.fromConfig(json(object(field("enabled", false)))));
+        Assert.assertNull(IdentityCache.fromConfig(json(object(field("enabled", true), field("timeToLive", 0)))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIdentityServiceQueriesOnce() throws Exception {
+        final Connection connection = mock(Connection.class);
+        when(connection.query(any(Context.class), any(QueryRequest.class), anyCollectionOf(ResourceResponse.class)))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        ((Collection<ResourceResponse>) invocation.getArguments()[2]).add(newResourceResponse("1",
+                                null, json(object(field("_id", "1"), field("userName", "bjensen")))));
+                        return newQueryResponse();
+                    }
+                });
+        final ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        final SharedIdentityService identityService = new SharedIdentityService();
+        identityService.setConnectionFactory(connectionFactory);
+        identityService.setIdentityCache(cache);
+
+        for (int i = 0; i < 3; i++) {
+            final User user = new JsonUserQuery(identityService).readUser("bjensen");
+            Assert.assertEquals(user.getId(), "bjensen");
+        }
+        verify(connection, times(1)).query(any(Context.class), any(QueryRequest.class),
+                anyCollectionOf(ResourceResponse.class));
+
+        identityService.deleteUser("1");
+        new JsonUserQuery(identityService).readUser("bjensen");
+        verify(connection, times(2)).query(any(Context.class), any(QueryRequest.class),
+                anyCollectionOf(ResourceResponse.class));
+    }
+
+    @Test
+    public void testQueryAllIdsIsNotCached() throws Exception {
+        final Connection connection = mock(Connection.class);
+        when(connection.query(any(Context.class), any(QueryRequest.class), anyCollectionOf(ResourceResponse.class)))
+                .thenReturn(newQueryResponse());
+        final ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        final SharedIdentityService identityService = new SharedIdentityService();
+        identityService.setConnectionFactory(connectionFactory);
+        identityService.setIdentityCache(cache);
+
+        for (int i = 0; i < 2; i++) {
+            new JsonUserQuery(identityService).executeCount(null);
+        }
+        verify(connection, times(2)).query(any(Context.class), any(QueryRequest.class),
+                anyCollectionOf(ResourceResponse.class));
+        Assert.assertEquals(cache.size(), 0L);
+    }
+}
@@ -492,16 +492,25 @@ function allow() {
     return passesAccessConfig(request.resourcePath, roles, request.method, action);
 }
 
-// Load the access configuration script (httpAccessConfig obj)
+// Load the access configuration script (httpAccessConfig obj) and its custom authorization functions
 load(identityServer.getProjectLocation() + "/script/access.js");
 
-if (!allow()) {
-//    console.log(JSON.stringify(request));
-//    console.log(JSON.stringify(context, null, 4));
-    throw {
-        "code" : 403,
-        "message" : "Access denied"
-    };
+if (typeof compileAccessRules !== "undefined") {
+    // Invoked by the native router authorization filter to compile its rule table from the access configuration
+    JSON.stringify(httpAccessConfig.configs);
+} else if (typeof customAuthz !== "undefined") {
+    // Invoked by the native router authorization filter, which has already matched the access rule;
+    // only the rule's customAuthz expression is evaluated here.
+    eval(customAuthz);
 } else {
-    logger.debug("Request allowed");
+    if (!allow()) {
+    //    console.log(JSON.stringify(request));
+    //    console.log(JSON.stringify(context, null, 4));
+        throw {
+            "code" : 403,
+            "message" : "Access denied"
+        };
+    } else {
+        logger.debug("Request allowed");
+    }
 }
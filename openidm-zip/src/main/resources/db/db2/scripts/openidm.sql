@@ -213,6 +213,7 @@ CREATE TABLE SOPENIDM.LINKS (
     linkqualifier              VARCHAR(50)   NOT NULL,
     firstid                    VARCHAR(255)   NOT NULL,
     secondid                   VARCHAR(255)   NOT NULL,
+    targethash                 VARCHAR(16),
     PRIMARY KEY (OBJECTID)
 ) IN DOPENIDM.SOIDM07;
 COMMENT ON TABLE SOPENIDM.LINKS IS 'OPENIDM - Object Links For Mappings And Synchronization';
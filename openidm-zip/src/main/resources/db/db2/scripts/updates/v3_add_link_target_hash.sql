@@ -0,0 +1 @@
+ALTER TABLE SOPENIDM.LINKS ADD COLUMN targethash VARCHAR(16);
@@ -0,0 +1 @@
+ALTER TABLE openidm.links ADD COLUMN targethash VARCHAR(16) NULL;
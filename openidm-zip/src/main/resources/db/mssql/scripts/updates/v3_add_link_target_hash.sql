@@ -0,0 +1 @@
+ALTER TABLE [openidm].[links] ADD targethash NVARCHAR(16) NULL;
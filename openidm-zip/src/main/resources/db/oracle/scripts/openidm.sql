@@ -569,7 +569,8 @@ CREATE TABLE links (
   linktype VARCHAR2(50 CHAR) NOT NULL,
   linkqualifier VARCHAR2(50 CHAR) NOT NULL,
   firstid VARCHAR2(255 CHAR) NOT NULL,
-  secondid VARCHAR2(255 CHAR) NOT NULL
+  secondid VARCHAR2(255 CHAR) NOT NULL,
+  targethash VARCHAR2(16 CHAR)
 );
 
 
@@ -0,0 +1 @@
+ALTER TABLE links ADD targethash VARCHAR2(16 CHAR);
@@ -0,0 +1,56 @@
+-- This script is optional; it converts the managedobjects table to store fullobject as jsonb. Run it with the openidm
+-- user while OpenIDM is stopped, then set "jsonb" : true on the generic mappings which use the table in
+-- repo.jdbc.json, for example:
+--
+--     "managed/*" : {
+--         "mainTable" : "managedobjects",
+--         "propertiesTable" : "managedobjectproperties",
+--         "searchableDefault" : true,
+--         "jsonb" : true
+--     },
+--
+-- Mappings using jsonb search fullobject itself and no longer write managedobjectproperties, so it is emptied here.
+-- Other generic tables can be converted the same way.
+
+-- Expression indexes on the json column can not be converted along with it
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_roleCondition;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_roleTemporalConstraints;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_userName;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_givenName;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_sn;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_mail;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_accountStatus;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_userName_gin;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_givenName_gin;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_sn_gin;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_mail_gin;
+DROP INDEX IF EXISTS openidm.idx_json_managedobjects_accountStatus_gin;
+
+ALTER TABLE openidm.managedobjects ALTER COLUMN fullobject TYPE JSONB USING fullobject::jsonb;
+
+TRUNCATE TABLE openidm.managedobjectproperties;
+
+-- Lets the json_extract_path_text calls of the predefined queries in repo.jdbc.json work on jsonb columns. The
+-- function is inlined, so the expression indexes below serve these queries as well.
+CREATE OR REPLACE FUNCTION openidm.json_extract_path_text(from_json JSONB, VARIADIC path_elems TEXT[])
+    RETURNS TEXT AS 'SELECT jsonb_extract_path_text($1, VARIADIC $2)'
+    LANGUAGE SQL IMMUTABLE;
+
+-- Serves the containment (fullobject @> '{"userName":"bjensen"}') rendered for equality query filters
+CREATE INDEX idx_jsonb_managedobjects_fullobject ON openidm.managedobjects USING gin (fullobject jsonb_path_ops);
+
+-- Serve ranges, sorting and the predefined queries
+CREATE INDEX idx_json_managedobjects_roleCondition ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'condition') );
+CREATE INDEX idx_json_managedobjects_roleTemporalConstraints ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'temporalConstraints') );
+CREATE UNIQUE INDEX idx_json_managedobjects_userName ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'userName'), objecttypes_id );
+CREATE INDEX idx_json_managedobjects_givenName ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'givenName') );
+CREATE INDEX idx_json_managedobjects_sn ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'sn') );
+CREATE INDEX idx_json_managedobjects_mail ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'mail') );
+CREATE INDEX idx_json_managedobjects_accountStatus ON openidm.managedobjects
+    ( jsonb_extract_path_text(fullobject, 'accountStatus') );